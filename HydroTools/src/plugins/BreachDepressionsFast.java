@@ -18,11 +18,11 @@ package plugins;
 
 import java.util.Arrays;
 import java.util.Date;
-import java.util.PriorityQueue;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
 import whitebox.structures.BooleanBitArray2D;
+import whitebox.structures.CellPriorityQueue;
 import whitebox.structures.NibbleArray2D;
 
 /**
@@ -208,7 +208,6 @@ public class BreachDepressionsFast implements WhiteboxPlugin {
             double pathTerminalHeight;
             double outletHeight;
             int outletRow, outletCol, outletDist;
-            GridCell gc;
             int[] dX = {1, 1, 1, 0, -1, -1, -1, 0};
             int[] dY = {-1, 0, 1, 1, 1, 0, -1, -1};
             int[] backLink = {5, 6, 7, 8, 1, 2, 3, 4};
@@ -273,7 +272,7 @@ public class BreachDepressionsFast implements WhiteboxPlugin {
             BooleanBitArray2D pits = new BooleanBitArray2D(rows + 2, cols + 2);
             BooleanBitArray2D inQueue = new BooleanBitArray2D(rows + 2, cols + 2);
             NibbleArray2D flowdir = new NibbleArray2D(rows + 2, cols + 2);
-            PriorityQueue<GridCell> queue = new PriorityQueue<>((2 * rows + 2 * cols) * 2);
+            CellPriorityQueue queue = new CellPriorityQueue((2 * rows + 2 * cols) * 2);
             
             // find the pit cells and initialize the grids
             oldProgress = -1;
@@ -305,7 +304,7 @@ public class BreachDepressionsFast implements WhiteboxPlugin {
                         if (isPit) {
                             if (isEdgeCell) {
                                 //n = row * cols + col;
-                                queue.add(new GridCell(row + 1, col + 1, z)); //, n));
+                                queue.add(row + 1, col + 1, getPriority(z, row + 1, col + 1));
                                 inQueue.setValue(row + 1, col + 1, true);
                                 flowdir.setValue(row + 1, col + 1, 0);
                             } else {
@@ -359,9 +358,9 @@ public class BreachDepressionsFast implements WhiteboxPlugin {
             if (!maxLengthOrDepthUsed) {
                 // Perform a complete breaching solution; there will be no filling
                 while (queue.isEmpty() == false) {
-                    gc = queue.poll();
-                    row = gc.row;
-                    col = gc.col;
+                    row = queue.peekRow();
+                    col = queue.peekColumn();
+                    queue.remove();
                     for (i = 0; i < 8; i++) {
                         rowN = row + dY[i];
                         colN = col + dX[i];
@@ -399,7 +398,7 @@ public class BreachDepressionsFast implements WhiteboxPlugin {
                             }
                             numSolvedCells++;
                             //n = rowN * cols + colN;
-                            queue.add(new GridCell(rowN, colN, zN)); //, n));
+                            queue.add(rowN, colN, getPriority(zN, rowN, colN));
                             inQueue.setValue(rowN, colN, true);
                         }
                     }
@@ -420,9 +419,9 @@ public class BreachDepressionsFast implements WhiteboxPlugin {
                 // be breached. Otherwise they will be removed during a subsequent
                 // filling operation.
                 while (queue.isEmpty() == false) {
-                    gc = queue.poll();
-                    row = gc.row;
-                    col = gc.col;
+                    row = queue.peekRow();
+                    col = queue.peekColumn();
+                    queue.remove();
                     
                     for (i = 0; i < 8; i++) {
                         rowN = row + dY[i];
@@ -497,7 +496,7 @@ public class BreachDepressionsFast implements WhiteboxPlugin {
                             }
                             numSolvedCells++;
                             //n = rowN * cols + colN;
-                            queue.add(new GridCell(rowN, colN, zN)); //, n));
+                            queue.add(rowN, colN, getPriority(zN, rowN, colN));
                             inQueue.setValue(rowN, colN, true);
                         }
                     }
@@ -538,7 +537,7 @@ public class BreachDepressionsFast implements WhiteboxPlugin {
 
                             if (isEdgeCell && isPit) {
                                 //n = row * cols + col;
-                                queue.add(new GridCell(row + 1, col + 1, z)); //, n));
+                                queue.add(row + 1, col + 1, getPriority(z, row + 1, col + 1));
                                 inQueue.setValue(row + 1, col + 1, true);
                                 numSolvedCells++;
                             }
@@ -561,9 +560,9 @@ public class BreachDepressionsFast implements WhiteboxPlugin {
 
                 // now fill the DEM
                 while (queue.isEmpty() == false) {
-                    gc = queue.poll();
-                    row = gc.row;
-                    col = gc.col;
+                    row = queue.peekRow();
+                    col = queue.peekColumn();
+                    queue.remove();
                     z = output[row][col]; //gc.z;
 
                     for (i = 0; i < 8; i++) {
@@ -578,7 +577,7 @@ public class BreachDepressionsFast implements WhiteboxPlugin {
                             numSolvedCells++;
                             output[rowN][colN] = zN;
                             //n = rowN * cols + colN;
-                            queue.add(new GridCell(rowN, colN, zN)); //, n));
+                            queue.add(rowN, colN, getPriority(zN, rowN, colN));
                             inQueue.setValue(rowN, colN, true);
                         }
                     }
@@ -691,51 +690,16 @@ public class BreachDepressionsFast implements WhiteboxPlugin {
         }
     }
     
-    class GridCell implements Comparable<GridCell> {
-
-        public int row;
-        public int col;
-        //public double z;
-        public long priority;
-
-        public GridCell(int row, int col, double z) {
-            this.row = row;
-            this.col = col;
-            //this.priority = ((long)((z - minVal) * elevMultiplier)) * 100 + (row % 1000);
-            this.priority = (long)((long)(z * elevMultiplier) * 1000000 + (row % 1000) * 1000 + (col % 1000));
-//            this.priority = ((int)((z - minVal) * elevMultiplier)) * 100 + (row % 100);
-        }
-
-        @Override
-        public int compareTo(GridCell other) {
-            if (this.priority < other.priority) {
-                return -1;
-            } else {
-                return 1;
-            }
-            //return this.priority - other.priority;
-//            if (this.z < other.z) {
-//                return -1;
-//            } else if (this.z > other.z) {
-//                return 1;
-//            }
-            
-            /* in the event of tied elevations, there must be 
-             a unique priority assigned to each grid cell. The 
-             priority will be based on the cell index, which is 
-             a unique number assigned to the cell upon creation.
-             index = row * numColumns + column
-            */
-//            if (this.index < other.index) {
-//                return -1;
-//            } else if (this.index > other.index) {
-//                return 1;
-//            } else {
-//                return 0; // it's equal
-//            }
-        }
+    /**
+     * Cells are prioritized by their elevation, rounded to the precision
+     * given by elevMultiplier, with ties broken by (row % 1000) and then
+     * (col % 1000). The elevation has at most eight significant digits, so
+     * the priority is well within the range that a double holds exactly.
+     */
+    private long getPriority(double z, int row, int col) {
+        return (long) (z * elevMultiplier) * 1000000 + (row % 1000) * 1000 + (col % 1000);
     }
-    
+
     // this is only used for debugging the tool
     public static void main(String[] args) {
         BreachDepressionsFast bd = new BreachDepressionsFast();
@@ -16,11 +16,22 @@
  */
 package plugins;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.PriorityQueue;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.Parallel;
+import whitebox.structures.BucketedCellPriorityQueue;
+import whitebox.structures.CellPriorityQueue;
+import whitebox.structures.GridCellQueue;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -215,8 +226,6 @@ public class FillDepressions implements WhiteboxPlugin {
             int row_n, col_n;
             int row, col;
             double z_n;
-            long k = 0;
-            GridCell gc = null;
             double z;
             int[] Dy = {-1, 0, 1, 1, 1, 0, -1, -1};
             int[] Dx = {1, 1, 1, 0, -1, -1, -1, 0};
@@ -232,6 +241,14 @@ public class FillDepressions implements WhiteboxPlugin {
 
             double noData = image.getNoDataValue();
 
+            if (SMALL_NUM == 0 && (rows > tileSize || cols > tileSize)) {
+                // without a flat increment, the DEM can be filled tile-by-tile
+                // in parallel and only a few tiles need to be in memory.
+                fillDepressionsTiled(image, inputHeader, outputHeader);
+                image.close();
+                return;
+            }
+
             double[][] output = new double[rows][cols];
             double[][] input = new double[rows + 2][cols + 2];
             for (row = 0; row < rows + 2; row++) {
@@ -244,12 +261,28 @@ public class FillDepressions implements WhiteboxPlugin {
                 input[rows + 1][col] = noData;
             }
 
-            double[] data;
+            double[] data = new double[cols];
+            boolean isIntegerValued = true;
+            double minValue = Double.MAX_VALUE;
+            double maxValue = -Double.MAX_VALUE;
+            image.setSequentialReadAhead(true);
             for (row = 0; row < rows; row++) {
-                data = image.getRowValues(row);
+                image.getRowValues(row, data);
                 for (col = 0; col < cols; col++) {
                     output[row][col] = -999;
-                    input[row + 1][col + 1] = data[col];
+                    z = data[col];
+                    input[row + 1][col + 1] = z;
+                    if (z != noData) {
+                        if (z < minValue) {
+                            minValue = z;
+                        }
+                        if (z > maxValue) {
+                            maxValue = z;
+                        }
+                        if (isIntegerValued && z != Math.floor(z)) {
+                            isIntegerValued = false;
+                        }
+                    }
                 }
             }
             image.close();
@@ -260,7 +293,15 @@ public class FillDepressions implements WhiteboxPlugin {
             int numCellsTotal = rows * cols;
             int numSolvedCells = 0;
             
-            PriorityQueue<GridCell> queue = new PriorityQueue<>((2 * rows + 2 * cols) * 2);
+            // integer elevations can be ordered using buckets, which is
+            // faster than a heap.
+            GridCellQueue queue;
+            if (isIntegerValued && SMALL_NUM < 1
+                    && BucketedCellPriorityQueue.isRangeSupported(minValue, maxValue, 1.0)) {
+                queue = new BucketedCellPriorityQueue(minValue, maxValue, 1.0);
+            } else {
+                queue = new CellPriorityQueue((2 * rows + 2 * cols) * 2);
+            }
             oldProgress = -1;
             for (row = 0; row < rows; row++) {
                 for (col = 0; col < cols; col++) {
@@ -273,8 +314,7 @@ public class FillDepressions implements WhiteboxPlugin {
                             z_n = input[row_n + 1][col_n + 1];
                             if (z_n == noData) {
                                 // it's an edge cell.
-                                gc = new GridCell(row, col, z);
-                                queue.add(gc);
+                                queue.add(row, col, z);
                                 output[row][col] = z;
                                 numCellsTotal++;
                                 break;
@@ -301,11 +341,11 @@ public class FillDepressions implements WhiteboxPlugin {
             // now fill!
             updateProgress("Loop 2: ", 0);
             oldProgress = (int) (100f * numSolvedCells / numCellsTotal);
-            do {
-                gc = queue.poll();
-                row = gc.row;
-                col = gc.col;
-                z = gc.z;
+            while (!queue.isEmpty()) {
+                row = queue.peekRow();
+                col = queue.peekColumn();
+                z = queue.peekPriority();
+                queue.remove();
                 for (int i = 0; i < 8; i++) {
                     row_n = row + Dy[i];
                     col_n = col + Dx[i];
@@ -316,8 +356,7 @@ public class FillDepressions implements WhiteboxPlugin {
                         }
                         output[row_n][col_n] = z_n;
                         numSolvedCells++;
-                        gc = new GridCell(row_n, col_n, z_n);
-                        queue.add(gc);
+                        queue.add(row_n, col_n, z_n);
                     }
                 }
                 //k++;
@@ -330,7 +369,7 @@ public class FillDepressions implements WhiteboxPlugin {
                         return;
                     }
                 }
-            } while (queue.isEmpty() == false);
+            }
 
             updateProgress("Saving Data: ", 0);
             WhiteboxRaster outputFile = new WhiteboxRaster(outputHeader, "rw",
@@ -374,43 +413,428 @@ public class FillDepressions implements WhiteboxPlugin {
         }
     }
 
-    class GridCell implements Comparable<GridCell> {
+    // ***********************************
+    // Tiled, parallel filling
+    // ***********************************
+    private int tileSize = 1024;
+    private static final int[] tileDx = {1, 1, 1, 0, -1, -1, -1, 0};
+    private static final int[] tileDy = {-1, 0, 1, 1, 1, 0, -1, -1};
+
+    /**
+     * Fills the depressions in a DEM without a flat increment, following the
+     * parallel Priority-Flood of Barnes (2016). Each tile is first flooded
+     * independently, starting from its perimeter cells, and the elevations at
+     * which the areas draining to each perimeter cell spill into one another
+     * are recorded. These spill elevations, together with the links between
+     * the perimeter cells of neighbouring tiles, form a small graph that is
+     * solved to give the true filled elevation of every perimeter cell. Each
+     * tile is then flooded a second time starting from the corrected
+     * perimeter elevations. The result is identical to that of the serial
+     * algorithm but only one tile per thread needs to be held in memory.
+     */
+    private void fillDepressionsTiled(WhiteboxRaster image, String inputHeader,
+            String outputHeader) throws Exception {
+        int rows = image.getNumberRows();
+        int cols = image.getNumberColumns();
+        double noData = image.getNoDataValue();
+        int numTileRows = (rows + tileSize - 1) / tileSize;
+        int numTileCols = (cols + tileSize - 1) / tileSize;
+        int numTiles = numTileRows * numTileCols;
+        int nodesPerTile = 4 * tileSize;
+        if ((long) numTiles * nodesPerTile + 1 > Integer.MAX_VALUE) {
+            throw new Exception("The DEM is too large to be divided into tiles.");
+        }
+        int numNodes = 1 + numTiles * nodesPerTile;
+        int progress, oldProgress;
+
+        ExecutorService executor = Executors.newFixedThreadPool(Parallel.getPluginProcessors());
+        try {
+            // flood each tile from its perimeter
+            List<Future<TileSpillGraph>> futures = new ArrayList<>();
+            for (int t = 0; t < numTiles; t++) {
+                futures.add(executor.submit(new FloodTile(image, t, numTileCols, null)));
+            }
+            TileSpillGraph[] tileGraphs = new TileSpillGraph[numTiles];
+            oldProgress = -1;
+            for (int t = 0; t < numTiles; t++) {
+                tileGraphs[t] = futures.get(t).get();
+                progress = (int) (50f * (t + 1) / numTiles);
+                if (progress > oldProgress) {
+                    updateProgress("Flooding tiles:", progress);
+                    oldProgress = progress;
+                    if (cancelOp) {
+                        cancelOperation();
+                        return;
+                    }
+                }
+            }
+
+            // link the perimeter cells of neighbouring tiles
+            updateProgress("Solving spill graph:", 50);
+            EdgeList edges = new EdgeList();
+            for (int t = 0; t < numTiles; t++) {
+                TileSpillGraph g = tileGraphs[t];
+                for (int e = 0; e < g.edges.size; e++) {
+                    edges.add(g.edges.from[e], g.edges.to[e], g.edges.weight[e]);
+                }
+                g.edges = null;
+            }
+            for (int t = 0; t < numTiles; t++) {
+                int tr = t / numTileCols;
+                int tc = t % numTileCols;
+                TileSpillGraph a = tileGraphs[t];
+                if (tc < numTileCols - 1) {
+                    TileSpillGraph b = tileGraphs[t + 1];
+                    for (int r = 0; r < a.numRows; r++) {
+                        for (int k = -1; k <= 1; k++) {
+                            if (r + k >= 0 && r + k < b.numRows) {
+                                linkPerimeterCells(edges, a, r, a.numColumns - 1, b, r + k, 0);
+                            }
+                        }
+                    }
+                }
+                if (tr < numTileRows - 1) {
+                    TileSpillGraph b = tileGraphs[t + numTileCols];
+                    for (int c = 0; c < a.numColumns; c++) {
+                        for (int k = -1; k <= 1; k++) {
+                            if (c + k >= 0 && c + k < b.numColumns) {
+                                linkPerimeterCells(edges, a, a.numRows - 1, c, b, 0, c + k);
+                            }
+                        }
+                    }
+                    if (tc < numTileCols - 1) {
+                        b = tileGraphs[t + numTileCols + 1];
+                        linkPerimeterCells(edges, a, a.numRows - 1, a.numColumns - 1, b, 0, 0);
+                    }
+                    if (tc > 0) {
+                        b = tileGraphs[t + numTileCols - 1];
+                        linkPerimeterCells(edges, a, a.numRows - 1, 0, b, 0, b.numColumns - 1);
+                    }
+                }
+            }
+
+            // store the graph in compressed adjacency form
+            int[] firstEdge = new int[numNodes + 1];
+            for (int e = 0; e < edges.size; e++) {
+                firstEdge[edges.from[e] + 1]++;
+                firstEdge[edges.to[e] + 1]++;
+            }
+            for (int n = 0; n < numNodes; n++) {
+                firstEdge[n + 1] += firstEdge[n];
+            }
+            int[] adjacentNode = new int[firstEdge[numNodes]];
+            double[] adjacentWeight = new double[firstEdge[numNodes]];
+            int[] fill = Arrays.copyOf(firstEdge, numNodes);
+            for (int e = 0; e < edges.size; e++) {
+                int from = edges.from[e];
+                int to = edges.to[e];
+                adjacentNode[fill[from]] = to;
+                adjacentWeight[fill[from]++] = edges.weight[e];
+                adjacentNode[fill[to]] = from;
+                adjacentWeight[fill[to]++] = edges.weight[e];
+            }
+            edges = null;
+            fill = null;
+
+            // the spill elevation of each perimeter cell is the lowest, over
+            // all paths to an outlet, of the highest point along the path.
+            double[] spillElevation = new double[numNodes];
+            Arrays.fill(spillElevation, Double.POSITIVE_INFINITY);
+            CellPriorityQueue queue = new CellPriorityQueue(numTiles * 4);
+            spillElevation[0] = Double.NEGATIVE_INFINITY;
+            queue.add(0, 0, Double.NEGATIVE_INFINITY);
+            for (int t = 0; t < numTiles; t++) {
+                TileSpillGraph g = tileGraphs[t];
+                for (int i = 0; i < g.perimeterZ.length; i++) {
+                    if (g.isOutlet[i]) {
+                        int node = 1 + t * nodesPerTile + i;
+                        spillElevation[node] = g.perimeterZ[i];
+                        queue.add(node, 0, g.perimeterZ[i]);
+                    }
+                }
+            }
+            while (!queue.isEmpty()) {
+                int node = queue.peekRow();
+                double z = queue.peekPriority();
+                queue.remove();
+                if (z > spillElevation[node]) {
+                    continue; // already solved at a lower elevation
+                }
+                for (int e = firstEdge[node]; e < firstEdge[node + 1]; e++) {
+                    double zN = Math.max(z, adjacentWeight[e]);
+                    int nodeN = adjacentNode[e];
+                    if (zN < spillElevation[nodeN]) {
+                        spillElevation[nodeN] = zN;
+                        queue.add(nodeN, 0, zN);
+                    }
+                }
+            }
+            firstEdge = null;
+            adjacentNode = null;
+            adjacentWeight = null;
+            tileGraphs = null;
+
+            // flood each tile again from its corrected perimeter
+            WhiteboxRaster outputFile = new WhiteboxRaster(outputHeader, "rw",
+                    inputHeader, WhiteboxRaster.DataType.DOUBLE, noData);
+            outputFile.setPreferredPalette(image.getPreferredPalette());
+            futures.clear();
+            for (int t = 0; t < numTiles; t++) {
+                double[] perimeterSpill = new double[nodesPerTile];
+                System.arraycopy(spillElevation, 1 + t * nodesPerTile, perimeterSpill, 0, nodesPerTile);
+                futures.add(executor.submit(new FloodTile(image, t, numTileCols,
+                        perimeterSpill, outputFile)));
+            }
+            spillElevation = null;
+            oldProgress = -1;
+            for (int t = 0; t < numTiles; t++) {
+                futures.get(t).get();
+                progress = 50 + (int) (50f * (t + 1) / numTiles);
+                if (progress > oldProgress) {
+                    updateProgress("Filling tiles:", progress);
+                    oldProgress = progress;
+                    if (cancelOp) {
+                        cancelOperation();
+                        return;
+                    }
+                }
+            }
+
+            outputFile.addMetadataEntry("Created by the "
+                    + getDescriptiveName() + " tool.");
+            outputFile.addMetadataEntry("Created on " + new Date());
+            outputFile.close();
+
+            // returning a header file string displays the image.
+            returnData(outputHeader);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void linkPerimeterCells(EdgeList edges, TileSpillGraph a, int rowA,
+            int colA, TileSpillGraph b, int rowB, int colB) {
+        int i = perimeterIndex(rowA, colA, a.numRows, a.numColumns);
+        int j = perimeterIndex(rowB, colB, b.numRows, b.numColumns);
+        if (a.isValid[i] && b.isValid[j]) {
+            edges.add(a.firstNode + i, b.firstNode + j,
+                    Math.max(a.perimeterZ[i], b.perimeterZ[j]));
+        }
+    }
+
+    /**
+     * Returns the position of a cell within the list of a tile's perimeter
+     * cells. The top row comes first, followed by the bottom row, the left
+     * column and the right column.
+     */
+    private static int perimeterIndex(int row, int col, int numRows, int numColumns) {
+        if (row == 0) {
+            return col;
+        } else if (row == numRows - 1) {
+            return numColumns + col;
+        } else if (col == 0) {
+            return 2 * numColumns + row - 1;
+        } else {
+            return 2 * numColumns + numRows - 2 + row - 1;
+        }
+    }
+
+    class TileSpillGraph {
+
+        int numRows;
+        int numColumns;
+        int firstNode;
+        double[] perimeterZ;
+        boolean[] isValid;
+        boolean[] isOutlet;
+        EdgeList edges = new EdgeList();
+    }
+
+    /**
+     * A growable list of weighted graph edges.
+     */
+    static class EdgeList {
+
+        int size = 0;
+        int[] from = new int[1024];
+        int[] to = new int[1024];
+        double[] weight = new double[1024];
+
+        void add(int from, int to, double weight) {
+            if (size == this.from.length) {
+                int newLength = size * 2;
+                this.from = Arrays.copyOf(this.from, newLength);
+                this.to = Arrays.copyOf(this.to, newLength);
+                this.weight = Arrays.copyOf(this.weight, newLength);
+            }
+            this.from[size] = from;
+            this.to[size] = to;
+            this.weight[size] = weight;
+            size++;
+        }
+    }
 
-        public int row;
-        public int col;
-        public double z;
+    /**
+     * Floods a single tile. In the first pass (perimeterSpill == null) each
+     * perimeter cell is the source of its own flood and the spill elevations
+     * between the areas flooded from different sources are returned. In the
+     * second pass the tile is flooded from its perimeter cells using their
+     * solved spill elevations and the filled tile is written to the output.
+     */
+    class FloodTile implements Callable<TileSpillGraph> {
+
+        private final WhiteboxRaster image;
+        private final int tile;
+        private final int startingRow;
+        private final int startingColumn;
+        private final int numRows;
+        private final int numColumns;
+        private final int firstNode;
+        private final double[] perimeterSpill;
+        private final WhiteboxRaster outputFile;
+
+        FloodTile(WhiteboxRaster image, int tile, int numTileCols,
+                double[] perimeterSpill) {
+            this(image, tile, numTileCols, perimeterSpill, null);
+        }
 
-        public GridCell(int Row, int Col, double Z) {
-            row = Row;
-            col = Col;
-            z = Z;
+        FloodTile(WhiteboxRaster image, int tile, int numTileCols,
+                double[] perimeterSpill, WhiteboxRaster outputFile) {
+            this.image = image;
+            this.tile = tile;
+            this.startingRow = (tile / numTileCols) * tileSize;
+            this.startingColumn = (tile % numTileCols) * tileSize;
+            this.numRows = Math.min(tileSize, image.getNumberRows() - startingRow);
+            this.numColumns = Math.min(tileSize, image.getNumberColumns() - startingColumn);
+            this.firstNode = 1 + tile * 4 * tileSize;
+            this.perimeterSpill = perimeterSpill;
+            this.outputFile = outputFile;
         }
 
         @Override
-        public int compareTo(GridCell cell) {
-            final int BEFORE = -1;
-            final int EQUAL = 0;
-            final int AFTER = 1;
-
-            if (this.z < cell.z) {
-                return BEFORE;
-            } else if (this.z > cell.z) {
-                return AFTER;
+        public TileSpillGraph call() {
+            if (cancelOp) {
+                return null;
+            }
+            double noData = image.getNoDataValue();
+            int paddedColumns = numColumns + 2;
+
+            // read the tile, along with a border of one cell
+            double[] z = new double[(numRows + 2) * paddedColumns];
+            synchronized (image) {
+                for (int r = -1; r <= numRows; r++) {
+                    int offset = (r + 1) * paddedColumns + 1;
+                    for (int c = -1; c <= numColumns; c++) {
+                        z[offset + c] = image.getValue(startingRow + r, startingColumn + c);
+                    }
+                }
             }
 
-            if (this.row < cell.row) {
-                return BEFORE;
-            } else if (this.row > cell.row) {
-                return AFTER;
+            boolean firstPass = (perimeterSpill == null);
+            TileSpillGraph g = null;
+            if (firstPass) {
+                g = new TileSpillGraph();
+                g.numRows = numRows;
+                g.numColumns = numColumns;
+                g.firstNode = firstNode;
+                int numPerimeterCells = 2 * numRows + 2 * numColumns;
+                g.perimeterZ = new double[numPerimeterCells];
+                g.isValid = new boolean[numPerimeterCells];
+                g.isOutlet = new boolean[numPerimeterCells];
+            }
+
+            // each cell is labelled with the node of the graph from which
+            // it was flooded; node 0 represents the edges of the DEM.
+            int[] label = new int[numRows * numColumns];
+            double[] filled = new double[numRows * numColumns];
+            Arrays.fill(label, -1);
+            CellPriorityQueue queue = new CellPriorityQueue(4 * tileSize);
+            HashMap<Long, Integer> edgeIndex = new HashMap<>();
+            double zc, zN;
+            for (int r = 0; r < numRows; r++) {
+                for (int c = 0; c < numColumns; c++) {
+                    zc = z[(r + 1) * paddedColumns + c + 1];
+                    if (zc == noData) {
+                        continue;
+                    }
+                    boolean isOutlet = false;
+                    for (int i = 0; i < 8; i++) {
+                        zN = z[(r + 1 + tileDy[i]) * paddedColumns + c + 1 + tileDx[i]];
+                        if (zN == noData) {
+                            isOutlet = true;
+                            break;
+                        }
+                    }
+                    boolean isPerimeter = (r == 0 || c == 0 || r == numRows - 1
+                            || c == numColumns - 1);
+                    int p = isPerimeter ? perimeterIndex(r, c, numRows, numColumns) : -1;
+                    if (isPerimeter && firstPass) {
+                        g.perimeterZ[p] = zc;
+                        g.isValid[p] = true;
+                        g.isOutlet[p] = isOutlet;
+                    }
+                    if (isOutlet) {
+                        label[r * numColumns + c] = 0;
+                        filled[r * numColumns + c] = zc;
+                        queue.add(r, c, zc);
+                    } else if (isPerimeter) {
+                        label[r * numColumns + c] = firstNode + p;
+                        filled[r * numColumns + c] = firstPass ? zc : perimeterSpill[p];
+                        queue.add(r, c, filled[r * numColumns + c]);
+                    }
+                }
             }
 
-            if (this.col < cell.col) {
-                return BEFORE;
-            } else if (this.col > cell.col) {
-                return AFTER;
+            while (!queue.isEmpty()) {
+                int r = queue.peekRow();
+                int c = queue.peekColumn();
+                zc = queue.peekPriority();
+                queue.remove();
+                int cell = r * numColumns + c;
+                for (int i = 0; i < 8; i++) {
+                    int rN = r + tileDy[i];
+                    int cN = c + tileDx[i];
+                    if (rN < 0 || rN >= numRows || cN < 0 || cN >= numColumns) {
+                        continue;
+                    }
+                    int cellN = rN * numColumns + cN;
+                    if (label[cellN] < 0) {
+                        zN = z[(rN + 1) * paddedColumns + cN + 1];
+                        if (zN == noData) {
+                            continue;
+                        }
+                        label[cellN] = label[cell];
+                        filled[cellN] = Math.max(zN, zc);
+                        queue.add(rN, cN, filled[cellN]);
+                    } else if (firstPass && label[cellN] != label[cell]) {
+                        // the two floods meet here
+                        double spill = Math.max(zc, filled[cellN]);
+                        int a = Math.min(label[cell], label[cellN]);
+                        int b = Math.max(label[cell], label[cellN]);
+                        long key = ((long) a << 32) | b;
+                        Integer e = edgeIndex.get(key);
+                        if (e == null) {
+                            edgeIndex.put(key, g.edges.size);
+                            g.edges.add(a, b, spill);
+                        } else if (spill < g.edges.weight[e]) {
+                            g.edges.weight[e] = spill;
+                        }
+                    }
+                }
             }
 
-            return EQUAL;
+            if (!firstPass) {
+                synchronized (outputFile) {
+                    for (int r = 0; r < numRows; r++) {
+                        for (int c = 0; c < numColumns; c++) {
+                            int cell = r * numColumns + c;
+                            outputFile.setValue(startingRow + r, startingColumn + c,
+                                    label[cell] >= 0 ? filled[cell] : noData);
+                        }
+                    }
+                }
+            }
+            return g;
         }
     }
 }
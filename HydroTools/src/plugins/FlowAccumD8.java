@@ -20,6 +20,8 @@ import java.util.Date;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.FlowAccumulator;
+import whitebox.parallel.LocalOperation;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -175,6 +177,14 @@ public class FlowAccumD8 implements WhiteboxPlugin {
         updateProgress("Progress: ", 0);
     }
 
+    private final LocalOperation.ProgressMonitor progressMonitor = new LocalOperation.ProgressMonitor() {
+        @Override
+        public boolean updateProgress(int progress) {
+            FlowAccumD8.this.updateProgress(progress);
+            return !cancelOp;
+        }
+    };
+
     private boolean amIActive = false;
 
     /**
@@ -194,17 +204,13 @@ public class FlowAccumD8 implements WhiteboxPlugin {
 
         String inputHeader = null;
         String outputHeader = null;
-        int row, col, x, y;
+        int row, col;
         int progress = 0;
         int oldProgress;
-        double slope;
-        double z, z2;
+        double z;
         int i;
-        int[] dX = new int[]{1, 1, 1, 0, -1, -1, -1, 0};
-        int[] dY = new int[]{-1, 0, 1, 1, 1, 0, -1, -1};
-        double[] inflowingVals = new double[]{16, 32, 64, 128, 1, 2, 4, 8};
-        double numInNeighbours;
-        boolean flag = false;
+        final int[] dX = new int[]{1, 1, 1, 0, -1, -1, -1, 0};
+        final int[] dY = new int[]{-1, 0, 1, 1, 1, 0, -1, -1};
         boolean logTransform = false;
         String outputType = null;
         double gridRes;
@@ -229,9 +235,9 @@ public class FlowAccumD8 implements WhiteboxPlugin {
         try {
             WhiteboxRaster pntr = new WhiteboxRaster(inputHeader, "r");
 
-            int rows = pntr.getNumberRows();
+            final int rows = pntr.getNumberRows();
             int rowsLessOne = rows - 1;
-            int cols = pntr.getNumberColumns();
+            final int cols = pntr.getNumberColumns();
             double noData = pntr.getNoDataValue();
             gridRes = pntr.getCellSizeX();
 
@@ -241,76 +247,82 @@ public class FlowAccumD8 implements WhiteboxPlugin {
             output.setDataScale(WhiteboxRaster.DataScale.CONTINUOUS);
             output.setZUnits("dimensionless");
 
-            WhiteboxRaster tmpGrid = new WhiteboxRaster(outputHeader.replace(".dep",
-                    "_temp.dep"), "rw", inputHeader, WhiteboxRaster.DataType.FLOAT, noData);
-            tmpGrid.isTemporaryFile = true;
-
-            updateProgress("Loop 1 of 3:", 0);
-            oldProgress = -1;
+            // read the pointer into memory as the index of the flow direction
+            // of each cell; -1 means that there is no downslope neighbour 
+            // and -2 that the cell is NoData.
+            final byte[] flowDirs = new byte[rows * cols];
+            double[] data = new double[cols];
             for (row = 0; row < rows; row++) {
+                pntr.getRowValues(row, data);
                 for (col = 0; col < cols; col++) {
-                    if (pntr.getValue(row, col) != noData) {
-                        z = 0;
-                        for (i = 0; i < 8; i++) {
-                            if (pntr.getValue(row + dY[i], col + dX[i])
-                                    == inflowingVals[i]) {
-                                z++;
-                            }
+                    flowDir = data[col];
+                    i = -1;
+                    if (flowDir == noData) {
+                        i = -2;
+                    } else if (flowDir > 0) {
+                        i = (int) (Math.log(flowDir) / LnOf2);
+                        if (i > 7) {
+                            i = -1;
                         }
-                        tmpGrid.setValue(row, col, z);
-                    } else {
-                        output.setValue(row, col, noData);
                     }
+                    flowDirs[row * cols + col] = (byte) i;
                 }
-                progress = (int) (100f * row / rowsLessOne);
-                if (progress > oldProgress) {
-                    updateProgress(progress);
-                    oldProgress = progress;
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
+            }
+
+            FlowAccumulator accumulator = new FlowAccumulator(rows, cols) {
+                @Override
+                protected double getInitialValue(int row, int col) {
+                    return (flowDirs[row * cols + col] == -2) ? Double.NaN : 1;
+                }
+
+                @Override
+                protected int getReceivers(int row, int col, double accumulation,
+                        int[] receivers, double[] proportions) {
+                    int i = flowDirs[row * cols + col];
+                    if (i < 0) {
+                        return 0;
+                    }
+                    int x = col + dX[i];
+                    int y = row + dY[i];
+                    if (x < 0 || x >= cols || y < 0 || y >= rows) {
+                        return 0;
                     }
+                    receivers[0] = y * cols + x;
+                    proportions[0] = 1;
+                    return 1;
                 }
+            };
+
+            updateProgress("Loop 1 of 2:", 0);
+            if (!accumulator.run(progressMonitor)) {
+                pntr.close();
+                output.close();
+                cancelOperation();
+                return;
             }
 
-            updateProgress("Loop 2 of 3:", 0);
+            double multiplier = 1;
+            if (outputType.contains("specific") || outputType.contains("sca")) {
+                multiplier = gridRes;
+            } else if (outputType.contains("total")) {
+                multiplier = gridRes * gridRes;
+            }
+
+            updateProgress("Loop 2 of 2:", 0);
             oldProgress = -1;
             for (row = 0; row < rows; row++) {
+                accumulator.getRowValues(row, data);
                 for (col = 0; col < cols; col++) {
-                    if (tmpGrid.getValue(row, col) == 0) { //there are no 
-                        //remaining inflowing neighbours, send it's current 
-                        //flow accum val downslope
-                        tmpGrid.setValue(row, col, -1);
-                        flag = false;
-                        x = col;
-                        y = row;
-                        do {
-                            z = output.getValue(y, x); //z is the flow accum 
-                            //value to send to it's neighbour
-                            //find it's downslope neighbour
-                            flowDir = pntr.getValue(y, x);
-                            if (flowDir > 0) {
-                                i = (int) (Math.log(flowDir) / LnOf2);
-                                x += dX[i];
-                                y += dY[i];
-                                //update the output grids
-                                z2 = output.getValue(y, x);
-                                output.setValue(y, x, z2 + z);
-                                numInNeighbours = tmpGrid.getValue(y, x) - 1;
-                                tmpGrid.setValue(y, x, numInNeighbours);
-                                //see if you can progress further downslope
-                                if (numInNeighbours == 0) {
-                                    tmpGrid.setValue(y, x, -1);
-                                    flag = true;
-                                } else {
-                                    flag = false;
-                                }
-                            } else {
-                                flag = false;
-                            }
-                        } while (flag);
+                    z = data[col];
+                    if (Double.isNaN(z)) {
+                        data[col] = noData;
+                    } else if (logTransform) {
+                        data[col] = Math.log(z * multiplier);
+                    } else {
+                        data[col] = z * multiplier;
                     }
                 }
+                output.setRowValues(row, data);
                 progress = (int) (100f * row / rowsLessOne);
                 if (progress > oldProgress) {
                     updateProgress(progress);
@@ -322,71 +334,7 @@ public class FlowAccumD8 implements WhiteboxPlugin {
                 }
             }
 
-            updateProgress("Loop 3 of 3:", 0);
-            oldProgress = -1;
-            if (outputType.contains("specific") || outputType.contains("sca")) {
-                for (row = 0; row < rows; row++) {
-                    for (col = 0; col < cols; col++) {
-                        flowDir = pntr.getValue(row, col);
-                        if (flowDir != noData) {
-                            output.setValue(row, col,
-                                    output.getValue(row, col) * gridRes);
-                        }
-                    }
-                    progress = (int) (100f * row / rowsLessOne);
-                    if (progress > oldProgress) {
-                        updateProgress(progress);
-                        oldProgress = progress;
-                        if (cancelOp) {
-                            cancelOperation();
-                            return;
-                        }
-                    }
-                }
-            } else if (outputType.contains("total")) {
-                double gridCellArea = gridRes * gridRes;
-                for (row = 0; row < rows; row++) {
-                    for (col = 0; col < cols; col++) {
-                        flowDir = output.getValue(row, col);
-                        if (flowDir != noData) {
-                            output.setValue(row, col,
-                                    output.getValue(row, col) * gridCellArea);
-                        }
-                    }
-                    progress = (int) (100f * row / rowsLessOne);
-                    if (progress > oldProgress) {
-                        updateProgress(progress);
-                        oldProgress = progress;
-                        if (cancelOp) {
-                            cancelOperation();
-                            return;
-                        }
-                    }
-                }
-
-            }
-
-            if (logTransform) {
-                oldProgress = -1;
-                for (row = 0; row < rows; row++) {
-                    for (col = 0; col < cols; col++) {
-                        flowDir = output.getValue(row, col);
-                        if (flowDir != noData) {
-                            output.setValue(row, col,
-                                    Math.log(output.getValue(row, col)));
-                        }
-                    }
-                    progress = (int) (100f * row / rowsLessOne);
-                    if (progress > oldProgress) {
-                        updateProgress(progress);
-                        oldProgress = progress;
-                        if (cancelOp) {
-                            cancelOperation();
-                            return;
-                        }
-                    }
-                }
-            } else {
+            if (!logTransform) {
                 output.setNonlinearity(0.2);
             }
 
@@ -395,7 +343,6 @@ public class FlowAccumD8 implements WhiteboxPlugin {
             output.addMetadataEntry("Created on " + new Date());
 
             pntr.close();
-            tmpGrid.close();
             output.close();
 
             // returning a header file string displays the image.
@@ -20,6 +20,8 @@ import java.util.Date;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.FlowAccumulator;
+import whitebox.parallel.LocalOperation;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -30,20 +32,8 @@ public class FlowAccumDinf implements WhiteboxPlugin {
 
     private WhiteboxPluginHost myHost = null;
     private String[] args;
-    WhiteboxRaster pointer;
-    WhiteboxRaster output;
-    WhiteboxRaster tmpGrid;
     double noData = -32768;
-    int[] dX = new int[]{1, 1, 1, 0, -1, -1, -1, 0};
-    int[] dY = new int[]{-1, 0, 1, 1, 1, 0, -1, -1};
-    /*
-       7 8 1
-       6   2
-       5 4 3
-    */
     double gridRes = 1;
-    double[] startFD = new double[]{180, 225, 270, 315, 0, 45, 90, 135};
-    double[] endFD = new double[]{270, 315, 360, 45, 90, 135, 180, 225};
 
     /**
      * Used to retrieve the plugin tool's name. This is a short, unique name
@@ -183,6 +173,14 @@ public class FlowAccumDinf implements WhiteboxPlugin {
         showFeedback("Operation cancelled.");
         updateProgress("Progress: ", 0);
     }
+
+    private final LocalOperation.ProgressMonitor progressMonitor = new LocalOperation.ProgressMonitor() {
+        @Override
+        public boolean updateProgress(int progress) {
+            FlowAccumDinf.this.updateProgress(progress);
+            return !cancelOp;
+        }
+    };
     private boolean amIActive = false;
 
     /**
@@ -202,16 +200,11 @@ public class FlowAccumDinf implements WhiteboxPlugin {
 
         String inputHeader = null;
         String outputHeader = null;
-        int row, col, x, y;
+        int row, col;
         float progress = 0;
-        double slope;
-        double z, z2;
-        int i, c;
-        double numInNeighbours;
-        boolean flag = false;
+        double z;
         boolean logTransform = false;
         String outputType = null;
-        double flowDir;
 
         try {
 
@@ -231,51 +224,57 @@ public class FlowAccumDinf implements WhiteboxPlugin {
                 return;
             }
 
-            pointer = new WhiteboxRaster(inputHeader, "r");
+            WhiteboxRaster pointer = new WhiteboxRaster(inputHeader, "r");
             int rows = pointer.getNumberRows();
             int cols = pointer.getNumberColumns();
             noData = pointer.getNoDataValue();
             gridRes = pointer.getCellSizeX();
 
-            output = new WhiteboxRaster(outputHeader, "rw",
+            WhiteboxRaster output = new WhiteboxRaster(outputHeader, "rw",
                     inputHeader, WhiteboxRaster.DataType.FLOAT, 1);
             output.setPreferredPalette("blueyellow.pal");
             output.setDataScale(WhiteboxRaster.DataScale.CONTINUOUS);
             output.setZUnits("dimensionless");
 
-            tmpGrid = new WhiteboxRaster(outputHeader.replace(".dep",
-                    "_temp.dep"), "rw", inputHeader, WhiteboxRaster.DataType.FLOAT, noData);
-            tmpGrid.isTemporaryFile = true;
+            double[] flowDirs = new double[rows * cols];
+            double[] data = new double[cols];
+            for (row = 0; row < rows; row++) {
+                pointer.getRowValues(row, data);
+                System.arraycopy(data, 0, flowDirs, row * cols, cols);
+            }
 
-            // Calculate the number of inflowing neighbours to each cell.
             int loopNum = 1;
             updateProgress("Loop " + loopNum + ":", 0);
+            DinfAccumulator accumulator = new DinfAccumulator(rows, cols, flowDirs, noData);
+            if (!accumulator.run(progressMonitor)) {
+                pointer.close();
+                output.close();
+                cancelOperation();
+                return;
+            }
+
+            double multiplier = 1;
+            if (outputType.equals("specific catchment area (sca)")) {
+                multiplier = gridRes;
+            } else if (outputType.equals("total catchment area")) {
+                multiplier = gridRes * gridRes;
+            }
+
+            loopNum++;
+            updateProgress("Loop " + loopNum + ":", 0);
             for (row = 0; row < rows; row++) {
+                accumulator.getRowValues(row, data);
                 for (col = 0; col < cols; col++) {
-                    flowDir = pointer.getValue(row, col);
-                    if (flowDir != noData) {
-                        i = 0;
-                        for (c = 0; c < 8; c++) {
-                            x = col + dX[c];
-                            y = row + dY[c];
-                            flowDir = pointer.getValue(y, x);
-                            if (flowDir >= 0 && flowDir <= 360) {
-                                if (c != 3) {
-                                    if (flowDir > startFD[c] && flowDir < endFD[c]) {
-                                        i++;
-                                    }
-                                } else {
-                                    if (flowDir > startFD[c] || flowDir < endFD[c]) {
-                                        i++;
-                                    }
-                                }
-                            }
-                        }
-                        tmpGrid.setValue(row, col, i);
+                    z = data[col];
+                    if (Double.isNaN(z)) {
+                        data[col] = noData;
+                    } else if (logTransform) {
+                        data[col] = Math.log(z * multiplier);
                     } else {
-                        output.setValue(row, col, noData);
+                        data[col] = z * multiplier;
                     }
                 }
+                output.setRowValues(row, data);
                 if (cancelOp) {
                     cancelOperation();
                     return;
@@ -284,85 +283,7 @@ public class FlowAccumDinf implements WhiteboxPlugin {
                 updateProgress("Loop " + loopNum + ":", (int) progress);
             }
 
-            boolean somethingDone;
-            do {
-                loopNum++;
-                updateProgress("Loop " + loopNum + ":", 0);
-                somethingDone = false;
-                for (row = 0; row < rows; row++) {
-                    for (col = 0; col < cols; col++) {
-                        if (tmpGrid.getValue(row, col) == 0) { //there are no 
-                            //remaining inflowing neighbours, send its current 
-                            //flow accum val downslope
-                            currentDepth = 0;
-                            somethingDone = true;
-                            DinfAccum(row, col);
-                        }
-                    }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                    progress = (float) (100f * row / (rows - 1));
-                    updateProgress("Loop " + loopNum + ":", (int) progress);
-                }
-            } while (somethingDone);
-
-            loopNum++;
-            updateProgress("Loop " + loopNum + ":", 0);
-            if (outputType.equals("specific catchment area (sca)")) {
-                for (row = 0; row < rows; row++) {
-                    for (col = 0; col < cols; col++) {
-                        z = pointer.getValue(row, col);
-                        if (z != noData) {
-                            output.setValue(row, col,
-                                    output.getValue(row, col) * gridRes);
-                        }
-                    }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                    progress = (float) (100f * row / (rows - 1));
-                    updateProgress("Loop " + loopNum + ":", (int) progress);
-                }
-            } else if (outputType.equals("total catchment area")) {
-                double gridCellArea = gridRes * gridRes;
-                for (row = 0; row < rows; row++) {
-                    for (col = 0; col < cols; col++) {
-                        z = output.getValue(row, col);
-                        if (z != noData) {
-                            output.setValue(row, col,
-                                    output.getValue(row, col) * gridCellArea);
-                        }
-                    }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                    progress = (float) (100f * row / (rows - 1));
-                    updateProgress("Loop " + loopNum + ":", (int) progress);
-                }
-
-            }
-
-            if (logTransform) {
-                for (row = 0; row < rows; row++) {
-                    for (col = 0; col < cols; col++) {
-                        z = output.getValue(row, col);
-                        if (z != noData) {
-                            output.setValue(row, col,
-                                    Math.log(output.getValue(row, col)));
-                        }
-                    }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                    progress = (float) (100f * row / (rows - 1));
-                    updateProgress("Loop " + loopNum + ":", (int) progress);
-                }
-            } else {
+            if (!logTransform) {
                 output.setNonlinearity(0.2);
             }
 
@@ -371,7 +292,6 @@ public class FlowAccumDinf implements WhiteboxPlugin {
             output.addMetadataEntry("Created on " + new Date());
 
             pointer.close();
-            tmpGrid.close();
             output.close();
 
             // returning a header file string displays the image.
@@ -390,27 +310,41 @@ public class FlowAccumDinf implements WhiteboxPlugin {
         }
     }
 
-    int currentDepth;
-    final int maxDepth = 1000;
-
-    private void DinfAccum(int row, int col) {
-        double flowAccumVal = output.getValue(row, col);
-        double flowDir = pointer.getValue(row, col);
-        double proportion1 = 0;
-        double proportion2 = 0;
-        int a1 = 0;
-        int b1 = 0;
-        int a2 = 0;
-        int b2 = 0;
-
-        currentDepth++;
-        if (currentDepth > maxDepth) {
-            return;
+    /**
+     * Accumulates flow over a D-infinity flow pointer, in which each cell
+     * sends its flow to the one or two neighbours on either side of its flow
+     * direction, in proportion to the angle between them.
+     */
+    static class DinfAccumulator extends FlowAccumulator {
+
+        private final double[] flowDirs;
+        private final double noData;
+
+        DinfAccumulator(int rows, int cols, double[] flowDirs, double noData) {
+            super(rows, cols);
+            this.flowDirs = flowDirs;
+            this.noData = noData;
         }
 
-        tmpGrid.setValue(row, col, -1); // this ensures that you don't process this cell a second time.
+        @Override
+        protected double getInitialValue(int row, int col) {
+            return (flowDirs[row * cols + col] == noData) ? Double.NaN : 1;
+        }
 
-        if (flowDir >= 0) {
+        @Override
+        protected int getReceivers(int row, int col, double accumulation,
+                int[] receivers, double[] proportions) {
+            double flowDir = flowDirs[row * cols + col];
+            double proportion1 = 0;
+            double proportion2 = 0;
+            int a1 = 0;
+            int b1 = 0;
+            int a2 = 0;
+            int b2 = 0;
+
+            if (flowDir < 0) {
+                return 0;
+            }
             // find which two cells receive flow and the proportion to each
             if (flowDir >= 0 && flowDir < 45) {
                 proportion1 = (45 - flowDir) / 45;
@@ -470,21 +404,18 @@ public class FlowAccumDinf implements WhiteboxPlugin {
                 b2 = row - 1;
             }
 
-            if (proportion1 > 0 && output.getValue(b1, a1) != noData) {
-                output.incrementValue(b1, a1, flowAccumVal * proportion1);
-                tmpGrid.decrementValue(b1, a1);
-                if (tmpGrid.getValue(b1, a1) == 0) {
-                    DinfAccum(b1, a1);
-                }
+            int n = 0;
+            if (proportion1 > 0 && b1 >= 0 && b1 < rows && a1 >= 0 && a1 < cols) {
+                receivers[n] = b1 * cols + a1;
+                proportions[n] = proportion1;
+                n++;
             }
-            if (proportion2 > 0 && output.getValue(b2, a2) != noData) {
-                output.incrementValue(b2, a2, flowAccumVal * proportion2);
-                tmpGrid.decrementValue(b2, a2);
-                if (tmpGrid.getValue(b2, a2) == 0) {
-                    DinfAccum(b2, a2);
-                }
+            if (proportion2 > 0 && b2 >= 0 && b2 < rows && a2 >= 0 && a2 < cols) {
+                receivers[n] = b2 * cols + a2;
+                proportions[n] = proportion2;
+                n++;
             }
+            return n;
         }
-        currentDepth--;
     }
 }
@@ -20,6 +20,8 @@ import java.util.Date;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.FlowAccumulator;
+import whitebox.parallel.LocalOperation;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -30,17 +32,12 @@ public class FlowAccumFD8 implements WhiteboxPlugin {
 
     private WhiteboxPluginHost myHost = null;
     private String[] args;
-    WhiteboxRaster DEM;
-    WhiteboxRaster output;
-    WhiteboxRaster tmpGrid;
     double threshold = 0;
     double noData = -32768;
     int[] dX = new int[]{1, 1, 1, 0, -1, -1, -1, 0};
     int[] dY = new int[]{-1, 0, 1, 1, 1, 0, -1, -1};
     double power = 1;
     double gridRes;
-    // Constants
-    private static final double LnOf2 = 0.693147180559945;
 
     /**
      * Used to retrieve the plugin tool's name. This is a short, unique name
@@ -180,6 +177,14 @@ public class FlowAccumFD8 implements WhiteboxPlugin {
         showFeedback("Operation cancelled.");
         updateProgress("Progress: ", 0);
     }
+
+    private final LocalOperation.ProgressMonitor progressMonitor = new LocalOperation.ProgressMonitor() {
+        @Override
+        public boolean updateProgress(int progress) {
+            FlowAccumFD8.this.updateProgress(progress);
+            return !cancelOp;
+        }
+    };
     private boolean amIActive = false;
 
     /**
@@ -199,13 +204,10 @@ public class FlowAccumFD8 implements WhiteboxPlugin {
 
         String inputHeader = null;
         String outputHeader = null;
-        int row, col, x, y;
+        int row, col;
         float progress = 0;
-        double slope;
-        double z, z2;
+        double z;
         int i;
-        double numInNeighbours;
-        boolean flag = false;
         boolean logTransform = false;
         String outputType = null;
 
@@ -245,40 +247,57 @@ public class FlowAccumFD8 implements WhiteboxPlugin {
         }
 
         try {
-            DEM = new WhiteboxRaster(inputHeader, "r");
+            WhiteboxRaster DEM = new WhiteboxRaster(inputHeader, "r");
             int rows = DEM.getNumberRows();
             int cols = DEM.getNumberColumns();
             noData = DEM.getNoDataValue();
             gridRes = DEM.getCellSizeX();
 
-            output = new WhiteboxRaster(outputHeader, "rw",
+            WhiteboxRaster output = new WhiteboxRaster(outputHeader, "rw",
                     inputHeader, WhiteboxRaster.DataType.FLOAT, 1);
             output.setPreferredPalette("blueyellow.pal");
             output.setDataScale(WhiteboxRaster.DataScale.CONTINUOUS);
             output.setZUnits("dimensionless");
 
-            tmpGrid = new WhiteboxRaster(outputHeader.replace(".dep",
-                    "_temp.dep"), "rw", inputHeader, WhiteboxRaster.DataType.FLOAT, noData);
-            tmpGrid.isTemporaryFile = true;
+            double[] elevations = new double[rows * cols];
+            double[] data = new double[cols];
+            for (row = 0; row < rows; row++) {
+                DEM.getRowValues(row, data);
+                System.arraycopy(data, 0, elevations, row * cols, cols);
+            }
 
-            // Calculate the number of inflowing neighbours to each cell.
             int loopNum = 1;
             updateProgress("Loop " + loopNum + ":", 0);
+            FD8Accumulator accumulator = new FD8Accumulator(rows, cols, elevations);
+            if (!accumulator.run(progressMonitor)) {
+                DEM.close();
+                output.close();
+                cancelOperation();
+                return;
+            }
+
+            double multiplier = 1;
+            if (outputType.equals("specific catchment area (sca)")) {
+                multiplier = gridRes;
+            } else if (outputType.equals("total catchment area")) {
+                multiplier = gridRes * gridRes;
+            }
+
+            loopNum++;
+            updateProgress("Loop " + loopNum + ":", 0);
             for (row = 0; row < rows; row++) {
+                accumulator.getRowValues(row, data);
                 for (col = 0; col < cols; col++) {
-                    z = DEM.getValue(row, col);
-                    if (z != noData) {
-                        numInNeighbours = 0;
-                        for (i = 0; i < 8; i++) {
-                            if (DEM.getValue(row + dY[i], col + dX[i]) > z) {
-                                numInNeighbours++;
-                            }
-                        }
-                        tmpGrid.setValue(row, col, numInNeighbours);
+                    z = data[col];
+                    if (Double.isNaN(z)) {
+                        data[col] = noData;
+                    } else if (logTransform) {
+                        data[col] = Math.log(z * multiplier);
                     } else {
-                        output.setValue(row, col, noData);
+                        data[col] = z * multiplier;
                     }
                 }
+                output.setRowValues(row, data);
                 if (cancelOp) {
                     cancelOperation();
                     return;
@@ -287,84 +306,7 @@ public class FlowAccumFD8 implements WhiteboxPlugin {
                 updateProgress("Loop " + loopNum + ":", (int) progress);
             }
 
-            boolean somethingDone;
-            do {
-                loopNum++;
-                updateProgress("Loop " + loopNum + ":", 0);
-                somethingDone = false;
-                for (row = 0; row < rows; row++) {
-                    for (col = 0; col < cols; col++) {
-                        if (tmpGrid.getValue(row, col) == 0) { //there are no 
-                            //remaining inflowing neighbours, send it's current 
-                            //flow accum val downslope
-                            FD8Accum(row, col);
-                            somethingDone = true;
-                        }
-                    }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                    progress = (float) (100f * row / (rows - 1));
-                    updateProgress("Loop " + loopNum + ":", (int) progress);
-                }
-            } while (somethingDone);
-
-            loopNum++;
-            updateProgress("Loop " + loopNum + ":", 0);
-            if (outputType.equals("specific catchment area (sca)")) {
-                for (row = 0; row < rows; row++) {
-                    for (col = 0; col < cols; col++) {
-                        z = DEM.getValue(row, col);
-                        if (z != noData) {
-                            output.setValue(row, col,
-                                    output.getValue(row, col) * gridRes);
-                        }
-                    }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                    progress = (float) (100f * row / (rows - 1));
-                    updateProgress("Loop " + loopNum + ":", (int) progress);
-                }
-            } else if (outputType.equals("total catchment area")) {
-                double gridCellArea = gridRes * gridRes;
-                for (row = 0; row < rows; row++) {
-                    for (col = 0; col < cols; col++) {
-                        z = output.getValue(row, col);
-                        if (z != noData) {
-                            output.setValue(row, col,
-                                    output.getValue(row, col) * gridCellArea);
-                        }
-                    }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                    progress = (float) (100f * row / (rows - 1));
-                    updateProgress("Loop " + loopNum + ":", (int) progress);
-                }
-
-            }
-
-            if (logTransform) {
-                for (row = 0; row < rows; row++) {
-                    for (col = 0; col < cols; col++) {
-                        z = output.getValue(row, col);
-                        if (z != noData) {
-                            output.setValue(row, col,
-                                    Math.log(output.getValue(row, col)));
-                        }
-                    }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                    progress = (float) (100f * row / (rows - 1));
-                    updateProgress("Loop " + loopNum + ":", (int) progress);
-                }
-            } else {
+            if (!logTransform) {
                 output.setNonlinearity(0.2);
             }
 
@@ -373,7 +315,6 @@ public class FlowAccumFD8 implements WhiteboxPlugin {
             output.addMetadataEntry("Created on " + new Date());
 
             DEM.close();
-            tmpGrid.close();
             output.close();
 
             // returning a header file string displays the image.
@@ -391,97 +332,80 @@ public class FlowAccumFD8 implements WhiteboxPlugin {
             myHost.pluginComplete();
         }
     }
-    int currentDepth;
-    final int maxDepth = 1000;
-
-    private void FD8Accum(int row, int col) {
-        double flowAccumVal = output.getValue(row, col);
-        double proportion = 0;
-        double totalRelief = 0;
-        int a, b;
-        byte c;
-        double z1 = DEM.getValue(row, col);
-        double z2;
-        double z;
 
-        currentDepth++;
-        if (currentDepth > maxDepth) {
-            return;
+    /**
+     * Accumulates flow over a DEM, with each cell sending its flow to all of
+     * its downslope neighbours in proportion to their relief raised to the
+     * exponent, or, once its flow exceeds the threshold, only to its steepest
+     * downslope neighbour.
+     */
+    private class FD8Accumulator extends FlowAccumulator {
+
+        private final double[] elevations;
+
+        FD8Accumulator(int rows, int cols, double[] elevations) {
+            super(rows, cols);
+            this.elevations = elevations;
+        }
+
+        @Override
+        protected double getInitialValue(int row, int col) {
+            return (elevations[row * cols + col] == noData) ? Double.NaN : 1;
         }
 
-        tmpGrid.setValue(row, col, -1);
+        @Override
+        protected int getReceivers(int row, int col, double accumulation,
+                int[] receivers, double[] proportions) {
+            double z1 = elevations[row * cols + col];
+            double z2;
+            int a, b;
+            int n = 0;
 
-        if (threshold > flowAccumVal || threshold == -9999) {
-            for (c = 0; c < 8; c++) {
+            // find the downslope neighbours
+            for (int c = 0; c < 8; c++) {
                 a = col + dX[c];
                 b = row + dY[c];
-                z2 = DEM.getValue(b, a);
+                if (a < 0 || a >= cols || b < 0 || b >= rows) {
+                    continue;
+                }
+                z2 = elevations[b * cols + a];
                 if (z1 > z2 && z2 != noData) {
-                    totalRelief += Math.pow((z1 - z2), power);
+                    receivers[n] = b * cols + a;
+                    proportions[n] = c;
+                    n++;
                 }
             }
 
-            for (c = 0; c < 8; c++) {
-                a = col + dX[c];
-                b = row + dY[c];
-                z2 = DEM.getValue(b, a);
-                if (z1 > z2 && z2 != noData) {
-                    proportion = Math.pow((z1 - z2), power) / totalRelief;
-                    z = output.getValue(b, a);
-                    output.setValue(b, a, z + flowAccumVal * proportion);
-                    tmpGrid.setValue(b, a, tmpGrid.getValue(b, a) - 1);
-                    if (tmpGrid.getValue(b, a) == 0) {
-                        FD8Accum(b, a);
-                    }
+            if (threshold > accumulation || threshold == -9999) {
+                double totalRelief = 0;
+                for (int k = 0; k < n; k++) {
+                    z2 = elevations[receivers[k]];
+                    totalRelief += Math.pow((z1 - z2), power);
                 }
-            }
-        } else { //use a D8 method
-            //find the the steepest downslope neighbour
-            double slope;
-            double maxSlope = -999999999;
-            double diagGridRes = gridRes * Math.sqrt(2);
-            double dist = diagGridRes;
-            double flowDir = 255;
-
-            for (c = 0; c < 8; c++) {
-                a = col + dX[c];
-                b = row + dY[c];
-                z2 = DEM.getValue(b, a);
-                if (z1 > z2 && z2 != noData) {
-                    slope = (z1 - z2) / dist;
+                for (int k = 0; k < n; k++) {
+                    z2 = elevations[receivers[k]];
+                    proportions[k] = Math.pow((z1 - z2), power) / totalRelief;
+                }
+            } else { //use a D8 method
+                //find the the steepest downslope neighbour
+                double slope;
+                double maxSlope = -999999999;
+                double diagGridRes = gridRes * Math.sqrt(2);
+                int steepest = -1;
+                for (int k = 0; k < n; k++) {
+                    // diagonal neighbours have even directions
+                    double dist = ((int) proportions[k] % 2 == 0) ? diagGridRes : gridRes;
+                    slope = (z1 - elevations[receivers[k]]) / dist;
                     if (slope > maxSlope) {
                         maxSlope = slope;
-                        flowDir = c;
+                        steepest = k;
                     }
                 }
-
-                if (dist == gridRes) {
-                    dist = diagGridRes;
-                } else {
-                    dist = gridRes;
-                }
-            }
-
-            for (c = 0; c < 8; c++) {
-                a = col + dX[c];
-                b = row + dY[c];
-                z2 = DEM.getValue(b, a);
-                if (z1 > z2 && z2 != noData) {
-                    if (c == flowDir) {
-                        proportion = 1;
-                    } else {
-                        proportion = 0;
-                    }
-                    output.setValue(b, a, output.getValue(b, a)
-                            + flowAccumVal * proportion);
-                    tmpGrid.setValue(b, a, tmpGrid.getValue(b, a) - 1);
-                    if (tmpGrid.getValue(b, a) == 0) {
-                        FD8Accum(b, a);
-                    }
+                for (int k = 0; k < n; k++) {
+                    proportions[k] = (k == steepest) ? 1 : 0;
                 }
             }
+            return n;
         }
-
-        currentDepth--;
     }
-}
\ No newline at end of file
+}
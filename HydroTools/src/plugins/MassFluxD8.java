@@ -20,6 +20,8 @@ import java.util.Date;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.FlowAccumulator;
+import whitebox.parallel.LocalOperation;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -143,6 +145,14 @@ public class MassFluxD8 implements WhiteboxPlugin {
         showFeedback("Operation cancelled.");
         updateProgress("Progress: ", 0);
     }
+
+    private final LocalOperation.ProgressMonitor progressMonitor = new LocalOperation.ProgressMonitor() {
+        @Override
+        public boolean updateProgress(int progress) {
+            MassFluxD8.this.updateProgress(progress);
+            return !cancelOp;
+        }
+    };
     
     private boolean amIActive = false;
     /**
@@ -159,20 +169,13 @@ public class MassFluxD8 implements WhiteboxPlugin {
         amIActive = true;
         
         String pointerHeader, loadingHeader, efficiencyHeader, absorptionHeader, outputHeader;
-        int row, col, x, y;
+        int row, col;
         float progress = 0;
-        double slope;
-        double z, z2;
+        double z;
         int i;
-        int[] dX = new int[]{1, 1, 1, 0, -1, -1, -1, 0};
-        int[] dY = new int[]{-1, 0, 1, 1, 1, 0, -1, -1};
-        double[] inflowingVals = new double[]{16, 32, 64, 128, 1, 2, 4, 8};
-        double numInNeighbours;
-        boolean flag = false;
         double gridRes;
         double flowDir = 0;
         double efficiencyMultiplier = 1d;
-        double eff, absorp;
         
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
@@ -232,32 +235,42 @@ public class MassFluxD8 implements WhiteboxPlugin {
             output.setDataScale(WhiteboxRaster.DataScale.CONTINUOUS);
             output.setZUnits("dimensionless");
             
-            WhiteboxRaster tmpGrid = new WhiteboxRaster(outputHeader.replace(".dep", 
-                    "_temp.dep"), "rw", pointerHeader, WhiteboxRaster.DataType.FLOAT, outputNoData);
-            tmpGrid.isTemporaryFile = true;
+            // the direction index of each cell, -1 for cells without a
+            // downslope neighbour and -2 for cells that are NoData in any of
+            // the inputs.
+            byte[] flowDirs = new byte[rows * cols];
+            double[] loadings = new double[rows * cols];
+            double[] efficiencies = new double[rows * cols];
+            double[] absorptions = new double[rows * cols];
+            double[] pntrData = new double[cols];
+            double[] loadingData = new double[cols];
+            double[] efficiencyData = new double[cols];
+            double[] absorptionData = new double[cols];
             
-            updateProgress("Loop 1 of 3:", 0);
+            updateProgress("Loop 1 of 2:", 0);
             for (row = 0; row < rows; row++) {
+                pntr.getRowValues(row, pntrData);
+                loading.getRowValues(row, loadingData);
+                efficiency.getRowValues(row, efficiencyData);
+                absorption.getRowValues(row, absorptionData);
                 for (col = 0; col < cols; col++) {
-                    if (pntr.getValue(row, col) != noData && 
-                            loading.getValue(row, col) != noDataLoading && 
-                            efficiency.getValue(row, col) != noDataEfficiency && 
-                            absorption.getValue(row, col) != noDataAbsorption) {
-                        z = 0;
-                        for (i = 0; i < 8; i++) {
-                            if (pntr.getValue(row + dY[i], col + dX[i]) ==
-                                    inflowingVals[i] &&
-                                loading.getValue(row + dY[i], col + dX[i]) != noDataLoading && 
-                                efficiency.getValue(row + dY[i], col + dX[i]) != noDataEfficiency && 
-                                absorption.getValue(row + dY[i], col + dX[i]) != noDataAbsorption) { 
-                                
-                                z++; 
-                            }
+                    int cell = row * cols + col;
+                    flowDir = pntrData[col];
+                    if (flowDir != noData && 
+                            loadingData[col] != noDataLoading && 
+                            efficiencyData[col] != noDataEfficiency && 
+                            absorptionData[col] != noDataAbsorption) {
+                        if (flowDir > 0) {
+                            i = (int) (Math.log(flowDir) / LnOf2);
+                            flowDirs[cell] = (byte) (i < 8 ? i : -1);
+                        } else {
+                            flowDirs[cell] = -1;
                         }
-                        tmpGrid.setValue(row, col, z);
-                        output.setValue(row, col, loading.getValue(row, col));
+                        loadings[cell] = loadingData[col];
+                        efficiencies[cell] = efficiencyData[col] * efficiencyMultiplier;
+                        absorptions[cell] = absorptionData[col];
                     } else {
-                        output.setValue(row, col, outputNoData);
+                        flowDirs[cell] = -2;
                     }
                 }
                 if (cancelOp) {
@@ -269,54 +282,28 @@ public class MassFluxD8 implements WhiteboxPlugin {
             }
 
             loading.close();
+            efficiency.close();
+            absorption.close();
             
             updateProgress("Loop 2 of 2:", 0);
+            MassFluxAccumulator accumulator = new MassFluxAccumulator(rows, cols,
+                    flowDirs, loadings, efficiencies, absorptions);
+            if (!accumulator.run(progressMonitor)) {
+                pntr.close();
+                output.close();
+                cancelOperation();
+                return;
+            }
+            
             for (row = 0; row < rows; row++) {
+                accumulator.getRowValues(row, pntrData);
                 for (col = 0; col < cols; col++) {
-                    if (tmpGrid.getValue(row, col) == 0) { //there are no 
-                        //remaining inflowing neighbours, send it's current 
-                        //flow accum val downslope
-                        tmpGrid.setValue(row, col, -1);
-//                        flag = false;
-                        x = col;
-                        y = row;
-                        do {
-                            z = output.getValue(y, x); //z is the flow accum 
-                            eff = efficiency.getValue(y, x) * efficiencyMultiplier;
-                            absorp = absorption.getValue(y, x);
-                            //value to send to it's neighbour
-                            //find it's downslope neighbour
-                            flowDir = pntr.getValue(y, x);
-                            if (flowDir > 0) {
-                                i = (int) (Math.log(flowDir) / LnOf2);
-                                x += dX[i];
-                                y += dY[i];
-                                //update the output grids
-                                z2 = output.getValue(y, x);
-                                z = ((z - absorp) * eff);
-                                if (z < 0) { z = 0; }
-                                output.setValue(y, x, z2 + z);
-                                numInNeighbours = tmpGrid.getValue(y, x) - 1;
-                                tmpGrid.setValue(y, x, numInNeighbours);
-                                //see if you can progress further downslope
-                                if (numInNeighbours == 0) {
-                                    tmpGrid.setValue(y, x, -1);
-                                    flag = true;
-                                } else {
-                                    flag = false;
-                                }
-                            } else {
-                                flag = false;
-                            }
-                        } while (flag);
+                    z = pntrData[col];
+                    if (Double.isNaN(z)) {
+                        pntrData[col] = outputNoData;
                     }
                 }
-                if (cancelOp) {
-                    cancelOperation();
-                    return;
-                }
-                progress = (float) (100f * row / (rows - 1));
-                updateProgress("Loop 2 of 2:", (int) progress);
+                output.setRowValues(row, pntrData);
             }
             
             output.addMetadataEntry("Created by the "
@@ -324,9 +311,6 @@ public class MassFluxD8 implements WhiteboxPlugin {
             output.addMetadataEntry("Created on " + new Date());
             
             pntr.close();
-            efficiency.close();
-            absorption.close();
-            tmpGrid.close();
             output.close();
 
             // returning a header file string displays the image.
@@ -344,4 +328,57 @@ public class MassFluxD8 implements WhiteboxPlugin {
             myHost.pluginComplete();
         }
     }
-}
\ No newline at end of file
+    
+    /**
+     * Accumulates the loading along a D8 flow pointer. Each cell passes on
+     * its accumulated mass less its absorption, reduced by its efficiency.
+     */
+    private static class MassFluxAccumulator extends FlowAccumulator {
+        
+        private static final int[] dX = new int[]{1, 1, 1, 0, -1, -1, -1, 0};
+        private static final int[] dY = new int[]{-1, 0, 1, 1, 1, 0, -1, -1};
+        private final byte[] flowDirs;
+        private final double[] loadings;
+        private final double[] efficiencies;
+        private final double[] absorptions;
+        
+        MassFluxAccumulator(int rows, int cols, byte[] flowDirs, double[] loadings,
+                double[] efficiencies, double[] absorptions) {
+            super(rows, cols);
+            this.flowDirs = flowDirs;
+            this.loadings = loadings;
+            this.efficiencies = efficiencies;
+            this.absorptions = absorptions;
+        }
+        
+        @Override
+        protected double getInitialValue(int row, int col) {
+            int cell = row * cols + col;
+            return (flowDirs[cell] == -2) ? Double.NaN : loadings[cell];
+        }
+        
+        @Override
+        protected int getReceivers(int row, int col, double accumulation,
+                int[] receivers, double[] proportions) {
+            int i = flowDirs[row * cols + col];
+            if (i < 0) {
+                return 0;
+            }
+            int x = col + dX[i];
+            int y = row + dY[i];
+            if (x < 0 || x >= cols || y < 0 || y >= rows) {
+                return 0;
+            }
+            receivers[0] = y * cols + x;
+            proportions[0] = 1;
+            return 1;
+        }
+        
+        @Override
+        protected double getOutflow(int row, int col, double accumulation) {
+            int cell = row * cols + col;
+            double z = (accumulation - absorptions[cell]) * efficiencies[cell];
+            return (z < 0) ? 0 : z;
+        }
+    }
+}
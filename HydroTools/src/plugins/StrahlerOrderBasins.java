@@ -20,6 +20,8 @@ import java.util.Date;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.LocalOperation;
+import whitebox.parallel.WatershedLabeller;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -143,6 +145,14 @@ public class StrahlerOrderBasins implements WhiteboxPlugin {
         showFeedback("Operation cancelled.");
         updateProgress("Progress: ", 0);
     }
+
+    private final LocalOperation.ProgressMonitor progressMonitor = new LocalOperation.ProgressMonitor() {
+        @Override
+        public boolean updateProgress(int progress) {
+            StrahlerOrderBasins.this.updateProgress(progress);
+            return !cancelOp;
+        }
+    };
     
     private boolean amIActive = false;
     /**
@@ -163,7 +173,6 @@ public class StrahlerOrderBasins implements WhiteboxPlugin {
         String outputHeader = null;
         int row, col, x, y;
         float progress = 0;
-        double z;
         int i, c;
         int d, x2, y2;
         int[] dX = new int[]{1, 1, 1, 0, -1, -1, -1, 0};
@@ -308,64 +317,13 @@ public class StrahlerOrderBasins implements WhiteboxPlugin {
             }
             
             updateProgress("Loop 2 of 2:", 0);
-            double streamsID = 0;
-            for (row = 0; row < rows; row++) {
-                for (col = 0; col < cols; col++) {
-                    if (output.getValue(row, col) == noData && pntr.getValue(row, col) != noData) {
-                        flag = false;
-                        x = col;
-                        y = row;
-                        do {
-                            //find it's downslope neighbour
-                            flowDir = pntr.getValue(y, x);
-                            if (flowDir > 0) {
-                                //move x and y accordingly
-                                c = (int)(Math.log(flowDir) / LnOf2);
-                                x += dX[c];
-                                y += dY[c];
-                                //if the new cell already has a value in the output, 
-                                //use that as the StreamsID
-                                z = output.getValue(y, x);
-                                if (z != noData) {
-                                    streamsID = z;
-                                    flag = true;
-                                }
-                            } else {
-                                streamsID = noData;
-                                flag = true;
-                            }
-                        } while (!flag);
-
-                        flag = false;
-                        x = col;
-                        y = row;
-                        output.setValue(y, x, streamsID);
-                        do {
-                            //find it's downslope neighbour
-                            flowDir = pntr.getValue(y, x);
-                            if (flowDir > 0) {
-                                c = (int)(Math.log(flowDir) / LnOf2);
-                                x += dX[c];
-                                y += dY[c];
-                                z = output.getValue(y, x);
-                                if (z != noData) {
-                                    flag = true;
-                                }
-                            } else {
-                                flag = true;
-                            }
-                            output.setValue(y, x, streamsID);
-                        } while (!flag);
-                    } else if (pntr.getValue(row, col) == noData) {
-                        output.setValue(row, col, noData);
-                    }
-                }
-                if (cancelOp) {
-                    cancelOperation();
-                    return;
-                }
-                progress = (float) (100f * row / (rows - 1));
-                updateProgress("Loop 2 of 2:", (int) progress);
+            WatershedLabeller labeller = new WatershedLabeller();
+            if (!labeller.run(pntr, output, noData, noData, progressMonitor)) {
+                pntr.close();
+                streams.close();
+                output.close();
+                cancelOperation();
+                return;
             }
             
             output.addMetadataEntry("Created by the "
@@ -36,6 +36,8 @@ import static whitebox.geospatialfiles.shapefile.ShapeType.POINTM;
 import static whitebox.geospatialfiles.shapefile.ShapeType.POINTZ;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.LocalOperation;
+import whitebox.parallel.WatershedLabeller;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -46,8 +48,6 @@ public class Watershed implements WhiteboxPlugin {
 
     private WhiteboxPluginHost myHost = null;
     private String[] args;
-    // Constants
-    private static final double LnOf2 = 0.693147180559945;
 
     /**
      * Used to retrieve the plugin tool's name. This is a short, unique name
@@ -186,6 +186,15 @@ public class Watershed implements WhiteboxPlugin {
         showFeedback("Operation cancelled.");
         updateProgress("Progress: ", 0);
     }
+
+    private final LocalOperation.ProgressMonitor progressMonitor = new LocalOperation.ProgressMonitor() {
+        @Override
+        public boolean updateProgress(int progress) {
+            Watershed.this.updateProgress(progress);
+            return !cancelOp;
+        }
+    };
+
     private boolean amIActive = false;
 
     /**
@@ -206,15 +215,9 @@ public class Watershed implements WhiteboxPlugin {
         String inputHeader = null;
         String outputHeader = null;
         String outletHeader = null;
-        int row, col, x, y;
+        int row, col;
         float progress = 0;
         double z;
-        int i, c;
-        int[] dX = new int[]{1, 1, 1, 0, -1, -1, -1, 0};
-        int[] dY = new int[]{-1, 0, 1, 1, 1, 0, -1, -1};
-        boolean flag = false;
-        double flowDir = 0;
-        double outletID = 0;
 
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
@@ -353,62 +356,14 @@ public class Watershed implements WhiteboxPlugin {
                 updateProgress("Loop 1 of 2:", (int) progress);
             }
 
-            for (row = 0; row < rows; row++) {
-                for (col = 0; col < cols; col++) {
-                    if (output.getValue(row, col) == -999 && pntr.getValue(row, col) != noData) {
-                        flag = false;
-                        x = col;
-                        y = row;
-                        do {
-                            // find it's downslope neighbour
-                            flowDir = pntr.getValue(y, x);
-                            if (flowDir > 0) {
-                                //move x and y accordingly
-                                c = (int) (Math.log(flowDir) / LnOf2);
-                                x += dX[c];
-                                y += dY[c];
-                                //if the new cell already has a value in the output, use that as the outletID
-                                z = output.getValue(y, x);
-                                if (z != -999) {
-                                    outletID = z;
-                                    flag = true;
-                                }
-                            } else {
-                                outletID = noData;
-                                flag = true;
-                            }
-                        } while (!flag);
-
-                        flag = false;
-                        x = col;
-                        y = row;
-                        output.setValue(y, x, outletID);
-                        do {
-                            // find it's downslope neighbour
-                            flowDir = pntr.getValue(y, x);
-                            if (flowDir > 0) {
-                                c = (int) (Math.log(flowDir) / LnOf2);
-                                x += dX[c];
-                                y += dY[c];
-                                z = output.getValue(y, x);
-                                if (z != -999) {
-                                    flag = true;
-                                }
-                            } else {
-                                flag = true;
-                            }
-                            output.setValue(y, x, outletID);
-                        } while (!flag);
-                    } else if (pntr.getValue(row, col) == noData) {
-                        output.setValue(row, col, noData);
-                    }
-                }
-                if (cancelOp) {
-                    cancelOperation();
-                    return;
-                }
-                progress = (float) (100f * row / (rows - 1));
-                updateProgress("Loop 2 of 2:", (int) progress);
+            updateProgress("Loop 2 of 2:", 0);
+            WatershedLabeller labeller = new WatershedLabeller();
+            if (!labeller.run(pntr, output, -999, noData, progressMonitor)) {
+                pntr.close();
+                outlet.close();
+                output.close();
+                cancelOperation();
+                return;
             }
 
 
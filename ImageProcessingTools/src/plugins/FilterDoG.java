@@ -20,6 +20,8 @@ import java.util.Date;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.LocalOperation;
+import whitebox.parallel.SeparableFilter;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -140,6 +142,14 @@ public class FilterDoG implements WhiteboxPlugin {
         showFeedback("Operation cancelled.");
         updateProgress("Progress: ", 0);
     }
+
+    private final LocalOperation.ProgressMonitor progressMonitor = new LocalOperation.ProgressMonitor() {
+        @Override
+        public boolean updateProgress(int progress) {
+            FilterDoG.this.updateProgress(progress);
+            return !cancelOp;
+        }
+    };
     
     private boolean amIActive = false;
     /**
@@ -157,31 +167,9 @@ public class FilterDoG implements WhiteboxPlugin {
         
         String inputHeader = null;
         String outputHeader = null;
-        int row, col, x, y;
-        double z;
-        float progress = 0;
-        int a;
-        int filterSize1 = 3;
-        int filterSize2 = 3;
-        double n;
-        double sum;
-        int[] dX1;
-        int[] dX2;
-        int[] dY1;
-        int[] dY2;
-        double[] weights1;
-        double[] weights2;
-        int midPoint;
-        int numPixelsInFilter1;
-        int numPixelsInFilter2;
         boolean reflectAtBorders = false;
         double sigma1 = 0;
         double sigma2 = 0;
-        double recipRoot2PiTimesSigma1;
-        double recipRoot2PiTimesSigma2;
-        double twoSigmaSqr1;
-        double twoSigmaSqr2;
-        double zN, zFinal_1, zFinal_2;
     
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
@@ -229,137 +217,19 @@ public class FilterDoG implements WhiteboxPlugin {
             WhiteboxRaster inputFile = new WhiteboxRaster(inputHeader, "r");
             inputFile.isReflectedAtEdges = reflectAtBorders;
 
-            int rows = inputFile.getNumberRows();
-            int cols = inputFile.getNumberColumns();
             double noData = inputFile.getNoDataValue();
 
             WhiteboxRaster outputFile = new WhiteboxRaster(outputHeader, "rw", inputHeader, WhiteboxRaster.DataType.FLOAT, noData);
             outputFile.setPreferredPalette("grey.pal");
             
-            recipRoot2PiTimesSigma1 = 1 / (Math.sqrt(2 * Math.PI) * sigma1);
-            twoSigmaSqr1 = 2 * sigma1 * sigma1;
-
-            recipRoot2PiTimesSigma2 = 1 / (Math.sqrt(2 * Math.PI) * sigma2);
-            twoSigmaSqr2 = 2 * sigma2 * sigma2;
-
-            //figure out the size of the filter
-            double weight;
-            for (int i = 0; i <= 250; i++) {
-                weight = recipRoot2PiTimesSigma1 * Math.exp(-1 * (i * i) / twoSigmaSqr1);
-                if (weight <= 0.001) {
-                    filterSize1 = i * 2 + 1;
-                    break;
-                }
-            }
-            
-            //the filter dimensions must be odd numbers such that there is a middle pixel
-            if (filterSize1 % 2 == 0) {
-                filterSize1++;
-            }
-
-            if (filterSize1 < 3) { filterSize1 = 3; }
-
-            numPixelsInFilter1 = filterSize1 * filterSize1;
-            dX1 = new int[numPixelsInFilter1];
-            dY1 = new int[numPixelsInFilter1];
-            weights1 = new double[numPixelsInFilter1];
-            
-            //fill the filter DX and DY values and the distance-weights
-            midPoint = (int)Math.floor(filterSize1 / 2) + 1;
-            a = 0;
-            for (row = 0; row < filterSize1; row++) {
-                for (col = 0; col < filterSize1; col++) {
-                    x = col - midPoint;
-                    y = row - midPoint;
-                    dX1[a] = x;
-                    dY1[a] = y;
-                    weight = recipRoot2PiTimesSigma1 * Math.exp(-1 * (x * x + y * y) / twoSigmaSqr1);
-                    weights1[a] = weight;
-                    a++;
-                }
-            }
-            
-            
-            //figure out the size of the filter
-            for (int i = 0; i <= 250; i++) {
-                weight = recipRoot2PiTimesSigma2 * Math.exp(-1 * (i * i) / twoSigmaSqr2);
-                if (weight <= 0.001) {
-                    filterSize2 = i * 2 + 1;
-                    break;
-                }
-            }
-            
-            //the filter dimensions must be odd numbers such that there is a middle pixel
-            if (filterSize2 % 2 == 0) {
-                filterSize2++;
-            }
-
-            if (filterSize2 < 3) { filterSize2 = 3; }
-
-            numPixelsInFilter2 = filterSize2 * filterSize2;
-            dX2 = new int[numPixelsInFilter2];
-            dY2 = new int[numPixelsInFilter2];
-            weights2 = new double[numPixelsInFilter2];
-            
-            //fill the filter DX and DY values and the distance-weights
-            midPoint = (int)Math.floor(filterSize2 / 2) + 1;
-            a = 0;
-            for (row = 0; row < filterSize2; row++) {
-                for (col = 0; col < filterSize2; col++) {
-                    x = col - midPoint;
-                    y = row - midPoint;
-                    dX2[a] = x;
-                    dY2[a] = y;
-                    weight = recipRoot2PiTimesSigma2 * Math.exp(-1 * (x * x + y * y) / twoSigmaSqr2);
-                    weights2[a] = weight;
-                    a++;
-                }
-            }
-            
-            
-            for (row = 0; row < rows; row++) {
-                for (col = 0; col < cols; col++) {
-                    z = inputFile.getValue(row, col);
-                    if (z != noData) {
-                        sum = 0;
-                        zFinal_1 = 0;
-                        for (a = 0; a < numPixelsInFilter1; a++) {
-                            x = col + dX1[a];
-                            y = row + dY1[a];
-                            zN = inputFile.getValue(y, x);
-                            if (zN != noData) {
-                                sum += weights1[a];
-                                zFinal_1 += weights1[a] * zN;
-                            }
-                        }
-                        zFinal_1 = zFinal_1 / sum;
-                        
-                        sum = 0;
-                        zFinal_2 = 0;
-                        for (a = 0; a < numPixelsInFilter2; a++) {
-                            x = col + dX2[a];
-                            y = row + dY2[a];
-                            zN = inputFile.getValue(y, x);
-                            if (zN != noData) {
-                                sum += weights2[a];
-                                zFinal_2 += weights2[a] * zN;
-                            }
-                        }
-                        zFinal_2 = zFinal_2 / sum;
-                        
-                        outputFile.setValue(row, col, zFinal_1 - zFinal_2);
-                        
-                    } else {
-                        outputFile.setValue(row, col, noData);
-                    }
-
-                }
-                if (cancelOp) {
-                    cancelOperation();
-                    return;
-                }
-                progress = (float) (100f * row / (rows - 1));
-                updateProgress((int) progress);
+            SeparableFilter filter = new SeparableFilter(SeparableFilter.Kernel.gaussian(sigma1),
+                    SeparableFilter.Kernel.gaussian(sigma2));
+            boolean completed = filter.run(inputFile, outputFile, progressMonitor);
+            if (!completed) {
+                inputFile.close();
+                outputFile.close();
+                cancelOperation();
+                return;
             }
 
             outputFile.addMetadataEntry("Created by the "
@@ -20,6 +20,8 @@ import java.util.Date;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.LocalOperation;
+import whitebox.parallel.SeparableFilter;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -140,6 +142,14 @@ public class FilterGaussian implements WhiteboxPlugin {
         showFeedback("Operation cancelled.");
         updateProgress("Progress: ", 0);
     }
+
+    private final LocalOperation.ProgressMonitor progressMonitor = new LocalOperation.ProgressMonitor() {
+        @Override
+        public boolean updateProgress(int progress) {
+            FilterGaussian.this.updateProgress(progress);
+            return !cancelOp;
+        }
+    };
     
     private boolean amIActive = false;
     /**
@@ -157,23 +167,8 @@ public class FilterGaussian implements WhiteboxPlugin {
         
         String inputHeader = null;
         String outputHeader = null;
-        int row, col, x, y;
-        double z;
-        float progress = 0;
-        int a;
-        int filterSize = 3;
-        double n;
-        double sum;
-        int[] dX;
-        int[] dY;
-        double[] weights;
-        int midPoint;
-        int numPixelsInFilter;
         boolean reflectAtBorders = false;
         double sigmaD = 0;
-        double recipRoot2PiTimesSigmaD;
-        double twoSigmaSqrD;
-        double zN, zFinal;
     
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
@@ -208,81 +203,19 @@ public class FilterGaussian implements WhiteboxPlugin {
             WhiteboxRaster inputFile = new WhiteboxRaster(inputHeader, "r");
             inputFile.isReflectedAtEdges = reflectAtBorders;
 
-            int rows = inputFile.getNumberRows();
-            int cols = inputFile.getNumberColumns();
             double noData = inputFile.getNoDataValue();
 
             WhiteboxRaster outputFile = new WhiteboxRaster(outputHeader, "rw", inputHeader, WhiteboxRaster.DataType.FLOAT, noData);
             outputFile.setPreferredPalette(inputFile.getPreferredPalette());
             
             
-            recipRoot2PiTimesSigmaD = 1 / (Math.sqrt(2 * Math.PI) * sigmaD);
-            twoSigmaSqrD = 2 * sigmaD * sigmaD;
-
-            //figure out the size of the filter
-            double weight;
-            for (int i = 0; i <= 250; i++) {
-                weight = recipRoot2PiTimesSigmaD * Math.exp(-1 * (i * i) / twoSigmaSqrD);
-                if (weight <= 0.001) {
-                    filterSize = i * 2 + 1;
-                    break;
-                }
-            }
-            
-            //the filter dimensions must be odd numbers such that there is a middle pixel
-            if (filterSize % 2 == 0) {
-                filterSize++;
-            }
-
-            if (filterSize < 3) { filterSize = 3; }
-
-            numPixelsInFilter = filterSize * filterSize;
-            dX = new int[numPixelsInFilter];
-            dY = new int[numPixelsInFilter];
-            weights = new double[numPixelsInFilter];
-            
-            //fill the filter DX and DY values and the distance-weights
-            midPoint = (int)Math.floor(filterSize / 2) + 1;
-            a = 0;
-            for (row = 0; row < filterSize; row++) {
-                for (col = 0; col < filterSize; col++) {
-                    x = col - midPoint;
-                    y = row - midPoint;
-                    dX[a] = x;
-                    dY[a] = y;
-                    weight = recipRoot2PiTimesSigmaD * Math.exp(-1 * (x * x + y * y) / twoSigmaSqrD);
-                    weights[a] = weight;
-                    a++;
-                }
-            }
-            
-            for (row = 0; row < rows; row++) {
-                for (col = 0; col < cols; col++) {
-                    z = inputFile.getValue(row, col);
-                    if (z != noData) {
-                        sum = 0;
-                        zFinal = 0;
-                        for (a = 0; a < numPixelsInFilter; a++) {
-                            x = col + dX[a];
-                            y = row + dY[a];
-                            zN = inputFile.getValue(y, x);
-                            if (zN != noData) {
-                                sum += weights[a];
-                                zFinal += weights[a] * zN;
-                            }
-                        }
-                        outputFile.setValue(row, col, zFinal / sum);
-                    } else {
-                        outputFile.setValue(row, col, noData);
-                    }
-
-                }
-                if (cancelOp) {
-                    cancelOperation();
-                    return;
-                }
-                progress = (float) (100f * row / (rows - 1));
-                updateProgress((int) progress);
+            SeparableFilter filter = new SeparableFilter(SeparableFilter.Kernel.gaussian(sigmaD));
+            boolean completed = filter.run(inputFile, outputFile, progressMonitor);
+            if (!completed) {
+                inputFile.close();
+                outputFile.close();
+                cancelOperation();
+                return;
             }
 
             outputFile.addMetadataEntry("Created by the "
@@ -17,15 +17,14 @@
 
 package plugins;
 
-import java.nio.ByteOrder;
-import java.io.*;
-import java.util.Date;
-import whitebox.geospatialfiles.GeoTiff;
+import java.io.File;
+import whitebox.geospatialfiles.GeoTiffWriter;
 import whitebox.geospatialfiles.WhiteboxRaster;
-import whitebox.geospatialfiles.WhiteboxRasterBase;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
 import whitebox.interfaces.InteropPlugin;
+import whitebox.parallel.LocalOperation;
+import whitebox.parallel.Parallel;
 //import org.geotools.gce.geotiff.*;
 //import org.geotools.coverage.grid.GridCoverage2D;
 //import org.geotools.coverage.grid.GridGeometry2D;
@@ -188,6 +187,13 @@ public class ExportGeoTiff implements WhiteboxPlugin, InteropPlugin {
         showFeedback("Operation cancelled.");
         updateProgress("Progress: ", 0);
     }
+    private final LocalOperation.ProgressMonitor progressMonitor = new LocalOperation.ProgressMonitor() {
+        @Override
+        public boolean updateProgress(int progress) {
+            ExportGeoTiff.this.updateProgress(progress);
+            return !cancelOp;
+        }
+    };
     private boolean amIActive = false;
 
     /**
@@ -207,18 +213,12 @@ public class ExportGeoTiff implements WhiteboxPlugin, InteropPlugin {
 
         String inputFilesString = null;
         String whiteboxHeaderFile = null;
-        String whiteboxDataFile = null;
-        WhiteboxRaster output = null;
+        String tiffFile = null;
         int i = 0;
         String[] imageFiles;
         int numImages = 0;
-        double noData = -32768;
-        int progress = 0;
-
-        String str1 = null;
-        FileWriter fw = null;
-        BufferedWriter bw = null;
-        PrintWriter out = null;
+        boolean compress = true;
+        boolean bigTiff = false;
 
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
@@ -226,6 +226,14 @@ public class ExportGeoTiff implements WhiteboxPlugin, InteropPlugin {
         }
 
         inputFilesString = args[0];
+        // the optional second and third parameters turn off the compression
+        // and force a BigTIFF file.
+        if (args.length > 1 && args[1] != null && !args[1].isEmpty()) {
+            compress = Boolean.parseBoolean(args[1]);
+        }
+        if (args.length > 2 && args[2] != null && !args[2].isEmpty()) {
+            bigTiff = Boolean.parseBoolean(args[2]);
+        }
 
         // check to see that the inputHeader and outputHeader are not null.
         if ((inputFilesString == null)) {
@@ -237,134 +245,35 @@ public class ExportGeoTiff implements WhiteboxPlugin, InteropPlugin {
         numImages = imageFiles.length;
 
         try {
-            String returnedHeader = "";
             for (i = 0; i < numImages; i++) {
-                //int progress = (int) (100f * i / (numImages - 1));
                 if (numImages > 1) {
-                    updateProgress("Loop " + (i + 1) + " of " + numImages + ":", progress);
-                }
-                
-//                File file = new File("test.tiff");
-//    
-//                AbstractGridFormat format = GridFormatFinder.findFormat(file);
-//                GridCoverage2DReader reader = format.getReader(file);
-    
-//                try {
-//                GridCoverage2D coverage = reader.read(null);
-//                } catch (Exception e) {
-//                    
-//                }
-                
-                
-                
-//                File file = new File(imageFiles[i]);
-//
-//                GeoTiffReader reader = new GeoTiffReader(file, new Hints(Hints.FORCE_LONGITUDE_FIRST_AXIS_ORDER, Boolean.TRUE));
-//GridCoverage2D coverage = reader.read(null);
-                
-                GeoTiff gt = new GeoTiff(imageFiles[i]);
-                gt.read();
-
-                int compressionType = gt.getCompressionType();
-                if (compressionType != 1) {
-                    showFeedback("GeoTiff import does not currently support compressed files.");
-                    return;
-                }
-
-                boolean hasNoDataValue = gt.hasNoDataTag();
-                double nodata; // = -32768.0;
-                if (hasNoDataValue) {
-                    nodata = gt.getNoData();
+                    updateProgress("Loop " + (i + 1) + " of " + numImages + ":", 0);
                 } else {
-                    nodata = -32768;
+                    updateProgress("Exporting GeoTiff file...", 0);
                 }
 
-                int nRows = gt.getNumberRows();
-                int nCols = gt.getNumberColumns();
-
-                int dot = imageFiles[i].lastIndexOf(".");
-                String tiffExtension = imageFiles[i].substring(dot + 1); // either .tif or .tiff
-                whiteboxHeaderFile = imageFiles[i].replace(tiffExtension, "dep");
-                if (i == 0) {
-                    returnedHeader = whiteboxHeaderFile;
+                whiteboxHeaderFile = imageFiles[i];
+                if (!((new File(whiteboxHeaderFile)).exists())) {
+                    showFeedback("Whitebox raster file does not exist.");
+                    break;
                 }
-                whiteboxDataFile = imageFiles[i].replace(tiffExtension, "tas");
-
-                // see if they exist, and if so, delete them.
-                (new File(whiteboxHeaderFile)).delete();
-                (new File(whiteboxDataFile)).delete();
+                WhiteboxRaster wbr = new WhiteboxRaster(whiteboxHeaderFile, "r");
 
-                ByteOrder byteOrder = gt.getByteOrder();
+                tiffFile = whiteboxHeaderFile.replace(".dep", ".tif");
 
-                WhiteboxRasterBase.DataScale myDataScale = WhiteboxRasterBase.DataScale.CONTINUOUS;
-                if (gt.getPhotometricInterpretation() == 2) {
-                    myDataScale = WhiteboxRasterBase.DataScale.RGB;
-                }
-                final WhiteboxRaster wbr = new WhiteboxRaster(whiteboxHeaderFile, gt.getNorth(), gt.getSouth(), gt.getEast(),
-                        gt.getWest(), nRows, nCols, myDataScale,
-                        WhiteboxRasterBase.DataType.FLOAT, nodata, nodata);
-
-                wbr.setByteOrder(byteOrder.toString());
-
-                double z;
-                int oldProgress = -1;
-                for (int row = 0; row < nRows; row++) {
-                    for (int col = 0; col < nCols; col++) {
-                        z = gt.getValue(row, col);
-                        if (!hasNoDataValue && (z == -32768 || z == -Float.MAX_VALUE)) {
-                            nodata = z;
-                            hasNoDataValue = true;
-                            wbr.setNoDataValue(nodata);
-                        }
-                        //if (z != nodata) {
-                        wbr.setValue(row, col, z);
-                        //}
-                    }
-                    progress = (int) (100f * row / (nRows - 1));
-                    if (progress != oldProgress) {
-                        oldProgress = progress;
-                        updateProgress("Exporting GeoTiff file...", progress);
-                    }
-                }
-
-//                WhiteboxRasterBase.DataScale myDataScale = WhiteboxRasterBase.DataScale.CONTINUOUS;
-//                if (gt.getPhotometricInterpretation() == 2) {
-//                    myDataScale = WhiteboxRasterBase.DataScale.RGB;
-//                }
-//                WhiteboxRaster wbr = new WhiteboxRaster(whiteboxHeaderFile, gt.getNorth(), gt.getSouth(), gt.getEast(),
-//                        gt.getWest(), nRows, nCols, myDataScale,
-//                        WhiteboxRasterBase.DataType.FLOAT, gt.getNoData(), gt.getNoData());
-//
-//                wbr.setByteOrder(byteOrder.toString());
-//
-//                double z;
-//                for (int row = 0; row < nRows; row++) {
-//                    for (int col = 0; col < nCols; col++) {
-//                        z = gt.getValue(row, col);
-//                        wbr.setValue(row, col, z);
-//                    }
-//                    progress = (int) (100f * row / (nRows - 1));
-//                    updateProgress(progress);
-//                }
-                //wbr.flush();
-                wbr.addMetadataEntry("Created by the "
-                        + getDescriptiveName() + " tool.");
-                wbr.addMetadataEntry("Created on " + new Date());
-                String[] metaData = gt.showInfo();
-                for (int a = 0; a < metaData.length; a++) {
-                    wbr.addMetadataEntry(metaData[a]);
-                }
-                //wbr.writeHeaderFile();
+                GeoTiffWriter writer = new GeoTiffWriter(tiffFile, wbr);
+                writer.setCompressed(compress);
+                writer.setBigTiff(bigTiff);
+                writer.setNumberOfThreads(Parallel.getPluginProcessors());
+                boolean complete = writer.write(progressMonitor);
                 wbr.close();
-
-                gt.close();
-
+                if (!complete) {
+                    cancelOperation();
+                    return;
+                }
             }
 
-//            showFeedback("Operation complete");
-            if (!returnedHeader.isEmpty()) {
-                returnData(returnedHeader);
-            }
+            showFeedback("Operation complete.");
 
         } catch (OutOfMemoryError oe) {
             myHost.showFeedback("An out-of-memory error has occurred during operation.");
@@ -372,11 +281,6 @@ public class ExportGeoTiff implements WhiteboxPlugin, InteropPlugin {
             myHost.showFeedback("An error has occurred during operation. See log file for details.");
             myHost.logException("Error in " + getDescriptiveName(), e);
         } finally {
-            if (out != null || bw != null) {
-                out.flush();
-                out.close();
-            }
-
             updateProgress("Progress: ", 0);
             // tells the main application that this process is completed.
             amIActive = false;
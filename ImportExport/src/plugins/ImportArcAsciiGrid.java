@@ -22,6 +22,7 @@ import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.InteropPlugin;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.utilities.NumberTokenizer;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -191,7 +192,7 @@ public class ImportArcAsciiGrid implements WhiteboxPlugin, InteropPlugin {
         String arcFile = null;
         String whiteboxHeaderFile = null;
         int i = 0;
-        int row, col, rows, cols;
+        int rows, cols;
         String[] imageFiles;
         int numImages = 0;
         int progress = 0;
@@ -206,16 +207,13 @@ public class ImportArcAsciiGrid implements WhiteboxPlugin, InteropPlugin {
         double south = 0;
         double arcNoData = -9999;
         double whiteboxNoData = -32768d;
-        double z = 0;
-        String delimiter = " ";
 
         String str1 = null;
         FileWriter fw = null;
         BufferedWriter bw = null;
         PrintWriter out = null;
 
-        DataInputStream in = null;
-        BufferedReader br = null;
+        NumberTokenizer tokenizer = null;
 
         try {
 
@@ -256,33 +254,18 @@ public class ImportArcAsciiGrid implements WhiteboxPlugin, InteropPlugin {
                 (new File(whiteboxHeaderFile)).delete();
                 (new File(whiteboxHeaderFile.replace(".dep", ".tas"))).delete();
 
-                FileInputStream fstream = new FileInputStream(arcFile);
                 rows = 0;
                 cols = 0;
 
-                // Get the object of DataInputStream
-                in = new DataInputStream(fstream);
-
-                br = new BufferedReader(new InputStreamReader(in));
+                tokenizer = new NumberTokenizer(new FileInputStream(arcFile));
 
                 if (arcFile != null) {
                     String line;
                     String[] str;
-                    //Read File Line By Line, getting the header data.
-                    while ((line = br.readLine()) != null) {
-                        str = line.split(delimiter);
-                        if (str.length <= 1) {
-                            delimiter = "\t";
-                            str = line.split(delimiter);
-                            if (str.length <= 1) {
-                                delimiter = " ";
-                                str = line.split(delimiter);
-                                if (str.length <= 1) {
-                                    delimiter = ",";
-                                    str = line.split(delimiter);
-                                }
-                            }
-                        }
+                    // Read the header lines, which start with a letter.
+                    while (Character.isLetter(tokenizer.peek())) {
+                        line = tokenizer.readLine();
+                        str = line.trim().split("[\\s,]+");
                         if (str[0].toLowerCase().contains("ncols")) {
                             cols = Integer.parseInt(str[str.length - 1]);
                         } else if (str[0].toLowerCase().contains("nrows")) {
@@ -311,8 +294,6 @@ public class ImportArcAsciiGrid implements WhiteboxPlugin, InteropPlugin {
                             }
                         } else if (str[0].toLowerCase().contains("nodata")) {
                             arcNoData = Double.parseDouble(str[str.length - 1]);
-                        } else {
-                            break;
                         }
                     }
 
@@ -361,62 +342,40 @@ public class ImportArcAsciiGrid implements WhiteboxPlugin, InteropPlugin {
                     // Create the whitebox raster object.
                     WhiteboxRaster wbr = new WhiteboxRaster(whiteboxHeaderFile, "rw");
 
-                    // Read File Line By Line, this time ingesting the data block
-                    // and outputing it to the whitebox raster object.
-                    delimiter = " ";
-                    row = 0;
-                    col = 0;
-                    while ((line = br.readLine()) != null) {
-                        str = line.split(delimiter);
-                        if (str.length <= 1) {
-                            delimiter = "\t";
-                            str = line.split(delimiter);
-                            if (str.length <= 1) {
-                                delimiter = " ";
-                                str = line.split(delimiter);
-                                if (str.length <= 1) {
-                                    delimiter = ",";
-                                    str = line.split(delimiter);
+                    // Parse the data block on a separate thread while the
+                    // rows are written to the whitebox raster object.
+                    final WhiteboxRaster output = wbr;
+                    final int numRows = rows;
+                    final double inputNoData = arcNoData;
+                    final double outputNoData = whiteboxNoData;
+                    boolean complete = tokenizer.readRows(rows, cols, new NumberTokenizer.RowHandler() {
+                        int oldProgress = -1;
+
+                        @Override
+                        public boolean handleRow(int row, double[] values) {
+                            for (int col = 0; col < values.length; col++) {
+                                if (values[col] == inputNoData || Double.isNaN(values[col])) {
+                                    values[col] = outputNoData;
                                 }
                             }
-                        }
-                        if (str[0].toLowerCase().contains("ncols")) {
-                            // do nothing
-                        } else if (str[0].toLowerCase().contains("nrows")) {
-                            // do nothing
-                        } else if (str[0].toLowerCase().contains("xllcenter")) {
-                            // do nothing
-                        } else if (str[0].toLowerCase().contains("yllcenter")) {
-                            // do nothing
-                        } else if (str[0].toLowerCase().contains("xllcorner")) {
-                            // do nothing
-                        } else if (str[0].toLowerCase().contains("yllcorner")) {
-                            // do nothing
-                        } else if (str[0].toLowerCase().contains("cellsize")) {
-                            // do nothing
-                        } else if (str[0].toLowerCase().contains("nodata")) {
-                            // do nothing
-                        } else {
-                            // read the data
-                            for (i = 0; i < str.length; i++) {
-                                z = Double.parseDouble(str[i]);
-                                if (z != arcNoData) {
-                                    wbr.setValue(row, col, z);
-                                } else {
-                                    wbr.setValue(row, col, whiteboxNoData);
-                                }
-                                col++;
-                                if (col == cols) {
-                                    col = 0;
-                                    row++;
-                                }
+                            output.setRowValues(row, values);
+                            int progress = (int) (100f * row / (numRows - 1));
+                            if (progress != oldProgress) {
+                                oldProgress = progress;
+                                updateProgress(progress);
                             }
+                            return !cancelOp;
                         }
-                    }
+                    });
 
                     //Close the input stream
-                    in.close();
-                    br.close();
+                    tokenizer.close();
+
+                    if (!complete) {
+                        wbr.close();
+                        cancelOperation();
+                        return;
+                    }
 
                     wbr.addMetadataEntry("Created by the "
                             + getDescriptiveName() + " tool.");
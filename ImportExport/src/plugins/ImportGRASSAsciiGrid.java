@@ -16,9 +16,6 @@
  */
 package plugins;
 
-import java.io.DataInputStream;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.util.Date;
 import java.io.FileInputStream;
 import java.io.File;
@@ -29,6 +26,7 @@ import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.InteropPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
 import whitebox.interfaces.WhiteboxPlugin;
+import whitebox.utilities.NumberTokenizer;
 import whitebox.utilities.StringUtilities;
 
 /**
@@ -199,15 +197,14 @@ public class ImportGRASSAsciiGrid implements WhiteboxPlugin, InteropPlugin {
         BufferedWriter bw = null;
         PrintWriter out = null;
 
-        DataInputStream in = null;
-        BufferedReader br = null;
+        NumberTokenizer tokenizer = null;
 
         try {
             String inputFilesString = null;
             String grassFile = null;
             String whiteboxHeaderFile = null;
             int i = 0;
-            int row, col, rows, cols;
+            int rows, cols;
             String[] imageFiles;
             int numImages = 0;
             int progress = 0;
@@ -218,8 +215,6 @@ public class ImportGRASSAsciiGrid implements WhiteboxPlugin, InteropPlugin {
             double south = 0;
             double arcNoData = -9999;
             double whiteboxNoData = -32768d;
-            double z = 0;
-            String delimiter = " ";
 
             if (args.length <= 0) {
                 showFeedback("Plugin parameters have not been set.");
@@ -259,33 +254,18 @@ public class ImportGRASSAsciiGrid implements WhiteboxPlugin, InteropPlugin {
                 (new File(whiteboxHeaderFile)).delete();
                 (new File(whiteboxHeaderFile.replace(".dep", ".tas"))).delete();
 
-                FileInputStream fstream = new FileInputStream(grassFile);
                 rows = 0;
                 cols = 0;
 
-                // Get the object of DataInputStream
-                in = new DataInputStream(fstream);
-
-                br = new BufferedReader(new InputStreamReader(in));
+                tokenizer = new NumberTokenizer(new FileInputStream(grassFile));
 
                 if (grassFile != null) {
                     String line;
                     String[] str;
-                    //Read File Line By Line, getting the header data.
-                    while ((line = br.readLine()) != null) {
-                        str = line.split(delimiter);
-                        if (str.length <= 1) {
-                            delimiter = "\t";
-                            str = line.split(delimiter);
-                            if (str.length <= 1) {
-                                delimiter = " ";
-                                str = line.split(delimiter);
-                                if (str.length <= 1) {
-                                    delimiter = ",";
-                                    str = line.split(delimiter);
-                                }
-                            }
-                        }
+                    // Read the header lines, which start with a letter.
+                    while (Character.isLetter(tokenizer.peek())) {
+                        line = tokenizer.readLine();
+                        str = line.trim().split("[\\s,]+");
                         if (str[0].toLowerCase().contains("north")) {
                             north = Double.parseDouble(str[str.length - 1]);
                         } else if (str[0].toLowerCase().contains("south")) {
@@ -298,10 +278,11 @@ public class ImportGRASSAsciiGrid implements WhiteboxPlugin, InteropPlugin {
                             rows = Integer.parseInt(str[str.length - 1]);
                         } else if (str[0].toLowerCase().contains("cols")) {
                             cols = Integer.parseInt(str[str.length - 1]);
-                        } else if (str[0].toLowerCase().contains("nodata")) {
-                            arcNoData = Double.parseDouble(str[str.length - 1]);
-                        } else {
-                            break;
+                        } else if (str[0].toLowerCase().contains("nodata")
+                                || str[0].toLowerCase().contains("null")) {
+                            if (StringUtilities.isNumeric(str[str.length - 1])) {
+                                arcNoData = Double.parseDouble(str[str.length - 1]);
+                            }
                         }
                     }
 
@@ -351,67 +332,36 @@ public class ImportGRASSAsciiGrid implements WhiteboxPlugin, InteropPlugin {
                     WhiteboxRaster wbr = new WhiteboxRaster(whiteboxHeaderFile, "rw");
                     wbr.reinitialize(whiteboxNoData);
 
-                    // Read File Line By Line, this time ingesting the data block
-                    // and outputing it to the whitebox raster object.
-                    delimiter = " ";
-                    row = 0;
-                    col = 0;
-                    while ((line = br.readLine()) != null) {
-                        str = line.split(delimiter);
-                        if (str.length <= 1) {
-                            delimiter = "\t";
-                            str = line.split(delimiter);
-                            if (str.length <= 1) {
-                                delimiter = " ";
-                                str = line.split(delimiter);
-                                if (str.length <= 1) {
-                                    delimiter = ",";
-                                    str = line.split(delimiter);
+                    // Parse the data block on a separate thread while the
+                    // rows are written to the whitebox raster object. Tokens
+                    // that are not numbers, e.g. '*', are NoData.
+                    final WhiteboxRaster output = wbr;
+                    final int numRows = rows;
+                    final double inputNoData = arcNoData;
+                    final double outputNoData = whiteboxNoData;
+                    boolean complete = tokenizer.readRows(rows, cols, new NumberTokenizer.RowHandler() {
+
+                        @Override
+                        public boolean handleRow(int row, double[] values) {
+                            for (int col = 0; col < values.length; col++) {
+                                if (values[col] == inputNoData || Double.isNaN(values[col])) {
+                                    values[col] = outputNoData;
                                 }
                             }
+                            output.setRowValues(row, values);
+                            updateProgress((int) (100f * row / (numRows - 1)));
+                            return !cancelOp;
                         }
-                        if (str[0].toLowerCase().contains("north")) {
-                            // do nothing
-                        } else if (str[0].toLowerCase().contains("south")) {
-                            // do nothing
-                        } else if (str[0].toLowerCase().contains("east")) {
-                            // do nothing
-                        } else if (str[0].toLowerCase().contains("west")) {
-                            // do nothing
-                        } else if (str[0].toLowerCase().contains("rows")) {
-                            // do nothing
-                        } else if (str[0].toLowerCase().contains("cols")) {
-                            // do nothing
-                        } else if (str[0].toLowerCase().contains("nodata")) {
-                            // do nothing
-                        } else {
-                            // read the data
-                            for (i = 0; i < str.length; i++) {
-                                if (StringUtilities.isNumeric(str[i])) {
-                                    z = Double.parseDouble(str[i]);
-                                    if (z != arcNoData) {
-                                        wbr.setValue(row, col, z);
-                                    } else {
-                                        wbr.setValue(row, col, whiteboxNoData);
-                                    }
-                                } else {
-                                    wbr.setValue(row, col, whiteboxNoData);
-                                }
-                                col++;
-                                if (col == cols) {
-                                    col = 0;
-                                    row++;
-                                    progress = (int) (100f * row / (rows - 1));
-                                    updateProgress(progress);
-                                }
-
-                            }
-                        }
-                    }
+                    });
 
                     //Close the input stream
-                    in.close();
-                    br.close();
+                    tokenizer.close();
+
+                    if (!complete) {
+                        wbr.close();
+                        cancelOperation();
+                        return;
+                    }
 
                     wbr.addMetadataEntry("Created by the "
                             + getDescriptiveName() + " tool.");
@@ -25,6 +25,7 @@ import whitebox.geospatialfiles.WhiteboxRasterBase;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
 import whitebox.interfaces.InteropPlugin;
+import whitebox.parallel.Parallel;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -231,15 +232,14 @@ public class ImportGeoTiff implements WhiteboxPlugin, InteropPlugin {
                 GeoTiff gt = new GeoTiff(imageFiles[i]);
                 gt.read();
 
-                int compressionType = gt.getCompressionType();
-                if (compressionType != 1) {
-                    showFeedback("GeoTiff import does not currently support compressed files.");
+                if (!gt.isCompressionSupported()) {
+                    showFeedback("GeoTiff import does not currently support this type of compression.");
                     return;
                 }
 
-                boolean hasNoDataValue = gt.hasNoDataTag();
+                final boolean hasNoDataTag = gt.hasNoDataTag();
                 double nodata; // = -32768.0;
-                if (hasNoDataValue) {
+                if (hasNoDataTag) {
                     nodata = gt.getNoData();
                 } else {
                     nodata = -32768;
@@ -272,25 +272,38 @@ public class ImportGeoTiff implements WhiteboxPlugin, InteropPlugin {
 
                 wbr.setByteOrder(byteOrder.toString());
 
-                double z;
-                int oldProgress = -1;
-                for (int row = 0; row < nRows; row++) {
-                    for (int col = 0; col < nCols; col++) {
-                        z = gt.getValue(row, col);
-                        if (!hasNoDataValue && (z == -32768 || z == -Float.MAX_VALUE)) {
-                            nodata = z;
-                            hasNoDataValue = true;
-                            wbr.setNoDataValue(nodata);
+                // the strips or tiles are decoded on several threads and the
+                // rows are written as they become available.
+                final int numRows = nRows;
+                boolean completed = gt.readRows(new GeoTiff.RowHandler() {
+                    boolean hasNoDataValue = hasNoDataTag;
+                    int oldProgress = -1;
+
+                    @Override
+                    public boolean handleRow(int row, double[] values) {
+                        for (int col = 0; col < values.length; col++) {
+                            double z = values[col];
+                            if (!hasNoDataValue && (z == -32768 || z == -Float.MAX_VALUE)) {
+                                hasNoDataValue = true;
+                                wbr.setNoDataValue(z);
+                            } else if (Double.isNaN(z)) {
+                                values[col] = wbr.getNoDataValue();
+                            }
                         }
-                        //if (z != nodata) {
-                        wbr.setValue(row, col, z);
-                        //}
-                    }
-                    progress = (int) (100f * row / (nRows - 1));
-                    if (progress != oldProgress) {
-                        oldProgress = progress;
-                        updateProgress("Importing GeoTiff file...", progress);
+                        wbr.setRowValues(row, values);
+                        int progress = (int) (100f * row / (numRows - 1));
+                        if (progress != oldProgress) {
+                            oldProgress = progress;
+                            updateProgress("Importing GeoTiff file...", progress);
+                        }
+                        return !cancelOp;
                     }
+                }, Parallel.getPluginProcessors());
+                if (!completed) {
+                    wbr.close();
+                    gt.close();
+                    cancelOperation();
+                    return;
                 }
 
 //                WhiteboxRasterBase.DataScale myDataScale = WhiteboxRasterBase.DataScale.CONTINUOUS;
@@ -16,9 +16,6 @@
  */
 package plugins;
 
-import java.io.DataInputStream;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.util.Date;
 import java.io.FileInputStream;
 import java.io.File;
@@ -28,6 +25,7 @@ import java.io.PrintWriter;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.InteropPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.utilities.NumberTokenizer;
 import whitebox.interfaces.WhiteboxPlugin;
 
 /**
@@ -165,7 +163,7 @@ public class ImportSurferAsciiGrid implements WhiteboxPlugin, InteropPlugin {
         String surferFile = null;
         String whiteboxHeaderFile = null;
         int i = 0;
-        int row, col, rows, cols;
+        int rows, cols;
         String[] imageFiles;
         int numImages = 0;
         int progress = 0;
@@ -176,16 +174,13 @@ public class ImportSurferAsciiGrid implements WhiteboxPlugin, InteropPlugin {
         double south = 0;
         double arcNoData = -9999;
         double whiteboxNoData = -32768d;
-        double z = 0;
-        String delimiter = " ";
 
         String str1 = null;
         FileWriter fw = null;
         BufferedWriter bw = null;
         PrintWriter out = null;
 
-        DataInputStream in = null;
-        BufferedReader br = null;
+        NumberTokenizer tokenizer = null;
 
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
@@ -229,54 +224,38 @@ public class ImportSurferAsciiGrid implements WhiteboxPlugin, InteropPlugin {
                 (new File(whiteboxHeaderFile)).delete();
                 (new File(whiteboxHeaderFile.replace(".dep", ".tas"))).delete();
 
-                FileInputStream fstream = new FileInputStream(surferFile);
                 rows = 0;
                 cols = 0;
 
-                // Get the object of DataInputStream
-                in = new DataInputStream(fstream);
-
-                br = new BufferedReader(new InputStreamReader(in));
+                tokenizer = new NumberTokenizer(new FileInputStream(surferFile));
 
                 if (surferFile != null) {
                     String line;
                     String[] str;
-                    //Read File Line By Line, getting the header data.
-                    i = 1;
-                    while ((line = br.readLine()) != null && i < 5) {
-                        str = line.split(delimiter);
-                        if (str.length <= 1 && i > 1) {
-                            delimiter = "\t";
-                            str = line.split(delimiter);
-                            if (str.length <= 1) {
-                                delimiter = " ";
-                                str = line.split(delimiter);
-                                if (str.length <= 1) {
-                                    delimiter = ",";
-                                    str = line.split(delimiter);
-                                }
-                            }
+                    // Read the five header lines: the ID, the numbers of
+                    // columns and rows, and the ranges of x, y and z.
+                    for (int a = 1; a <= 5; a++) {
+                        line = tokenizer.readLine();
+                        if (line == null) {
+                            break;
                         }
-                        if (i == 1) {
+                        str = line.trim().split("[\\s,]+");
+                        if (a == 1) {
                             if (!(str[0].toLowerCase().equals("dsaa"))) {
                                 showFeedback("Warning: Surfer ASCII GRD ID value "
                                         + "was not located. This file may be "
                                         + "improperly structured.");
                             }
-                        } else if (i == 2) {
+                        } else if (a == 2) {
                             cols = Integer.parseInt(str[0]);
                             rows = Integer.parseInt(str[str.length - 1]);
-                        } else if (i == 3) {
+                        } else if (a == 3) {
                             west = Double.parseDouble(str[0]);
                             east = Double.parseDouble(str[str.length - 1]);
-                        } else if (i == 4) {
+                        } else if (a == 4) {
                             south = Double.parseDouble(str[0]);
                             north = Double.parseDouble(str[str.length - 1]);
-                        } else {
-                            break;
                         }
-                        
-                        i++;
                     }
 
                     // create the whitebox header file.
@@ -324,48 +303,35 @@ public class ImportSurferAsciiGrid implements WhiteboxPlugin, InteropPlugin {
                     // Create the whitebox raster object.
                     WhiteboxRaster wbr = new WhiteboxRaster(whiteboxHeaderFile, "rw");
 
-                    // Read File Line By Line, this time ingesting the data block
-                    // and outputing it to the whitebox raster object.
-                    delimiter = " ";
-                    row = rows - 1;
-                    col = 0;
-                    //int a = 5;
-                    while ((line = br.readLine()) != null) {
-                        //if (a > 4) {
-                            str = line.split(delimiter);
-                            if (str.length <= 1) {
-                                delimiter = "\t";
-                                str = line.split(delimiter);
-                                if (str.length <= 1) {
-                                    delimiter = " ";
-                                    str = line.split(delimiter);
-                                    if (str.length <= 1) {
-                                        delimiter = ",";
-                                        str = line.split(delimiter);
-                                    }
-                                }
-                            }
-
-                            // read the data
-                            for (i = 0; i < str.length; i++) {
-                                if (!str[i].trim().isEmpty()) {
-                                    z = Double.parseDouble(str[i]);
-                                    wbr.setValue(row, col, z);
-
-                                    col++;
-                                    if (col == cols) {
-                                        col = 0;
-                                        row--;
-                                    }
+                    // Parse the data block on a separate thread while the
+                    // rows are written to the whitebox raster object. The
+                    // rows of the data block run from south to north.
+                    final WhiteboxRaster output = wbr;
+                    final int numRows = rows;
+                    final double outputNoData = whiteboxNoData;
+                    boolean complete = tokenizer.readRows(rows, cols, new NumberTokenizer.RowHandler() {
+
+                        @Override
+                        public boolean handleRow(int row, double[] values) {
+                            for (int col = 0; col < values.length; col++) {
+                                if (Double.isNaN(values[col])) {
+                                    values[col] = outputNoData;
                                 }
                             }
-                        //}
-                        //a++;
-                    }
+                            output.setRowValues(numRows - 1 - row, values);
+                            updateProgress((int) (100f * row / (numRows - 1)));
+                            return !cancelOp;
+                        }
+                    });
 
                     //Close the input stream
-                    in.close();
-                    br.close();
+                    tokenizer.close();
+
+                    if (!complete) {
+                        wbr.close();
+                        cancelOperation();
+                        return;
+                    }
 
                     wbr.addMetadataEntry("Created by the "
                     + getDescriptiveName() + " tool.");
@@ -22,9 +22,9 @@ import java.io.FileWriter;
 import java.io.PrintWriter;
 import java.util.Date;
 import java.util.List;
+import whitebox.geospatialfiles.LASPointArrays;
+import whitebox.geospatialfiles.LASPointFilter;
 import whitebox.geospatialfiles.LASReader;
-import whitebox.geospatialfiles.LASReader.PointRecColours;
-import whitebox.geospatialfiles.LASReader.PointRecord;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
@@ -342,8 +342,6 @@ public class LiDAR_IDW_interpolation implements WhiteboxPlugin {
                     int numPointFiles = pointFiles.length;
                     double north, south, east, west;
                     String str1;
-                    PointRecord point;
-                    PointRecColours pointColours;
                     double[] entry;
                     double northing, easting;
                     double noData = -32768;
@@ -358,27 +356,20 @@ public class LiDAR_IDW_interpolation implements WhiteboxPlugin {
 
                     long numPointsInFile = las.getNumPointRecords();
                     // first count how many valid points there are.
+                    LASPointArrays points = new LASPointArrays(LASPointFilter.POINT_BLOCK_SIZE);
+                    LASPointFilter filter = new LASPointFilter(returnNumberToInterpolate,
+                            classValuesToExclude, true, maxAbsScanAngle);
+                    int attributes = filter.getRequiredAttributes();
+                    long start;
+                    int n;
                     numPoints = 0;
-                    for (a = 0; a < numPointsInFile; a++) {
-                        point = las.getPointRecord(a);
-                        if (returnNumberToInterpolate.equals("all points")) {
-                            if (!point.isPointWithheld()
-                                    && !(classValuesToExclude[point.getClassification()])
-                                    && Math.abs(point.getScanAngle()) <= maxAbsScanAngle) {
-                                numPoints++;
-                            }
-                        } else if (returnNumberToInterpolate.equals("first return")) {
-                            if (!point.isPointWithheld()
-                                    && !(classValuesToExclude[point.getClassification()]
-                                    && Math.abs(point.getScanAngle()) <= maxAbsScanAngle)
-                                    && point.getReturnNumber() == 1) {
-                                numPoints++;
-                            }
-                        } else { // if (returnNumberToInterpolate.equals("last return")) {
-                            if (!point.isPointWithheld()
-                                    && !(classValuesToExclude[point.getClassification()])
-                                    && point.getReturnNumber() == point.getNumberOfReturns()
-                                    && Math.abs(point.getScanAngle()) <= maxAbsScanAngle) {
+                    for (start = 0; start < numPointsInFile; start += n) {
+                        n = las.readPoints(start, LASPointFilter.POINT_BLOCK_SIZE, attributes, points);
+                        if (n == 0) {
+                            break;
+                        }
+                        for (a = 0; a < n; a++) {
+                            if (filter.isValidPoint(points, a)) {
                                 numPoints++;
                             }
                         }
@@ -393,117 +384,21 @@ public class LiDAR_IDW_interpolation implements WhiteboxPlugin {
                     KdTree<InterpolationRecord> pointsTree = new KdTree.SqrEuclid<>(2, new Integer(numPoints));
 
                     // read the points in
-                    if (returnNumberToInterpolate.equals("all points")) {
-                        for (a = 0; a < numPointsInFile; a++) {
-                            point = las.getPointRecord(a);
-                            if (!point.isPointWithheld()
-                                    && !(classValuesToExclude[point.getClassification()])
-                                    && Math.abs(point.getScanAngle()) <= maxAbsScanAngle) {
-                                x = point.getX();
-                                y = point.getY();
-                                if (whatToInterpolate.equals("z (elevation)")) {
-                                    z = point.getZ();
-                                } else if (whatToInterpolate.equals("intensity")) {
-                                    z = point.getIntensity();
-                                } else if (whatToInterpolate.equals("classification")) {
-                                    z = point.getClassification();
-                                } else if (whatToInterpolate.equals("scan angle")) {
-                                    z = point.getScanAngle();
-                                } else if (whatToInterpolate.equals("rgb data")) {
-                                    pointColours = las.getPointRecordColours(a);
-                                    z = (double) ((255 << 24) | (pointColours.getBlue()
-                                            << 16) | (pointColours.getGreen() << 8)
-                                            | pointColours.getRed());
-                                }
-
-                                entry = new double[]{y, x};
-                                pointsTree.addPoint(entry, new InterpolationRecord(z, point.getScanAngle()));
-
-                                if (x < minX) {
-                                    minX = x;
-                                }
-                                if (x > maxX) {
-                                    maxX = x;
-                                }
-                                if (y < minY) {
-                                    minY = y;
-                                }
-                                if (y > maxY) {
-                                    maxY = y;
-                                }
-                            }
-//                            progress = (int) (100d * (a + 1) / numPointsInFile);
-//                            if ((progress % 2) == 0) {
-//                                updateProgress("Reading point data:", progress);
-//                            }
+                    int valueType = LASPointFilter.getValueType(whatToInterpolate);
+                    attributes |= LASPointArrays.X | LASPointArrays.Y | LASPointFilter.getValueAttributes(valueType);
+                    for (start = 0; start < numPointsInFile; start += n) {
+                        n = las.readPoints(start, LASPointFilter.POINT_BLOCK_SIZE, attributes, points);
+                        if (n == 0) {
+                            break;
                         }
-                    } else if (returnNumberToInterpolate.equals("first return")) {
-                        for (a = 0; a < numPointsInFile; a++) {
-                            point = las.getPointRecord(a);
-                            if (!point.isPointWithheld()
-                                    && !(classValuesToExclude[point.getClassification()]
-                                    && Math.abs(point.getScanAngle()) <= maxAbsScanAngle)
-                                    && point.getReturnNumber() == 1) {
-                                x = point.getX();
-                                y = point.getY();
-                                if (whatToInterpolate.equals("z (elevation)")) {
-                                    z = point.getZ();
-                                } else if (whatToInterpolate.equals("intensity")) {
-                                    z = point.getIntensity();
-                                } else if (whatToInterpolate.equals("classification")) {
-                                    z = point.getClassification();
-                                } else if (whatToInterpolate.equals("scan angle")) {
-                                    z = point.getScanAngle();
-                                } else if (whatToInterpolate.equals("rgb data")) {
-                                    pointColours = las.getPointRecordColours(a);
-                                    z = (double) ((255 << 24) | (pointColours.getBlue()
-                                            << 16) | (pointColours.getGreen() << 8)
-                                            | pointColours.getRed());
-                                }
+                        for (a = 0; a < n; a++) {
+                            if (filter.isValidPoint(points, a)) {
+                                x = points.getX()[a];
+                                y = points.getY()[a];
+                                z = LASPointFilter.getPointValue(points, a, valueType);
 
                                 entry = new double[]{y, x};
-                                pointsTree.addPoint(entry, new InterpolationRecord(z, point.getScanAngle()));
-
-                                if (x < minX) {
-                                    minX = x;
-                                }
-                                if (x > maxX) {
-                                    maxX = x;
-                                }
-                                if (y < minY) {
-                                    minY = y;
-                                }
-                                if (y > maxY) {
-                                    maxY = y;
-                                }
-                            }
-                        }
-                    } else { // if (returnNumberToInterpolate.equals("last return")) {
-                        for (a = 0; a < numPointsInFile; a++) {
-                            point = las.getPointRecord(a);
-                            if (!point.isPointWithheld()
-                                    && !(classValuesToExclude[point.getClassification()])
-                                    && point.getReturnNumber() == point.getNumberOfReturns()
-                                    && Math.abs(point.getScanAngle()) <= maxAbsScanAngle) {
-                                x = point.getX();
-                                y = point.getY();
-                                if (whatToInterpolate.equals("z (elevation)")) {
-                                    z = point.getZ();
-                                } else if (whatToInterpolate.equals("intensity")) {
-                                    z = point.getIntensity();
-                                } else if (whatToInterpolate.equals("classification")) {
-                                    z = point.getClassification();
-                                } else if (whatToInterpolate.equals("scan angle")) {
-                                    z = point.getScanAngle();
-                                } else if (whatToInterpolate.equals("rgb data")) {
-                                    pointColours = las.getPointRecordColours(a);
-                                    z = (double) ((255 << 24) | (pointColours.getBlue()
-                                            << 16) | (pointColours.getGreen() << 8)
-                                            | pointColours.getRed());
-                                }
-
-                                entry = new double[]{y, x};
-                                pointsTree.addPoint(entry, new InterpolationRecord(z, point.getScanAngle()));
+                                pointsTree.addPoint(entry, new InterpolationRecord(z, points.getScanAngle()[a]));
 
                                 if (x < minX) {
                                     minX = x;
@@ -740,7 +635,7 @@ public class LiDAR_IDW_interpolation implements WhiteboxPlugin {
             myHost.pluginComplete();
         }
     }
-    
+
     private class InterpolationRecord {
         
         double value;
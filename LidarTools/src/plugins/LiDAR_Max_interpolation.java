@@ -22,9 +22,9 @@ import java.io.FileWriter;
 import java.io.PrintWriter;
 import java.util.Date;
 import java.util.List;
+import whitebox.geospatialfiles.LASPointArrays;
+import whitebox.geospatialfiles.LASPointFilter;
 import whitebox.geospatialfiles.LASReader;
-import whitebox.geospatialfiles.LASReader.PointRecColours;
-import whitebox.geospatialfiles.LASReader.PointRecord;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
@@ -284,8 +284,6 @@ public class LiDAR_Max_interpolation implements WhiteboxPlugin {
             int numPointFiles = pointFiles.length;
             long numPointsInFile = 0;
                 
-            PointRecord point;
-            PointRecColours pointColours;
             double[] entry;
             for (int j = 0; j < numPointFiles; j++) {
                 
@@ -296,29 +294,25 @@ public class LiDAR_Max_interpolation implements WhiteboxPlugin {
                 
                 numPointsInFile = las.getNumPointRecords();
                 // first count how many valid points there are.
+                LASPointArrays points = new LASPointArrays(LASPointFilter.POINT_BLOCK_SIZE);
+                LASPointFilter filter = new LASPointFilter(returnNumberToInterpolate,
+                        classValuesToExclude, false, 0);
+                int attributes = filter.getRequiredAttributes();
+                long start;
+                int n;
                 numPoints = 0;
-                for (a = 0; a < numPointsInFile; a++) {
-                    point = las.getPointRecord(a);
-                    if (returnNumberToInterpolate.equals("all points")) {
-                        if (!point.isPointWithheld() && 
-                                !(classValuesToExclude[point.getClassification()])) {
-                            numPoints++;
-                        }
-                    } else if (returnNumberToInterpolate.equals("first return")) {
-                        if (!point.isPointWithheld() && 
-                                !(classValuesToExclude[point.getClassification()]) &&
-                                point.getReturnNumber() == 1) {
-                            numPoints++;
-                        }
-                    } else { // if (returnNumberToInterpolate.equals("last return")) {
-                        if (!point.isPointWithheld() && 
-                                !(classValuesToExclude[point.getClassification()]) &&
-                                point.getReturnNumber() == point.getNumberOfReturns()) {
+                for (start = 0; start < numPointsInFile; start += n) {
+                    n = las.readPoints(start, LASPointFilter.POINT_BLOCK_SIZE, attributes, points);
+                    if (n == 0) {
+                        break;
+                    }
+                    for (a = 0; a < n; a++) {
+                        if (filter.isValidPoint(points, a)) {
                             numPoints++;
                         }
                     }
                 }
-                
+
                 // now read the valid points into the k-dimensional tree.
                 
                 minX = Double.POSITIVE_INFINITY;
@@ -330,116 +324,19 @@ public class LiDAR_Max_interpolation implements WhiteboxPlugin {
             
                 
                 // read the points in
-                if (returnNumberToInterpolate.equals("all points")) {
-                    for (a = 0; a < numPointsInFile; a++) {
-                        point = las.getPointRecord(a);
-                        if (!point.isPointWithheld()
-                                && !(classValuesToExclude[point.getClassification()])) {
-                            x = point.getX();
-                            y = point.getY();
-                            if (whatToInterpolate.equals("z (elevation)")) {
-                                z = point.getZ();
-                            } else if (whatToInterpolate.equals("intensity")) {
-                                z = point.getIntensity();
-                            } else if (whatToInterpolate.equals("classification")) {
-                                z = point.getClassification();
-                            } else if (whatToInterpolate.equals("scan angle")) {
-                                z = point.getScanAngle();
-                            } else if (whatToInterpolate.equals("rgb data")) {
-                                pointColours = las.getPointRecordColours(a);
-                                z = (double)((255 << 24) | (pointColours.getBlue() 
-                                        << 16) | (pointColours.getGreen() << 8) | 
-                                        pointColours.getRed());
-                            }
-                            
-                            entry = new double[]{y, x};
-                            pointsTree.addPoint(entry, z);
-
-                            if (x < minX) {
-                                minX = x;
-                            }
-                            if (x > maxX) {
-                                maxX = x;
-                            }
-                            if (y < minY) {
-                                minY = y;
-                            }
-                            if (y > maxY) {
-                                maxY = y;
-                            }
-                        }
-                        progress = (int) (100d * (a + 1) / numPointsInFile);
-                        if ((progress % 2) == 0) {
-                            updateProgress("Reading point data:", progress);
-                        }
+                int valueType = LASPointFilter.getValueType(whatToInterpolate);
+                attributes |= LASPointArrays.X | LASPointArrays.Y | LASPointFilter.getValueAttributes(valueType);
+                for (start = 0; start < numPointsInFile; start += n) {
+                    n = las.readPoints(start, LASPointFilter.POINT_BLOCK_SIZE, attributes, points);
+                    if (n == 0) {
+                        break;
                     }
-                } else if (returnNumberToInterpolate.equals("first return")) {
-                    for (a = 0; a < numPointsInFile; a++) {
-                        point = las.getPointRecord(a);
-                        if (!point.isPointWithheld()
-                                && !(classValuesToExclude[point.getClassification()]) &&
-                                point.getReturnNumber() == 1) {
-                            x = point.getX();
-                            y = point.getY();
-                            if (whatToInterpolate.equals("z (elevation)")) {
-                                z = point.getZ();
-                            } else if (whatToInterpolate.equals("intensity")) {
-                                z = point.getIntensity();
-                            } else if (whatToInterpolate.equals("classification")) {
-                                z = point.getClassification();
-                            } else if (whatToInterpolate.equals("scan angle")) {
-                                z = point.getScanAngle();
-                            } else if (whatToInterpolate.equals("rgb data")) {
-                                pointColours = las.getPointRecordColours(a);
-                                z = (double)((255 << 24) | (pointColours.getBlue() 
-                                        << 16) | (pointColours.getGreen() << 8) | 
-                                        pointColours.getRed());
-                            }
-                            
-                            entry = new double[]{y, x};
-                            pointsTree.addPoint(entry, z);
+                    for (a = 0; a < n; a++) {
+                        if (filter.isValidPoint(points, a)) {
+                            x = points.getX()[a];
+                            y = points.getY()[a];
+                            z = LASPointFilter.getPointValue(points, a, valueType);
 
-                            if (x < minX) {
-                                minX = x;
-                            }
-                            if (x > maxX) {
-                                maxX = x;
-                            }
-                            if (y < minY) {
-                                minY = y;
-                            }
-                            if (y > maxY) {
-                                maxY = y;
-                            }
-                        }
-                        progress = (int) (100d * (a + 1) / numPointsInFile);
-                        if ((progress % 2) == 0) {
-                            updateProgress("Reading point data:", progress);
-                        }
-                    }
-                } else { // if (returnNumberToInterpolate.equals("last return")) {
-                    for (a = 0; a < numPointsInFile; a++) {
-                        point = las.getPointRecord(a);
-                        if (!point.isPointWithheld()
-                                && !(classValuesToExclude[point.getClassification()]) &&
-                                point.getReturnNumber() == point.getNumberOfReturns()) {
-                            x = point.getX();
-                            y = point.getY();
-                            if (whatToInterpolate.equals("z (elevation)")) {
-                                z = point.getZ();
-                            } else if (whatToInterpolate.equals("intensity")) {
-                                z = point.getIntensity();
-                            } else if (whatToInterpolate.equals("classification")) {
-                                z = point.getClassification();
-                            } else if (whatToInterpolate.equals("scan angle")) {
-                                z = point.getScanAngle();
-                            } else if (whatToInterpolate.equals("rgb data")) {
-                                pointColours = las.getPointRecordColours(a);
-                                z = (double)((255 << 24) | (pointColours.getBlue() 
-                                        << 16) | (pointColours.getGreen() << 8) | 
-                                        pointColours.getRed());
-                            }
-                            
                             entry = new double[]{y, x};
                             pointsTree.addPoint(entry, z);
 
@@ -456,12 +353,11 @@ public class LiDAR_Max_interpolation implements WhiteboxPlugin {
                                 maxY = y;
                             }
                         }
-                        progress = (int) (100d * (a + 1) / numPointsInFile);
-                        if ((progress % 2) == 0) {
-                            updateProgress("Reading point data:", progress);
-                        }
                     }
+                    progress = (int) (100d * (start + n) / numPointsInFile);
+                    updateProgress("Reading point data:", progress);
                 }
+
                 
                 outputHeader = pointFiles[j].replace(".las", suffix + ".dep");
                 
@@ -19,8 +19,9 @@ package plugins;
 import java.util.Date;
 import java.util.List;
 import whitebox.geospatialfiles.WhiteboxRaster;
+import whitebox.geospatialfiles.LASPointArrays;
+import whitebox.geospatialfiles.LASPointFilter;
 import whitebox.geospatialfiles.LASReader;
-import whitebox.geospatialfiles.LASReader.PointRecord;
 import whitebox.interfaces.WhiteboxPluginHost;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.structures.KdTree;
@@ -281,7 +282,6 @@ public class LiDAR_PointDensity implements WhiteboxPlugin {
             long numPointsInFile = 0;
             maxDist = (resolution * 2) * (resolution * 2); // actually squared
             
-            PointRecord point;
             double[] entry;
             for (int j = 0; j < numPointFiles; j++) {
                 
@@ -292,29 +292,25 @@ public class LiDAR_PointDensity implements WhiteboxPlugin {
                 
                 numPointsInFile = las.getNumPointRecords();
                 // first count how many valid points there are.
+                LASPointArrays points = new LASPointArrays(LASPointFilter.POINT_BLOCK_SIZE);
+                LASPointFilter filter = new LASPointFilter(returnNumberToInterpolate,
+                        classValuesToExclude, false, 0);
+                int attributes = filter.getRequiredAttributes();
+                long start;
+                int n;
                 numPoints = 0;
-                for (a = 0; a < las.getNumPointRecords(); a++) {
-                    point = las.getPointRecord(a);
-                    if (returnNumberToInterpolate.equals("all points")) {
-                        if (!point.isPointWithheld() && 
-                                !(classValuesToExclude[point.getClassification()])) {
-                            numPoints++;
-                        }
-                    } else if (returnNumberToInterpolate.equals("first return")) {
-                        if (!point.isPointWithheld() && 
-                                !(classValuesToExclude[point.getClassification()]) &&
-                                point.getReturnNumber() == 1) {
-                            numPoints++;
-                        }
-                    } else { // if (returnNumberToInterpolate.equals("last return")) {
-                        if (!point.isPointWithheld() && 
-                                !(classValuesToExclude[point.getClassification()]) &&
-                                point.getReturnNumber() == point.getNumberOfReturns()) {
+                for (start = 0; start < numPointsInFile; start += n) {
+                    n = las.readPoints(start, LASPointFilter.POINT_BLOCK_SIZE, attributes, points);
+                    if (n == 0) {
+                        break;
+                    }
+                    for (a = 0; a < n; a++) {
+                        if (filter.isValidPoint(points, a)) {
                             numPoints++;
                         }
                     }
                 }
-                
+
                 // now read the valid points into the k-dimensional tree.
                 
                 minX = Double.POSITIVE_INFINITY;
@@ -326,77 +322,18 @@ public class LiDAR_PointDensity implements WhiteboxPlugin {
             
                 
                 // read the points in
-                if (returnNumberToInterpolate.equals("all points")) {
-                    for (a = 0; a < numPointsInFile; a++) {
-                        point = las.getPointRecord(a);
-                        if (!point.isPointWithheld()
-                                && !(classValuesToExclude[point.getClassification()])) {
-                            x = point.getX();
-                            y = point.getY();
-                            z = point.getZ();
-                            
-                            entry = new double[]{y, x};
-                            pointsTree.addPoint(entry, z);
-
-                            if (x < minX) {
-                                minX = x;
-                            }
-                            if (x > maxX) {
-                                maxX = x;
-                            }
-                            if (y < minY) {
-                                minY = y;
-                            }
-                            if (y > maxY) {
-                                maxY = y;
-                            }
-                        }
-                        progress = (int) (100d * (a + 1) / numPointsInFile);
-                        if ((progress % 2) == 0) {
-                            updateProgress("Reading point data:", progress);
-                        }
+                attributes |= LASPointArrays.X | LASPointArrays.Y | LASPointArrays.Z;
+                for (start = 0; start < numPointsInFile; start += n) {
+                    n = las.readPoints(start, LASPointFilter.POINT_BLOCK_SIZE, attributes, points);
+                    if (n == 0) {
+                        break;
                     }
-                } else if (returnNumberToInterpolate.equals("first return")) {
-                    for (a = 0; a < numPointsInFile; a++) {
-                        point = las.getPointRecord(a);
-                        if (!point.isPointWithheld()
-                                && !(classValuesToExclude[point.getClassification()]) &&
-                                point.getReturnNumber() == 1) {
-                            x = point.getX();
-                            y = point.getY();
-                            z = point.getZ();
-                            
-                            entry = new double[]{y, x};
-                            pointsTree.addPoint(entry, z);
+                    for (a = 0; a < n; a++) {
+                        if (filter.isValidPoint(points, a)) {
+                            x = points.getX()[a];
+                            y = points.getY()[a];
+                            z = points.getZ()[a];
 
-                            if (x < minX) {
-                                minX = x;
-                            }
-                            if (x > maxX) {
-                                maxX = x;
-                            }
-                            if (y < minY) {
-                                minY = y;
-                            }
-                            if (y > maxY) {
-                                maxY = y;
-                            }
-                        }
-                        progress = (int) (100d * (a + 1) / numPointsInFile);
-                        if ((progress % 2) == 0) {
-                            updateProgress("Reading point data:", progress);
-                        }
-                    }
-                } else { // if (returnNumberToInterpolate.equals("last return")) {
-                    for (a = 0; a < numPointsInFile; a++) {
-                        point = las.getPointRecord(a);
-                        if (!point.isPointWithheld()
-                                && !(classValuesToExclude[point.getClassification()]) &&
-                                point.getReturnNumber() == point.getNumberOfReturns()) {
-                            x = point.getX();
-                            y = point.getY();
-                            z = point.getZ();
-                            
                             entry = new double[]{y, x};
                             pointsTree.addPoint(entry, z);
 
@@ -413,12 +350,11 @@ public class LiDAR_PointDensity implements WhiteboxPlugin {
                                 maxY = y;
                             }
                         }
-                        progress = (int) (100d * (a + 1) / numPointsInFile);
-                        if ((progress % 2) == 0) {
-                            updateProgress("Reading point data:", progress);
-                        }
                     }
+                    progress = (int) (100d * (start + n) / numPointsInFile);
+                    updateProgress("Reading point data:", progress);
                 }
+
                 
                 outputHeader = pointFiles[j].replace(".las", suffix + ".dep");
                 
@@ -16,7 +16,6 @@
  */
 package plugins;
 
-import java.io.File;
 import java.util.Date;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
@@ -25,6 +24,7 @@ import whitebox.interfaces.NotifyingThread;
 import whitebox.interfaces.ThreadListener;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.LocalOperation;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -175,6 +175,14 @@ public class Add implements WhiteboxPlugin, NotifyingThread {
         showFeedback("Operation cancelled.");
         updateProgress("Progress: ", 0);
     }
+
+    private final LocalOperation.ProgressMonitor progressMonitor = new LocalOperation.ProgressMonitor() {
+        @Override
+        public boolean updateProgress(int progress) {
+            Add.this.updateProgress(progress);
+            return !cancelOp;
+        }
+    };
     
     private boolean amIActive = false;
    
@@ -227,10 +235,6 @@ public class Add implements WhiteboxPlugin, NotifyingThread {
         String inputHeader1 = null;
         String inputHeader2 = null;
         String outputHeader = null;
-        boolean image1Bool = false;
-        boolean image2Bool = false;
-        double constant1 = 0;
-        double constant2 = 0;
     	
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
@@ -240,24 +244,8 @@ public class Add implements WhiteboxPlugin, NotifyingThread {
         for (int i = 0; i < args.length; i++) {
             if (i == 0) {
                 inputHeader1 = args[i];
-                File file = new File(inputHeader1);
-                image1Bool = file.exists();
-                if (image1Bool) {
-                    constant1 = -1;
-                } else {
-                    constant1 = Double.parseDouble(file.getName().replace(".dep", ""));
-                }
-                file = null;
             } else if (i == 1) {
                 inputHeader2 = args[i];
-                File file = new File(inputHeader2);
-                image2Bool = file.exists();
-                if (image2Bool) {
-                    constant2 = -1;
-                } else {
-                    constant2 = Double.parseDouble(file.getName().replace(".dep", ""));
-                }
-                file = null;
             } else if (i == 2) {
                 outputHeader = args[i];
             }
@@ -270,138 +258,44 @@ public class Add implements WhiteboxPlugin, NotifyingThread {
         }
 
         try {
-            int row, col;
-            double z1, z2;
-            float progress = 0;
-            int numCells = 0;
-            double[] data1;
-            double[] data2;
-            double[] outputData;
-            
-            if (image1Bool && image2Bool) {
-                WhiteboxRaster inputFile1 = new WhiteboxRaster(inputHeader1, "r");
-                WhiteboxRaster inputFile2 = new WhiteboxRaster(inputHeader2, "r");
-
-                int rows = inputFile1.getNumberRows();
-                int cols = inputFile1.getNumberColumns();
-                double noData1 = inputFile1.getNoDataValue();
-                double noData2 = inputFile2.getNoDataValue();
-
-                // make sure that the input images have the same dimensions.
-                if ((inputFile2.getNumberRows() != rows) || (inputFile2.getNumberColumns() != cols)) {
-                    showFeedback("The input images must have the same dimensions and coordinates. Operation cancelled.");
-                    return;
-                }
-
-                WhiteboxRaster outputFile = new WhiteboxRaster(outputHeader, "rw", 
-                        inputHeader1, WhiteboxRaster.DataType.FLOAT, noData1);
-                outputFile.setPreferredPalette(inputFile1.getPreferredPalette());
-                
-                for (row = 0; row < rows; row++) {
-                    data1 = inputFile1.getRowValues(row);
-                    data2 = inputFile2.getRowValues(row);
-                    for (col = 0; col < cols; col++) {
-                        z1 = data1[col];
-                        z2 = data2[col];
-                        if ((z1 != noData1) && (z2 != noData2)) {
-                            outputFile.setValue(row, col, z1 + z2);
-                        }
-                    }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                    progress = (float) (100f * row / (rows - 1));
-                    updateProgress((int) progress);
-                }
-                
-                outputFile.addMetadataEntry("Created by the " + 
-                        getDescriptiveName() + " tool.");
-                outputFile.addMetadataEntry("Created on " + new Date());
-                
-                // close all of the open Whitebox rasters.
-                inputFile1.close();
-                inputFile2.close();
-                outputFile.close();
-                outputFile = null;
-            } else if (image1Bool) {
-                WhiteboxRaster inputFile1 = new WhiteboxRaster(inputHeader1, "r");
-                
-                int rows = inputFile1.getNumberRows();
-                int cols = inputFile1.getNumberColumns();
-                double noData = inputFile1.getNoDataValue();
+            LocalOperation operation = new LocalOperation(inputHeader1, inputHeader2);
+            if (operation.getNumberOfImages() == 0) {
+                showFeedback("At least one of the inputs must be a raster image.");
+                return;
+            }
+            // make sure that the input images have the same dimensions.
+            if (!operation.haveSameDimensions()) {
+                showFeedback("The input images must have the same dimensions and coordinates. Operation cancelled.");
+                operation.close();
+                return;
+            }
 
-                WhiteboxRaster outputFile = new WhiteboxRaster(outputHeader, "rw", 
-                        inputHeader1, WhiteboxRaster.DataType.FLOAT, noData);
-                outputFile.setPreferredPalette(inputFile1.getPreferredPalette());
+            WhiteboxRaster outputFile = operation.createOutput(outputHeader,
+                    WhiteboxRaster.DataType.FLOAT);
 
-                for (row = 0; row < rows; row++) {
-                    data1 = inputFile1.getRowValues(row);
-                    for (col = 0; col < cols; col++) {
-                        z1 = data1[col];
-                        if (z1 != noData) {
-                            outputFile.setValue(row, col, z1 + constant2);
-                        }
-                    }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                    progress = (float) (100f * row / (rows - 1));
-                    updateProgress((int) progress);
+            boolean completed = operation.run(new LocalOperation.BinaryKernel() {
+                @Override
+                public double apply(double z1, double z2) {
+                    return z1 + z2;
                 }
-                
-                outputFile.addMetadataEntry("Created by the " + 
-                        getDescriptiveName() + " tool.");
-                outputFile.addMetadataEntry("Created on " + new Date());
-                
-                
-                // close all of the open Whitebox rasters.
-                inputFile1.close();
-                outputFile.close();
-                outputFile = null;
-            } else if (image2Bool) {
-                WhiteboxRaster inputFile2 = new WhiteboxRaster(inputHeader2, "r");
+            }, progressMonitor);
 
-                int rows = inputFile2.getNumberRows();
-                int cols = inputFile2.getNumberColumns();
-                double noData = inputFile2.getNoDataValue();
+            outputFile.addMetadataEntry("Created by the "
+                    + getDescriptiveName() + " tool.");
+            outputFile.addMetadataEntry("Created on " + new Date());
 
-                WhiteboxRaster outputFile = new WhiteboxRaster(outputHeader, "rw", 
-                        inputHeader2, WhiteboxRaster.DataType.FLOAT, noData);
-                outputFile.setPreferredPalette(inputFile2.getPreferredPalette());
+            // close all of the open Whitebox rasters.
+            operation.close();
+            outputFile.close();
 
-                for (row = 0; row < rows; row++) {
-                    data2 = inputFile2.getRowValues(row);
-                    for (col = 0; col < cols; col++) {
-                        z2 = data2[col];
-                        if (z2 != noData) {
-                            outputFile.setValue(row, col, constant1 + z2);
-                        }
-                    }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                    progress = (float) (100f * row / (rows - 1));
-                    updateProgress((int) progress);
-                }
-                
-                outputFile.addMetadataEntry("Created by the " + 
-                        getDescriptiveName() + " tool.");
-                outputFile.addMetadataEntry("Created on " + new Date());
-                
-                // close all of the open Whitebox rasters.
-                inputFile2.close();
-                outputFile.close();
-                outputFile = null;
-            } else {
-                showFeedback("At least one of the inputs must be a raster image.");
+            if (!completed) {
+                cancelOperation();
+                return;
             }
-            
+
             // returning a header file string displays the image.
             returnData(outputHeader);
-            
+
         } catch (OutOfMemoryError oe) {
             myHost.showFeedback("An out-of-memory error has occurred during operation.");
         } catch (Exception e) {
@@ -20,6 +20,7 @@ import java.util.Date;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.LocalOperation;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -170,6 +171,14 @@ public class ArcSin implements WhiteboxPlugin {
         showFeedback("Operation cancelled.");
         updateProgress("Progress: ", 0);
     }
+
+    private final LocalOperation.ProgressMonitor progressMonitor = new LocalOperation.ProgressMonitor() {
+        @Override
+        public boolean updateProgress(int progress) {
+            ArcSin.this.updateProgress(progress);
+            return !cancelOp;
+        }
+    };
     
     private boolean amIActive = false;
    
@@ -211,46 +220,33 @@ public class ArcSin implements WhiteboxPlugin {
         }
 
         try {
-            int row, col;
-            double z;
-            float progress = 0;
-            double[] data;
-            
-            WhiteboxRaster inputFile = new WhiteboxRaster(inputHeader, "r");
-
-            int rows = inputFile.getNumberRows();
-            int cols = inputFile.getNumberColumns();
-            
-            double noData = inputFile.getNoDataValue();
-
-            WhiteboxRaster outputFile = new WhiteboxRaster(outputHeader, "rw", inputHeader, WhiteboxRaster.DataType.FLOAT, noData);
-            outputFile.setPreferredPalette(inputFile.getPreferredPalette());
-
-            for (row = 0; row < rows; row++) {
-                data = inputFile.getRowValues(row);
-                for (col = 0; col < cols; col++) {
-                    z = data[col];
-                    if (z != noData) {
-                        outputFile.setValue(row, col, Math.asin(z));
-                    }
+            LocalOperation operation = new LocalOperation(inputHeader);
+            WhiteboxRaster outputFile = operation.createOutput(outputHeader,
+                    WhiteboxRaster.DataType.FLOAT);
 
+            boolean completed = operation.run(new LocalOperation.UnaryKernel() {
+                @Override
+                public double apply(double z) {
+                    return Math.asin(z);
                 }
-                if (cancelOp) { cancelOperation(); return; }
-                progress = (float) (100f * row / (rows - 1));
-                updateProgress((int) progress);
-            }
+            }, progressMonitor);
 
             outputFile.addMetadataEntry("Created by the "
                     + getDescriptiveName() + " tool.");
             outputFile.addMetadataEntry("Created on " + new Date());
 
             // close all of the open Whitebox rasters.
-            inputFile.close();
+            operation.close();
             outputFile.close();
 
+            if (!completed) {
+                cancelOperation();
+                return;
+            }
+
             // returning a header file string displays the image.
             returnData(outputHeader);
-            
+
         } catch (OutOfMemoryError oe) {
             myHost.showFeedback("An out-of-memory error has occurred during operation.");
         } catch (Exception e) {
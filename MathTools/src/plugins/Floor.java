@@ -21,6 +21,7 @@ import java.util.Date;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.LocalOperation;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -169,6 +170,14 @@ public class Floor implements WhiteboxPlugin {
         showFeedback("Operation cancelled.");
         updateProgress("Progress: ", 0);
     }
+
+    private final LocalOperation.ProgressMonitor progressMonitor = new LocalOperation.ProgressMonitor() {
+        @Override
+        public boolean updateProgress(int progress) {
+            Floor.this.updateProgress(progress);
+            return !cancelOp;
+        }
+    };
     private boolean amIActive = false;
 
     /**
@@ -211,45 +220,30 @@ public class Floor implements WhiteboxPlugin {
         }
 
         try {
-            int row, col;
-            double z1;
-            float progress = 0;
-            double[] data1;
-
-            WhiteboxRaster inputFile1 = new WhiteboxRaster(inputHeader1, "r");
-
-            int rows = inputFile1.getNumberRows();
-            int cols = inputFile1.getNumberColumns();
-            double noData = inputFile1.getNoDataValue();
-
-            WhiteboxRaster outputFile = new WhiteboxRaster(outputHeader, "rw", 
-                    inputHeader1, WhiteboxRaster.DataType.FLOAT, noData);
-            outputFile.setPreferredPalette(inputFile1.getPreferredPalette());
+            LocalOperation operation = new LocalOperation(inputHeader1);
+            WhiteboxRaster outputFile = operation.createOutput(outputHeader,
+                    WhiteboxRaster.DataType.FLOAT);
 
-            for (row = 0; row < rows; row++) {
-                data1 = inputFile1.getRowValues(row);
-                for (col = 0; col < cols; col++) {
-                    z1 = data1[col];
-                    if (z1 != noData) {
-                        outputFile.setValue(row, col, (double)Math.floor(z1));
-                    }
+            boolean completed = operation.run(new LocalOperation.UnaryKernel() {
+                @Override
+                public double apply(double z) {
+                    return Math.floor(z);
                 }
-                if (cancelOp) {
-                    cancelOperation();
-                    return;
-                }
-                progress = (float) (100f * row / (rows - 1));
-                updateProgress((int) progress);
-            }
+            }, progressMonitor);
 
             outputFile.addMetadataEntry("Created by the "
                     + getDescriptiveName() + " tool.");
             outputFile.addMetadataEntry("Created on " + new Date());
 
             // close all of the open Whitebox rasters.
-            inputFile1.close();
+            operation.close();
             outputFile.close();
 
+            if (!completed) {
+                cancelOperation();
+                return;
+            }
+
             // returning a header file string displays the image.
             returnData(outputHeader);
 
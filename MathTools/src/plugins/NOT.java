@@ -16,11 +16,11 @@
  */
 package plugins;
 
-import java.io.File;
 import java.util.Date;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.LocalOperation;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -169,6 +169,14 @@ public class NOT implements WhiteboxPlugin {
         showFeedback("Operation cancelled.");
         updateProgress("Progress: ", 0);
     }
+
+    private final LocalOperation.ProgressMonitor progressMonitor = new LocalOperation.ProgressMonitor() {
+        @Override
+        public boolean updateProgress(int progress) {
+            NOT.this.updateProgress(progress);
+            return !cancelOp;
+        }
+    };
     private boolean amIActive = false;
 
     /**
@@ -189,21 +197,17 @@ public class NOT implements WhiteboxPlugin {
         String inputHeader1 = null;
         String inputHeader2 = null;
         String outputHeader = null;
-
+    	
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
             return;
         }
-
+        
         for (int i = 0; i < args.length; i++) {
             if (i == 0) {
                 inputHeader1 = args[i];
-                File file = new File(inputHeader1);
-                file = null;
             } else if (i == 1) {
                 inputHeader2 = args[i];
-                File file = new File(inputHeader2);
-                file = null;
             } else if (i == 2) {
                 outputHeader = args[i];
             }
@@ -216,59 +220,42 @@ public class NOT implements WhiteboxPlugin {
         }
 
         try {
-            int row, col;
-            double z1, z2;
-            float progress = 0;
-            double[] data1;
-            double[] data2;
-
-            WhiteboxRaster inputFile1 = new WhiteboxRaster(inputHeader1, "r");
-            WhiteboxRaster inputFile2 = new WhiteboxRaster(inputHeader2, "r");
-
-            int rows = inputFile1.getNumberRows();
-            int cols = inputFile1.getNumberColumns();
-            double noData = inputFile1.getNoDataValue();
-
+            LocalOperation operation = new LocalOperation(inputHeader1, inputHeader2);
+            if (operation.getNumberOfImages() == 0) {
+                showFeedback("At least one of the inputs must be a raster image.");
+                return;
+            }
             // make sure that the input images have the same dimensions.
-            if ((inputFile2.getNumberRows() != rows) || (inputFile2.getNumberColumns() != cols)) {
+            if (!operation.haveSameDimensions()) {
                 showFeedback("The input images must have the same dimensions and coordinates. Operation cancelled.");
+                operation.close();
                 return;
             }
 
-            WhiteboxRaster outputFile = new WhiteboxRaster(outputHeader, "rw", 
-                    inputHeader1, WhiteboxRaster.DataType.INTEGER, noData);
+            WhiteboxRaster outputFile = operation.createOutput(outputHeader,
+                    WhiteboxRaster.DataType.INTEGER);
             outputFile.setPreferredPalette("black_white.pal");
-            for (row = 0; row < rows; row++) {
-                data1 = inputFile1.getRowValues(row);
-                data2 = inputFile2.getRowValues(row);
-                for (col = 0; col < cols; col++) {
-                    z1 = data1[col];
-                    z2 = data2[col];
-                    if ((z1 != noData) && (z2 != noData)) {
-                        if (z1 != 0 && z2 == 0) {
-                            outputFile.setValue(row, col, 1);
-                        } else {
-                            outputFile.setValue(row, col, 0);
-                        }
-                    }
-                }
-                if (cancelOp) {
-                    cancelOperation();
-                    return;
+
+            boolean completed = operation.run(new LocalOperation.BinaryKernel() {
+                @Override
+                public double apply(double z1, double z2) {
+                    return (z1 != 0 && z2 == 0) ? 1 : 0;
                 }
-                progress = (float) (100f * row / (rows - 1));
-                updateProgress((int) progress);
-            }
+            }, progressMonitor);
 
             outputFile.addMetadataEntry("Created by the "
                     + getDescriptiveName() + " tool.");
             outputFile.addMetadataEntry("Created on " + new Date());
 
             // close all of the open Whitebox rasters.
-            inputFile1.close();
-            inputFile2.close();
+            operation.close();
             outputFile.close();
 
+            if (!completed) {
+                cancelOperation();
+                return;
+            }
+
             // returning a header file string displays the image.
             returnData(outputHeader);
 
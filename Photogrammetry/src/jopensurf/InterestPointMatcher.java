@@ -16,73 +16,157 @@
  */
 package jopensurf;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import whitebox.structures.KdTree;
 
 /**
+ * Matches the interest points of one image to those of another. The
+ * descriptors of each image are held in 64-dimensional kd-trees, one for
+ * each sign of the Laplacian, which are searched approximately with a
+ * best-bin-first search. A point is matched to its nearest neighbour in the
+ * other image if that neighbour is distinctly nearer than the second nearest
+ * one (Lowe's ratio test) and if the point is in turn the nearest neighbour
+ * of its match.
  *
  * @author johnlindsay
  */
-public class InterestPointMatcher implements Callable<InterestPointPair> {
+public class InterestPointMatcher {
 
-    private SURFInterestPoint mPoint;
     private List<SURFInterestPoint> mPoints;
     private List<SURFInterestPoint> mComparisonPoints;
     private double mMatchThreshold;
+    private int mMaxLeaves = 32;
+    private Map<Integer, KdTree<SURFInterestPoint>> mPointTrees;
+    private Map<Integer, KdTree<SURFInterestPoint>> mComparisonTrees;
 
-    public InterestPointMatcher(int pointNum, List<SURFInterestPoint> points,
+    public InterestPointMatcher(List<SURFInterestPoint> points,
             List<SURFInterestPoint> comparisonPoints,
             double matchThreshold) {
-        mPoint = points.get(pointNum);
         mPoints = points;
         mComparisonPoints = comparisonPoints;
         mMatchThreshold = matchThreshold;
     }
 
-    @Override
-    public InterestPointPair call() throws Exception {
-        try {
-            double smallestDistance = Float.MAX_VALUE;
-            double nextSmallestDistance = Float.MAX_VALUE;
-            SURFInterestPoint possibleMatch = null;
-            int lap = mPoint.getLaplacian();
-            for (SURFInterestPoint b : mComparisonPoints) {
-                if (b.getLaplacian() == lap) {
-                    double distance = mPoint.getDistance(b);
-                    if (distance < smallestDistance) {
-                        nextSmallestDistance = smallestDistance;
-                        smallestDistance = distance;
-                        possibleMatch = b;
-                    } else if (distance < nextSmallestDistance) {
-                        nextSmallestDistance = distance;
-                    }
-                }
-            }
+    /**
+     * Sets the largest number of kd-tree leaves that are searched for the
+     * neighbours of each point. More leaves make the matching closer to an
+     * exact search but slower.
+     */
+    public void setMaxLeaves(int maxLeaves) {
+        mMaxLeaves = Math.max(1, maxLeaves);
+    }
+
+    /**
+     * Finds the matching points, searching for the matches of different
+     * points on several threads.
+     *
+     * @param numThreads The number of threads.
+     * @return The pairs of matching points.
+     */
+    public List<InterestPointPair> getMatches(int numThreads)
+            throws InterruptedException, ExecutionException {
+        mPointTrees = buildTrees(mPoints);
+        mComparisonTrees = buildTrees(mComparisonPoints);
 
-            // If match has a d1:d2 ratio < mMatchThreshold points are a match
-            if (smallestDistance / nextSmallestDistance <= mMatchThreshold) {
-                // is it symmetrical?
-                double smallestDistanceSymm = Float.MAX_VALUE;
-                SURFInterestPoint possibleMatchSymm = null;
-                for (SURFInterestPoint b : mPoints) {
-                    if (b.getLaplacian() == lap) {
-                        double distance = possibleMatch.getDistance(b);
-                        if (distance < smallestDistanceSymm) {
-                            smallestDistanceSymm = distance;
-                            possibleMatchSymm = b;
+        int numPoints = mPoints.size();
+        int numTasks = Math.min(numPoints, numThreads * 4);
+        List<Callable<List<InterestPointPair>>> tasks = new ArrayList<>();
+        for (int t = 0; t < numTasks; t++) {
+            final int start = (int) ((long) numPoints * t / numTasks);
+            final int end = (int) ((long) numPoints * (t + 1) / numTasks);
+            tasks.add(new Callable<List<InterestPointPair>>() {
+                @Override
+                public List<InterestPointPair> call() {
+                    List<InterestPointPair> pairs = new ArrayList<>();
+                    for (int i = start; i < end; i++) {
+                        InterestPointPair pair = match(mPoints.get(i));
+                        if (pair != null) {
+                            pairs.add(pair);
                         }
                     }
+                    return pairs;
                 }
-                if (possibleMatchSymm.isEquivalentTo(mPoint)) {
-                    // you have a point with a unambiguously matched point in the 
-                    // other image for which the nearest point in the first image 
-                    // is the point of interest.
-                    return new InterestPointPair(mPoint, possibleMatch, smallestDistance);
-                }
+            });
+        }
+
+        List<InterestPointPair> matches = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+        try {
+            for (Future<List<InterestPointPair>> future : executor.invokeAll(tasks)) {
+                matches.addAll(future.get());
             }
+        } finally {
+            executor.shutdown();
+        }
+        return matches;
+    }
+
+    private InterestPointPair match(SURFInterestPoint point) {
+        KdTree<SURFInterestPoint> comparisonTree = mComparisonTrees.get(point.getLaplacian());
+        if (comparisonTree == null) {
             return null;
-        } catch (Exception e) {
+        }
+
+        // the trees hold squared distances
+        double smallestDistance = Float.MAX_VALUE;
+        double nextSmallestDistance = Float.MAX_VALUE;
+        SURFInterestPoint possibleMatch = null;
+        for (KdTree.Entry<SURFInterestPoint> entry
+                : comparisonTree.nearestNeighborApproximate(toLocation(point), 2, mMaxLeaves)) {
+            double distance = Math.sqrt(entry.distance);
+            if (distance < smallestDistance) {
+                nextSmallestDistance = smallestDistance;
+                smallestDistance = distance;
+                possibleMatch = entry.value;
+            } else if (distance < nextSmallestDistance) {
+                nextSmallestDistance = distance;
+            }
+        }
+
+        // If match has a d1:d2 ratio < mMatchThreshold points are a match
+        if (possibleMatch == null || smallestDistance / nextSmallestDistance > mMatchThreshold) {
             return null;
         }
+
+        // is it symmetrical?
+        List<KdTree.Entry<SURFInterestPoint>> symmetric = mPointTrees.get(point.getLaplacian())
+                .nearestNeighborApproximate(toLocation(possibleMatch), 1, mMaxLeaves);
+        if (!symmetric.isEmpty() && symmetric.get(0).value.isEquivalentTo(point)) {
+            // you have a point with a unambiguously matched point in the
+            // other image for which the nearest point in the first image
+            // is the point of interest.
+            return new InterestPointPair(point, possibleMatch, smallestDistance);
+        }
+        return null;
+    }
+
+    private static Map<Integer, KdTree<SURFInterestPoint>> buildTrees(List<SURFInterestPoint> points) {
+        Map<Integer, KdTree<SURFInterestPoint>> trees = new HashMap<>();
+        for (SURFInterestPoint point : points) {
+            KdTree<SURFInterestPoint> tree = trees.get(point.getLaplacian());
+            if (tree == null) {
+                tree = new KdTree.SqrEuclid<>(point.getDescriptor().length, null);
+                trees.put(point.getLaplacian(), tree);
+            }
+            tree.addPoint(point.getDescriptor(), point);
+        }
+        return trees;
+    }
+
+    private static double[] toLocation(SURFInterestPoint point) {
+        float[] descriptor = point.getDescriptor();
+        double[] location = new double[descriptor.length];
+        for (int i = 0; i < descriptor.length; i++) {
+            location[i] = descriptor[i];
+        }
+        return location;
     }
 }
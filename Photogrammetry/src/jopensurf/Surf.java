@@ -46,11 +46,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import javax.imageio.ImageIO;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.parallel.*;
@@ -377,49 +373,20 @@ public class Surf implements Serializable {
 
         final Map<SURFInterestPoint, SURFInterestPoint> matchingPoints = new HashMap<>((int) (myPoints.size() * 0.1));
 
-        /* I've parallelized the point matching. The simple linear solution was
-         * far too slow. I tried a kd tree but it also yielded poor performance 
-         * due to its high dimensionality (64). There are more performant 
-         * approximate solutions, but this is the best compromise for an exact
-         * solution.
+        /* The descriptors are searched with a best-bin-first kd-tree. An exact
+         * kd-tree search performs poorly due to the high dimensionality (64),
+         * since it ends up visiting most of the tree, but the approximate
+         * search only visits the nearest few leaves. The matching is
+         * parallelized over the points.
          */
-
-        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-        ArrayList<Callable<InterestPointPair>> tasks = new ArrayList<>();
-
-//        for (SURFInterestPoint a : myPoints) {
-//            tasks.add(new InterestPointMatcher(a, otherPoints, matchThreshold));
-//        }
-
-        for (int i = 0; i < myPoints.size(); i++) {
-            tasks.add(new InterestPointMatcher(i, myPoints, otherPoints, matchThreshold));
-        }
-
-        //ArrayList<InterestPointPair> possibleMatches = new ArrayList<>();
-
+        InterestPointMatcher matcher = new InterestPointMatcher(myPoints, otherPoints, matchThreshold);
         try {
-            List<Future<InterestPointPair>> futures = executor.invokeAll(tasks);
-            for (Future<InterestPointPair> fut : futures) {
-                InterestPointPair pair = fut.get();
-                if (pair != null) {
-                    matchingPoints.put(pair.getPoint1(), pair.getPoint2());
-                    //possibleMatches.add(pair);
-                }
+            for (InterestPointPair pair : matcher.getMatches(Runtime.getRuntime().availableProcessors())) {
+                matchingPoints.put(pair.getPoint1(), pair.getPoint2());
             }
         } catch (InterruptedException | ExecutionException e) {
             System.out.println(e.getMessage());
-        } finally {
-            executor.shutdown();
         }
-//        
-//        Collections.sort(possibleMatches);
-//        
-//        int maxReturnNumber = (possibleMatches.size() < 100) ? possibleMatches.size() : 100;
-//        for (int i = 0; i < maxReturnNumber; i++) {
-//            InterestPointPair pair = possibleMatches.get(i);
-//            matchingPoints.put(pair.getPoint1(), pair.getPoint2());
-//        }
 
         return matchingPoints;
     }
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photogrammetry;
+
+import java.util.Random;
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.SingularValueDecomposition;
+
+/**
+ * Estimates the fundamental matrix of a pair of images from tie points that
+ * include outliers, using RANSAC. Each iteration fits the normalized
+ * eight-point algorithm to a random sample of eight tie points and counts the
+ * tie points whose Sampson distance from the model is within a threshold. The
+ * number of iterations adapts to the proportion of inliers found so far and
+ * the model is finally refitted to all of the inliers of the best sample.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public class FundamentalMatrixRansac {
+
+    private static final int SAMPLE_SIZE = 8;
+    private final double[][] leftPoints;
+    private final double[][] rightPoints;
+    private final int numPoints;
+    private double threshold = 1.0;
+    private double confidence = 0.99;
+    private int maxIterations = 5000;
+    private Random random = new Random();
+    private RealMatrix fundamentalMatrix;
+
+    /**
+     * Constructor.
+     *
+     * @param leftPoints The tie points of the left image, as a 3 x n array of
+     * homogeneous coordinates.
+     * @param rightPoints The matching tie points of the right image.
+     */
+    public FundamentalMatrixRansac(double[][] leftPoints, double[][] rightPoints) {
+        if (leftPoints.length != 3 || rightPoints.length != 3
+                || leftPoints[0].length != rightPoints[0].length) {
+            throw new IllegalArgumentException("The tie points must be 3 x n arrays of equal size.");
+        }
+        if (leftPoints[0].length < SAMPLE_SIZE) {
+            throw new IllegalArgumentException("At least " + SAMPLE_SIZE + " tie points are required.");
+        }
+        this.leftPoints = leftPoints;
+        this.rightPoints = rightPoints;
+        this.numPoints = leftPoints[0].length;
+    }
+
+    /**
+     * Sets the largest Sampson distance, in pixels, of an inlier.
+     */
+    public void setThreshold(double threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Sets the probability with which at least one sample is expected to be
+     * free of outliers when the iterations stop.
+     */
+    public void setConfidence(double confidence) {
+        this.confidence = confidence;
+    }
+
+    public void setMaxIterations(int maxIterations) {
+        this.maxIterations = maxIterations;
+    }
+
+    /**
+     * Sets the seed of the random sampling, making the result repeatable.
+     */
+    public void setSeed(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * Returns the fundamental matrix found by the last call to findInliers,
+     * such that x2^T F x1 = 0 for a left point x1 and its matching right
+     * point x2.
+     */
+    public RealMatrix getFundamentalMatrix() {
+        return fundamentalMatrix;
+    }
+
+    /**
+     * Finds the tie points that agree with a common fundamental matrix.
+     *
+     * @return Whether each tie point is an inlier.
+     */
+    public boolean[] findInliers() {
+        // Hartley normalization makes the eight-point algorithm well conditioned
+        double[][] left = Normalize2DHomogeneousPoints.normalize(leftPoints);
+        RealMatrix Tl = MatrixUtils.createRealMatrix(Normalize2DHomogeneousPoints.T);
+        double[][] right = Normalize2DHomogeneousPoints.normalize(rightPoints);
+        RealMatrix Tr = MatrixUtils.createRealMatrix(Normalize2DHomogeneousPoints.T);
+
+        double thresholdSqr = threshold * threshold;
+        boolean[] bestInliers = new boolean[numPoints];
+        int bestCount = 0;
+        RealMatrix bestF = null;
+        int[] sample = new int[SAMPLE_SIZE];
+        long requiredIterations = maxIterations;
+        for (int iteration = 0; iteration < requiredIterations; iteration++) {
+            drawSample(sample);
+            RealMatrix F = fit(left, right, sample, SAMPLE_SIZE, Tl, Tr);
+            boolean[] inliers = new boolean[numPoints];
+            int count = findInliers(F, thresholdSqr, inliers);
+            if (count > bestCount) {
+                bestCount = count;
+                bestInliers = inliers;
+                bestF = F;
+
+                // the number of samples needed to draw one free of outliers
+                double w = (double) count / numPoints;
+                double logP = Math.log1p(-Math.pow(w, SAMPLE_SIZE));
+                if (logP == Double.NEGATIVE_INFINITY) {
+                    // every tie point is an inlier
+                    break;
+                }
+                if (logP < 0) {
+                    double n = Math.log(1 - confidence) / logP;
+                    requiredIterations = Math.min(maxIterations, (long) Math.ceil(n));
+                }
+            }
+        }
+
+        if (bestCount >= SAMPLE_SIZE) {
+            int[] indices = new int[bestCount];
+            int k = 0;
+            for (int i = 0; i < numPoints; i++) {
+                if (bestInliers[i]) {
+                    indices[k++] = i;
+                }
+            }
+            RealMatrix F = fit(left, right, indices, bestCount, Tl, Tr);
+            boolean[] inliers = new boolean[numPoints];
+            if (findInliers(F, thresholdSqr, inliers) >= bestCount) {
+                bestInliers = inliers;
+                bestF = F;
+            }
+        }
+
+        fundamentalMatrix = bestF;
+        return bestInliers;
+    }
+
+    private void drawSample(int[] sample) {
+        for (int i = 0; i < sample.length; i++) {
+            boolean duplicate;
+            do {
+                sample[i] = random.nextInt(numPoints);
+                duplicate = false;
+                for (int j = 0; j < i; j++) {
+                    if (sample[j] == sample[i]) {
+                        duplicate = true;
+                        break;
+                    }
+                }
+            } while (duplicate);
+        }
+    }
+
+    /**
+     * Fits the fundamental matrix to the normalized tie points with the given
+     * indices and returns it in pixel coordinates.
+     */
+    private RealMatrix fit(double[][] left, double[][] right, int[] indices,
+            int n, RealMatrix Tl, RealMatrix Tr) {
+        // the rows of A are padded to at least nine so that V holds the null
+        // vector
+        double[][] a = new double[Math.max(n, 9)][];
+        for (int i = 0; i < a.length; i++) {
+            if (i < n) {
+                int j = indices[i];
+                double x1 = left[0][j];
+                double y1 = left[1][j];
+                double x2 = right[0][j];
+                double y2 = right[1][j];
+                a[i] = new double[]{x1 * x2, y1 * x2, x2, x1 * y2, y1 * y2, y2, x1, y1, 1};
+            } else {
+                a[i] = new double[9];
+            }
+        }
+        SingularValueDecomposition svd = new SingularValueDecomposition(MatrixUtils.createRealMatrix(a));
+        double[] f = svd.getV().getColumn(8);
+        RealMatrix F = MatrixUtils.createRealMatrix(new double[][]{
+            {f[0], f[1], f[2]}, {f[3], f[4], f[5]}, {f[6], f[7], f[8]}});
+
+        // enforce rank 2 by zeroing the smallest singular value
+        svd = new SingularValueDecomposition(F);
+        double[] s = svd.getSingularValues();
+        RealMatrix S = MatrixUtils.createRealDiagonalMatrix(new double[]{s[0], s[1], 0});
+        F = svd.getU().multiply(S).multiply(svd.getVT());
+
+        // denormalise
+        return Tr.transpose().multiply(F).multiply(Tl);
+    }
+
+    /**
+     * Flags the tie points whose squared Sampson distance from F is within
+     * thresholdSqr and returns their number.
+     */
+    private int findInliers(RealMatrix F, double thresholdSqr, boolean[] inliers) {
+        double[][] f = F.getData();
+        int count = 0;
+        for (int i = 0; i < numPoints; i++) {
+            double x1 = leftPoints[0][i] / leftPoints[2][i];
+            double y1 = leftPoints[1][i] / leftPoints[2][i];
+            double x2 = rightPoints[0][i] / rightPoints[2][i];
+            double y2 = rightPoints[1][i] / rightPoints[2][i];
+
+            // F x1 and F^T x2
+            double fx0 = f[0][0] * x1 + f[0][1] * y1 + f[0][2];
+            double fx1 = f[1][0] * x1 + f[1][1] * y1 + f[1][2];
+            double fx2 = f[2][0] * x1 + f[2][1] * y1 + f[2][2];
+            double ftx0 = f[0][0] * x2 + f[1][0] * y2 + f[2][0];
+            double ftx1 = f[0][1] * x2 + f[1][1] * y2 + f[2][1];
+
+            double e = x2 * fx0 + y2 * fx1 + fx2;
+            double denominator = fx0 * fx0 + fx1 * fx1 + ftx0 * ftx0 + ftx1 * ftx1;
+            inliers[i] = denominator > 0 && e * e / denominator <= thresholdSqr;
+            if (inliers[i]) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -36,7 +36,7 @@ import whitebox.structures.XYPoint;
 import whitebox.stats.PolynomialLeastSquares2DFitting;
 import whitebox.structures.KdTree;
 import whitebox.structures.RowPriorityGridCell;
-import photogrammetry.Normalize2DHomogeneousPoints;
+import photogrammetry.FundamentalMatrixRansac;
 
 /**
  *
@@ -175,84 +175,21 @@ public class SURFPixelMatching {
                     = leftSurf.getMatchingPoints(rightSurf, matchingThreshold, false);
 
             int numTiePoints = matchingPoints.size();
-            if (numTiePoints < 3) {
-                System.err.println("The number of potential tie points is less than 3. Adjust your threshold parameters and retry.");
+            if (numTiePoints < 8) {
+                System.err.println("The number of potential tie points is less than 8. Adjust your threshold parameters and retry.");
                 return;
             }
             System.out.println(numTiePoints + " potential tie points located");
             System.out.println("Trimming outlier tie points...");
 
-            boolean flag;
-            do {
-                flag = false;
-                leftTiePointsList.clear();
-                rightTiePointsList.clear();
-                i = 0;
-                for (SURFInterestPoint point : matchingPoints.keySet()) {
-                    x = point.getX();
-                    y = point.getY();
-
-                    SURFInterestPoint target = matchingPoints.get(point);
-                    x2 = target.getX();
-                    y2 = target.getY();
-
-                    leftTiePointsList.add(new XYPoint(x, y));
-                    rightTiePointsList.add(new XYPoint(x2, y2));
-
-                    i++;
-                }
-
-                PolynomialLeastSquares2DFitting overallFit = new PolynomialLeastSquares2DFitting(
-                        leftTiePointsList, rightTiePointsList, 1);
-
-                double maxDist = 0;
-                SURFInterestPoint mostInfluentialPoint = null;
-                i = 0;
-                for (SURFInterestPoint point : matchingPoints.keySet()) {
-                    leftTiePointsList.clear();
-                    rightTiePointsList.clear();
-                    for (SURFInterestPoint point2 : matchingPoints.keySet()) {
-                        if (point2 != point) {
-                            x = point2.getX();
-                            y = point2.getY();
-
-                            SURFInterestPoint target = matchingPoints.get(point2);
-                            x2 = target.getX();
-                            y2 = target.getY();
-
-                            leftTiePointsList.add(new XYPoint(x, y));
-                            rightTiePointsList.add(new XYPoint(x2, y2));
-                        }
-                    }
-                    PolynomialLeastSquares2DFitting newFit = new PolynomialLeastSquares2DFitting(
-                            leftTiePointsList, rightTiePointsList, 1);
-
-                    x = point.getX();
-                    y = point.getY();
-                    XYPoint pt1 = overallFit.getForwardCoordinates(x, y);
-                    XYPoint pt2 = newFit.getForwardCoordinates(x, y);
-                    double dist = pt1.getSquareDistance(pt2);
-                    if (dist > maxDist) {
-                        maxDist = dist;
-                        mostInfluentialPoint = point;
-                    }
-                }
-
-                if (maxDist > 10 && mostInfluentialPoint != null) {
-                    matchingPoints.remove(mostInfluentialPoint);
-                    flag = true;
-                }
-                System.out.println(maxDist);
-            } while (flag);
-
-            int numPoints = matchingPoints.size();
-
             // create homogeneous points matrices
-            double[][] leftPoints = new double[3][numPoints];
-            double[][] rightPoints = new double[3][numPoints];
+            SURFInterestPoint[] tiePoints = new SURFInterestPoint[numTiePoints];
+            double[][] leftPoints = new double[3][numTiePoints];
+            double[][] rightPoints = new double[3][numTiePoints];
 
             i = 0;
             for (SURFInterestPoint point : matchingPoints.keySet()) {
+                tiePoints[i] = point;
                 leftPoints[0][i] = point.getX();
                 leftPoints[1][i] = point.getY();
                 leftPoints[2][i] = 1;
@@ -265,44 +202,29 @@ public class SURFPixelMatching {
                 i++;
             }
 
-            double[][] normalizedLeftPoints = Normalize2DHomogeneousPoints.normalize(leftPoints);
-            RealMatrix Tl = MatrixUtils.createRealMatrix(Normalize2DHomogeneousPoints.T);
-            double[][] normalizedRightPoints = Normalize2DHomogeneousPoints.normalize(rightPoints);
-            RealMatrix Tr = MatrixUtils.createRealMatrix(Normalize2DHomogeneousPoints.T);
-
-            RealMatrix pnts1 = MatrixUtils.createRealMatrix(normalizedLeftPoints);
-            RealMatrix pnts2 = MatrixUtils.createRealMatrix(normalizedRightPoints);
-
-            RealMatrix A = MatrixUtils.createRealMatrix(buildA(normalizedLeftPoints, normalizedRightPoints));
-
-            //RealMatrix ata = A.transpose().multiply(A);
-            SingularValueDecomposition svd = new SingularValueDecomposition(A);
-
-            RealMatrix V = svd.getV();
-            RealVector V_smallestSingularValue = V.getColumnVector(8);
-            RealMatrix F = MatrixUtils.createRealMatrix(3, 3);
-            for (i = 0; i < 9; i++) {
-                F.setEntry(i / 3, i % 3, V_smallestSingularValue.getEntry(i));
+            // a single RANSAC pass on the fundamental matrix removes the
+            // outliers, with the inliers within maxAllowableRMSE pixels of
+            // their epipolar lines
+            FundamentalMatrixRansac ransac = new FundamentalMatrixRansac(leftPoints, rightPoints);
+            ransac.setThreshold(maxAllowableRMSE);
+            boolean[] inliers = ransac.findInliers();
+            RealMatrix F = ransac.getFundamentalMatrix();
+            if (F == null) {
+                System.err.println("The fundamental matrix could not be estimated from the tie points.");
+                return;
             }
-
-            for (i = 0; i < V.getRowDimension(); i++) {
-                System.out.println(V.getRowVector(i).toString());
+            for (i = 0; i < numTiePoints; i++) {
+                if (!inliers[i]) {
+                    matchingPoints.remove(tiePoints[i]);
+                }
             }
+            int numPoints = matchingPoints.size();
 
-            SingularValueDecomposition svd2 = new SingularValueDecomposition(F);
-            RealMatrix U = svd2.getU();
-            RealMatrix S = svd2.getS();
-            V = svd2.getV();
-            RealMatrix m = MatrixUtils.createRealMatrix(new double[][]{{S.getEntry(1, 1), 0, 0}, {0, S.getEntry(2, 2), 0}, {0, 0, 0}});
-            F = U.multiply(m).multiply(V).transpose();
-
-            // Denormalise
-            F = Tr.transpose().multiply(F).multiply(Tl);
             for (i = 0; i < F.getRowDimension(); i++) {
                 System.out.println(F.getRowVector(i).toString());
             }
 
-            svd2 = new SingularValueDecomposition(F);
+            SingularValueDecomposition svd2 = new SingularValueDecomposition(F);
             //[U,D,V] = svd(F,0);
             RealMatrix e1 = svd2.getV().getColumnMatrix(2); //hnormalise(svd2.getV(:,3));
             RealMatrix e2 = svd2.getU().getColumnMatrix(2); //e2 = hnormalise(U(:,3));
@@ -424,20 +346,4 @@ public class SURFPixelMatching {
             e.printStackTrace();
         }
     }
-
-    private double[][] buildA(double[][] points1, double[][] points2) {
-        int numPoints = points1[0].length;
-        double[][] result = new double[numPoints][9];
-        for (int i = 0; i < numPoints; i++) {
-            double x1i = points1[0][i];
-            double x2i = points2[0][i];
-            double y1i = points1[1][i];
-            double y2i = points2[1][i];
-
-            double[] row = new double[]{x1i * x2i, y1i * x2i, x2i, x1i * y2i, y1i * y2i, y2i,
-                x1i, y1i, 1};
-            System.arraycopy(row, 0, result[i], 0, 9);
-        }
-        return result;
-    }
 }
@@ -150,7 +150,10 @@ public class ProcessExpression implements WhiteboxPluginHost, Runnable {
     @Override
     public void run() {
         try {
-            returnValue = evaluateExpression(expressionLine);
+            returnValue = evaluateInSinglePass(expressionLine);
+            if (returnValue == null) {
+                returnValue = evaluateExpression(expressionLine);
+            }
             if (myListener != null) {
                 myListener.notifyOfReturn(returnValue);
                 myListener.notifyOfThreadComplete(this);
@@ -389,6 +392,70 @@ public class ProcessExpression implements WhiteboxPluginHost, Runnable {
         }
     }
 
+    /**
+     * Evaluates an assignment of an image expression to an output image in a
+     * single pass over the input images, without creating any temporary
+     * files.
+     *
+     * @param expression The expression.
+     * @return The key of the output image, "Cancelled", an empty string if
+     * an error occurred, or null if the expression cannot be evaluated this
+     * way and must be handled by evaluateExpression.
+     */
+    private String evaluateInSinglePass(String expression) {
+        String expr = RasterExpression.prepare(expression);
+        int assignmentPos = -1;
+        int parens = 0;
+        for (int pos = 0; pos < expr.length(); pos++) {
+            char ch = expr.charAt(pos);
+            if (ch == '(') {
+                parens++;
+            } else if (ch == ')') {
+                parens--;
+            } else if (ch == '=' && parens == 0) {
+                if (assignmentPos >= 0) {
+                    return null;
+                }
+                assignmentPos = pos;
+            }
+        }
+        if (assignmentPos < 0) {
+            return null;
+        }
+        String outputKey = expr.substring(0, assignmentPos);
+        if (!images.containsKey(outputKey)) {
+            return null;
+        }
+        RasterExpression re = RasterExpression.compile(expr.substring(assignmentPos + 1), images);
+        if (re == null) {
+            return null;
+        }
+
+        try {
+            // an image can't be read and written at the same time, so an
+            // output that is also an input is written to a temporary file.
+            String outputFile = images.get(outputKey);
+            boolean outputIsInput = re.getInputFiles().contains(outputFile);
+            String resultKey = outputIsInput ? getNextTempFile() : outputKey;
+            String ret = re.evaluate(images.get(resultKey), this);
+            if (ret == null) {
+                return "Cancelled";
+            } else if (ret.isEmpty()) {
+                return "";
+            }
+            if (outputIsInput) {
+                if (!assignment(outputKey, resultKey).equals("operation complete")) {
+                    return "";
+                }
+                cleanUpTempFiles();
+            }
+            return outputKey;
+        } catch (Exception e) {
+            handleException(e);
+            return "";
+        }
+    }
+
     public String evaluateExpression(String expression) throws NotSupportedException {
 
         try {
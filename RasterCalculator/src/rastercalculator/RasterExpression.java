@@ -0,0 +1,871 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rastercalculator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import whitebox.geospatialfiles.WhiteboxRaster;
+import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.Parallel;
+
+/**
+ * Compiles a raster calculator expression into a tree of operations that is
+ * evaluated in a single pass over the input images. Each output row is
+ * calculated from the corresponding rows of the inputs, using one row buffer
+ * per operation, so that no intermediate images are written to disk. Blocks
+ * of rows are evaluated concurrently and written to the output in order.
+ *
+ * The grammar, operator precedence and cell-by-cell semantics are those of
+ * ProcessExpression and the MathTools plugins that it runs: a cell is NoData
+ * in the output if it is NoData in any input to an operation, or if the
+ * operation is undefined there (e.g. division by zero, or a NaN result, which
+ * WhiteboxRaster.setValue stores as NoData). Expressions that the compiler
+ * does not recognize are left to ProcessExpression.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+class RasterExpression {
+
+    private static final String BOOLEAN_PALETTE = "black_white.pal";
+    private static final double NODATA_CONSTANT = -32768;
+    private static final double LOG2 = 0.301029995663981; // as used by the Log2 tool
+    private static final int ROWS_PER_TASK = 16;
+
+    private enum Operation {
+
+        CONSTANT, IMAGE, ADD, SUBTRACT, MULTIPLY, DIVIDE, INTDIV, MODULO, POWER,
+        EQUAL_TO, NOT_EQUAL_TO, GREATER_THAN, LESS_THAN, GREATER_THAN_EQUAL_TO,
+        LESS_THAN_EQUAL_TO, AND, NOT, OR, XOR, MIN, MAX, NEGATE, SIN, COS, TAN,
+        ARCSIN, ARCCOS, ARCTAN, SINH, COSH, TANH, LOG10, LN, LOG2, EXP, ABS,
+        SQUARE, SQRT, IS_NODATA, IF;
+
+        /**
+         * Returns true for operations with 0/1 outputs, which are written as
+         * integer images with a black and white palette.
+         */
+        boolean isBoolean() {
+            return this.compareTo(EQUAL_TO) >= 0 && this.compareTo(XOR) <= 0;
+        }
+
+        boolean isTrigonometric() {
+            return this == SIN || this == COS || this == TAN
+                    || this == SINH || this == COSH || this == TANH;
+        }
+    }
+
+    private static class Node {
+
+        final Operation op;
+        final Node[] args;
+        double value;
+        int image = -1;
+        int slot;
+        // converts the argument of trigonometric functions from degrees
+        double multiplier = 1;
+
+        Node(Operation op, Node... args) {
+            this.op = op;
+            this.args = args;
+        }
+    }
+
+    private final Map<String, String> images;
+    private final Map<String, Node> imageNodes = new HashMap<>();
+    private final List<String> inputFiles = new ArrayList<>();
+    private WhiteboxRaster[] inputs;
+    private Node root;
+    private Node[] program;
+
+    private RasterExpression(Map<String, String> images) {
+        this.images = images;
+    }
+
+    /**
+     * Compiles an expression.
+     *
+     * @param expression The expression, in which the images have been replaced
+     * by their IMAGEn keys.
+     * @param images The map of image keys to header file names.
+     * @return The compiled expression, or null if the expression contains an
+     * operation that the compiler does not handle or is not an image
+     * operation, in which case it should be evaluated by ProcessExpression.
+     */
+    static RasterExpression compile(String expression, Map<String, String> images) {
+        RasterExpression re = new RasterExpression(images);
+        try {
+            re.root = re.parse(prepare(expression));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (re.root == null || re.root.op == Operation.CONSTANT
+                || re.root.op == Operation.IMAGE) {
+            return null;
+        }
+        return re;
+    }
+
+    /**
+     * Applies the same substitutions as ProcessExpression.evaluateExpression,
+     * so that every operator is a single character.
+     */
+    static String prepare(String expression) {
+        String expr = expression.replace(" ", "");
+        expr = expr.replace("(-)", "-1*");
+        expr = expr.replace("==", "@");
+        expr = expr.replace("!=", "~");
+        expr = expr.replace(">=", "#");
+        expr = expr.replace("<=", "$");
+        expr = expr.replace("\u03C0", String.valueOf(Math.PI));
+        return expr;
+    }
+
+    /**
+     * Returns the header files of the images that the expression reads.
+     */
+    List<String> getInputFiles() {
+        return inputFiles;
+    }
+
+    private Node parse(String expr) {
+        int len = expr.length();
+        if (len == 0) {
+            throw new IllegalArgumentException("Empty expression.");
+        }
+
+        // find the operator with the lowest precedence outside of any
+        // parentheses, exactly as ProcessExpression does.
+        boolean isUnary = true;
+        int bestPrec = ProcessExpression.Precedence.NONE.getValue();
+        int bestPos = 0;
+        int parens = 0;
+        for (int pos = 0; pos < len; pos++) {
+            char ch = expr.charAt(pos);
+            boolean nextUnary = false;
+            if (ch == '(') {
+                parens++;
+                nextUnary = true;
+            } else if (ch == ')') {
+                parens--;
+                if (parens < 0) {
+                    throw new IllegalArgumentException("Too many )s in expression.");
+                }
+            } else if (parens == 0) {
+                int prec = getPrecedence(ch);
+                if (prec > 0) {
+                    nextUnary = true;
+                    boolean isSign = (ch == '+' || ch == '-' || ch == '\u2212');
+                    if ((!isSign || !isUnary) && bestPrec >= prec) {
+                        bestPrec = prec;
+                        bestPos = pos;
+                    }
+                }
+            }
+            isUnary = nextUnary;
+        }
+        if (parens != 0) {
+            throw new IllegalArgumentException("Missing ) in expression.");
+        }
+
+        if (bestPrec < ProcessExpression.Precedence.NONE.getValue()) {
+            Node a = parse(expr.substring(0, bestPos));
+            Node b = parse(expr.substring(bestPos + 1));
+            switch (expr.charAt(bestPos)) {
+                case '^':
+                    return fold(new Node(Operation.POWER, a, b));
+                case '*':
+                case '\u00D7':
+                    return fold(new Node(Operation.MULTIPLY, a, b));
+                case '/':
+                case '\u00F7':
+                    return fold(new Node(Operation.DIVIDE, a, b));
+                case '\\':
+                    return fold(new Node(Operation.INTDIV, a, b));
+                case '%':
+                    return fold(new Node(Operation.MODULO, a, b));
+                case '+':
+                    return fold(new Node(Operation.ADD, a, b));
+                case '-':
+                case '\u2212':
+                    return fold(new Node(Operation.SUBTRACT, a, b));
+                case '@':
+                    return fold(new Node(Operation.EQUAL_TO, a, b));
+                case '~':
+                    return fold(new Node(Operation.NOT_EQUAL_TO, a, b));
+                case '>':
+                    return fold(new Node(Operation.GREATER_THAN, a, b));
+                case '<':
+                    return fold(new Node(Operation.LESS_THAN, a, b));
+                case '#':
+                    return fold(new Node(Operation.GREATER_THAN_EQUAL_TO, a, b));
+                case '$':
+                    return fold(new Node(Operation.LESS_THAN_EQUAL_TO, a, b));
+                default:
+                    // assignments are handled by the caller.
+                    throw new IllegalArgumentException("Unsupported operator.");
+            }
+        }
+
+        if (expr.startsWith("(") && expr.endsWith(")")) {
+            return parse(expr.substring(1, len - 1));
+        }
+        if (expr.startsWith("-") || expr.startsWith("\u2212")) {
+            return fold(new Node(Operation.NEGATE, parse(expr.substring(1))));
+        }
+        if (expr.startsWith("+")) {
+            return parse(expr.substring(1));
+        }
+
+        int pos = expr.indexOf("(");
+        if (expr.endsWith(")") && pos > 0) {
+            String name = expr.substring(0, pos).toLowerCase();
+            Node[] args = parseArguments(expr.substring(pos + 1, len - 1));
+            return fold(createFunction(name, args));
+        }
+
+        String lower = expr.toLowerCase();
+        if (lower.equals("pi")) {
+            return constant(Math.PI);
+        }
+        if (lower.equals("e")) {
+            return constant(Math.E);
+        }
+        if (lower.equals("nodata")) {
+            return constant(NODATA_CONSTANT);
+        }
+        if (images.containsKey(expr)) {
+            return getImageNode(expr);
+        }
+        try {
+            return constant(Double.parseDouble(expr));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Unrecognized term " + expr);
+        }
+    }
+
+    private static int getPrecedence(char ch) {
+        switch (ch) {
+            case '^':
+                return ProcessExpression.Precedence.POWER.getValue();
+            case '*':
+            case '\u00D7':
+            case '/':
+            case '\u00F7':
+                return ProcessExpression.Precedence.TIMES.getValue();
+            case '\\':
+                return ProcessExpression.Precedence.INTDIV.getValue();
+            case '%':
+                return ProcessExpression.Precedence.MODULUS.getValue();
+            case '+':
+            case '-':
+            case '\u2212':
+                return ProcessExpression.Precedence.PLUS.getValue();
+            case '=':
+                return ProcessExpression.Precedence.ASSIGNMENT.getValue();
+            case '@':
+                return ProcessExpression.Precedence.EQUALITY.getValue();
+            case '~':
+                return ProcessExpression.Precedence.INEQULAITY.getValue();
+            case '>':
+                return ProcessExpression.Precedence.GREATER_THAN.getValue();
+            case '<':
+                return ProcessExpression.Precedence.LESS_THAN.getValue();
+            case '#':
+                return ProcessExpression.Precedence.GREATER_THAN_EQUAL_TO.getValue();
+            case '$':
+                return ProcessExpression.Precedence.LESS_THAN_EQUAL_TO.getValue();
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Splits a function's argument list at the commas that are outside of any
+     * parentheses.
+     */
+    private Node[] parseArguments(String argList) {
+        List<Node> args = new ArrayList<>();
+        int parens = 0;
+        int start = 0;
+        for (int pos = 0; pos < argList.length(); pos++) {
+            char ch = argList.charAt(pos);
+            if (ch == '(') {
+                parens++;
+            } else if (ch == ')') {
+                parens--;
+            } else if (ch == ',' && parens == 0) {
+                args.add(parse(argList.substring(start, pos)));
+                start = pos + 1;
+            }
+        }
+        args.add(parse(argList.substring(start)));
+        return args.toArray(new Node[args.size()]);
+    }
+
+    private static Node createFunction(String name, Node[] args) {
+        Operation op;
+        int numArgs = 1;
+        switch (name) {
+            case "sin":
+                op = Operation.SIN;
+                break;
+            case "cos":
+                op = Operation.COS;
+                break;
+            case "tan":
+                op = Operation.TAN;
+                break;
+            case "arcsin":
+                op = Operation.ARCSIN;
+                break;
+            case "arccos":
+                op = Operation.ARCCOS;
+                break;
+            case "arctan":
+                op = Operation.ARCTAN;
+                break;
+            case "sinh":
+                op = Operation.SINH;
+                break;
+            case "cosh":
+                op = Operation.COSH;
+                break;
+            case "tanh":
+                op = Operation.TANH;
+                break;
+            case "log":
+                op = Operation.LOG10;
+                break;
+            case "ln":
+                op = Operation.LN;
+                break;
+            case "log2":
+                op = Operation.LOG2;
+                break;
+            case "exp":
+                op = Operation.EXP;
+                break;
+            case "abs":
+                op = Operation.ABS;
+                break;
+            case "sqr":
+                op = Operation.SQUARE;
+                break;
+            case "sqrt":
+            case "\u221A":
+                op = Operation.SQRT;
+                break;
+            case "isnodata":
+                op = Operation.IS_NODATA;
+                break;
+            case "negate":
+                op = Operation.NEGATE;
+                break;
+            case "min":
+                op = Operation.MIN;
+                numArgs = 2;
+                break;
+            case "max":
+                op = Operation.MAX;
+                numArgs = 2;
+                break;
+            case "pow":
+                op = Operation.POWER;
+                numArgs = 2;
+                break;
+            case "and":
+                op = Operation.AND;
+                numArgs = 2;
+                break;
+            case "not":
+                op = Operation.NOT;
+                numArgs = 2;
+                break;
+            case "or":
+                op = Operation.OR;
+                numArgs = 2;
+                break;
+            case "xor":
+                op = Operation.XOR;
+                numArgs = 2;
+                break;
+            case "if":
+                op = Operation.IF;
+                numArgs = 3;
+                break;
+            default:
+                // e.g. delete(), which is not an image operation.
+                throw new IllegalArgumentException("Unsupported function " + name);
+        }
+        if (args.length != numArgs) {
+            throw new IllegalArgumentException("Wrong number of arguments to " + name);
+        }
+        if (op == Operation.IS_NODATA && args[0].op == Operation.CONSTANT) {
+            throw new IllegalArgumentException("This function requires an input image.");
+        }
+        return new Node(op, args);
+    }
+
+    private static Node constant(double value) {
+        Node n = new Node(Operation.CONSTANT);
+        n.value = value;
+        return n;
+    }
+
+    private Node getImageNode(String key) {
+        Node n = imageNodes.get(key);
+        if (n == null) {
+            String fileName = images.get(key);
+            n = new Node(Operation.IMAGE);
+            n.image = inputFiles.indexOf(fileName);
+            if (n.image < 0) {
+                n.image = inputFiles.size();
+                inputFiles.add(fileName);
+            }
+            imageNodes.put(key, n);
+        }
+        return n;
+    }
+
+    /**
+     * Replaces an operation on constants by its value. An operation that is
+     * undefined for its constant arguments is left to ProcessExpression,
+     * which reports the error.
+     */
+    private static Node fold(Node n) {
+        if (n.op == Operation.IF && n.args[0].op == Operation.CONSTANT) {
+            return n.args[0].value != 0 ? n.args[1] : n.args[2];
+        }
+        for (Node arg : n.args) {
+            if (arg.op != Operation.CONSTANT) {
+                return n;
+            }
+        }
+        double[][] values = new double[n.args.length + 1][1];
+        boolean[][] valid = new boolean[n.args.length + 1][1];
+        for (int i = 0; i < n.args.length; i++) {
+            n.args[i].slot = i;
+            values[i][0] = n.args[i].value;
+            valid[i][0] = true;
+        }
+        n.slot = n.args.length;
+        evaluate(n, values, valid, 1);
+        if (!valid[n.slot][0]) {
+            throw new IllegalArgumentException("Undefined operation on constants.");
+        }
+        return constant(values[n.slot][0]);
+    }
+
+    /**
+     * Evaluates the expression, writing the result to an output image.
+     *
+     * @param outputHeader The header file of the output image, which must not
+     * be one of the inputs.
+     * @param host The host that receives progress and feedback.
+     * @return The output header file, an empty string if the inputs do not
+     * match, or null if the operation was cancelled.
+     * @throws Exception if an image cannot be read or written.
+     */
+    String evaluate(String outputHeader, WhiteboxPluginHost host) throws Exception {
+        inputs = new WhiteboxRaster[inputFiles.size()];
+        WhiteboxRaster output = null;
+        ExecutorService executor = null;
+        try {
+            for (int i = 0; i < inputs.length; i++) {
+                inputs[i] = new WhiteboxRaster(inputFiles.get(i), "r");
+            }
+            int rows = inputs[0].getNumberRows();
+            int cols = inputs[0].getNumberColumns();
+            for (int i = 1; i < inputs.length; i++) {
+                if (inputs[i].getNumberRows() != rows || inputs[i].getNumberColumns() != cols) {
+                    host.showFeedback("The input images must have the same dimensions and coordinates. Operation cancelled.");
+                    return "";
+                }
+            }
+
+            // order the operations so that each is preceded by its arguments
+            List<Node> nodes = new ArrayList<>();
+            addToProgram(root, nodes, new IdentityHashMap<Node, Boolean>());
+            program = nodes.toArray(new Node[nodes.size()]);
+            for (int i = 0; i < program.length; i++) {
+                program[i].slot = i;
+                if (program[i].op.isTrigonometric()) {
+                    program[i].multiplier = getTrigMultiplier(program[i].args[0]);
+                }
+            }
+
+            WhiteboxRaster source = inputs[getSource(root).image];
+            double noData = source.getNoDataValue();
+            WhiteboxRaster.DataType dataType = root.op.isBoolean()
+                    ? WhiteboxRaster.DataType.INTEGER : WhiteboxRaster.DataType.FLOAT;
+            output = new WhiteboxRaster(outputHeader, "rw", source.getHeaderFile(),
+                    dataType, noData);
+            output.setPreferredPalette(getPalette(root));
+
+            int numThreads = Math.max(Parallel.getPluginProcessors(), 1);
+            executor = Executors.newFixedThreadPool(numThreads);
+            RowEvaluator[] evaluators = new RowEvaluator[numThreads];
+            for (int t = 0; t < numThreads; t++) {
+                evaluators[t] = new RowEvaluator(cols, noData);
+            }
+            int blockRows = numThreads * ROWS_PER_TASK;
+            double[][] outputRows = new double[blockRows][cols];
+            List<Future<?>> futures = new ArrayList<>();
+            int oldProgress = -1;
+            for (int blockStart = 0; blockStart < rows; blockStart += blockRows) {
+                int blockEnd = Math.min(blockStart + blockRows, rows);
+                futures.clear();
+                for (int t = 0; t < numThreads; t++) {
+                    int startRow = blockStart + t * ROWS_PER_TASK;
+                    if (startRow >= blockEnd) {
+                        break;
+                    }
+                    int endRow = Math.min(startRow + ROWS_PER_TASK, blockEnd);
+                    futures.add(executor.submit(evaluators[t].forRows(startRow,
+                            endRow, outputRows, blockStart)));
+                }
+                for (Future<?> f : futures) {
+                    f.get();
+                }
+                for (int row = blockStart; row < blockEnd; row++) {
+                    output.setRowValues(row, outputRows[row - blockStart]);
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    return null;
+                }
+                int progress = (int) (100f * blockEnd / rows);
+                if (progress > oldProgress) {
+                    host.updateProgress(progress);
+                    oldProgress = progress;
+                }
+            }
+
+            output.addMetadataEntry("Created by the Raster Calculator tool.");
+            output.addMetadataEntry("Created on " + new Date());
+            return outputHeader;
+        } catch (InterruptedException e) {
+            return null;
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            for (WhiteboxRaster input : inputs) {
+                if (input != null) {
+                    input.close();
+                }
+            }
+            if (output != null) {
+                output.close();
+            }
+            host.updateProgress(0);
+        }
+    }
+
+    private static void addToProgram(Node n, List<Node> nodes, Map<Node, Boolean> added) {
+        if (added.containsKey(n)) {
+            return;
+        }
+        for (Node arg : n.args) {
+            addToProgram(arg, nodes, added);
+        }
+        added.put(n, Boolean.TRUE);
+        nodes.add(n);
+    }
+
+    /**
+     * Returns the image whose header, NoData value and palette an operation
+     * would have inherited had it been run as a separate tool, i.e. that of
+     * its first image argument.
+     */
+    private static Node getSource(Node n) {
+        if (n.op == Operation.IMAGE) {
+            return n;
+        }
+        for (Node arg : n.args) {
+            Node source = getSource(arg);
+            if (source != null) {
+                return source;
+            }
+        }
+        return null;
+    }
+
+    private String getPalette(Node n) {
+        if (n.op == Operation.IMAGE) {
+            return inputs[n.image].getPreferredPalette();
+        }
+        if (n.op.isBoolean() || n.op == Operation.IS_NODATA) {
+            return BOOLEAN_PALETTE;
+        }
+        for (Node arg : n.args) {
+            if (getSource(arg) != null) {
+                return getPalette(arg);
+            }
+        }
+        return BOOLEAN_PALETTE;
+    }
+
+    /**
+     * The trigonometric tools treat their input image as degrees unless its
+     * z-units are radians. Intermediate images have unspecified z-units and
+     * constants are always taken to be radians.
+     */
+    private double getTrigMultiplier(Node arg) {
+        if (arg.op == Operation.CONSTANT) {
+            return 1;
+        }
+        if (arg.op == Operation.IMAGE
+                && inputs[arg.image].getZUnits().toLowerCase().contains("rad")) {
+            return 1;
+        }
+        return Math.PI / 180;
+    }
+
+    /**
+     * Evaluates the program for a range of rows, using buffers that belong to
+     * one thread.
+     */
+    private class RowEvaluator {
+
+        final int cols;
+        final double noData;
+        final double[][] values;
+        final boolean[][] valid;
+
+        RowEvaluator(int cols, double noData) {
+            this.cols = cols;
+            this.noData = noData;
+            values = new double[program.length][cols];
+            valid = new boolean[program.length][cols];
+            for (Node n : program) {
+                if (n.op == Operation.CONSTANT) {
+                    Arrays.fill(values[n.slot], n.value);
+                    Arrays.fill(valid[n.slot], true);
+                }
+            }
+        }
+
+        Runnable forRows(final int startRow, final int endRow,
+                final double[][] outputRows, final int firstOutputRow) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    for (int row = startRow; row < endRow; row++) {
+                        evaluateRow(row, outputRows[row - firstOutputRow]);
+                    }
+                }
+            };
+        }
+
+        void evaluateRow(int row, double[] out) {
+            for (Node n : program) {
+                if (n.op == Operation.IMAGE) {
+                    WhiteboxRaster input = inputs[n.image];
+                    double[] v = values[n.slot];
+                    boolean[] ok = valid[n.slot];
+                    input.getRowValues(row, v);
+                    double inputNoData = input.getNoDataValue();
+                    for (int col = 0; col < cols; col++) {
+                        ok[col] = v[col] != inputNoData;
+                    }
+                } else if (n.op != Operation.CONSTANT) {
+                    evaluate(n, values, valid, cols);
+                }
+            }
+            double[] v = values[root.slot];
+            boolean[] ok = valid[root.slot];
+            for (int col = 0; col < cols; col++) {
+                out[col] = ok[col] ? v[col] : noData;
+            }
+        }
+    }
+
+    /**
+     * Evaluates one operation over a row, given the rows of its arguments.
+     */
+    private static void evaluate(Node n, double[][] values, boolean[][] valid, int cols) {
+        double[] out = values[n.slot];
+        boolean[] ok = valid[n.slot];
+        double[] a = values[n.args[0].slot];
+        boolean[] okA = valid[n.args[0].slot];
+        double[] b = null;
+        boolean[] okB = null;
+        if (n.args.length > 1) {
+            b = values[n.args[1].slot];
+            okB = valid[n.args[1].slot];
+        }
+
+        if (n.op == Operation.IS_NODATA) {
+            for (int col = 0; col < cols; col++) {
+                out[col] = okA[col] ? 0 : 1;
+                ok[col] = true;
+            }
+            return;
+        }
+        if (n.op == Operation.IF) {
+            double[] c = values[n.args[2].slot];
+            boolean[] okC = valid[n.args[2].slot];
+            for (int col = 0; col < cols; col++) {
+                if (!okA[col]) {
+                    ok[col] = false;
+                } else if (a[col] != 0) {
+                    out[col] = b[col];
+                    ok[col] = okB[col];
+                } else {
+                    out[col] = c[col];
+                    ok[col] = okC[col];
+                }
+            }
+            return;
+        }
+
+        for (int col = 0; col < cols; col++) {
+            if (!okA[col] || (b != null && !okB[col])) {
+                ok[col] = false;
+                continue;
+            }
+            double z1 = a[col];
+            double z2 = (b != null) ? b[col] : 0;
+            double z;
+            boolean defined = true;
+            switch (n.op) {
+                case ADD:
+                    z = z1 + z2;
+                    break;
+                case SUBTRACT:
+                    z = z1 - z2;
+                    break;
+                case MULTIPLY:
+                    z = z1 * z2;
+                    break;
+                case DIVIDE:
+                    defined = z2 != 0;
+                    z = z1 / z2;
+                    break;
+                case INTDIV:
+                    defined = (int) z2 != 0;
+                    z = defined ? (int) z1 / (int) z2 : 0;
+                    break;
+                case MODULO:
+                    defined = z2 != 0;
+                    z = z1 % z2;
+                    break;
+                case POWER:
+                    z = Math.pow(z1, z2);
+                    break;
+                case EQUAL_TO:
+                    z = (z1 == z2) ? 1 : 0;
+                    break;
+                case NOT_EQUAL_TO:
+                    z = (z1 != z2) ? 1 : 0;
+                    break;
+                case GREATER_THAN:
+                    z = (z1 > z2) ? 1 : 0;
+                    break;
+                case LESS_THAN:
+                    z = (z1 < z2) ? 1 : 0;
+                    break;
+                case GREATER_THAN_EQUAL_TO:
+                    z = (z1 >= z2) ? 1 : 0;
+                    break;
+                case LESS_THAN_EQUAL_TO:
+                    z = (z1 <= z2) ? 1 : 0;
+                    break;
+                case AND:
+                    z = (z1 != 0 && z2 != 0) ? 1 : 0;
+                    break;
+                case NOT:
+                    z = (z1 != 0 && z2 == 0) ? 1 : 0;
+                    break;
+                case OR:
+                    z = (z1 != 0 || z2 != 0) ? 1 : 0;
+                    break;
+                case XOR:
+                    z = ((z1 != 0) != (z2 != 0)) ? 1 : 0;
+                    break;
+                case MIN:
+                    z = Math.min(z1, z2);
+                    break;
+                case MAX:
+                    z = Math.max(z1, z2);
+                    break;
+                case NEGATE:
+                    z = -1 * z1;
+                    break;
+                case SIN:
+                    z = Math.sin(z1 * n.multiplier);
+                    break;
+                case COS:
+                    z = Math.cos(z1 * n.multiplier);
+                    break;
+                case TAN:
+                    z = Math.tan(z1 * n.multiplier);
+                    break;
+                case SINH:
+                    z = Math.sinh(z1 * n.multiplier);
+                    break;
+                case COSH:
+                    z = Math.cosh(z1 * n.multiplier);
+                    break;
+                case TANH:
+                    z = Math.tanh(z1 * n.multiplier);
+                    break;
+                case ARCSIN:
+                    z = Math.asin(z1);
+                    break;
+                case ARCCOS:
+                    z = Math.acos(z1);
+                    break;
+                case ARCTAN:
+                    z = Math.atan(z1);
+                    break;
+                case LOG10:
+                    z = Math.log10(z1);
+                    break;
+                case LN:
+                    z = Math.log(z1);
+                    break;
+                case LOG2:
+                    z = Math.log(z1) / LOG2;
+                    break;
+                case EXP:
+                    z = Math.exp(z1);
+                    break;
+                case ABS:
+                    z = Math.abs(z1);
+                    break;
+                case SQUARE:
+                    z = z1 * z1;
+                    break;
+                case SQRT:
+                    z = Math.sqrt(z1);
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected operation " + n.op);
+            }
+            out[col] = z;
+            ok[col] = defined && !Double.isNaN(z);
+        }
+    }
+}
@@ -16,10 +16,13 @@
  */
 package plugins;
 
+import java.util.Arrays;
 import java.util.Date;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.FlowAccumulator;
+import whitebox.parallel.LocalOperation;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -173,6 +176,14 @@ public class StreamMagnitude implements WhiteboxPlugin {
         showFeedback("Operation cancelled.");
         updateProgress("Progress: ", 0);
     }
+
+    private final LocalOperation.ProgressMonitor progressMonitor = new LocalOperation.ProgressMonitor() {
+        @Override
+        public boolean updateProgress(int progress) {
+            StreamMagnitude.this.updateProgress(progress);
+            return !cancelOp;
+        }
+    };
     
     private boolean amIActive = false;
    
@@ -201,7 +212,6 @@ public class StreamMagnitude implements WhiteboxPlugin {
         int[] dX = new int[]{1, 1, 1, 0, -1, -1, -1, 0};
         int[] dY = new int[]{-1, 0, 1, 1, 1, 0, -1, -1};
         double[] inflowingVals = new double[]{16, 32, 64, 128, 1, 2, 4, 8};
-        boolean flag = false;
         double flowDir = 0;
                 
         if (args.length <= 0) {
@@ -243,39 +253,68 @@ public class StreamMagnitude implements WhiteboxPlugin {
             output.setPreferredPalette("spectrum.pal");
             output.setDataScale(WhiteboxRaster.DataScale.CONTINUOUS);
             
-            WhiteboxRaster numInflowingStreamCells = new WhiteboxRaster(outputHeader.replace(".dep", "_temp.dep"), "rw", 
-                    streamsHeader, WhiteboxRaster.DataType.INTEGER, noData);
-            numInflowingStreamCells.isTemporaryFile = true;
-            
-            byte numNeighbouringStreamCells = 0;
-            double currentValue = 0;
+            // the direction index of the downstream stream cell of each
+            // stream cell, -1 for stream cells that do not flow into another
+            // stream cell and -2 for cells that are not stream cells.
+            byte[] flowDirs = new byte[rows * cols];
+            double[][] streamData = new double[3][];
+            double[][] pntrData = new double[3][];
+            for (i = 0; i < 3; i++) {
+                streamData[i] = new double[cols];
+                pntrData[i] = new double[cols];
+                if (i > 0 && i - 1 < rows) {
+                    streams.getRowValues(i - 1, streamData[i]);
+                    pntr.getRowValues(i - 1, pntrData[i]);
+                } else {
+                    Arrays.fill(streamData[i], noData);
+                    Arrays.fill(pntrData[i], 0);
+                }
+            }
             
             updateProgress("Loop 1 of 2:", 0);
             for (row = 0; row < rows; row++) {
                 for (col = 0; col < cols; col++) {
-                    if (streams.getValue(row, col) > 0) {
-                        // count the number of neighbouring stream cells
-                        numNeighbouringStreamCells = 0;
-                        for (c = 0; c < 8; c++) {
+                    int cell = row * cols + col;
+                    if (streamData[1][col] > 0) {
+                        flowDirs[cell] = -1;
+                        flowDir = pntrData[1][col];
+                        if (flowDir > 0) {
+                            c = (int) (Math.log(flowDir) / LnOf2);
+                            if (c > 7) {
+                                showFeedback("An unexpected value has "
+                                        + "been identified in the pointer "
+                                        + "image. This tool requires a "
+                                        + "pointer grid that has been "
+                                        + "created using either the D8 "
+                                        + "or Rho8 tools.");
+                                return;
+                            }
                             x = col + dX[c];
-                            y = row + dY[c];
-                            if (streams.getValue(y, x) > 0 && 
-                                    pntr.getValue(y, x) == inflowingVals[c]) { 
-                                numNeighbouringStreamCells++; 
+                            y = 1 + dY[c];
+                            if (x >= 0 && x < cols && streamData[y][x] > 0) {
+                                flowDirs[cell] = (byte) c;
                             }
                         }
-                        
-                        if (numNeighbouringStreamCells == 0) { // it's a headwater
-                            output.setValue(row, col, 1);
-                            numInflowingStreamCells.setValue(row, col, -1);
-                        } else {
-                            output.setValue(row, col, 0); // it's not a headwater
-                            numInflowingStreamCells.setValue(row, col, numNeighbouringStreamCells);
-                        }
                     } else {
-                        output.setValue(row, col, noData);
+                        flowDirs[cell] = -2;
                     }
                 }
+                // shift the rows of the window up by one
+                double[] tmp = streamData[0];
+                streamData[0] = streamData[1];
+                streamData[1] = streamData[2];
+                streamData[2] = tmp;
+                tmp = pntrData[0];
+                pntrData[0] = pntrData[1];
+                pntrData[1] = pntrData[2];
+                pntrData[2] = tmp;
+                if (row + 2 < rows) {
+                    streams.getRowValues(row + 2, streamData[2]);
+                    pntr.getRowValues(row + 2, pntrData[2]);
+                } else {
+                    Arrays.fill(streamData[2], noData);
+                    Arrays.fill(pntrData[2], 0);
+                }
                 if (cancelOp) {
                     cancelOperation();
                     return;
@@ -285,58 +324,25 @@ public class StreamMagnitude implements WhiteboxPlugin {
             }
             
             updateProgress("Loop 2 of 2:", 0);
+            MagnitudeAccumulator accumulator = new MagnitudeAccumulator(rows, cols, flowDirs);
+            if (!accumulator.run(progressMonitor)) {
+                pntr.close();
+                streams.close();
+                output.close();
+                cancelOperation();
+                return;
+            }
+            
+            double[] data = new double[cols];
             for (row = 0; row < rows; row++) {
+                accumulator.getRowValues(row, data);
                 for (col = 0; col < cols; col++) {
-                    if (numInflowingStreamCells.getValue(row, col) == -1) {
-                        //it's a headwater location so start a downstream flowpath
-                        x = col;
-                        y = row;
-                        flag = true;
-                        do {
-                            z = output.getValue(y, x);
-                            //find the downslope neighbour
-                            flowDir = pntr.getValue(y, x);
-                            if (flowDir > 0) {
-                                c = (int) (Math.log(flowDir) / LnOf2);
-                                if (c > 7) {
-                                    showFeedback("An unexpected value has "
-                                            + "been identified in the pointer "
-                                            + "image. This tool requires a "
-                                            + "pointer grid that has been "
-                                            + "created using either the D8 "
-                                            + "or Rho8 tools.");
-                                    return;
-                                }
-                                x += dX[c];
-                                y += dY[c];
-
-                                if (streams.getValue(y, x) <= 0) { //it's not a stream cell
-                                    flag = false;
-                                } else {
-                                    //update the numInflowingStreamCells grid
-                                    currentValue = numInflowingStreamCells.getValue(y, x) - 1;
-                                    numInflowingStreamCells.setValue(y, x, currentValue);
-                                    if (currentValue > 0) { 
-                                        flag = false; 
-                                    }
-                                    
-                                    //update the output grid
-                                    currentValue = output.getValue(y, x);
-                                    output.setValue(y, x, z + currentValue);
-                                }
-
-                            } else {
-                                flag = false;
-                            }
-                        } while (flag);
+                    z = data[col];
+                    if (Double.isNaN(z)) {
+                        data[col] = noData;
                     }
                 }
-                if (cancelOp) {
-                    cancelOperation();
-                    return;
-                }
-                progress = (float) (100f * row / (rows - 1));
-                updateProgress("Loop 2 of 2:", (int) progress);
+                output.setRowValues(row, data);
             }
 
             output.addMetadataEntry("Created by the "
@@ -346,7 +352,6 @@ public class StreamMagnitude implements WhiteboxPlugin {
             pntr.close();
             streams.close();
             output.close();
-            numInflowingStreamCells.close();
 
             // returning a header file string displays the image.
             returnData(outputHeader);
@@ -363,4 +368,50 @@ public class StreamMagnitude implements WhiteboxPlugin {
             myHost.pluginComplete();
         }
     }
-}
\ No newline at end of file
+    
+    /**
+     * Sums the number of headwater cells that drain to each stream cell,
+     * i.e. the Shreve magnitude.
+     */
+    private static class MagnitudeAccumulator extends FlowAccumulator {
+        
+        private static final int[] dX = new int[]{1, 1, 1, 0, -1, -1, -1, 0};
+        private static final int[] dY = new int[]{-1, 0, 1, 1, 1, 0, -1, -1};
+        private final byte[] flowDirs;
+        
+        MagnitudeAccumulator(int rows, int cols, byte[] flowDirs) {
+            super(rows, cols);
+            this.flowDirs = flowDirs;
+        }
+        
+        @Override
+        protected double getInitialValue(int row, int col) {
+            if (flowDirs[row * cols + col] == -2) {
+                return Double.NaN;
+            }
+            // a headwater cell has no neighbouring stream cells flowing into
+            // it.
+            for (int c = 0; c < 8; c++) {
+                int x = col + dX[c];
+                int y = row + dY[c];
+                if (x >= 0 && x < cols && y >= 0 && y < rows
+                        && flowDirs[y * cols + x] == ((c + 4) & 7)) {
+                    return 0;
+                }
+            }
+            return 1;
+        }
+        
+        @Override
+        protected int getReceivers(int row, int col, double accumulation,
+                int[] receivers, double[] proportions) {
+            int c = flowDirs[row * cols + col];
+            if (c < 0) {
+                return 0;
+            }
+            receivers[0] = (row + dY[c]) * cols + col + dX[c];
+            proportions[0] = 1;
+            return 1;
+        }
+    }
+}
@@ -20,6 +20,8 @@ import java.util.Date;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.LocalOperation;
+import whitebox.parallel.TerrainDerivatives;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -170,6 +172,14 @@ public class Aspect implements WhiteboxPlugin {
         showFeedback("Operation cancelled.");
         updateProgress("Progress: ", 0);
     }
+
+    private final LocalOperation.ProgressMonitor progressMonitor = new LocalOperation.ProgressMonitor() {
+        @Override
+        public boolean updateProgress(int progress) {
+            Aspect.this.updateProgress(progress);
+            return !cancelOp;
+        }
+    };
     
     private boolean amIActive = false;
     
@@ -208,23 +218,10 @@ public class Aspect implements WhiteboxPlugin {
        }
 
         try {
-            int row, col;
-            double z;
-            double[] N = new double[8];
-            double fx, fy;
-            float aspect;
-            float progress = 0;
-            int[] Dy = {-1, 0, 1, 1, 1, 0, -1, -1};
-            int[] Dx = {1, 1, 1, 0, -1, -1, -1, 0};
-            final double radToDeg = 180 / Math.PI;
-            
             WhiteboxRaster inputFile = new WhiteboxRaster(inputHeader, "r");
             inputFile.isReflectedAtEdges = true;
             
-            int rows = inputFile.getNumberRows();
-            int cols = inputFile.getNumberColumns();
             double gridRes = inputFile.getCellSizeX();
-            double eightGridRes = 8 * gridRes;
             
             double noData = inputFile.getNoDataValue();
             
@@ -240,37 +237,14 @@ public class Aspect implements WhiteboxPlugin {
             WhiteboxRaster outputFile = new WhiteboxRaster(outputHeader, "rw", inputHeader, WhiteboxRaster.DataType.FLOAT, noData);
             outputFile.setPreferredPalette("circular_bw.pal");
             
-            for (row = 0; row < rows; row++) {
-                for (col = 0; col < cols; col++) {
-                    z = inputFile.getValue(row, col);
-                    if (z != noData) {
-                        for (int i = 0; i < 8; i++) {
-                            N[i] = inputFile.getValue(row + Dy[i], col + Dx[i]);
-                            if (N[i] != noData) {
-                                N[i] = N[i] * zConvFactor;
-                            } else {
-                                N[i] = z * zConvFactor;
-                            }
-                        }
-                        
-                        // calculate slope and aspect
-                        fy = (N[6] - N[4] + 2 * (N[7] - N[3]) + N[0] - N[2]) / eightGridRes;
-                        fx = (N[2] - N[4] + 2 * (N[1] - N[5]) + N[0] - N[6]) / eightGridRes;
-                        
-                        if (fx != 0) {
-                            aspect = (float)(180 - Math.atan(fy / fx) * radToDeg + 90 * (fx / Math.abs(fx)));
-                            outputFile.setValue(row, col, aspect);
-                        } else {
-                            outputFile.setValue(row, col, -1);
-                        }
-                    } else {
-                        outputFile.setValue(row, col, noData);
-                    }
-
-                }
-                if (cancelOp) { cancelOperation(); return; }
-                progress = (float) (100f * row / (rows - 1));
-                updateProgress((int)progress);
+            TerrainDerivatives derivatives = new TerrainDerivatives(
+                    new TerrainDerivatives.Derivative[]{TerrainDerivatives.Derivative.ASPECT},
+                    gridRes, zConvFactor);
+            if (!derivatives.run(inputFile, outputFile, progressMonitor)) {
+                inputFile.close();
+                outputFile.close();
+                cancelOperation();
+                return;
             }
 
             outputFile.addMetadataEntry("Created by the "
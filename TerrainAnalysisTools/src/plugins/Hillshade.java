@@ -20,6 +20,8 @@ import java.util.Date;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.LocalOperation;
+import whitebox.parallel.TerrainDerivatives;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -168,6 +170,15 @@ public class Hillshade implements WhiteboxPlugin {
         showFeedback("Operation cancelled.");
         updateProgress("Progress: ", 0);
     }
+
+    private final LocalOperation.ProgressMonitor progressMonitor = new LocalOperation.ProgressMonitor() {
+        @Override
+        public boolean updateProgress(int progress) {
+            Hillshade.this.updateProgress(progress);
+            return !cancelOp;
+        }
+    };
+
     private boolean amIActive = false;
 
     /**
@@ -188,23 +199,11 @@ public class Hillshade implements WhiteboxPlugin {
         String inputHeader = null;
         String outputHeader = null;
 
-        final double radToDeg = 180 / Math.PI;
-        final double degToRad = Math.PI / 180;
-        double azimuth = 315 * degToRad;
-        double altitude = 45 * degToRad;
+        double azimuth = 315;
+        double altitude = 45;
         double zFactor = 1;
-        double z;
-        int progress;
-        int[] Dy = {-1, 0, 1, 1, 1, 0, -1, -1};
-        int[] Dx = {1, 1, 1, 0, -1, -1, -1, 0};
-        double sinTheta;
-        double cosTheta;
-        double tanSlope;
         int row, col;
-        double fx, fy, aspect;
-        double gridRes, eightGridRes;
-        double[] N = new double[8];
-        double term1, term2, term3;
+        double gridRes;
         double outNoData = -32768;
 
         if (args.length <= 0) {
@@ -214,8 +213,8 @@ public class Hillshade implements WhiteboxPlugin {
 
         inputHeader = args[0];
         outputHeader = args[1];
-        azimuth = (Double.parseDouble(args[2]) - 90) * degToRad;
-        altitude = Double.parseDouble(args[3]) * degToRad;
+        azimuth = Double.parseDouble(args[2]);
+        altitude = Double.parseDouble(args[3]);
         zFactor = Double.parseDouble(args[4]);
 
         // check to see that the inputHeader and outputHeader are not null.
@@ -225,20 +224,12 @@ public class Hillshade implements WhiteboxPlugin {
         }
 
         try {
-            sinTheta = Math.sin(altitude);
-            cosTheta = Math.cos(altitude);
-
             WhiteboxRaster inputFile = new WhiteboxRaster(inputHeader, "r");
             inputFile.isReflectedAtEdges = true;
-            
+
             int rows = inputFile.getNumberRows();
             int cols = inputFile.getNumberColumns();
             gridRes = inputFile.getCellSizeX();
-            eightGridRes = 8 * gridRes;
-            //double Rad180 = 180 * degToRad;
-            //double Rad90 = 90 * degToRad;
-
-            double noData = inputFile.getNoDataValue();
             
             if (inputFile.getXYUnits().toLowerCase().contains("deg") || 
                     inputFile.getProjection().toLowerCase().contains("geog")) {
@@ -254,52 +245,28 @@ public class Hillshade implements WhiteboxPlugin {
             outputFile.setNoDataValue(outNoData);
             outputFile.setPreferredPalette("grey.pal");
 
+            TerrainDerivatives derivatives = new TerrainDerivatives(
+                    new TerrainDerivatives.Derivative[]{TerrainDerivatives.Derivative.HILLSHADE},
+                    gridRes, zFactor);
+            derivatives.setHillshadeIllumination(azimuth, altitude);
+            if (!derivatives.run(inputFile, outputFile, progressMonitor)) {
+                inputFile.close();
+                outputFile.close();
+                cancelOperation();
+                return;
+            }
+
             long[] histo = new long[256];
             long numCells = 0;
-            int index;
+            double[] outputData = new double[cols];
             for (row = 0; row < rows; row++) {
+                outputFile.getRowValues(row, outputData);
                 for (col = 0; col < cols; col++) {
-                    z = inputFile.getValue(row, col);
-                    if (z != noData) {
-                        z = z * zFactor;
-                        // get the neighbouring cell Z values
-                        for (int c = 0; c < 8; c++) {
-                            N[c] = inputFile.getValue(row + Dy[c], col + Dx[c]);
-                            if (N[c] != noData) {
-                                N[c] = N[c] * zFactor;
-                            } else {
-                                N[c] = z;
-                            }
-                        }
-                        // calculate slope and aspect
-                        fy = (N[6] - N[4] + 2 * (N[7] - N[3]) + N[0] - N[2]) / eightGridRes;
-                        fx = (N[2] - N[4] + 2 * (N[1] - N[5]) + N[0] - N[6]) / eightGridRes;
-                        if (fx != 0) {
-                            tanSlope = Math.sqrt(fx * fx + fy * fy);
-                            aspect = (180 - Math.atan(fy / fx) * radToDeg + 90 * (fx / Math.abs(fx))) * degToRad;
-                            term1 = tanSlope / Math.sqrt(1 + tanSlope * tanSlope);
-                            term2 = sinTheta / tanSlope;
-                            term3 = cosTheta * Math.sin(azimuth - aspect);
-                            z = term1 * (term2 - term3);
-                        } else {
-                            z = 0.5;
-                        }
-                        z = (int)(z * 255);
-                        if (z < 0) {
-                            z = 0;
-                        }
-                        histo[(int) z]++;
+                    if (outputData[col] != outNoData) {
+                        histo[(int) outputData[col]]++;
                         numCells++;
-                        outputFile.setValue(row, col, z);
                     }
                 }
-
-                if (cancelOp) {
-                    cancelOperation();
-                    return;
-                }
-                progress = (int) (100f * row / (rows - 1));
-                updateProgress(progress);
             }
 
             // trim the display min and max values by clipPercent
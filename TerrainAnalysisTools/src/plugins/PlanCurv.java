@@ -21,6 +21,8 @@ import java.util.Date;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.LocalOperation;
+import whitebox.parallel.TerrainDerivatives;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -171,6 +173,14 @@ public class PlanCurv implements WhiteboxPlugin {
         showFeedback("Operation cancelled.");
         updateProgress("Progress: ", 0);
     }
+
+    private final LocalOperation.ProgressMonitor progressMonitor = new LocalOperation.ProgressMonitor() {
+        @Override
+        public boolean updateProgress(int progress) {
+            PlanCurv.this.updateProgress(progress);
+            return !cancelOp;
+        }
+    };
     
     private boolean amIActive = false;
    
@@ -209,25 +219,10 @@ public class PlanCurv implements WhiteboxPlugin {
         }
 
         try {
-            int row, col;
-            double z;
-            double[] N = new double[8];
-            float progress = 0;
-            int[] Dy = {-1, 0, 1, 1, 1, 0, -1, -1};
-            int[] Dx = {1, 1, 1, 0, -1, -1, -1, 0};
-            final double radToDeg = 180 / Math.PI;
-            double Zx, Zy, Zxx, Zyy, Zxy, Zx2, Zy2, p;
-                        
             WhiteboxRaster inputFile = new WhiteboxRaster(inputHeader, "r");
             inputFile.isReflectedAtEdges = true;
 
-            int rows = inputFile.getNumberRows();
-            int cols = inputFile.getNumberColumns();
             double gridRes = inputFile.getCellSizeX();
-            double gridResTimes2 = gridRes * 2;
-            double gridResSquared = gridRes * gridRes;
-            double fourTimesGridResSquared = gridResSquared * 4;
-            double curv;
             double noData = inputFile.getNoDataValue();
             
             if (inputFile.getXYUnits().toLowerCase().contains("deg") || 
@@ -242,45 +237,14 @@ public class PlanCurv implements WhiteboxPlugin {
             WhiteboxRaster outputFile = new WhiteboxRaster(outputHeader, "rw", inputHeader, WhiteboxRaster.DataType.FLOAT, noData);
             outputFile.setPreferredPalette("blue_white_red.pal");
 
-            for (row = 0; row < rows; row++) {
-                for (col = 0; col < cols; col++) {
-                    z = inputFile.getValue(row, col);
-                    if (z != noData) {
-                        for (int i = 0; i < 8; i++) {
-                            N[i] = inputFile.getValue(row + Dy[i], col + Dx[i]);
-                            if (N[i] != noData) {
-                                N[i] = N[i] * zConvFactor;
-                            } else {
-                                N[i] = z * zConvFactor;
-                            }
-                        }
-                        //calculate each of the terms
-                        Zx = (N[1] - N[5]) / gridResTimes2;
-                        Zy = (N[7] - N[3]) / gridResTimes2;
-                        Zxx = (N[1] - 2 * z + N[5]) / gridResSquared;
-                        Zyy = (N[7] - 2 * z + N[3]) / gridResSquared;
-                        Zxy = (-N[6] + N[0] + N[4] - N[2]) / fourTimesGridResSquared;
-                        Zx2 = Zx * Zx;
-                        Zy2 = Zy * Zy;
-                        p = Zx2 + Zy2;
-                        if (p > 0) {
-                            curv = (Zxx * Zy2 - 2 * Zxy * Zx * Zy + Zyy * Zx2) / Math.pow(p, 1.5);
-                            outputFile.setValue(row, col, curv * radToDeg * 100);
-                        } else {
-                            outputFile.setValue(row,col, noData);
-                        }
-                                
-                    } else {
-                        outputFile.setValue(row, col, noData);
-                    }
-
-                }
-                if (cancelOp) {
-                    cancelOperation();
-                    return;
-                }
-                progress = (float) (100f * row / (rows - 1));
-                updateProgress((int) progress);
+            TerrainDerivatives derivatives = new TerrainDerivatives(
+                    new TerrainDerivatives.Derivative[]{TerrainDerivatives.Derivative.PLAN_CURVATURE},
+                    gridRes, zConvFactor);
+            if (!derivatives.run(inputFile, outputFile, progressMonitor)) {
+                inputFile.close();
+                outputFile.close();
+                cancelOperation();
+                return;
             }
 
             outputFile.addMetadataEntry("Created by the "
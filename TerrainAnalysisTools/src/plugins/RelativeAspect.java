@@ -20,6 +20,8 @@ import java.util.Date;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.LocalOperation;
+import whitebox.parallel.TerrainDerivatives;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -171,6 +173,14 @@ public class RelativeAspect implements WhiteboxPlugin {
         showFeedback("Operation cancelled.");
         updateProgress("Progress: ", 0);
     }
+
+    private final LocalOperation.ProgressMonitor progressMonitor = new LocalOperation.ProgressMonitor() {
+        @Override
+        public boolean updateProgress(int progress) {
+            RelativeAspect.this.updateProgress(progress);
+            return !cancelOp;
+        }
+    };
     
     private boolean amIActive = false;
     
@@ -191,17 +201,8 @@ public class RelativeAspect implements WhiteboxPlugin {
         
         String inputHeader = null;
         String outputHeader = null;
-        int row, col, x, y;
-        float progress = 0;
-        int i;
-        double radToDeg = 180 / Math.PI;
-        double degToRad = Math.PI / 180;
         double zFactor = 1;
-        double z;
-        int[] dX = new int[]{1, 1, 1, 0, -1, -1, -1, 0};
-        int[] dY = new int[]{-1, 0, 1, 1, 1, 0, -1, -1};
-        double fx, fy;
-        double gridRes, eightGridRes;
+        double gridRes;
         double azimuth = 0;
         
         if (args.length <= 0) {
@@ -226,11 +227,8 @@ public class RelativeAspect implements WhiteboxPlugin {
         try {
             WhiteboxRaster DEM = new WhiteboxRaster(inputHeader, "r");
             
-            int rows = DEM.getNumberRows();
-            int cols = DEM.getNumberColumns();
             double noData = DEM.getNoDataValue();
             gridRes = DEM.getCellSizeX();
-            eightGridRes = 8 * gridRes;
             
             if (DEM.getXYUnits().toLowerCase().contains("deg") || 
                     DEM.getProjection().toLowerCase().contains("geog")) {
@@ -246,44 +244,15 @@ public class RelativeAspect implements WhiteboxPlugin {
             output.setDataScale(WhiteboxRaster.DataScale.CONTINUOUS);
             output.setZUnits("degrees");
             
-            double[] N = new double[8];
-            double rad180 = 180 * degToRad;
-            double rad90 = 90 * degToRad;
-
-            for (row = 0; row < rows; row++) {
-                for (col = 0; col < cols; col++) {
-                    z = DEM.getValue(row, col);
-                    if (z != noData) {
-                        z = z * zFactor;
-                        //get the neighbouring cell Z values
-                        for (i = 0; i < 8; i++) {
-                            N[i] = DEM.getValue(row + dY[i], col + dX[i]);
-                            if (N[i] != noData) {
-                                N[i] = N[i] * zFactor;
-                            } else {
-                                N[i] = z;
-                            }
-                        }
-                        
-                        //calculate slope and aspect
-                        fy = (N[6] - N[4] + 2 * (N[7] - N[3]) + N[0] - N[2]) / eightGridRes;
-                        fx = (N[2] - N[4] + 2 * (N[1] - N[5]) + N[0] - N[6]) / eightGridRes;
-                        if (fx != 0) {
-                            z = 180 - Math.atan(fy / fx) * radToDeg + 90 * (fx / Math.abs(fx));
-                            z = Math.abs(z - azimuth);
-                            if (z > 180) { z = 360 - z; }
-                            output.setValue(row, col, z);
-                        } else {
-                            output.setValue(row, col, -1);
-                        }
-                    }
-                }
-                if (cancelOp) {
-                    cancelOperation();
-                    return;
-                }
-                progress = (float) (100f * row / (rows - 1));
-                updateProgress((int) progress);
+            TerrainDerivatives derivatives = new TerrainDerivatives(
+                    new TerrainDerivatives.Derivative[]{TerrainDerivatives.Derivative.RELATIVE_ASPECT},
+                    gridRes, zFactor);
+            derivatives.setRelativeAspectAzimuth(azimuth);
+            if (!derivatives.run(DEM, output, progressMonitor)) {
+                DEM.close();
+                output.close();
+                cancelOperation();
+                return;
             }
 
             output.addMetadataEntry("Created by the "
@@ -24,6 +24,9 @@ import whitebox.geospatialfiles.shapefile.*;
 import static whitebox.geospatialfiles.shapefile.ShapeType.MULTIPOINT;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.LocalOperation;
+import whitebox.parallel.Parallel;
+import whitebox.parallel.ViewshedCalculator;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -172,6 +175,15 @@ public class Viewshed implements WhiteboxPlugin {
         showFeedback("Operation cancelled.");
         updateProgress("Progress: ", 0);
     }
+
+    private final LocalOperation.ProgressMonitor progressMonitor = new LocalOperation.ProgressMonitor() {
+        @Override
+        public boolean updateProgress(int progress) {
+            Viewshed.this.updateProgress(progress);
+            return !cancelOp;
+        }
+    };
+
     private boolean amIActive = false;
 
     /**
@@ -197,13 +209,6 @@ public class Viewshed implements WhiteboxPlugin {
         double z, noData, outputNoData;
         double stationHeight;
         double[] data;
-        double vertCount = 1;
-        double horizCount;
-        double t1, t2, tva;
-        int stationRow;
-        int stationCol;
-        double x, y, dist, dZ, viewAngleValue;
-        double va;
 
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
@@ -228,9 +233,6 @@ public class Viewshed implements WhiteboxPlugin {
             cols = DEM.getNumberColumns();
             noData = DEM.getNoDataValue();
             outputNoData = DEM.getNoDataValue();
-            double stationX; 
-            double stationY; 
-            double stationZ; 
 
             WhiteboxRaster output = new WhiteboxRaster(outputHeader, "rw",
                     demHeader, WhiteboxRaster.DataType.INTEGER, 0);
@@ -238,16 +240,6 @@ public class Viewshed implements WhiteboxPlugin {
             output.setPreferredPalette("spectrum.pal");
             output.setDataScale(WhiteboxRaster.DataScale.CONTINUOUS);
 
-            // create a temporary raster to hold the view angle
-            WhiteboxRaster viewAngle = new WhiteboxRaster(outputHeader.replace(".dep", "_temp1.dep"), "rw",
-                    demHeader, WhiteboxRaster.DataType.FLOAT, 0);
-            viewAngle.isTemporaryFile = true;
-
-            // create a temporary raster to hold the max view angle
-            WhiteboxRaster maxViewAngle = new WhiteboxRaster(outputHeader.replace(".dep", "_temp2.dep"), "rw",
-                    demHeader, WhiteboxRaster.DataType.FLOAT, 0);
-            maxViewAngle.isTemporaryFile = true;
-
             // Find all of the viewing stations.
             ArrayList<Double> stationXs = new ArrayList<>();
             ArrayList<Double> stationYs = new ArrayList<>();
@@ -323,7 +315,7 @@ public class Viewshed implements WhiteboxPlugin {
                         z = data[col];
                         if (z != vsNoData & z != 0) {
                             stationXs.add(viewStation.getXCoordinateFromColumn(col));
-                            stationYs.add(viewStation.getXCoordinateFromColumn(row));
+                            stationYs.add(viewStation.getYCoordinateFromRow(row));
                         }
                     }
                     if (cancelOp) {
@@ -339,356 +331,57 @@ public class Viewshed implements WhiteboxPlugin {
             }
 
             int numStations = stationXs.size();
-            
-            //for (int a = 0; a < 500; a++) {
+            int[] stationRows = new int[numStations];
+            int[] stationCols = new int[numStations];
+            double[] stationXArray = new double[numStations];
+            double[] stationYArray = new double[numStations];
             for (int a = 0; a < numStations; a++) {
-                stationX = stationXs.get(a);
-                stationY = stationYs.get(a);
-                stationRow = DEM.getRowFromYCoordinate(stationY);
-                stationCol = DEM.getColumnFromXCoordinate(stationX);
-                stationZ = DEM.getValue(stationRow, stationCol) + stationHeight;
-                
-                for (row = 0; row < rows; row++) {
-                    data = DEM.getRowValues(row);
-                    for (col = 0; col < cols; col++) {
-                        z = data[col];
-                        if (z != noData) {
-                            x = DEM.getXCoordinateFromColumn(col);
-                            y = DEM.getYCoordinateFromRow(row);
-                            dZ = z - stationZ;
-                            dist = Math.sqrt((x - stationX) * (x - stationX) + (y - stationY) * (y - stationY));
-                            if (dist != 0.0) {
-                                viewAngleValue = dZ / dist * 1000;
-                                viewAngle.setValue(row, col, viewAngleValue);
-                            }
-                        } else {
-                            viewAngle.setValue(row, col, outputNoData);
-                        }
-                    }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                    progress = (int) (100f * row / (rows - 1));
-                    updateProgress(progress);
-                }
-
-                // perform the simple scan lines.
-                for (row = stationRow - 1; row <= stationRow + 1; row++) {
-                    for (col = stationCol - 1; col <= stationCol + 1; col++) {
-                        maxViewAngle.setValue(row, col, viewAngle.getValue(row, col));
-                    }
-                }
-
-                double maxVA = viewAngle.getValue(stationRow - 1, stationCol);
-                for (row = stationRow - 2; row >= 0; row--) {
-                    z = viewAngle.getValue(row, stationCol);
-                    if (z > maxVA) {
-                        maxVA = z;
-                    }
-                    maxViewAngle.setValue(row, stationCol, maxVA);
-                }
-
-                maxVA = viewAngle.getValue(stationRow + 1, stationCol);
-                for (row = stationRow + 2; row < rows; row++) {
-                    z = viewAngle.getValue(row, stationCol);
-                    if (z > maxVA) {
-                        maxVA = z;
-                    }
-                    maxViewAngle.setValue(row, stationCol, maxVA);
-                }
-
-                maxVA = viewAngle.getValue(stationRow, stationCol + 1);
-                for (col = stationCol + 2; col < cols - 1; col++) {
-                    z = viewAngle.getValue(stationRow, col);
-                    if (z > maxVA) {
-                        maxVA = z;
-                    }
-                    maxViewAngle.setValue(stationRow, col, maxVA);
-                }
-
-                maxVA = viewAngle.getValue(stationRow, stationCol - 1);
-                for (col = stationCol - 2; col >= 0; col--) {
-                    z = viewAngle.getValue(stationRow, col);
-                    if (z > maxVA) {
-                        maxVA = z;
-                    }
-                    maxViewAngle.setValue(stationRow, col, maxVA);
-                }
-
-                //solve the first triangular facet
-                for (row = stationRow - 2; row >= 0; row--) {
-                    vertCount++;
-                    horizCount = 0;
-                    for (col = stationCol + 1; col <= stationCol + vertCount; col++) {
-                        if (col <= cols) {
-                            va = viewAngle.getValue(row, col);
-                            horizCount++;
-                            if (horizCount != vertCount) {
-                                t1 = maxViewAngle.getValue(row + 1, col - 1);
-                                t2 = maxViewAngle.getValue(row + 1, col);
-                                tva = t2 + horizCount / vertCount * (t1 - t2);
-                            } else {
-                                tva = maxViewAngle.getValue(row + 1, col - 1);
-                            }
-                            if (tva > va) {
-                                maxViewAngle.setValue(row, col, tva);
-                            } else {
-                                maxViewAngle.setValue(row, col, va);
-                            }
-                        } else {
-                            break;
-                        }
-                    }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                }
-
-                //solve the second triangular facet
-                vertCount = 1;
-                for (row = stationRow - 2; row >= 0; row--) {
-                    vertCount++;
-                    horizCount = 0;
-                    for (col = stationCol - 1; col >= stationCol - vertCount; col--) {
-                        if (col >= 0) {
-                            va = viewAngle.getValue(row, col);
-                            horizCount++;
-                            if (horizCount != vertCount) {
-                                t1 = maxViewAngle.getValue(row + 1, col + 1);
-                                t2 = maxViewAngle.getValue(row + 1, col);
-                                tva = t2 + horizCount / vertCount * (t1 - t2);
-                            } else {
-                                tva = maxViewAngle.getValue(row + 1, col + 1);
-                            }
-                            if (tva > va) {
-                                maxViewAngle.setValue(row, col, tva);
-                            } else {
-                                maxViewAngle.setValue(row, col, va);
-                            }
-                        } else {
-                            break;
-                        }
-                    }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                }
-
-                // solve the third triangular facet
-                vertCount = 1;
-                for (row = stationRow + 2; row < rows; row++) {
-                    vertCount++;
-                    horizCount = 0;
-                    for (col = stationCol - 1; col >= stationCol - vertCount; col--) {
-                        if (col >= 0) {
-                            va = viewAngle.getValue(row, col);
-                            horizCount++;
-                            if (horizCount != vertCount) {
-                                t1 = maxViewAngle.getValue(row - 1, col + 1);
-                                t2 = maxViewAngle.getValue(row - 1, col);
-                                tva = t2 + horizCount / vertCount * (t1 - t2);
-                            } else {
-                                tva = maxViewAngle.getValue(row - 1, col + 1);
-                            }
-                            if (tva > va) {
-                                maxViewAngle.setValue(row, col, tva);
-                            } else {
-                                maxViewAngle.setValue(row, col, va);
-                            }
-                        } else {
-                            break;
-                        }
-                    }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                }
-
-                // solve the fourth triangular facet
-                vertCount = 1;
-                for (row = stationRow + 2; row < rows; row++) {
-                    vertCount++;
-                    horizCount = 0;
-                    for (col = stationCol + 1; col <= stationCol + vertCount; col++) {
-                        if (col < cols) {
-                            va = viewAngle.getValue(row, col);
-                            horizCount++;
-                            if (horizCount != vertCount) {
-                                t1 = maxViewAngle.getValue(row - 1, col - 1);
-                                t2 = maxViewAngle.getValue(row - 1, col);
-                                tva = t2 + horizCount / vertCount * (t1 - t2);
-                            } else {
-                                tva = maxViewAngle.getValue(row - 1, col - 1);
-                            }
-                            if (tva > va) {
-                                maxViewAngle.setValue(row, col, tva);
-                            } else {
-                                maxViewAngle.setValue(row, col, va);
-                            }
-                        } else {
-                            break;
-                        }
-                    }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                }
-
-                // solve the fifth triangular facet
-                vertCount = 1;
-                for (col = stationCol + 2; col < cols; col++) {
-                    vertCount++;
-                    horizCount = 0;
-                    for (row = stationRow - 1; row >= stationRow - vertCount; row--) {
-                        if (row >= 0) {
-                            va = viewAngle.getValue(row, col);
-                            horizCount++;
-                            if (horizCount != vertCount) {
-                                t1 = maxViewAngle.getValue(row + 1, col - 1);
-                                t2 = maxViewAngle.getValue(row, col - 1);
-                                tva = t2 + horizCount / vertCount * (t1 - t2);
-                            } else {
-                                tva = maxViewAngle.getValue(row + 1, col - 1);
-                            }
-                            if (tva > va) {
-                                maxViewAngle.setValue(row, col, tva);
-                            } else {
-                                maxViewAngle.setValue(row, col, va);
-                            }
-                        } else {
-                            break;
-                        }
-                    }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                }
+                stationXArray[a] = stationXs.get(a);
+                stationYArray[a] = stationYs.get(a);
+                stationRows[a] = DEM.getRowFromYCoordinate(stationYArray[a]);
+                stationCols[a] = DEM.getColumnFromXCoordinate(stationXArray[a]);
+            }
 
-                // solve the sixth triangular facet
-                vertCount = 1;
-                for (col = stationCol + 2; col < cols; col++) {
-                    vertCount++;
-                    horizCount = 0;
-                    for (row = stationRow + 1; row <= stationRow + vertCount; row++) {
-                        if (row < rows) {
-                            va = viewAngle.getValue(row, col);
-                            horizCount++;
-                            if (horizCount != vertCount) {
-                                t1 = maxViewAngle.getValue(row - 1, col - 1);
-                                t2 = maxViewAngle.getValue(row, col - 1);
-                                tva = t2 + horizCount / vertCount * (t1 - t2);
-                            } else {
-                                tva = maxViewAngle.getValue(row - 1, col - 1);
-                            }
-                            if (tva > va) {
-                                maxViewAngle.setValue(row, col, tva);
-                            } else {
-                                maxViewAngle.setValue(row, col, va);
-                            }
-                        } else {
-                            break;
-                        }
-                    }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                }
+            double[][] zValues = new double[rows][];
+            for (row = 0; row < rows; row++) {
+                zValues[row] = DEM.getRowValues(row);
+            }
+            double[] xCoords = new double[cols];
+            for (col = 0; col < cols; col++) {
+                xCoords[col] = DEM.getXCoordinateFromColumn(col);
+            }
+            double[] yCoords = new double[rows];
+            for (row = 0; row < rows; row++) {
+                yCoords[row] = DEM.getYCoordinateFromRow(row);
+            }
 
-                // solve the seventh triangular facet
-                vertCount = 1;
-                for (col = stationCol - 2; col >= 0; col--) {
-                    vertCount++;
-                    horizCount = 0;
-                    for (row = stationRow + 1; row <= stationRow + vertCount; row++) {
-                        if (row < rows) {
-                            va = viewAngle.getValue(row, col);
-                            horizCount++;
-                            if (horizCount != vertCount) {
-                                t1 = maxViewAngle.getValue(row - 1, col + 1);
-                                t2 = maxViewAngle.getValue(row, col + 1);
-                                tva = t2 + horizCount / vertCount * (t1 - t2);
-                            } else {
-                                tva = maxViewAngle.getValue(row - 1, col + 1);
-                            }
-                            if (tva > va) {
-                                maxViewAngle.setValue(row, col, tva);
-                            } else {
-                                maxViewAngle.setValue(row, col, va);
-                            }
-                        } else {
-                            break;
-                        }
-                    }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                }
+            ViewshedCalculator calculator = new ViewshedCalculator(zValues, noData, xCoords, yCoords);
+            int[][] counts = calculator.countVisibleStations(stationRows, stationCols,
+                    stationXArray, stationYArray, stationHeight,
+                    Parallel.getPluginProcessors(), progressMonitor);
+            if (counts == null) {
+                DEM.close();
+                output.close();
+                cancelOperation();
+                return;
+            }
 
-                // solve the eigth triangular facet
-                vertCount = 1;
-                for (col = stationCol - 2; col >= 0; col--) {
-                    vertCount++;
-                    horizCount = 0;
-                    for (row = stationRow - 1; row >= stationRow - vertCount; row--) {
-                        if (row < rows) {
-                            va = viewAngle.getValue(row, col);
-                            horizCount++;
-                            if (horizCount != vertCount) {
-                                t1 = maxViewAngle.getValue(row + 1, col + 1);
-                                t2 = maxViewAngle.getValue(row, col + 1);
-                                tva = t2 + horizCount / vertCount * (t1 - t2);
-                            } else {
-                                tva = maxViewAngle.getValue(row + 1, col + 1);
-                            }
-                            if (tva > va) {
-                                maxViewAngle.setValue(row, col, tva);
-                            } else {
-                                maxViewAngle.setValue(row, col, va);
-                            }
-                        } else {
-                            break;
-                        }
-                    }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
+            data = new double[cols];
+            for (row = 0; row < rows; row++) {
+                double[] elevations = zValues[row];
+                int[] count = counts[row];
+                for (col = 0; col < cols; col++) {
+                    data[col] = (elevations[col] != noData) ? count[col] : outputNoData;
                 }
-                //output.flush();
-                viewAngle.flush();
-                maxViewAngle.flush();
-
-                double[] dataVA;
-                for (row = 0; row < rows; row++) {
-                    dataVA = viewAngle.getRowValues(row);
-                    data = maxViewAngle.getRowValues(row);
-                    for (col = 0; col < cols; col++) {
-                        if (data[col] <= dataVA[col] && dataVA[col] != outputNoData) {
-                            output.setValue(row, col, output.getValue(row, col) + 1);
-                        } else if (dataVA[col] == outputNoData) {
-                            output.setValue(row, col, outputNoData);
-                        }
-                    }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                    progress = (int) (100f * row / (rows - 1));
-                    updateProgress(progress);
+                output.setRowValues(row, data);
+                if (cancelOp) {
+                    cancelOperation();
+                    return;
                 }
+                progress = (int) (100f * row / (rows - 1));
+                updateProgress(progress);
             }
 
-            viewAngle.close();
-            maxViewAngle.close();
-
             output.addMetadataEntry("Created by the "
                     + getDescriptiveName() + " tool.");
             output.addMetadataEntry("Created on " + new Date());
@@ -37,6 +37,7 @@ import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
 import whitebox.utilities.Topology;
 import whitebox.structures.BoundingBox;
+import whitebox.structures.RTree;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -214,7 +215,7 @@ public class Clip implements WhiteboxPlugin {
 
         amIActive = true;
         try {
-            int i, j, progress, oldProgress;
+            int i, progress, oldProgress;
             //whitebox.geospatialfiles.shapefile.Geometry wbGeometry;
             ShapeFileRecord rec;
             com.vividsolutions.jts.geom.Geometry jtsGeom; //, outputGeom;
@@ -250,10 +251,8 @@ public class Clip implements WhiteboxPlugin {
 
             int numClipFeatures = clipRegion.getNumberOfRecords();
 
-            BoundingBox[] clipBoxes = new BoundingBox[numClipFeatures];
             for (i = 0; i < numClipFeatures; i++) {
                 rec = clipRegion.getRecord(i);
-                clipBoxes[i] = rec.getGeometry().getBox();
                 geomArray = rec.getGeometry().getJTSGeometries();
                 for (int k = 0; k < geomArray.length; k++) {
                     geomList.add(geomArray[k]);
@@ -271,17 +270,16 @@ public class Clip implements WhiteboxPlugin {
             int numProcessors = Runtime.getRuntime().availableProcessors();
             ExecutorService executor = Executors.newFixedThreadPool(numProcessors);
 
+            // an R-tree of the clip polygons' bounding boxes is used to find
+            // the features that may intersect the clip region.
+            RTree clipIndex = clipRegion.getSpatialIndex();
+
             oldProgress = -1;
             for (i = 0; i < numFeatures; i++) {
                 rec = input.getRecord(i);
                 BoundingBox box = rec.getGeometry().getBox();
-                boolean isContained = false;
-                for (j = 0; j < numClipFeatures; j++) {
-                    if (clipBoxes[j].overlaps(box)) {
-                        isContained = true;
-                        break;
-                    }
-                }
+                boolean isContained = clipIndex.intersectsAny(box.getMinX(),
+                        box.getMinY(), box.getMaxX(), box.getMaxY());
                 if (isContained) {
                     geomArray = rec.getGeometry().getJTSGeometries();
                     geomList.clear();
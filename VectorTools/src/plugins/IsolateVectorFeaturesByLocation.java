@@ -29,6 +29,7 @@ import whitebox.geospatialfiles.shapefile.ShapeFileRecord;
 import whitebox.geospatialfiles.shapefile.ShapeType;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.structures.BoundingBox;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -312,9 +313,13 @@ public class IsolateVectorFeaturesByLocation implements WhiteboxPlugin {
                     new ArrayList<>();
             com.vividsolutions.jts.geom.Geometry outputGeometry = null;
             
+            // the parts of data record i are in positions partStarts[i] to
+            // partStarts[i + 1] - 1 of the list
+            int[] partStarts = new int[numRecsData + 1];
             updateProgress("Loop 1 of 2:", 0);
             n = 0;
             for (ShapeFileRecord record : dataShape.records) {
+                partStarts[n] = inputGeometryList.size();
                 if (record.getShapeType() != ShapeType.NULLSHAPE) {
                     recJTSGeometries = record.getGeometry().getJTSGeometries();
                     for (int a = 0; a < recJTSGeometries.length; a++) {
@@ -336,7 +341,10 @@ public class IsolateVectorFeaturesByLocation implements WhiteboxPlugin {
                     updateProgress("Loop 1 of 2:", progress);
                 }
             }
+            partStarts[n] = inputGeometryList.size();
             g1 = factory.buildGeometry(inputGeometryList);
+            com.vividsolutions.jts.geom.Geometry[] dataParts =
+                    inputGeometryList.toArray(new com.vividsolutions.jts.geom.Geometry[0]);
             inputGeometryList.clear();
             
             previousProgress = 0;
@@ -357,7 +365,9 @@ public class IsolateVectorFeaturesByLocation implements WhiteboxPlugin {
                         }
                         g2 = factory.buildGeometry(inputGeometryList);
                         inputGeometryList.clear();
-                        if (g2.intersects(g1)) {
+                        com.vividsolutions.jts.geom.Geometry nearby = getNearbyDataGeometry(dataShape,
+                                dataParts, partStarts, record, 0, factory);
+                        if (nearby != null && g2.intersects(nearby)) {
                             if (blnSelect) {
                                 // output this geometry to the output file.
                                 output.addRecord(record.getGeometry(), rec);
@@ -398,7 +408,9 @@ public class IsolateVectorFeaturesByLocation implements WhiteboxPlugin {
                         }
                         g2 = factory.buildGeometry(inputGeometryList);
                         inputGeometryList.clear();
-                        if (!g2.intersects(g1)) {
+                        com.vividsolutions.jts.geom.Geometry nearby = getNearbyDataGeometry(dataShape,
+                                dataParts, partStarts, record, 0, factory);
+                        if (nearby == null || !g2.intersects(nearby)) {
                             if (blnSelect) {
                                 // output this geometry to the output file.
                                 output.addRecord(record.getGeometry(), rec);
@@ -440,7 +452,9 @@ public class IsolateVectorFeaturesByLocation implements WhiteboxPlugin {
                         }
                         g2 = factory.buildGeometry(inputGeometryList);
                         inputGeometryList.clear();
-                        if (g2.within(g1)) {
+                        com.vividsolutions.jts.geom.Geometry nearby = getNearbyDataGeometry(dataShape,
+                                dataParts, partStarts, record, 0, factory);
+                        if (nearby != null && g2.within(nearby)) {
                             if (blnSelect) {
                                 // output this geometry to the output file.
                                 output.addRecord(record.getGeometry(), rec);
@@ -608,7 +622,9 @@ public class IsolateVectorFeaturesByLocation implements WhiteboxPlugin {
                         }
                         g2 = factory.buildGeometry(inputGeometryList);
                         inputGeometryList.clear();
-                        if (g2.coveredBy(g1)) {
+                        com.vividsolutions.jts.geom.Geometry nearby = getNearbyDataGeometry(dataShape,
+                                dataParts, partStarts, record, 0, factory);
+                        if (nearby != null && g2.coveredBy(nearby)) {
                             if (blnSelect) {
                                 // output this geometry to the output file.
                                 output.addRecord(record.getGeometry(), rec);
@@ -692,7 +708,9 @@ public class IsolateVectorFeaturesByLocation implements WhiteboxPlugin {
                         }
                         g2 = factory.buildGeometry(inputGeometryList);
                         inputGeometryList.clear();
-                        if (g2.touches(g1)) {
+                        com.vividsolutions.jts.geom.Geometry nearby = getNearbyDataGeometry(dataShape,
+                                dataParts, partStarts, record, 0, factory);
+                        if (nearby != null && g2.touches(nearby)) {
                             if (blnSelect) {
                                 // output this geometry to the output file.
                                 output.addRecord(record.getGeometry(), rec);
@@ -734,7 +752,9 @@ public class IsolateVectorFeaturesByLocation implements WhiteboxPlugin {
                         }
                         g2 = factory.buildGeometry(inputGeometryList);
                         inputGeometryList.clear();
-                        if (!g2.touches(g1)) {
+                        com.vividsolutions.jts.geom.Geometry nearby = getNearbyDataGeometry(dataShape,
+                                dataParts, partStarts, record, 0, factory);
+                        if (nearby == null || !g2.touches(nearby)) {
                             if (blnSelect) {
                                 // output this geometry to the output file.
                                 output.addRecord(record.getGeometry(), rec);
@@ -776,7 +796,9 @@ public class IsolateVectorFeaturesByLocation implements WhiteboxPlugin {
                         }
                         g2 = factory.buildGeometry(inputGeometryList);
                         inputGeometryList.clear();
-                        if (g2.isWithinDistance(g1, distThreshold)) {
+                        com.vividsolutions.jts.geom.Geometry nearby = getNearbyDataGeometry(dataShape,
+                                dataParts, partStarts, record, distThreshold, factory);
+                        if (nearby != null && g2.isWithinDistance(nearby, distThreshold)) {
                             if (blnSelect) {
                                 // output this geometry to the output file.
                                 output.addRecord(record.getGeometry(), rec);
@@ -824,6 +846,35 @@ public class IsolateVectorFeaturesByLocation implements WhiteboxPlugin {
         }
        
     }
+
+    /**
+     * Merges the parts of the data records whose bounding boxes lie within a
+     * distance of the bounding box of a feature into a single geometry. The
+     * records are found using the data file's spatial index. Predicates that
+     * depend only on the data near a feature, e.g. intersects, within and
+     * touches, give the same result for this geometry as for the combined
+     * geometry of all of the data records, but are much quicker to evaluate.
+     *
+     * @return The nearby geometry, or null if no data record is near the
+     * feature.
+     */
+    private com.vividsolutions.jts.geom.Geometry getNearbyDataGeometry(ShapeFile dataShape,
+            com.vividsolutions.jts.geom.Geometry[] dataParts, int[] partStarts,
+            ShapeFileRecord record, double distance, GeometryFactory factory) {
+        BoundingBox box = record.getGeometry().getBox();
+        int[] candidates = dataShape.getRecordIndicesInBoundingBox(box.getMinX() - distance,
+                box.getMinY() - distance, box.getMaxX() + distance, box.getMaxY() + distance);
+        ArrayList<com.vividsolutions.jts.geom.Geometry> nearbyParts = new ArrayList<>();
+        for (int i : candidates) {
+            for (int a = partStarts[i]; a < partStarts[i + 1]; a++) {
+                nearbyParts.add(dataParts[a]);
+            }
+        }
+        if (nearbyParts.isEmpty()) {
+            return null;
+        }
+        return factory.buildGeometry(nearbyParts);
+    }
     
 //    // This method is only used during testing.
 //    public static void main(String[] args) {
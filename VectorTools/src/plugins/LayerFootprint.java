@@ -221,7 +221,7 @@ public class LayerFootprint implements WhiteboxPlugin {
                 south = input.getSouth();// + gridResY / 2.0;
                 input.close();
             } else if (inputFile.toLowerCase().endsWith(".shp")) {
-                ShapeFile input = new ShapeFile(inputFile);
+                ShapeFile input = new ShapeFile(inputFile, true);
                 east = input.getxMax();
                 west = input.getxMin();
                 north = input.getyMax();
@@ -244,7 +244,7 @@ public class LayerFootprint implements WhiteboxPlugin {
 
             ShapeFile output = new ShapeFile(outputFile, ShapeType.POLYGON, fields);
             if (inputFile.toLowerCase().endsWith(".shp")) {
-                output.setProjectionStringFromOtherShapefile(new ShapeFile(inputFile));
+                output.setProjectionStringFromOtherShapefile(new ShapeFile(inputFile, true));
             }
 
             int[] parts = {0};
@@ -55,8 +55,9 @@ public class CreatePixelsContinuous {
     
     public void createPixels() {
         int i = 0;
+        double[] rawData = new double[mWB.getNumberColumns()];
         for (int row = mStartRow; row < mEndRow; row += resolutionFactor) {
-            double[] rawData = mWB.getRowValues(row);
+            mWB.getRowValues(row, rawData);
             double value;
             int entryNum;
             int j;
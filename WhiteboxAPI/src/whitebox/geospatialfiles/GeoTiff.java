@@ -43,9 +43,16 @@ import java.io.PrintStream;
 import java.io.RandomAccessFile;
 import java.nio.*;
 import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Low level read/write geotiff files.
@@ -62,6 +69,8 @@ public class GeoTiff {
     private FileChannel channel;
     private List<IFDEntry> tags = new ArrayList<>();
     private ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
+    // BigTIFF files have 8-byte offsets and counts and 20-byte IFD entries
+    private boolean bigTiff = false;
     private boolean readonly;
     private boolean showBytes = false, debugRead = false, debugReadGeoKey = false;
     private boolean showHeaderBytes = false;
@@ -443,7 +452,7 @@ public class GeoTiff {
         }
         readonly = true;
 
-        int nextOffset = readHeader(channel);
+        long nextOffset = readHeader(channel);
         while (nextOffset > 0) {
             nextOffset = readIFD(channel, nextOffset);
             parseGeoInfo();
@@ -459,7 +468,12 @@ public class GeoTiff {
             nTilesX = (nCols + tileWidth - 1) / tileWidth;
             nTilesY = (nRows + tileLength - 1) / tileLength;
         } else {
-            rowsPerStrip = findTag(Tag.RowsPerStrip).value[0];
+            // a single strip may omit the tag or give a huge value
+            IFDEntry rowsPerStripTag = findTag(Tag.RowsPerStrip);
+            rowsPerStrip = (rowsPerStripTag != null) ? rowsPerStripTag.value[0] : nRows;
+            if (rowsPerStrip <= 0 || rowsPerStrip > nRows) {
+                rowsPerStrip = nRows;
+            }
         }
     }
 
@@ -587,7 +601,25 @@ public class GeoTiff {
     }
     
     public int getCompressionType() {
-        return findTag(Tag.Compression).value[0];
+        IFDEntry compression = findTag(Tag.Compression);
+        return (compression != null) ? compression.value[0] : TiffCompression.NONE;
+    }
+
+    /**
+     * Returns whether the compression type of the file can be decoded. No
+     * compression, LZW, Deflate and PackBits are supported.
+     */
+    public boolean isCompressionSupported() {
+        return TiffCompression.isSupported(getCompressionType());
+    }
+
+    /**
+     * Returns the predictor that was applied before compression: 1 (none), 2
+     * (horizontal differencing) or 3 (floating point).
+     */
+    public int getPredictor() {
+        IFDEntry predictorTag = findTag(Tag.Predictor);
+        return (predictorTag != null) ? predictorTag.value[0] : TiffCompression.PREDICTOR_NONE;
     }
 
     double[] tileOrStripData;
@@ -608,9 +640,9 @@ public class GeoTiff {
             // figure out which strip the pixel is in
             int stripNum = row / rowsPerStrip;
             if (currentStrip != stripNum) {
-                tileOrStripData = getStripData(stripNum);
+                tileOrStripData = getSegmentData(stripNum);
                 if (tileOrStripData == null) {
-                    throw new Exception("Error reading data. It is likely that the TIFF file is of an unsupported type, possibly due to data compression.");
+                    throw new Exception("Error reading data. It is likely that the TIFF file is of an unsupported type.");
                 }
                 currentStrip = stripNum;
             }
@@ -621,360 +653,273 @@ public class GeoTiff {
             // figure out which tile the pixel is in
             int tileNum = row / tileLength * nTilesX + col / tileWidth;
             if (currentTile != tileNum) {
-                tileOrStripData = getTileData(tileNum);
+                tileOrStripData = getSegmentData(tileNum);
                 if (tileOrStripData == null) {
-                    throw new Exception("Error reading data. It is likely that the TIFF file is of an unsupported type, possibly due to data compression.");
+                    throw new Exception("Error reading data. It is likely that the TIFF file is of an unsupported type.");
                 }
                 currentTile = tileNum;
             }
             int tileRow = row % tileLength;
             int tileCol = col % tileWidth;
-            int tilePixelNum = tileRow * tileLength + tileCol;
+            int tilePixelNum = tileRow * tileWidth + tileCol;
             return tileOrStripData[tilePixelNum];
         }
     }
 
-    private double[] getTileData(int tile) {
-        try {
-            if (!tiledFormat) {
-                return null;
-            }
-            
-            double[] data;
-                    
-            int compressionType = findTag(Tag.Compression).value[0];
-            int sampleFormat = 1; //findTag(Tag.SampleFormat).value[0];
-
-            if (findTag(Tag.SampleFormat) != null) {
-                sampleFormat = findTag(Tag.SampleFormat).value[0];
-            }
-
-            if (getPhotometricInterpretation() != 2) {
-                int tileOffset = findTag(Tag.TileOffsets).value[tile];
-                int tileByteCount = findTag(Tag.TileByteCounts).value[tile];
-                int[] bitsPerSample = findTag(Tag.BitsPerSample).value;
-                int numPixelsInTile = tileByteCount / (bitsPerSample[0] / 8);
-                data = new double[numPixelsInTile];
-
-                channel.position(tileOffset);
-                int size = tileByteCount / 8;
-                ByteBuffer buffer = ByteBuffer.allocate(tileByteCount);
-                buffer.order(byteOrder);
-                
-                if (compressionType == 1) {
-
-                    channel.read(buffer);
-                    buffer.flip();
-
-                    if (sampleFormat == 1 && bitsPerSample[0] == 8) { // unsigned byte
-                        byte b;
-                        for (int i = 0; i < size; i++) {
-                            b = buffer.get();
-                            data[i] = (short) (0x000000FF & ((int) b));
-                        }
-                    } else if (sampleFormat == 2 && bitsPerSample[0] == 8) { // signed byte
-                        byte b;
-                        for (int i = 0; i < size; i++) {
-                            b = buffer.get();
-                            data[i] = b;
-                        }
-                    } else if (sampleFormat == 1 && bitsPerSample[0] == 16) { // unsigned 16-bit short
-                        int b1;
-                        int b2;
-                        for (int i = 0; i < numPixelsInTile; i++) {
-                            b1 = (0x000000FF & ((int) buffer.get()));
-                            b2 = (0x000000FF & ((int) buffer.get()));
-                            data[i] = (b2 << 8 | b1);
-                        }
-                    } else if (sampleFormat == 2 && bitsPerSample[0] == 16) { // signed 16-bit short
-                        ShortBuffer sb = buffer.asShortBuffer();
-                        short[] sa = new short[numPixelsInTile];
-                        sb.get(sa);
-                        sb = null;
-                        for (int j = 0; j < numPixelsInTile; j++) {
-                            data[j] = sa[j];
-                        }
-                        sa = null;
-                    } else if (sampleFormat == 1 && bitsPerSample[0] == 32) { // unsigned 32-bit int
-                        int b1, b2, b3, b4;
-                        for (int i = 0; i < numPixelsInTile; i++) {
-                            b1 = (0x000000FF & ((int) buffer.get()));
-                            b2 = (0x000000FF & ((int) buffer.get()));
-                            b3 = (0x000000FF & ((int) buffer.get()));
-                            b4 = (0x000000FF & ((int) buffer.get()));
-                            data[i] = ((long) (b1 << 24 | b2 << 16 | b3 << 8 | b4)) & 0xFFFFFFFFL;
-                        }
+    /**
+     * Receives the rows of the image from readRows.
+     */
+    public interface RowHandler {
+
+        /**
+         * Receives a row of the image. The array is reused for the next row.
+         *
+         * @param row The zero-based row number.
+         * @param values The values of the row.
+         * @return false to stop reading.
+         * @throws Exception if the row cannot be handled.
+         */
+        boolean handleRow(int row, double[] values) throws Exception;
+    }
 
-                    } else if (sampleFormat == 2 && bitsPerSample[0] == 32) { // signed 32-bit int
-                        IntBuffer ib = buffer.asIntBuffer();
-                        int[] ia = new int[numPixelsInTile];
-                        ib.get(ia);
-                        ib = null;
-                        for (int j = 0; j < numPixelsInTile; j++) {
-                            data[j] = ia[j];
-                        }
-                        ia = null;
-                    } else if (sampleFormat == 1 && bitsPerSample[0] == 64) { // unsigned 64-bit long
-                        // I don't know what data type you could cast an unsigned long into. Perhaps a BigInteger.
-                        return null;
-                    } else if (sampleFormat == 2 && bitsPerSample[0] == 64) { // signed 64-bit long
-                        LongBuffer lb = buffer.asLongBuffer();
-                        long[] la = new long[numPixelsInTile];
-                        lb.get(la);
-                        lb = null;
-                        for (int j = 0; j < numPixelsInTile; j++) {
-                            data[j] = la[j];
-                        }
-                        la = null;
-                    } else if (sampleFormat == 3 && bitsPerSample[0] == 32) { // 32-bit single-precision float
-                        FloatBuffer fb = buffer.asFloatBuffer();
-                        float[] fa = new float[numPixelsInTile];
-                        fb.get(fa);
-                        fb = null;
-                        for (int j = 0; j < numPixelsInTile; j++) {
-                            data[j] = fa[j];
-                        }
-                        fa = null;
-                    } else if (sampleFormat == 3 && bitsPerSample[0] == 64) { // 64-bit double-precision float
-                        DoubleBuffer db = buffer.asDoubleBuffer();
-                        double[] da = new double[numPixelsInTile];
-                        db.get(da);
-                        db = null;
-                        data = da.clone();
-                        da = null;
-                    } else {
-                        return null;
+    /**
+     * Reads the image from top to bottom, passing each row to a handler on
+     * the calling thread. The strips or tiles are decompressed and decoded on
+     * several threads, a few rows of tiles ahead of the row being handled,
+     * so that only those rows of tiles are held in memory.
+     *
+     * @param handler Receives the rows.
+     * @param numThreads The number of decoding threads.
+     * @return false if the handler stopped the reading.
+     * @throws Exception if the file cannot be read or is of an unsupported
+     * type, or if the handler throws an exception.
+     */
+    public boolean readRows(RowHandler handler, int numThreads) throws Exception {
+        if (!isCompressionSupported()) {
+            throw new IOException("TIFF compression type " + getCompressionType() + " is not supported.");
+        }
+        int segmentsAcross = tiledFormat ? nTilesX : 1;
+        int segmentWidth = tiledFormat ? tileWidth : nCols;
+        int segmentRows = tiledFormat ? tileLength : rowsPerStrip;
+        int numBands = (nRows + segmentRows - 1) / segmentRows;
+        // the number of bands of strips or tiles that are decoded ahead of
+        // the one being handled, enough to keep the threads busy.
+        int lookAhead = Math.max(1, (2 * numThreads + segmentsAcross - 1) / segmentsAcross);
+        ExecutorService decoders = Executors.newFixedThreadPool(Math.max(1, numThreads));
+        try {
+            ArrayDeque<List<Future<double[]>>> pending = new ArrayDeque<>();
+            int nextBand = 0;
+            double[] values = new double[nCols];
+            double[][] segments = new double[segmentsAcross][];
+            for (int band = 0; band < numBands; band++) {
+                while (nextBand < numBands && nextBand <= band + lookAhead) {
+                    List<Future<double[]>> futures = new ArrayList<>();
+                    for (int s = 0; s < segmentsAcross; s++) {
+                        final int segment = nextBand * segmentsAcross + s;
+                        futures.add(decoders.submit(new Callable<double[]>() {
+                            @Override
+                            public double[] call() throws IOException {
+                                double[] data = getSegmentData(segment);
+                                if (data == null) {
+                                    throw new IOException("The TIFF file is of an unsupported type.");
+                                }
+                                return data;
+                            }
+                        }));
                     }
-                } else if (compressionType == 32773) {
-                    return null;
-                } else {
-                    return null;
-                }
-
-            } else {
-                int tileOffset = findTag(Tag.TileOffsets).value[tile];
-                int tileByteCount = findTag(Tag.TileByteCounts).value[tile];
-                int[] bitsPerSample = findTag(Tag.BitsPerSample).value;
-                int totalBitsPerSample = 0;
-                for (int a = 0; a < bitsPerSample.length; a++) {
-                    totalBitsPerSample += bitsPerSample[a];
+                    pending.add(futures);
+                    nextBand++;
                 }
-                int numPixelsInTile = tileByteCount / (totalBitsPerSample / 8);
-                data = new double[numPixelsInTile];
-
-                channel.position(tileOffset);
-                ByteBuffer buffer = ByteBuffer.allocate(tileByteCount);
-                buffer.order(byteOrder);
-                
-                try {
-                    if (compressionType == 1) {
-                        channel.read(buffer);
-                        buffer.flip();
-
-                        if (totalBitsPerSample == 24 && bitsPerSample.length == 3) {
-                            int r, g, b;
-                            for (int i = 0; i < nCols; i++) {
-                                r = (0x000000FF & ((int) buffer.get()));
-                                g = (0x000000FF & ((int) buffer.get()));
-                                b = (0x000000FF & ((int) buffer.get()));
-                                data[i] = (double) ((255 << 24) | (b << 16) | (g << 8) | r);
-                            }
-                        } else if (totalBitsPerSample == 32 && bitsPerSample.length == 4) {
-                            int r, g, b, a;
-                            for (int i = 0; i < nCols; i++) {
-                                r = (0x000000FF & ((int) buffer.get()));
-                                g = (0x000000FF & ((int) buffer.get()));
-                                b = (0x000000FF & ((int) buffer.get()));
-                                a = (0x000000FF & ((int) buffer.get()));
-                                data[i] = (double) ((a << 24) | (b << 16) | (g << 8) | r);
-                            }
-                        } else {
-                            return null;
+                List<Future<double[]>> futures = pending.remove();
+                for (int s = 0; s < segmentsAcross; s++) {
+                    try {
+                        segments[s] = futures.get(s).get();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof Exception) {
+                            throw (Exception) cause;
+                        } else if (cause instanceof Error) {
+                            throw (Error) cause;
                         }
-
-                    } else if (compressionType == 32773) {
-                        return null;
-                    } else {
-                        return null;
+                        throw e;
                     }
+                }
 
-                } catch (IOException e) {
-                    // do nothing
+                int firstRow = band * segmentRows;
+                int lastRow = Math.min(nRows, firstRow + segmentRows);
+                for (int row = firstRow; row < lastRow; row++) {
+                    int start = (row - firstRow) * segmentWidth;
+                    for (int s = 0; s < segmentsAcross; s++) {
+                        int col = s * segmentWidth;
+                        int count = Math.min(segmentWidth, nCols - col);
+                        // uncompressed strips may be cut short
+                        int available = Math.max(0, Math.min(count, segments[s].length - start));
+                        System.arraycopy(segments[s], start, values, col, available);
+                        Arrays.fill(values, col + available, col + count, nodata);
+                    }
+                    if (!handler.handleRow(row, values)) {
+                        return false;
+                    }
                 }
             }
-            return data;
-        } catch (Exception e) {
-            return null;
+            return true;
+        } finally {
+            decoders.shutdownNow();
         }
     }
 
-    private double[] getStripData(int stripNum) {
-        double[] data;
-        int compressionType = findTag(Tag.Compression).value[0];
+    /**
+     * Reads a strip or tile, decompresses it and undoes any predictor. This
+     * may be called by several threads at once.
+     *
+     * @param segment The strip or tile number.
+     * @return The bytes of the strip or tile, in the byte order of the file.
+     */
+    private ByteBuffer readSegment(int segment) throws IOException {
+        int width;
+        int numRows;
+        IFDEntry offsets;
+        IFDEntry byteCounts;
+        if (tiledFormat) {
+            width = tileWidth;
+            numRows = tileLength;
+            offsets = findTag(Tag.TileOffsets);
+            byteCounts = findTag(Tag.TileByteCounts);
+        } else {
+            width = nCols;
+            numRows = Math.min(rowsPerStrip, nRows - segment * rowsPerStrip);
+            offsets = findTag(Tag.StripOffsets);
+            byteCounts = findTag(Tag.StripByteCounts);
+        }
+        long offset = (offsets.valueL != null) ? offsets.valueL[segment]
+                : offsets.value[segment] & 0xFFFFFFFFL;
+        int byteCount = byteCounts.value[segment];
         int[] bitsPerSample = findTag(Tag.BitsPerSample).value;
-        int sampleFormat = 1; //findTag(Tag.SampleFormat).value[0];
+        int bytesPerSample = bitsPerSample[0] / 8;
+        int bytesPerPixel = getNumberBitsPerSample() / 8;
 
-        if (findTag(Tag.SampleFormat) != null) {
-            sampleFormat = findTag(Tag.SampleFormat).value[0];
+        ByteBuffer encoded = ByteBuffer.allocate(byteCount);
+        while (encoded.hasRemaining()) {
+            if (channel.read(encoded, offset + encoded.position()) < 0) {
+                break;
+            }
         }
-        if (tiledFormat) {
-            return null; 
-        }
-        int stripOffset = findTag(Tag.StripOffsets).value[stripNum];
-        int stripByteSize = findTag(Tag.StripByteCounts).value[stripNum];
-        
-        if (getPhotometricInterpretation() != 2) {
-            int numPixelsInStrip = stripByteSize / (bitsPerSample[0] / 8);
-            data = new double[numPixelsInStrip];
-            try {
-                channel.position(stripOffset);
-                ByteBuffer buffer = ByteBuffer.allocate(stripByteSize);
-                buffer.order(byteOrder);
-
-                if (compressionType == 1) {
-
-                    channel.read(buffer);
-                    buffer.flip();
-
-                    if (sampleFormat == 1 && bitsPerSample[0] == 8) { // unsigned byte
-                        byte b;
-                        for (int i = 0; i < numPixelsInStrip; i++) {
-                            b = buffer.get();
-                            data[i] = (short) (0x000000FF & ((int) b));
-                        }
-                    } else if (sampleFormat == 2 && bitsPerSample[0] == 8) { // signed byte
-                        byte b;
-                        for (int i = 0; i < numPixelsInStrip; i++) {
-                            b = buffer.get();
-                            data[i] = b;
-                        }
-                    } else if (sampleFormat == 1 && bitsPerSample[0] == 16) { // unsigned 16-bit short
-                        int b1;
-                        int b2;
-                        for (int i = 0; i < numPixelsInStrip; i++) {
-                            b1 = (0x000000FF & ((int) buffer.get()));
-                            b2 = (0x000000FF & ((int) buffer.get()));
-                            data[i] = (b2 << 8 | b1);
-                        }
-                    } else if (sampleFormat == 2 && bitsPerSample[0] == 16) { // signed 16-bit short
-                        ShortBuffer sb = buffer.asShortBuffer();
-                        short[] sa = new short[numPixelsInStrip];
-                        sb.get(sa);
-                        sb = null;
-                        for (int j = 0; j < numPixelsInStrip; j++) {
-                            data[j] = sa[j];
-                        }
-                        sa = null;
-                    } else if (sampleFormat == 1 && bitsPerSample[0] == 32) { // unsigned 32-bit int
-                        int b1, b2, b3, b4;
-                        for (int i = 0; i < numPixelsInStrip; i++) {
-                            b1 = (0x000000FF & ((int) buffer.get()));
-                            b2 = (0x000000FF & ((int) buffer.get()));
-                            b3 = (0x000000FF & ((int) buffer.get()));
-                            b4 = (0x000000FF & ((int) buffer.get()));
-                            data[i] = ((long) (b1 << 24 | b2 << 16 | b3 << 8 | b4)) & 0xFFFFFFFFL;
-                        }
 
-                    } else if (sampleFormat == 2 && bitsPerSample[0] == 32) { // signed 32-bit int
-                        IntBuffer ib = buffer.asIntBuffer();
-                        int[] ia = new int[numPixelsInStrip];
-                        ib.get(ia);
-                        ib = null;
-                        for (int j = 0; j < numPixelsInStrip; j++) {
-                            data[j] = ia[j];
-                        }
-                        ia = null;
-                    } else if (sampleFormat == 1 && bitsPerSample[0] == 64) { // unsigned 64-bit long
-                        // I don't know what data type you could cast an unsigned long into. Perhaps a BigInteger.
-                        return null;
-                    } else if (sampleFormat == 2 && bitsPerSample[0] == 64) { // signed 64-bit long
-                        LongBuffer lb = buffer.asLongBuffer();
-                        long[] la = new long[numPixelsInStrip];
-                        lb.get(la);
-                        lb = null;
-                        for (int j = 0; j < numPixelsInStrip; j++) {
-                            data[j] = la[j];
-                        }
-                        la = null;
-                    } else if (sampleFormat == 3 && bitsPerSample[0] == 32) { // 32-bit single-precision float
-                        FloatBuffer fb = buffer.asFloatBuffer();
-                        float[] fa = new float[numPixelsInStrip];
-                        fb.get(fa);
-                        fb = null;
-                        for (int j = 0; j < numPixelsInStrip; j++) {
-                            data[j] = fa[j];
-                        }
-                        fa = null;
-                    } else if (sampleFormat == 3 && bitsPerSample[0] == 64) { // 64-bit double-precision float
-                        DoubleBuffer db = buffer.asDoubleBuffer();
-                        double[] da = new double[numPixelsInStrip];
-                        db.get(da);
-                        db = null;
-                        data = da.clone();
-                        da = null;
-                    } else {
-                        return null;
-                    }
-                } else if (compressionType == 32773) {
-                    return null;
-                } else {
-                    return null;
-                }
+        int compressionType = getCompressionType();
+        byte[] decoded;
+        if (compressionType == TiffCompression.NONE) {
+            decoded = encoded.array();
+        } else {
+            decoded = new byte[width * numRows * bytesPerPixel];
+            TiffCompression.decode(compressionType, encoded.array(), decoded);
+        }
 
-            } catch (IOException e) {
-                // do nothing
-            }
+        int predictor = getPredictor();
+        if (predictor == TiffCompression.PREDICTOR_HORIZONTAL) {
+            TiffCompression.undoHorizontalPredictor(decoded, width, bitsPerSample.length,
+                    bytesPerSample, byteOrder);
+        } else if (predictor == TiffCompression.PREDICTOR_FLOATING_POINT) {
+            TiffCompression.undoFloatingPointPredictor(decoded, width, bitsPerSample.length,
+                    bytesPerSample, byteOrder);
+        }
 
-        } else {
-            int totalBitsPerSample = 0;
-            for (int a = 0; a < bitsPerSample.length; a++) {
-                totalBitsPerSample += bitsPerSample[a];
+        ByteBuffer buffer = ByteBuffer.wrap(decoded);
+        buffer.order(byteOrder);
+        return buffer;
+    }
+
+    /**
+     * Reads and decodes a strip or tile. This may be called by several
+     * threads at once.
+     *
+     * @param segment The strip or tile number.
+     * @return The value of each pixel of the strip or tile, in row-major
+     * order, or null if the type of data is not supported. RGB pixels are
+     * packed into a single value.
+     */
+    private double[] getSegmentData(int segment) {
+        try {
+            ByteBuffer buffer = readSegment(segment);
+            int[] bitsPerSample = findTag(Tag.BitsPerSample).value;
+            int sampleFormat = 1;
+            if (findTag(Tag.SampleFormat) != null) {
+                sampleFormat = findTag(Tag.SampleFormat).value[0];
             }
-            int numPixelsInStrip = stripByteSize / (totalBitsPerSample / 8);
-            data = new double[numPixelsInStrip];
-            
-            try {
-                channel.position(stripOffset);
-                ByteBuffer buffer = ByteBuffer.allocate(stripByteSize);
-                buffer.order(byteOrder);
-
-                if (compressionType == 1) {
-
-                    channel.read(buffer);
-                    buffer.flip();
-
-                    if (totalBitsPerSample == 24 && bitsPerSample.length == 3) {
-                        int r, g, b;
-                        for (int i = 0; i < nCols; i++) {
-                            r = (0x000000FF & ((int) buffer.get()));
-                            g = (0x000000FF & ((int) buffer.get()));
-                            b = (0x000000FF & ((int) buffer.get()));
-                            data[i] = (double) ((255 << 24) | (b << 16) | (g << 8) | r);
-                        }
-                    } else if (totalBitsPerSample == 32 && bitsPerSample.length == 4) {
-                        int r, g, b, a;
-                        for (int i = 0; i < nCols; i++) {
-                            r = (0x000000FF & ((int) buffer.get()));
-                            g = (0x000000FF & ((int) buffer.get()));
-                            b = (0x000000FF & ((int) buffer.get()));
-                            a = (0x000000FF & ((int) buffer.get()));
-                            data[i] = (double) ((a << 24) | (b << 16) | (g << 8) | r);
-                        }
-                    } else {
-                        return null;
-                    }
+            int bytesPerPixel = getNumberBitsPerSample() / 8;
+            if (bytesPerPixel == 0) {
+                return null;
+            }
+            int numPixels = buffer.capacity() / bytesPerPixel;
+            double[] data = new double[numPixels];
 
-                } else if (compressionType == 32773) {
+            if (getPhotometricInterpretation() != 2) {
+                // only the first sample of each pixel is read
+                int bits = bitsPerSample[0];
+                if (sampleFormat == 1 && bits == 8) { // unsigned byte
+                    for (int i = 0, pos = 0; i < numPixels; i++, pos += bytesPerPixel) {
+                        data[i] = buffer.get(pos) & 0xFF;
+                    }
+                } else if (sampleFormat == 2 && bits == 8) { // signed byte
+                    for (int i = 0, pos = 0; i < numPixels; i++, pos += bytesPerPixel) {
+                        data[i] = buffer.get(pos);
+                    }
+                } else if (sampleFormat == 1 && bits == 16) { // unsigned 16-bit short
+                    for (int i = 0, pos = 0; i < numPixels; i++, pos += bytesPerPixel) {
+                        data[i] = buffer.getShort(pos) & 0xFFFF;
+                    }
+                } else if (sampleFormat == 2 && bits == 16) { // signed 16-bit short
+                    for (int i = 0, pos = 0; i < numPixels; i++, pos += bytesPerPixel) {
+                        data[i] = buffer.getShort(pos);
+                    }
+                } else if (sampleFormat == 1 && bits == 32) { // unsigned 32-bit int
+                    for (int i = 0, pos = 0; i < numPixels; i++, pos += bytesPerPixel) {
+                        data[i] = buffer.getInt(pos) & 0xFFFFFFFFL;
+                    }
+                } else if (sampleFormat == 2 && bits == 32) { // signed 32-bit int
+                    for (int i = 0, pos = 0; i < numPixels; i++, pos += bytesPerPixel) {
+                        data[i] = buffer.getInt(pos);
+                    }
+                } else if (sampleFormat == 2 && bits == 64) { // signed 64-bit long
+                    for (int i = 0, pos = 0; i < numPixels; i++, pos += bytesPerPixel) {
+                        data[i] = buffer.getLong(pos);
+                    }
+                } else if (sampleFormat == 3 && bits == 32) { // 32-bit single-precision float
+                    for (int i = 0, pos = 0; i < numPixels; i++, pos += bytesPerPixel) {
+                        data[i] = buffer.getFloat(pos);
+                    }
+                } else if (sampleFormat == 3 && bits == 64) { // 64-bit double-precision float
+                    for (int i = 0, pos = 0; i < numPixels; i++, pos += bytesPerPixel) {
+                        data[i] = buffer.getDouble(pos);
+                    }
+                } else {
+                    // unsigned 64-bit values have no exact counterpart
                     return null;
+                }
+            } else {
+                int r, g, b, a;
+                if (bytesPerPixel == 3 && bitsPerSample.length == 3) {
+                    for (int i = 0, pos = 0; i < numPixels; i++, pos += 3) {
+                        r = buffer.get(pos) & 0xFF;
+                        g = buffer.get(pos + 1) & 0xFF;
+                        b = buffer.get(pos + 2) & 0xFF;
+                        data[i] = (double) ((255 << 24) | (b << 16) | (g << 8) | r);
+                    }
+                } else if (bytesPerPixel == 4 && bitsPerSample.length == 4) {
+                    for (int i = 0, pos = 0; i < numPixels; i++, pos += 4) {
+                        r = buffer.get(pos) & 0xFF;
+                        g = buffer.get(pos + 1) & 0xFF;
+                        b = buffer.get(pos + 2) & 0xFF;
+                        a = buffer.get(pos + 3) & 0xFF;
+                        data[i] = (double) ((a << 24) | (b << 16) | (g << 8) | r);
+                    }
                 } else {
                     return null;
                 }
-
-            } catch (IOException e) {
-                return null;
             }
+            return data;
+        } catch (IOException e) {
+            return null;
         }
-        return data;
     }
 
 //    public double[] getRowData(int row) {
@@ -1165,10 +1110,10 @@ public class GeoTiff {
 //        }
 //    }
 
-    private int readHeader(FileChannel channel) throws IOException {
+    private long readHeader(FileChannel channel) throws IOException {
         channel.position(0);
 
-        ByteBuffer buffer = ByteBuffer.allocate(8);
+        ByteBuffer buffer = ByteBuffer.allocate(16);
         channel.read(buffer);
         buffer.flip();
         if (showHeaderBytes) {
@@ -1182,8 +1127,23 @@ public class GeoTiff {
             byteOrder = ByteOrder.LITTLE_ENDIAN;
         }
         buffer.order(byteOrder);
-        buffer.position(4);
-        int firstIFD = buffer.getInt();
+        buffer.position(2);
+        int version = readUShortValue(buffer);
+        long firstIFD;
+        if (version == 43) {
+            // BigTIFF: the offset size (8) and a zero follow the version
+            bigTiff = true;
+            int offsetSize = readUShortValue(buffer);
+            if (offsetSize != 8) {
+                throw new IOException("Unsupported BigTIFF offset size: " + offsetSize);
+            }
+            buffer.position(8);
+            firstIFD = buffer.getLong();
+        } else if (version == 42) {
+            firstIFD = buffer.getInt() & 0xFFFFFFFFL;
+        } else {
+            throw new IOException("The file is not a TIFF file.");
+        }
         if (debugRead) {
             System.out.println(" firstIFD == " + firstIFD);
         }
@@ -1195,61 +1155,64 @@ public class GeoTiff {
         return byteOrder;
     }
 
-    private int readIFD(FileChannel channel, int start) throws IOException {
+    private long readIFD(FileChannel channel, long start) throws IOException {
         channel.position(start);
 
-        ByteBuffer buffer = ByteBuffer.allocate(2);
+        int countSize = bigTiff ? 8 : 2;
+        ByteBuffer buffer = ByteBuffer.allocate(countSize);
         buffer.order(byteOrder);
 
         int n = channel.read(buffer);
         buffer.flip();
         if (showBytes) {
-            printBytes(System.out, "IFD", buffer, 2);
+            printBytes(System.out, "IFD", buffer, countSize);
             buffer.rewind();
         }
-        short nentries = buffer.getShort();
+        long nentries = bigTiff ? buffer.getLong() : readUShortValue(buffer);
         if (debugRead) {
             System.out.println(" nentries = " + nentries);
         }
 
-        start += 2;
-        for (int i = 0; i < nentries; i++) {
+        start += countSize;
+        int entrySize = bigTiff ? 20 : 12;
+        for (long i = 0; i < nentries; i++) {
             IFDEntry ifd = readIFDEntry(channel, start);
             if (debugRead) {
                 System.out.println(i + " == " + ifd);
             }
 
             tags.add(ifd);
-            start += 12;
+            start += entrySize;
         }
 
         if (debugRead) {
             System.out.println(" looking for nextIFD at pos == " + channel.position() + " start = " + start);
         }
         channel.position(start);
-        buffer = ByteBuffer.allocate(4);
+        buffer = ByteBuffer.allocate(bigTiff ? 8 : 4);
         buffer.order(byteOrder);
         n = channel.read(buffer);
         buffer.flip();
-        int nextIFD = buffer.getInt();
+        long nextIFD = bigTiff ? buffer.getLong() : buffer.getInt() & 0xFFFFFFFFL;
         if (debugRead) {
             System.out.println(" nextIFD == " + nextIFD);
         }
         return nextIFD;
     }
 
-    private IFDEntry readIFDEntry(FileChannel channel, int start) throws IOException {
+    private IFDEntry readIFDEntry(FileChannel channel, long start) throws IOException {
         if (debugRead) {
             System.out.println("readIFDEntry starting position to " + start);
         }
 
         channel.position(start);
-        ByteBuffer buffer = ByteBuffer.allocate(12);
+        int entrySize = bigTiff ? 20 : 12;
+        ByteBuffer buffer = ByteBuffer.allocate(entrySize);
         buffer.order(byteOrder);
         channel.read(buffer);
         buffer.flip();
         if (showBytes) {
-            printBytes(System.out, "IFDEntry bytes", buffer, 12);
+            printBytes(System.out, "IFDEntry bytes", buffer, entrySize);
         }
 
         IFDEntry ifd;
@@ -1260,14 +1223,17 @@ public class GeoTiff {
             tag = new Tag(code);
         }
         FieldType type = FieldType.get(readUShortValue(buffer));
-        int count = buffer.getInt();
+        long count = bigTiff ? buffer.getLong() : buffer.getInt() & 0xFFFFFFFFL;
+        if (count * type.size > Integer.MAX_VALUE) {
+            throw new IOException("The " + tag + " tag is too large.");
+        }
 
-        ifd = new IFDEntry(tag, type, count);
+        ifd = new IFDEntry(tag, type, (int) count);
 
-        if (ifd.count * ifd.type.size <= 4) {
+        if (ifd.count * ifd.type.size <= (bigTiff ? 8 : 4)) {
             readValues(buffer, ifd);
         } else {
-            int offset = buffer.getInt();
+            long offset = bigTiff ? buffer.getLong() : buffer.getInt() & 0xFFFFFFFFL;
             if (debugRead) {
                 System.out.println("position to " + offset);
             }
@@ -1337,6 +1303,15 @@ public class GeoTiff {
                 ifd.valueD[i] = buffer.getDouble();
             }
 
+        } else if (ifd.type == FieldType.LONG8 || ifd.type == FieldType.SLONG8
+                || ifd.type == FieldType.IFD8) {
+            ifd.valueL = new long[ifd.count];
+            ifd.value = new int[ifd.count];
+            for (int i = 0; i < ifd.count; i++) {
+                ifd.valueL[i] = buffer.getLong();
+                ifd.value[i] = (int) ifd.valueL[i];
+            }
+
         } else {
             ifd.value = new int[ifd.count];
             for (int i = 0; i < ifd.count; i++) {
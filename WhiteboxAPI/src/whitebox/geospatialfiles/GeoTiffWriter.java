@@ -0,0 +1,680 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import whitebox.geospatialfiles.WhiteboxRasterBase.DataScale;
+import whitebox.parallel.LocalOperation;
+
+/**
+ * Writes a Whitebox raster to a tiled GeoTIFF file. The rows of the raster
+ * are read one at a time and each tile is written as soon as the rows that it
+ * covers have been read, so that rasters much larger than the available
+ * memory can be written. The tiles are compressed with Deflate on several
+ * threads.
+ *
+ * The file holds the raster at full resolution followed by reduced-resolution
+ * overviews, each holding every 2nd, 4th, 8th... cell of every 2nd, 4th,
+ * 8th... row, until the coarsest fits into a single tile. The georeferencing
+ * is written as the GeoKeys that can be derived from the raster's header
+ * file. A BigTIFF file is written when the file would otherwise exceed 4 GB.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public class GeoTiffWriter {
+
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int TYPE_DOUBLE = 12;
+    private static final int TYPE_LONG8 = 16;
+    private static final long MAX_CLASSIC_TIFF_SIZE = 0xFFFFFFFFL;
+    private static final int HEADER_SIZE = 16;
+    private static final Pattern EPSG_CODE = Pattern.compile("EPSG\\D{0,3}(\\d{4,5})",
+            Pattern.CASE_INSENSITIVE);
+    private final String fileName;
+    private final WhiteboxRasterBase raster;
+    private boolean compressed = true;
+    private boolean bigTiff = false;
+    private boolean overviews = true;
+    private int tileSize = 256;
+    private int numThreads = 1;
+    private int samplesPerPixel;
+    private int bytesPerSample;
+    private int bytesPerPixel;
+    private int sampleFormat;
+    private int predictor;
+
+    /**
+     * Constructor.
+     *
+     * @param fileName The name of the GeoTIFF file to write.
+     * @param raster The raster to write.
+     */
+    public GeoTiffWriter(String fileName, WhiteboxRasterBase raster) {
+        this.fileName = fileName;
+        this.raster = raster;
+    }
+
+    /**
+     * Sets whether the tiles are compressed with Deflate. The default is true.
+     */
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    /**
+     * Sets whether a BigTIFF file is written even when the file would be
+     * smaller than 4 GB. The default is false.
+     */
+    public void setBigTiff(boolean bigTiff) {
+        this.bigTiff = bigTiff;
+    }
+
+    /**
+     * Sets whether reduced-resolution overviews are written. The default is
+     * true.
+     */
+    public void setOverviews(boolean overviews) {
+        this.overviews = overviews;
+    }
+
+    /**
+     * Sets the width and height of the tiles, which must be a multiple of 16.
+     * The default is 256.
+     */
+    public void setTileSize(int tileSize) {
+        if (tileSize <= 0 || tileSize % 16 != 0) {
+            throw new IllegalArgumentException("The tile size must be a positive multiple of 16.");
+        }
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * Sets the number of threads on which tiles are compressed. The default
+     * is 1.
+     */
+    public void setNumberOfThreads(int numThreads) {
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    /**
+     * Writes the GeoTIFF file.
+     *
+     * @param monitor Receives the progress of the operation and may cancel
+     * it; may be null.
+     * @return false if the operation was cancelled, in which case the file is
+     * deleted.
+     */
+    public boolean write(LocalOperation.ProgressMonitor monitor) throws Exception {
+        setSampleLayout();
+        int rows = raster.getNumberRows();
+        int cols = raster.getNumberColumns();
+        List<Level> levels = new ArrayList<>();
+        levels.add(new Level(1, rows, cols));
+        for (int f = 2; overviews && Math.max(levels.get(levels.size() - 1).rows,
+                levels.get(levels.size() - 1).cols) > tileSize; f *= 2) {
+            levels.add(new Level(f, (rows - 1) / f + 1, (cols - 1) / f + 1));
+        }
+
+        File file = new File(fileName);
+        if (file.exists()) {
+            file.delete();
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "GeoTIFF tile compressor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        ArrayDeque<PendingTile> pending = new ArrayDeque<>();
+        boolean complete = false;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel channel = raf.getChannel();
+            channel.position(HEADER_SIZE);
+            boolean sequentialReadAhead = raster.isSequentialReadAhead();
+            raster.setSequentialReadAhead(true);
+            try {
+                double[] values = new double[cols];
+                int oldProgress = -1;
+                for (int row = 0; row < rows; row++) {
+                    raster.getRowValues(row, values);
+                    for (Level level : levels) {
+                        if (row % level.factor == 0) {
+                            level.addRow(values);
+                            if (level.isTileRowFull()) {
+                                level.submitTileRow(executor, pending);
+                                while (pending.size() > numThreads * 4) {
+                                    writeTile(pending.removeFirst(), channel);
+                                }
+                            }
+                        }
+                    }
+                    int progress = (int) (100f * (row + 1) / rows);
+                    if (progress != oldProgress) {
+                        oldProgress = progress;
+                        if (monitor != null && !monitor.updateProgress(progress)) {
+                            return false;
+                        }
+                    }
+                }
+            } finally {
+                raster.setSequentialReadAhead(sequentialReadAhead);
+            }
+            while (!pending.isEmpty()) {
+                writeTile(pending.removeFirst(), channel);
+            }
+
+            long dataEnd = channel.position();
+            boolean big = bigTiff;
+            List<byte[]> ifds = createIFDs(levels, dataEnd, big);
+            long fileSize = dataEnd + (dataEnd & 1);
+            for (byte[] ifd : ifds) {
+                fileSize += ifd.length;
+            }
+            if (!big && fileSize > MAX_CLASSIC_TIFF_SIZE) {
+                big = true;
+                ifds = createIFDs(levels, dataEnd, big);
+            }
+            long position = dataEnd + (dataEnd & 1);
+            channel.position(position);
+            for (byte[] ifd : ifds) {
+                writeFully(channel, ByteBuffer.wrap(ifd));
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.put((byte) 'I').put((byte) 'I');
+            if (big) {
+                header.putShort((short) 43).putShort((short) 8).putShort((short) 0).putLong(position);
+            } else {
+                header.putShort((short) 42).putInt((int) position);
+            }
+            header.rewind();
+            channel.position(0);
+            writeFully(channel, header);
+            complete = true;
+            return true;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw (Error) cause;
+        } finally {
+            for (PendingTile tile : pending) {
+                tile.data.cancel(true);
+            }
+            executor.shutdownNow();
+            if (!complete) {
+                file.delete();
+            }
+        }
+    }
+
+    private void setSampleLayout() {
+        if (raster.getDataScale() == DataScale.RGB) {
+            samplesPerPixel = 4;
+            bytesPerSample = 1;
+            sampleFormat = 1;
+        } else {
+            samplesPerPixel = 1;
+            switch (raster.getDataType()) {
+                case DOUBLE:
+                    bytesPerSample = 8;
+                    sampleFormat = 3;
+                    break;
+                case FLOAT:
+                    bytesPerSample = 4;
+                    sampleFormat = 3;
+                    break;
+                case INTEGER:
+                    bytesPerSample = 2;
+                    sampleFormat = 2;
+                    break;
+                default:
+                    bytesPerSample = 1;
+                    sampleFormat = 1;
+            }
+        }
+        bytesPerPixel = samplesPerPixel * bytesPerSample;
+        if (!compressed) {
+            predictor = TiffCompression.PREDICTOR_NONE;
+        } else if (sampleFormat == 3) {
+            predictor = TiffCompression.PREDICTOR_FLOATING_POINT;
+        } else {
+            predictor = TiffCompression.PREDICTOR_HORIZONTAL;
+        }
+    }
+
+    private static void writeTile(PendingTile tile, FileChannel channel)
+            throws IOException, InterruptedException, ExecutionException {
+        byte[] data = tile.data.get();
+        tile.level.offsets[tile.index] = channel.position();
+        tile.level.byteCounts[tile.index] = data.length;
+        writeFully(channel, ByteBuffer.wrap(data));
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private List<byte[]> createIFDs(List<Level> levels, long dataEnd, boolean big) {
+        List<byte[]> ifds = new ArrayList<>();
+        long position = dataEnd + (dataEnd & 1);
+        for (int i = 0; i < levels.size(); i++) {
+            IFD ifd = new IFD(big);
+            Level level = levels.get(i);
+            ifd.addLong(Tag.NewSubfileType, i == 0 ? 0 : 1);
+            ifd.addLong(Tag.ImageWidth, level.cols);
+            ifd.addLong(Tag.ImageLength, level.rows);
+            int[] bitsPerSample = new int[samplesPerPixel];
+            for (int s = 0; s < samplesPerPixel; s++) {
+                bitsPerSample[s] = bytesPerSample * 8;
+            }
+            ifd.addShort(Tag.BitsPerSample, bitsPerSample);
+            ifd.addShort(Tag.Compression, compressed ? TiffCompression.DEFLATE : TiffCompression.NONE);
+            // 1 = black is zero, 2 = RGB
+            ifd.addShort(Tag.PhotometricInterpretation, samplesPerPixel == 4 ? 2 : 1);
+            ifd.addShort(Tag.SamplesPerPixel, samplesPerPixel);
+            ifd.addShort(Tag.PlanarConfiguration, 1);
+            if (compressed) {
+                ifd.addShort(Tag.Predictor, predictor);
+            }
+            ifd.addLong(Tag.TileWidth, tileSize);
+            ifd.addLong(Tag.TileLength, tileSize);
+            ifd.addOffsets(Tag.TileOffsets, level.offsets);
+            ifd.addOffsets(Tag.TileByteCounts, level.byteCounts);
+            if (samplesPerPixel == 4) {
+                // unassociated alpha
+                ifd.addShort(Tag.ExtraSamples, 2);
+            }
+            int[] sampleFormats = new int[samplesPerPixel];
+            for (int s = 0; s < samplesPerPixel; s++) {
+                sampleFormats[s] = sampleFormat;
+            }
+            ifd.addShort(Tag.SampleFormat, sampleFormats);
+            if (i == 0) {
+                addGeoreferencing(ifd);
+            }
+            if (samplesPerPixel == 1) {
+                ifd.addAscii(Tag.GDALNoData, formatNoData(raster.getNoDataValue()));
+            }
+            byte[] bytes = ifd.toBytes(position);
+            position += bytes.length;
+            if (i < levels.size() - 1) {
+                ifd.setNextIFD(bytes, position);
+            }
+            ifds.add(bytes);
+        }
+        return ifds;
+    }
+
+    private String formatNoData(double noData) {
+        if (sampleFormat != 3 || noData == Math.rint(noData)) {
+            return Long.toString((long) noData);
+        }
+        return Double.toString(noData);
+    }
+
+    private void addGeoreferencing(IFD ifd) {
+        ifd.addDouble(Tag.ModelPixelScaleTag, raster.getCellSizeX(), raster.getCellSizeY(), 0);
+        ifd.addDouble(Tag.ModelTiepointTag, 0, 0, 0, raster.getWest(), raster.getNorth(), 0);
+
+        String projection = raster.getProjection();
+        String units = raster.getXYUnits() == null ? "" : raster.getXYUnits().toLowerCase();
+        int epsg = 0;
+        if (projection != null) {
+            Matcher m = EPSG_CODE.matcher(projection);
+            if (m.find()) {
+                epsg = Integer.parseInt(m.group(1));
+            }
+        }
+        // EPSG codes 4000 to 4999 are mostly geographic coordinate systems
+        boolean geographic = units.contains("deg") || (epsg >= 4000 && epsg < 5000);
+        int linearUnits = 0;
+        if (units.startsWith("met") || units.equals("m")) {
+            linearUnits = GeoKey.TagValue.ProjLinearUnits_METER.value();
+        } else if (units.startsWith("f") || units.equals("ft")) {
+            linearUnits = 9002;
+        }
+
+        List<int[]> keys = new ArrayList<>();
+        StringBuilder ascii = new StringBuilder();
+        if (geographic) {
+            keys.add(new int[]{GeoKey.Tag.GTModelTypeGeoKey.code(), 0, 1,
+                GeoKey.TagValue.ModelType_Geographic.value()});
+        } else if (linearUnits != 0 || epsg != 0) {
+            keys.add(new int[]{GeoKey.Tag.GTModelTypeGeoKey.code(), 0, 1,
+                GeoKey.TagValue.ModelType_Projected.value()});
+        }
+        keys.add(new int[]{GeoKey.Tag.GTRasterTypeGeoKey.code(), 0, 1,
+            GeoKey.TagValue.RasterType_Area.value()});
+        if (projection != null && !projection.trim().isEmpty()
+                && !projection.toLowerCase().contains("not specified")) {
+            String citation = projection.trim().replace('|', ' ') + "|";
+            keys.add(new int[]{GeoKey.Tag.GTCitationGeoKey.code(), Tag.GeoAsciiParamsTag.getCode(),
+                citation.length(), ascii.length()});
+            ascii.append(citation);
+        }
+        if (geographic) {
+            if (epsg != 0) {
+                keys.add(new int[]{GeoKey.Tag.GeographicTypeGeoKey.code(), 0, 1, epsg});
+            }
+            keys.add(new int[]{GeoKey.Tag.GeogAngularUnitsGeoKey.code(), 0, 1,
+                GeoKey.TagValue.GeogAngularUnits_DEGREE.value()});
+        } else {
+            if (epsg != 0) {
+                keys.add(new int[]{GeoKey.Tag.ProjectedCSTypeGeoKey.code(), 0, 1, epsg});
+            }
+            if (linearUnits != 0) {
+                keys.add(new int[]{GeoKey.Tag.ProjLinearUnitsGeoKey.code(), 0, 1, linearUnits});
+            }
+        }
+
+        int[] directory = new int[4 * (keys.size() + 1)];
+        // version 1.1.0 of the GeoTIFF key directory
+        directory[0] = 1;
+        directory[1] = 1;
+        directory[2] = 0;
+        directory[3] = keys.size();
+        for (int k = 0; k < keys.size(); k++) {
+            System.arraycopy(keys.get(k), 0, directory, 4 * (k + 1), 4);
+        }
+        ifd.addShort(Tag.GeoKeyDirectoryTag, directory);
+        if (ascii.length() > 0) {
+            ifd.addAscii(Tag.GeoAsciiParamsTag, ascii.toString());
+        }
+    }
+
+    /**
+     * One resolution of the raster, with the rows of the tile row that is
+     * being filled.
+     */
+    private class Level {
+
+        final int factor;
+        final int rows;
+        final int cols;
+        final int tilesAcross;
+        final long[] offsets;
+        final long[] byteCounts;
+        final byte[] tileRow;
+        final ByteBuffer tileRowBuffer;
+        int row = 0;
+
+        Level(int factor, int rows, int cols) {
+            this.factor = factor;
+            this.rows = rows;
+            this.cols = cols;
+            tilesAcross = (cols - 1) / tileSize + 1;
+            int tilesDown = (rows - 1) / tileSize + 1;
+            offsets = new long[tilesAcross * tilesDown];
+            byteCounts = new long[tilesAcross * tilesDown];
+            tileRow = new byte[tileSize * tilesAcross * tileSize * bytesPerPixel];
+            tileRowBuffer = ByteBuffer.wrap(tileRow).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /**
+         * Adds the next row of this level, taken from a row of the raster.
+         */
+        void addRow(double[] values) {
+            double noData = raster.getNoDataValue();
+            int pos = (row % tileSize) * tilesAcross * tileSize * bytesPerPixel;
+            for (int col = 0; col < cols; col++) {
+                double z = values[col * factor];
+                if (samplesPerPixel == 4) {
+                    // the bytes of an RGB value are red, green, blue and alpha
+                    // from the least significant, as a little-endian int
+                    tileRowBuffer.putInt(pos, (z == noData) ? 0 : (int) z);
+                    pos += bytesPerPixel;
+                    continue;
+                }
+                switch (bytesPerSample) {
+                    case 8:
+                        tileRowBuffer.putDouble(pos, z);
+                        break;
+                    case 4:
+                        tileRowBuffer.putFloat(pos, (float) z);
+                        break;
+                    case 2:
+                        tileRowBuffer.putShort(pos, (short) z);
+                        break;
+                    default:
+                        tileRow[pos] = (byte) z;
+                }
+                pos += bytesPerPixel;
+            }
+            row++;
+        }
+
+        boolean isTileRowFull() {
+            return row % tileSize == 0 || row == rows;
+        }
+
+        /**
+         * Cuts the filled tile row into tiles and submits their compression.
+         */
+        void submitTileRow(ExecutorService executor, ArrayDeque<PendingTile> pending) {
+            int tileRowIndex = (row - 1) / tileSize;
+            int tileBytes = tileSize * bytesPerPixel;
+            int rowBytes = tilesAcross * tileBytes;
+            for (int t = 0; t < tilesAcross; t++) {
+                final byte[] tile = new byte[tileSize * tileBytes];
+                for (int r = 0; r < tileSize; r++) {
+                    System.arraycopy(tileRow, r * rowBytes + t * tileBytes, tile, r * tileBytes, tileBytes);
+                }
+                Future<byte[]> data = executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        return encodeTile(tile);
+                    }
+                });
+                pending.addLast(new PendingTile(this, tileRowIndex * tilesAcross + t, data));
+            }
+            // clears any rows beyond the bottom of the raster
+            Arrays.fill(tileRow, (byte) 0);
+        }
+    }
+
+    private byte[] encodeTile(byte[] tile) throws IOException {
+        if (!compressed) {
+            return tile;
+        }
+        if (predictor == TiffCompression.PREDICTOR_FLOATING_POINT) {
+            TiffCompression.applyFloatingPointPredictor(tile, tileSize, samplesPerPixel,
+                    bytesPerSample, ByteOrder.LITTLE_ENDIAN);
+        } else {
+            TiffCompression.applyHorizontalPredictor(tile, tileSize, samplesPerPixel,
+                    bytesPerSample, ByteOrder.LITTLE_ENDIAN);
+        }
+        return TiffCompression.deflate(tile);
+    }
+
+    private static class PendingTile {
+
+        final Level level;
+        final int index;
+        final Future<byte[]> data;
+
+        PendingTile(Level level, int index, Future<byte[]> data) {
+            this.level = level;
+            this.index = index;
+            this.data = data;
+        }
+    }
+
+    private static class Entry {
+
+        final Tag tag;
+        final int type;
+        final int count;
+        final byte[] value;
+
+        Entry(Tag tag, int type, int count, byte[] value) {
+            this.tag = tag;
+            this.type = type;
+            this.count = count;
+            this.value = value;
+        }
+    }
+
+    /**
+     * The entries of an image file directory, in increasing order of their
+     * tags, serialized as a classic TIFF or a BigTIFF directory.
+     */
+    private static class IFD {
+
+        private final boolean big;
+        private final List<Entry> entries = new ArrayList<>();
+
+        IFD(boolean big) {
+            this.big = big;
+        }
+
+        void addShort(Tag tag, int... values) {
+            ByteBuffer b = allocate(values.length * 2);
+            for (int v : values) {
+                b.putShort((short) v);
+            }
+            entries.add(new Entry(tag, TYPE_SHORT, values.length, b.array()));
+        }
+
+        void addLong(Tag tag, long value) {
+            ByteBuffer b = allocate(4).putInt((int) value);
+            entries.add(new Entry(tag, TYPE_LONG, 1, b.array()));
+        }
+
+        void addOffsets(Tag tag, long[] values) {
+            ByteBuffer b = allocate(values.length * (big ? 8 : 4));
+            for (long v : values) {
+                if (big) {
+                    b.putLong(v);
+                } else {
+                    b.putInt((int) v);
+                }
+            }
+            entries.add(new Entry(tag, big ? TYPE_LONG8 : TYPE_LONG, values.length, b.array()));
+        }
+
+        void addDouble(Tag tag, double... values) {
+            ByteBuffer b = allocate(values.length * 8);
+            for (double v : values) {
+                b.putDouble(v);
+            }
+            entries.add(new Entry(tag, TYPE_DOUBLE, values.length, b.array()));
+        }
+
+        void addAscii(Tag tag, String value) {
+            byte[] chars = (value + "\0").getBytes(Charset.forName("US-ASCII"));
+            entries.add(new Entry(tag, TYPE_ASCII, chars.length, chars));
+        }
+
+        private static ByteBuffer allocate(int size) {
+            return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /**
+         * Serializes the directory, followed by the values that do not fit
+         * into their entries, with a next directory offset of zero.
+         *
+         * @param position The offset in the file at which the directory will
+         * be written, which must be even.
+         */
+        byte[] toBytes(long position) {
+            int countSize = big ? 8 : 2;
+            int entrySize = big ? 20 : 12;
+            int inlineSize = big ? 8 : 4;
+            int directorySize = countSize + entries.size() * entrySize + inlineSize;
+            ByteBuffer directory = allocate(directorySize);
+            ByteArrayOutputStream overflow = new ByteArrayOutputStream();
+            if (big) {
+                directory.putLong(entries.size());
+            } else {
+                directory.putShort((short) entries.size());
+            }
+            for (Entry entry : entries) {
+                byte[] value = entry.value;
+                directory.putShort((short) entry.tag.getCode());
+                directory.putShort((short) entry.type);
+                if (big) {
+                    directory.putLong(entry.count);
+                } else {
+                    directory.putInt(entry.count);
+                }
+                if (value.length <= inlineSize) {
+                    directory.put(value);
+                    for (int i = value.length; i < inlineSize; i++) {
+                        directory.put((byte) 0);
+                    }
+                } else {
+                    long offset = position + directorySize + overflow.size();
+                    if (big) {
+                        directory.putLong(offset);
+                    } else {
+                        directory.putInt((int) offset);
+                    }
+                    overflow.write(value, 0, value.length);
+                    if ((value.length & 1) != 0) {
+                        overflow.write(0);
+                    }
+                }
+            }
+            byte[] bytes = new byte[directorySize + overflow.size()];
+            System.arraycopy(directory.array(), 0, bytes, 0, directorySize);
+            System.arraycopy(overflow.toByteArray(), 0, bytes, directorySize, overflow.size());
+            return bytes;
+        }
+
+        /**
+         * Sets the next directory offset of a serialized directory.
+         */
+        void setNextIFD(byte[] bytes, long nextPosition) {
+            int countSize = big ? 8 : 2;
+            int entrySize = big ? 20 : 12;
+            ByteBuffer b = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            int pos = countSize + entries.size() * entrySize;
+            if (big) {
+                b.putLong(pos, nextPosition);
+            } else {
+                b.putInt(pos, (int) nextPosition);
+            }
+        }
+    }
+}
@@ -46,6 +46,8 @@ class IFDEntry implements Comparable {
     protected FieldType type;
     protected int count;
     protected int[] value;
+    // the full values of 8-byte BigTIFF fields, which value truncates
+    protected long[] valueL;
     protected double[] valueD;
     protected String valueS;
 
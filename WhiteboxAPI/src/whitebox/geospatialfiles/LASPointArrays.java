@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.util.Arrays;
+
+/**
+ * Holds a set of LAS point records in parallel primitive arrays, one array per
+ * attribute, rather than as individual PointRecord objects. This is the form
+ * in which LASReader returns the points within a bounding box and in which it
+ * streams the point data in chunks. Only the first getNumPoints() entries of
+ * each array are valid; the arrays may be longer.
+ *
+ * When points are streamed, only the attributes requested by the caller are
+ * decoded; the contents of the other arrays are undefined. The colour arrays
+ * are only allocated once colour data has been requested.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public class LASPointArrays {
+
+    /**
+     * Attribute flags used to select the data that LASReader.readPoints
+     * decodes.
+     */
+    public static final int X = 1;
+    public static final int Y = 2;
+    public static final int Z = 4;
+    public static final int INTENSITY = 8;
+    /**
+     * The return number and number of returns.
+     */
+    public static final int RETURN_NUMBER = 16;
+    /**
+     * The classification and point withheld flag.
+     */
+    public static final int CLASSIFICATION = 32;
+    public static final int SCAN_ANGLE = 64;
+    /**
+     * The red, green and blue values of point data formats 2 and 3.
+     */
+    public static final int COLOUR = 128;
+    public static final int ALL = 255;
+    private int numPoints = 0;
+    private int[] pointIndex;
+    private double[] x;
+    private double[] y;
+    private double[] z;
+    private int[] intensity;
+    private byte[] returnNumber;
+    private byte[] numberOfReturns;
+    private byte[] classification;
+    private byte[] scanAngle;
+    private boolean[] pointWithheld;
+    private int[] red;
+    private int[] green;
+    private int[] blue;
+
+    /**
+     * Constructor.
+     *
+     * @param initialCapacity The number of points that can be held before the
+     * arrays need to be enlarged.
+     */
+    public LASPointArrays(int initialCapacity) {
+        if (initialCapacity < 16) {
+            initialCapacity = 16;
+        }
+        pointIndex = new int[initialCapacity];
+        x = new double[initialCapacity];
+        y = new double[initialCapacity];
+        z = new double[initialCapacity];
+        intensity = new int[initialCapacity];
+        returnNumber = new byte[initialCapacity];
+        numberOfReturns = new byte[initialCapacity];
+        classification = new byte[initialCapacity];
+        scanAngle = new byte[initialCapacity];
+        pointWithheld = new boolean[initialCapacity];
+    }
+
+    /**
+     * Returns the number of points held.
+     *
+     * @return The number of valid entries in each of the arrays.
+     */
+    public int getNumPoints() {
+        return numPoints;
+    }
+
+    /**
+     * Returns the indices of the points within the LAS file.
+     *
+     * @return An array of zero-based point record indices.
+     */
+    public int[] getPointIndices() {
+        return pointIndex;
+    }
+
+    public double[] getX() {
+        return x;
+    }
+
+    public double[] getY() {
+        return y;
+    }
+
+    public double[] getZ() {
+        return z;
+    }
+
+    public int[] getIntensity() {
+        return intensity;
+    }
+
+    public byte[] getReturnNumber() {
+        return returnNumber;
+    }
+
+    public byte[] getNumberOfReturns() {
+        return numberOfReturns;
+    }
+
+    public byte[] getClassification() {
+        return classification;
+    }
+
+    public byte[] getScanAngle() {
+        return scanAngle;
+    }
+
+    public boolean[] getPointWithheld() {
+        return pointWithheld;
+    }
+
+    /**
+     * Returns the red values of the points, or null if colour data have not
+     * been read.
+     *
+     * @return An array of red values.
+     */
+    public int[] getRed() {
+        return red;
+    }
+
+    public int[] getGreen() {
+        return green;
+    }
+
+    public int[] getBlue() {
+        return blue;
+    }
+
+    /**
+     * Removes all points. The arrays are retained so that they can be reused.
+     */
+    public void clear() {
+        numPoints = 0;
+    }
+
+    /**
+     * Makes room for one more point and returns its position in the arrays.
+     */
+    int addPoint() {
+        if (numPoints == x.length) {
+            setCapacity(x.length + (x.length >> 1), red != null);
+        }
+        numPoints++;
+        return numPoints - 1;
+    }
+
+    /**
+     * Sets the number of points, enlarging the arrays if necessary.
+     */
+    void setNumPoints(int n, boolean includeColours) {
+        if (n > x.length || (includeColours && (red == null || red.length < x.length))) {
+            setCapacity(Math.max(n, x.length), includeColours || red != null);
+        }
+        numPoints = n;
+    }
+
+    private void setCapacity(int newCapacity, boolean includeColours) {
+        pointIndex = Arrays.copyOf(pointIndex, newCapacity);
+        x = Arrays.copyOf(x, newCapacity);
+        y = Arrays.copyOf(y, newCapacity);
+        z = Arrays.copyOf(z, newCapacity);
+        intensity = Arrays.copyOf(intensity, newCapacity);
+        returnNumber = Arrays.copyOf(returnNumber, newCapacity);
+        numberOfReturns = Arrays.copyOf(numberOfReturns, newCapacity);
+        classification = Arrays.copyOf(classification, newCapacity);
+        scanAngle = Arrays.copyOf(scanAngle, newCapacity);
+        pointWithheld = Arrays.copyOf(pointWithheld, newCapacity);
+        if (includeColours) {
+            red = (red == null) ? new int[newCapacity] : Arrays.copyOf(red, newCapacity);
+            green = (green == null) ? new int[newCapacity] : Arrays.copyOf(green, newCapacity);
+            blue = (blue == null) ? new int[newCapacity] : Arrays.copyOf(blue, newCapacity);
+        }
+    }
+}
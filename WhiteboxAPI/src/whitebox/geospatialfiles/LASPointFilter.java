@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+/**
+ * Selects the LAS points that a LiDAR tool uses, by return number, class and,
+ * optionally, scan angle, and extracts the value that the tool interpolates.
+ * The points are streamed in blocks of POINT_BLOCK_SIZE with
+ * LASReader.readPoints, decoding the attributes given by
+ * getRequiredAttributes and getValueAttributes. The interpolated attribute
+ * is resolved once with getValueType, so that getPointValue does no string
+ * comparisons in the per-point loop.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public class LASPointFilter {
+
+    /**
+     * The number of points read from a LAS file at a time.
+     */
+    public static final int POINT_BLOCK_SIZE = 65536;
+    public static final int VALUE_NONE = 0;
+    public static final int VALUE_Z = 1;
+    public static final int VALUE_INTENSITY = 2;
+    public static final int VALUE_CLASSIFICATION = 3;
+    public static final int VALUE_SCAN_ANGLE = 4;
+    public static final int VALUE_RGB = 5;
+    private static final int ALL_RETURNS = 0;
+    private static final int FIRST_RETURN = 1;
+    private static final int LAST_RETURN = 2;
+    private final int returnMode;
+    private final boolean[] classValuesToExclude;
+    private final boolean checkScanAngle;
+    private final double maxAbsScanAngle;
+
+    /**
+     * Constructor.
+     *
+     * @param returnNumberToInterpolate "all points", "first return" or "last
+     * return".
+     * @param classValuesToExclude Whether each of the 256 classes is excluded.
+     * @param checkScanAngle Whether points are excluded by scan angle.
+     * @param maxAbsScanAngle The largest absolute scan angle of a valid point,
+     * used only if checkScanAngle is true.
+     */
+    public LASPointFilter(String returnNumberToInterpolate, boolean[] classValuesToExclude,
+            boolean checkScanAngle, double maxAbsScanAngle) {
+        if (returnNumberToInterpolate.equals("all points")) {
+            returnMode = ALL_RETURNS;
+        } else if (returnNumberToInterpolate.equals("first return")) {
+            returnMode = FIRST_RETURN;
+        } else { // if (returnNumberToInterpolate.equals("last return")) {
+            returnMode = LAST_RETURN;
+        }
+        this.classValuesToExclude = classValuesToExclude;
+        this.checkScanAngle = checkScanAngle;
+        this.maxAbsScanAngle = maxAbsScanAngle;
+    }
+
+    /**
+     * Returns the LASPointArrays attribute flags that isValidPoint needs.
+     */
+    public int getRequiredAttributes() {
+        int attributes = LASPointArrays.RETURN_NUMBER | LASPointArrays.CLASSIFICATION;
+        if (checkScanAngle) {
+            attributes |= LASPointArrays.SCAN_ANGLE;
+        }
+        return attributes;
+    }
+
+    /**
+     * Returns true if a point is neither withheld nor of an excluded class,
+     * is of the required return and, if the scan angle is checked, is within
+     * the maximum scan angle.
+     */
+    public boolean isValidPoint(LASPointArrays points, int i) {
+        if (points.getPointWithheld()[i]
+                || classValuesToExclude[points.getClassification()[i]]) {
+            return false;
+        }
+        if (checkScanAngle && Math.abs(points.getScanAngle()[i]) > maxAbsScanAngle) {
+            return false;
+        }
+        switch (returnMode) {
+            case FIRST_RETURN:
+                return points.getReturnNumber()[i] == 1;
+            case LAST_RETURN:
+                return points.getReturnNumber()[i] == points.getNumberOfReturns()[i];
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Returns the VALUE_ constant of the attribute that is interpolated.
+     *
+     * @param whatToInterpolate "z (elevation)", "intensity", "classification",
+     * "scan angle" or "rgb data".
+     */
+    public static int getValueType(String whatToInterpolate) {
+        if (whatToInterpolate.equals("z (elevation)")) {
+            return VALUE_Z;
+        } else if (whatToInterpolate.equals("intensity")) {
+            return VALUE_INTENSITY;
+        } else if (whatToInterpolate.equals("classification")) {
+            return VALUE_CLASSIFICATION;
+        } else if (whatToInterpolate.equals("scan angle")) {
+            return VALUE_SCAN_ANGLE;
+        } else if (whatToInterpolate.equals("rgb data")) {
+            return VALUE_RGB;
+        }
+        return VALUE_NONE;
+    }
+
+    /**
+     * Returns the LASPointArrays attribute flags that getPointValue needs.
+     *
+     * @param valueType A VALUE_ constant, as returned by getValueType.
+     */
+    public static int getValueAttributes(int valueType) {
+        switch (valueType) {
+            case VALUE_Z:
+                return LASPointArrays.Z;
+            case VALUE_INTENSITY:
+                return LASPointArrays.INTENSITY;
+            case VALUE_CLASSIFICATION:
+                return LASPointArrays.CLASSIFICATION;
+            case VALUE_SCAN_ANGLE:
+                return LASPointArrays.SCAN_ANGLE;
+            case VALUE_RGB:
+                return LASPointArrays.COLOUR;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Returns the value of a point that is interpolated. RGB data are packed
+     * into a single value.
+     *
+     * @param valueType A VALUE_ constant, as returned by getValueType.
+     */
+    public static double getPointValue(LASPointArrays points, int i, int valueType) {
+        switch (valueType) {
+            case VALUE_Z:
+                return points.getZ()[i];
+            case VALUE_INTENSITY:
+                return points.getIntensity()[i];
+            case VALUE_CLASSIFICATION:
+                return points.getClassification()[i];
+            case VALUE_SCAN_ANGLE:
+                return points.getScanAngle()[i];
+            case VALUE_RGB:
+                return (double) ((255 << 24) | (points.getBlue()[i] << 16)
+                        | (points.getGreen()[i] << 8) | points.getRed()[i]);
+            default:
+                return 0;
+        }
+    }
+}
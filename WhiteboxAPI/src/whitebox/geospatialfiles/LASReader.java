@@ -17,9 +17,11 @@
 package whitebox.geospatialfiles;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.ByteOrder;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Arrays;
 import java.util.ArrayList;
@@ -68,6 +70,14 @@ public class LASReader {
     private int endingPoint = -1;
     private PointRecord[] pointRecs;
     private PointRecColours[] pointColours;
+    private static final int QUERY_BLOCK_SIZE = 1048576; // in bytes
+    private LASSpatialIndex spatialIndex = null;
+    private boolean spatialIndexFailed = false;
+    private ByteBuffer queryBuffer = null;
+    private static final long MAP_WINDOW_SIZE = 64 * 1048576; // in bytes
+    private MappedByteBuffer pointDataMap = null;
+    private long mapStartingPoint = -1;
+    private long mapEndingPoint = -1;
     //private PointWavePacket[] pointWavePagetData;
 
     // Constructors
@@ -86,6 +96,9 @@ public class LASReader {
 
     public final void setFileName(String fileName) {
         this.fileName = fileName;
+        spatialIndex = null;
+        spatialIndexFailed = false;
+        pointDataMap = null;
         readHeaderData();
         readVariableLengthRecords();
     }
@@ -231,55 +244,301 @@ public class LASReader {
     }
 
     // Methods
+    /**
+     * Returns the spatial index of the point records. The index is read from
+     * the sidecar (.lsi) file, or built and saved if it does not yet exist.
+     *
+     * If the index cannot be built, null is returned without trying again
+     * until another file is set.
+     *
+     * @return The spatial index, or null if the point data cannot be read.
+     */
+    public LASSpatialIndex getSpatialIndex() {
+        if (spatialIndex == null && !spatialIndexFailed) {
+            spatialIndex = LASSpatialIndex.getIndex(this);
+            spatialIndexFailed = (spatialIndex == null);
+        }
+        return spatialIndex;
+    }
+
+    /**
+     * Retrieves the point records that are within a bounding box. Only those
+     * parts of the file that the spatial index identifies as containing points
+     * near the box are read.
+     *
+     * @param bb The bounding box. Points on its edges are included.
+     * @return The points, held in primitive arrays.
+     */
+    public LASPointArrays getPointsInBoundingBox(BoundingBox bb) {
+        LASPointArrays points = new LASPointArrays(1024);
+        readPointsInBoundingBox(bb, points, null);
+        return points;
+    }
+
+    /**
+     * Retrieves the point records that are within a bounding box into an
+     * existing set of arrays, which is cleared first. Reusing the arrays avoids
+     * allocating new ones for each query.
+     *
+     * @param bb The bounding box. Points on its edges are included.
+     * @param points The arrays that will receive the points.
+     */
+    public void getPointsInBoundingBox(BoundingBox bb, LASPointArrays points) {
+        points.clear();
+        readPointsInBoundingBox(bb, points, null);
+    }
+
+    /**
+     * Retrieves the indices of the point records that are within a bounding
+     * box.
+     *
+     * @param bb The bounding box. Points on its edges are included.
+     * @return An array of zero-based point indices in increasing order.
+     */
+    public int[] getPointIndicesInBoundingBox(BoundingBox bb) {
+        LASPointArrays points = getPointsInBoundingBox(bb);
+        return Arrays.copyOf(points.getPointIndices(), points.getNumPoints());
+    }
+
     public ArrayList<PointRecord> getPointRecordsInBoundingBox(BoundingBox bb) {
+        ArrayList<PointRecord> ret = new ArrayList<>();
+        readPointsInBoundingBox(bb, null, ret);
+        return ret;
+    }
+
+    public ArrayList<Integer> getPointRecordIndicesInBoundingBox(BoundingBox bb) {
+        int[] indices = getPointIndicesInBoundingBox(bb);
+        ArrayList<Integer> ret = new ArrayList<>(indices.length);
+        for (int i : indices) {
+            ret.add(i);
+        }
+        return ret;
+    }
+
+    /**
+     * Reads the point records in the ranges of the file that the spatial index
+     * finds for a bounding box and keeps those that are within the box, either
+     * in a set of primitive arrays or as PointRecords.
+     */
+    private void readPointsInBoundingBox(BoundingBox bb, LASPointArrays points,
+            ArrayList<PointRecord> records) {
         double minXbb = bb.getMinX();
         double minYbb = bb.getMinY();
         double maxXbb = bb.getMaxX();
         double maxYbb = bb.getMaxY();
-        double x, y;
+        long[] ranges;
+        LASSpatialIndex index = getSpatialIndex();
+        if (index != null) {
+            int maxGap = Math.max(1, 4096 / pointDataRecLength);
+            ranges = index.getRecordRanges(minXbb, minYbb, maxXbb, maxYbb, maxGap);
+        } else {
+            ranges = new long[]{numPointRecords};
+        }
 
-        ArrayList<PointRecord> ret = new ArrayList<>();
-        PointRecord rec;
-        try {
-            for (int i = 0; i < numPointRecords; i++) {
-                rec = getPointRecord(i);
-                if (rec != null) {
-                    x = rec.getX();
-                    y = rec.getY();
-                    if (maxYbb < y || maxXbb < x || minYbb > y || minXbb > x) {
-                        // do nothing it's outside the bounds
-                    } else {
-                        ret.add(rec);
+        int recordsPerBlock = Math.max(1, QUERY_BLOCK_SIZE / pointDataRecLength);
+        if (queryBuffer == null || queryBuffer.capacity() < recordsPerBlock * pointDataRecLength) {
+            queryBuffer = ByteBuffer.allocate(recordsPerBlock * pointDataRecLength);
+            queryBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        ByteBuffer buf = queryBuffer;
+        try (RandomAccessFile rIn = new RandomAccessFile(fileName, "r")) {
+            FileChannel inChannel = rIn.getChannel();
+            for (long range : ranges) {
+                long rangeStart = range >>> 32;
+                long rangeEnd = rangeStart + (range & 0xFFFFFFFFL);
+                for (long blockStart = rangeStart; blockStart < rangeEnd; blockStart += recordsPerBlock) {
+                    int numRecords = (int) Math.min(recordsPerBlock, rangeEnd - blockStart);
+                    long pos = offsetToPointData + blockStart * pointDataRecLength;
+                    buf.clear();
+                    buf.limit(numRecords * pointDataRecLength);
+                    while (buf.hasRemaining()) {
+                        if (inChannel.read(buf, pos + buf.position()) < 0) {
+                            throw new IOException("Unexpected end of LAS file.");
+                        }
+                    }
+                    int pos2 = 0;
+                    for (int i = 0; i < numRecords; i++) {
+                        double x = (buf.getInt(pos2) * xScale) + xOffset;
+                        double y = (buf.getInt(pos2 + 4) * yScale) + yOffset;
+                        if (maxYbb < y || maxXbb < x || minYbb > y || minXbb > x) {
+                            // do nothing it's outside the bounds
+                        } else if (points != null) {
+                            int n = points.addPoint();
+                            byte returnNumberByte = buf.get(pos2 + 14);
+                            byte classificationByte = buf.get(pos2 + 15);
+                            points.getPointIndices()[n] = (int) (blockStart + i);
+                            points.getX()[n] = x;
+                            points.getY()[n] = y;
+                            points.getZ()[n] = (buf.getInt(pos2 + 8) * zScale) + zOffset;
+                            points.getIntensity()[n] = Unsigned.getUnsignedShort(buf, pos2 + 12);
+                            points.getReturnNumber()[n] = (byte) (returnNumberByte & 7);
+                            points.getNumberOfReturns()[n] = (byte) ((returnNumberByte >> 3) & 7);
+                            points.getClassification()[n] = (byte) (classificationByte & 31);
+                            points.getPointWithheld()[n] = (classificationByte & 128) != 0;
+                            points.getScanAngle()[n] = buf.get(pos2 + 16);
+                        } else {
+                            records.add(decodePointRecord(buf, pos2));
+                        }
+                        pos2 += pointDataRecLength;
                     }
                 }
             }
-        } catch (Exception e) {
-            System.out.println(e.getMessage());
+        } catch (IOException e) {
+            System.err.println(e);
         }
-        return ret;
     }
 
-    // Methods
-    public ArrayList<Integer> getPointRecordIndicesInBoundingBox(BoundingBox bb) {
-        double minXbb = bb.getMinX();
-        double minYbb = bb.getMinY();
-        double maxXbb = bb.getMaxX();
-        double maxYbb = bb.getMaxY();
-        double x, y;
-
-        ArrayList<Integer> ret = new ArrayList<>();
-        PointRecord rec;
-        for (int i = 0; i < numPointRecords; i++) {
-            rec = getPointRecord(i);
-            x = rec.getX();
-            y = rec.getY();
-            if (maxYbb < y || maxXbb < x || minYbb > y || minXbb > x) {
-                // do nothing it's outside the bounds
+    /**
+     * Decodes a consecutive block of point records into primitive arrays. The
+     * point data are memory-mapped and each requested attribute is decoded for
+     * the whole block in a single loop, so that a file can be streamed from
+     * start to end without creating an object for each point:
+     * <pre>
+     * LASPointArrays points = new LASPointArrays(65536);
+     * for (long i = 0; i < las.getNumPointRecords(); i += points.getNumPoints()) {
+     *     las.readPoints(i, 65536, LASPointArrays.X | LASPointArrays.Y, points);
+     *     ...
+     * }
+     * </pre>
+     *
+     * @param startingPoint The zero-based index of the first point to read.
+     * @param maxNumPoints The largest number of points to read.
+     * @param attributes The attributes to decode, a combination of the
+     * attribute flags of LASPointArrays.
+     * @param points The arrays that will receive the points. Their previous
+     * contents are discarded.
+     * @return The number of points read; zero at the end of the file or if
+     * the file could not be read.
+     */
+    public int readPoints(long startingPoint, int maxNumPoints, int attributes,
+            LASPointArrays points) {
+        int n = (int) Math.max(0, Math.min(maxNumPoints, numPointRecords - startingPoint));
+        boolean readColours = (attributes & LASPointArrays.COLOUR) != 0;
+        points.setNumPoints(n, readColours);
+        if (n == 0) {
+            return 0;
+        }
+        ByteBuffer buf = mapPointData(startingPoint, n);
+        if (buf == null) {
+            points.clear();
+            return 0;
+        }
+        int recLength = pointDataRecLength;
+        int pos = (int) ((startingPoint - mapStartingPoint) * recLength);
+        int i, k;
+
+        int[] index = points.getPointIndices();
+        for (i = 0; i < n; i++) {
+            index[i] = (int) (startingPoint + i);
+        }
+        if ((attributes & LASPointArrays.X) != 0) {
+            double[] x = points.getX();
+            for (i = 0, k = pos; i < n; i++, k += recLength) {
+                x[i] = buf.getInt(k) * xScale + xOffset;
+            }
+        }
+        if ((attributes & LASPointArrays.Y) != 0) {
+            double[] y = points.getY();
+            for (i = 0, k = pos + 4; i < n; i++, k += recLength) {
+                y[i] = buf.getInt(k) * yScale + yOffset;
+            }
+        }
+        if ((attributes & LASPointArrays.Z) != 0) {
+            double[] z = points.getZ();
+            for (i = 0, k = pos + 8; i < n; i++, k += recLength) {
+                z[i] = buf.getInt(k) * zScale + zOffset;
+            }
+        }
+        if ((attributes & LASPointArrays.INTENSITY) != 0) {
+            int[] intensity = points.getIntensity();
+            for (i = 0, k = pos + 12; i < n; i++, k += recLength) {
+                intensity[i] = buf.getShort(k) & 0xFFFF;
+            }
+        }
+        if ((attributes & LASPointArrays.RETURN_NUMBER) != 0) {
+            byte[] returnNumber = points.getReturnNumber();
+            byte[] numberOfReturns = points.getNumberOfReturns();
+            for (i = 0, k = pos + 14; i < n; i++, k += recLength) {
+                byte b = buf.get(k);
+                returnNumber[i] = (byte) (b & 7);
+                numberOfReturns[i] = (byte) ((b >> 3) & 7);
+            }
+        }
+        if ((attributes & LASPointArrays.CLASSIFICATION) != 0) {
+            byte[] classification = points.getClassification();
+            boolean[] withheld = points.getPointWithheld();
+            for (i = 0, k = pos + 15; i < n; i++, k += recLength) {
+                byte b = buf.get(k);
+                classification[i] = (byte) (b & 31);
+                withheld[i] = b < 0;
+            }
+        }
+        if ((attributes & LASPointArrays.SCAN_ANGLE) != 0) {
+            byte[] scanAngle = points.getScanAngle();
+            for (i = 0, k = pos + 16; i < n; i++, k += recLength) {
+                scanAngle[i] = buf.get(k);
+            }
+        }
+        if (readColours) {
+            int[] red = points.getRed();
+            int[] green = points.getGreen();
+            int[] blue = points.getBlue();
+            int offsetToColourData = -1;
+            if (pointDataFormatID == 2) {
+                offsetToColourData = 20;
+            } else if (pointDataFormatID == 3 || pointDataFormatID == 5) {
+                offsetToColourData = 28;
+            }
+            if (offsetToColourData < 0) {
+                Arrays.fill(red, 0, n, -1);
+                Arrays.fill(green, 0, n, -1);
+                Arrays.fill(blue, 0, n, -1);
             } else {
-                ret.add(i);
+                for (i = 0, k = pos + offsetToColourData; i < n; i++, k += recLength) {
+                    red[i] = buf.getShort(k) & 0xFFFF;
+                    green[i] = buf.getShort(k + 2) & 0xFFFF;
+                    blue[i] = buf.getShort(k + 4) & 0xFFFF;
+                }
             }
         }
-        return ret;
+        return n;
+    }
+
+    /**
+     * Returns a memory-mapped view of the point data that contains the
+     * specified records. The file is mapped in windows of about
+     * MAP_WINDOW_SIZE bytes so that files larger than 2 GB can be read.
+     */
+    private ByteBuffer mapPointData(long startingPoint, int numPoints) {
+        long endingPoint = startingPoint + numPoints;
+        if (pointDataMap != null && startingPoint >= mapStartingPoint
+                && endingPoint <= mapEndingPoint) {
+            return pointDataMap;
+        }
+        long recordsPerWindow = Math.max(numPoints, MAP_WINDOW_SIZE / pointDataRecLength);
+        long windowEnd = Math.min(numPointRecords, startingPoint + recordsPerWindow);
+        try (RandomAccessFile rIn = new RandomAccessFile(fileName, "r")) {
+            FileChannel inChannel = rIn.getChannel();
+            long pos = offsetToPointData + startingPoint * pointDataRecLength;
+            long length = (windowEnd - startingPoint) * pointDataRecLength;
+            if (pos + length > inChannel.size()) {
+                // a truncated file; map only the complete records.
+                windowEnd = startingPoint + Math.max(0, inChannel.size() - pos) / pointDataRecLength;
+                if (windowEnd < endingPoint) {
+                    return null;
+                }
+                length = (windowEnd - startingPoint) * pointDataRecLength;
+            }
+            pointDataMap = inChannel.map(FileChannel.MapMode.READ_ONLY, pos, length);
+            pointDataMap.order(ByteOrder.LITTLE_ENDIAN);
+            mapStartingPoint = startingPoint;
+            mapEndingPoint = windowEnd;
+            return pointDataMap;
+        } catch (IOException e) {
+            System.err.println(e);
+            pointDataMap = null;
+            return null;
+        }
     }
 
     public PointRecord getPointRecord(int i) {
@@ -329,11 +588,7 @@ public class LASReader {
     private void readPointRecords() {
         long pos = offsetToPointData + (long)startingPoint * (long)pointDataRecLength;
         int pos2 = 0;
-        byte returnNumberByte = 0;
-        byte classificationByte = 0;
-        byte b = 0;
         pointRecs = new PointRecord[bufferSize];
-        int x, y, z;
         RandomAccessFile rIn = null;
         ByteBuffer buf = null;
 
@@ -352,57 +607,7 @@ public class LASReader {
             buf.rewind();
 
             for (int i = 0; i < bufferSize; i++) {
-                pointRecs[i] = new PointRecord();
-                x = buf.getInt(pos2);
-                pointRecs[i].setX((x * xScale) + xOffset);
-                y = buf.getInt(pos2 + 4);
-                pointRecs[i].setY((y * yScale) + yOffset);
-                z = buf.getInt(pos2 + 8);
-                pointRecs[i].setZ((z * zScale) + zOffset);
-                pointRecs[i].setIntensity(Unsigned.getUnsignedShort(buf, pos2 + 12));
-
-                // get the record number byte
-                returnNumberByte = buf.get(pos2 + 14);
-                b = 0;
-                for (int a = 0; a < 3; a++) {
-                    if (BitOps.checkBit(returnNumberByte, a)) {
-                        b = BitOps.setBit(b, (byte) a);
-                    }
-                }
-                pointRecs[i].setReturnNumber(b);
-
-                b = 0;
-                for (int a = 0; a < 3; a++) {
-                    if (BitOps.checkBit(returnNumberByte, a + 3)) {
-                        b = BitOps.setBit(b, (byte) a);
-                    }
-                }
-                pointRecs[i].setNumberOfReturns(b);
-
-                pointRecs[i].setScanDirectionFlag(BitOps.checkBit(returnNumberByte, 6));
-                pointRecs[i].setEdgeOfFlightLine(BitOps.checkBit(returnNumberByte, 7));
-
-                // get the classification data
-                classificationByte = buf.get(pos2 + 15);
-                b = 0;
-                for (int a = 0; a < 5; a++) {
-                    if (BitOps.checkBit(classificationByte, a)) {
-                        b = BitOps.setBit(b, (byte) a);
-                    }
-                }
-                pointRecs[i].setClassification(b);
-                pointRecs[i].setSynthetic(BitOps.checkBit(classificationByte, 5));
-                pointRecs[i].setKeyPoint(BitOps.checkBit(classificationByte, 6));
-                pointRecs[i].setPointWithheld(BitOps.checkBit(classificationByte, 7));
-                pointRecs[i].setScanAngle(buf.get(pos2 + 16));
-                pointRecs[i].setUserData(Unsigned.getUnsignedByte(buf, pos2 + 17));
-                pointRecs[i].setPointSourceID(Unsigned.getUnsignedShort(buf, pos2 + 18));
-
-                if (pointDataFormatID == 1 || pointDataFormatID == 3
-                        || pointDataFormatID == 4 || pointDataFormatID == 5) {
-                    pointRecs[i].setGPSTime(buf.getDouble(pos2 + 20));
-                }
-
+                pointRecs[i] = decodePointRecord(buf, pos2);
                 pos2 += pointDataRecLength;
             }
 
@@ -418,6 +623,62 @@ public class LASReader {
         }
     }
 
+    private PointRecord decodePointRecord(ByteBuffer buf, int pos2) {
+        PointRecord rec = new PointRecord();
+        int x, y, z;
+        byte returnNumberByte, classificationByte, b;
+        x = buf.getInt(pos2);
+        rec.setX((x * xScale) + xOffset);
+        y = buf.getInt(pos2 + 4);
+        rec.setY((y * yScale) + yOffset);
+        z = buf.getInt(pos2 + 8);
+        rec.setZ((z * zScale) + zOffset);
+        rec.setIntensity(Unsigned.getUnsignedShort(buf, pos2 + 12));
+
+        // get the record number byte
+        returnNumberByte = buf.get(pos2 + 14);
+        b = 0;
+        for (int a = 0; a < 3; a++) {
+            if (BitOps.checkBit(returnNumberByte, a)) {
+                b = BitOps.setBit(b, (byte) a);
+            }
+        }
+        rec.setReturnNumber(b);
+
+        b = 0;
+        for (int a = 0; a < 3; a++) {
+            if (BitOps.checkBit(returnNumberByte, a + 3)) {
+                b = BitOps.setBit(b, (byte) a);
+            }
+        }
+        rec.setNumberOfReturns(b);
+
+        rec.setScanDirectionFlag(BitOps.checkBit(returnNumberByte, 6));
+        rec.setEdgeOfFlightLine(BitOps.checkBit(returnNumberByte, 7));
+
+        // get the classification data
+        classificationByte = buf.get(pos2 + 15);
+        b = 0;
+        for (int a = 0; a < 5; a++) {
+            if (BitOps.checkBit(classificationByte, a)) {
+                b = BitOps.setBit(b, (byte) a);
+            }
+        }
+        rec.setClassification(b);
+        rec.setSynthetic(BitOps.checkBit(classificationByte, 5));
+        rec.setKeyPoint(BitOps.checkBit(classificationByte, 6));
+        rec.setPointWithheld(BitOps.checkBit(classificationByte, 7));
+        rec.setScanAngle(buf.get(pos2 + 16));
+        rec.setUserData(Unsigned.getUnsignedByte(buf, pos2 + 17));
+        rec.setPointSourceID(Unsigned.getUnsignedShort(buf, pos2 + 18));
+
+        if (pointDataFormatID == 1 || pointDataFormatID == 3
+                || pointDataFormatID == 4 || pointDataFormatID == 5) {
+            rec.setGPSTime(buf.getDouble(pos2 + 20));
+        }
+        return rec;
+    }
+
     private void readPointRecColours() {
         if (pointDataFormatID == 2 || pointDataFormatID == 3 || pointDataFormatID == 5) {
             long pos = offsetToPointData + (long)startingPoint * (long)pointDataRecLength;
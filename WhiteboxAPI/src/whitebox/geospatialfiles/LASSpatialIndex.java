@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A grid-based spatial index of the point records in a LAS file. The extent
+ * of the file is divided into square cells, each containing a few thousand
+ * points on average, and for each cell the index lists the runs of
+ * consecutive point records that fall within it. Since LiDAR points are
+ * usually stored in scan order, points that are near one another tend to be
+ * near one another in the file and each cell needs only a small number of
+ * runs.
+ *
+ * The index is built once, by a single sequential pass through the point
+ * data, and is stored in a sidecar file next to the LAS file with the same
+ * name and a .lsi extension. The sidecar records the length and modification
+ * time of the LAS file and is rebuilt if the LAS file changes. If the sidecar
+ * cannot be written, e.g. because the directory is read-only, the index is
+ * simply held in memory.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public class LASSpatialIndex {
+
+    private static final int MAGIC_NUMBER = 0x4953424C; // "LBSI"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int TARGET_POINTS_PER_CELL = 4096;
+    private static final int MAX_NUM_CELLS = 1 << 22;
+    private static final int READ_BLOCK_SIZE = 4 * 1048576; // in bytes
+    private static final Object indexLock = new Object();
+    private long lasFileLength;
+    private long lasFileModified;
+    private long numPoints;
+    private double minX;
+    private double minY;
+    private double cellSize;
+    private int rows;
+    private int cols;
+    private int[] cellOffsets;
+    private int[] runStarts;
+    private int[] runLengths;
+
+    private LASSpatialIndex() {
+    }
+
+    /**
+     * Returns the spatial index of a LAS file. The index is read from the
+     * sidecar file if it exists and is up to date; otherwise it is built from
+     * the point data and saved.
+     *
+     * @param las The LASReader of the file to be indexed.
+     * @return The spatial index, or null if the point data could not be read.
+     */
+    public static LASSpatialIndex getIndex(LASReader las) {
+        // Several threads may open the same file at once, as happens when
+        // neighbouring tiles are interpolated concurrently, and only one of
+        // them should build the index.
+        synchronized (indexLock) {
+            File lasFile = new File(las.getFileName());
+            String indexFile = getIndexFileName(las.getFileName());
+            LASSpatialIndex index = read(indexFile, lasFile, las.getNumPointRecords());
+            if (index != null) {
+                return index;
+            }
+            try {
+                index = build(las);
+            } catch (IOException e) {
+                System.err.println("Caught exception: " + e.toString());
+                return null;
+            }
+            index.write(indexFile);
+            return index;
+        }
+    }
+
+    /**
+     * Returns the name of the sidecar index file of a LAS file.
+     *
+     * @param lasFileName The name of the LAS file.
+     * @return The name of the index file.
+     */
+    public static String getIndexFileName(String lasFileName) {
+        int dot = lasFileName.lastIndexOf('.');
+        if (dot > lasFileName.lastIndexOf(File.separatorChar)) {
+            return lasFileName.substring(0, dot) + ".lsi";
+        }
+        return lasFileName + ".lsi";
+    }
+
+    public int getNumberRows() {
+        return rows;
+    }
+
+    public int getNumberColumns() {
+        return cols;
+    }
+
+    public double getCellSize() {
+        return cellSize;
+    }
+
+    public int getNumberOfRuns() {
+        return runStarts.length;
+    }
+
+    /**
+     * Finds the ranges of point records that may fall within a bounding box.
+     * Every point within the box is contained in one of the ranges, but the
+     * ranges may also contain points that are outside of the box. Ranges that
+     * are separated by only a few records are merged, since it is cheaper to
+     * read the records in between than to perform a separate read.
+     *
+     * @param minXbb The minimum x coordinate of the box.
+     * @param minYbb The minimum y coordinate of the box.
+     * @param maxXbb The maximum x coordinate of the box.
+     * @param maxYbb The maximum y coordinate of the box.
+     * @param maxGap The largest number of records between two ranges for
+     * which the ranges will be merged.
+     * @return An array of ranges in increasing order. Each range is packed
+     * into a long with the index of the first record in the upper 32 bits and
+     * the number of records in the lower 32 bits.
+     */
+    public long[] getRecordRanges(double minXbb, double minYbb, double maxXbb,
+            double maxYbb, int maxGap) {
+        if (maxXbb < minXbb || maxYbb < minYbb || runStarts.length == 0) {
+            return new long[0];
+        }
+        int startCol = getColumn(minXbb);
+        int endCol = getColumn(maxXbb);
+        int startRow = getRow(minYbb);
+        int endRow = getRow(maxYbb);
+
+        int numRuns = 0;
+        for (int row = startRow; row <= endRow; row++) {
+            int cell = row * cols;
+            numRuns += cellOffsets[cell + endCol + 1] - cellOffsets[cell + startCol];
+        }
+        long[] runs = new long[numRuns];
+        int n = 0;
+        for (int row = startRow; row <= endRow; row++) {
+            int cell = row * cols;
+            for (int i = cellOffsets[cell + startCol]; i < cellOffsets[cell + endCol + 1]; i++) {
+                runs[n] = ((runStarts[i] & 0xFFFFFFFFL) << 32) | (runLengths[i] & 0xFFFFFFFFL);
+                n++;
+            }
+        }
+        if (numRuns == 0) {
+            return runs;
+        }
+        Arrays.sort(runs);
+
+        // merge neighbouring runs
+        int numRanges = 0;
+        long rangeStart = runs[0] >>> 32;
+        long rangeEnd = rangeStart + (runs[0] & 0xFFFFFFFFL);
+        for (int i = 1; i < numRuns; i++) {
+            long start = runs[i] >>> 32;
+            long end = start + (runs[i] & 0xFFFFFFFFL);
+            if (start <= rangeEnd + maxGap) {
+                if (end > rangeEnd) {
+                    rangeEnd = end;
+                }
+            } else {
+                runs[numRanges] = (rangeStart << 32) | (rangeEnd - rangeStart);
+                numRanges++;
+                rangeStart = start;
+                rangeEnd = end;
+            }
+        }
+        runs[numRanges] = (rangeStart << 32) | (rangeEnd - rangeStart);
+        numRanges++;
+        return Arrays.copyOf(runs, numRanges);
+    }
+
+    private int getColumn(double x) {
+        double c = Math.floor((x - minX) / cellSize);
+        if (c < 0 || c != c) {
+            return 0;
+        }
+        if (c >= cols) {
+            return cols - 1;
+        }
+        return (int) c;
+    }
+
+    private int getRow(double y) {
+        double r = Math.floor((y - minY) / cellSize);
+        if (r < 0 || r != r) {
+            return 0;
+        }
+        if (r >= rows) {
+            return rows - 1;
+        }
+        return (int) r;
+    }
+
+    /**
+     * Builds the index by reading the x and y coordinates of each point record
+     * in file order.
+     */
+    private static LASSpatialIndex build(LASReader las) throws IOException {
+        LASSpatialIndex index = new LASSpatialIndex();
+        File lasFile = new File(las.getFileName());
+        index.lasFileLength = lasFile.length();
+        index.lasFileModified = lasFile.lastModified();
+        index.numPoints = las.getNumPointRecords();
+        if (index.numPoints > Integer.MAX_VALUE) {
+            throw new IOException("The LAS file contains too many points to be indexed.");
+        }
+        int numPoints = (int) index.numPoints;
+
+        // size the grid so that an average cell contains about
+        // TARGET_POINTS_PER_CELL points.
+        double width = Math.max(las.getMaxX() - las.getMinX(), 0);
+        double height = Math.max(las.getMaxY() - las.getMinY(), 0);
+        int targetNumCells = Math.max(1, Math.min(MAX_NUM_CELLS,
+                numPoints / TARGET_POINTS_PER_CELL));
+        double cellSize;
+        if (width > 0 && height > 0) {
+            cellSize = Math.sqrt(width * height / targetNumCells);
+        } else {
+            cellSize = Math.max(width, height) / targetNumCells;
+        }
+        if (!(cellSize > 0) || Double.isInfinite(cellSize)) {
+            cellSize = 1;
+        }
+        index.minX = las.getMinX();
+        index.minY = las.getMinY();
+        index.cellSize = cellSize;
+        index.cols = (int) Math.max(1, Math.min(MAX_NUM_CELLS, Math.ceil(width / cellSize)));
+        index.rows = (int) Math.max(1, Math.min(MAX_NUM_CELLS / index.cols, Math.ceil(height / cellSize)));
+        int numCells = index.rows * index.cols;
+
+        // find the runs of consecutive points that fall in the same cell
+        int[] runCells = new int[1024];
+        int[] runStarts = new int[1024];
+        int numRuns = 0;
+        double xScale = las.getXScale();
+        double yScale = las.getYScale();
+        double xOffset = las.getXOffset();
+        double yOffset = las.getYOffset();
+        int recLength = las.getPointDataRecLength();
+        int recordsPerBlock = Math.max(1, READ_BLOCK_SIZE / recLength);
+        ByteBuffer buf = ByteBuffer.allocate(recordsPerBlock * recLength);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        int currentCell = -1;
+        try (RandomAccessFile rIn = new RandomAccessFile(las.getFileName(), "r")) {
+            FileChannel inChannel = rIn.getChannel();
+            long pos = las.getOffsetToPointData();
+            for (int blockStart = 0; blockStart < numPoints; blockStart += recordsPerBlock) {
+                int numRecords = Math.min(recordsPerBlock, numPoints - blockStart);
+                buf.clear();
+                buf.limit(numRecords * recLength);
+                while (buf.hasRemaining()) {
+                    if (inChannel.read(buf, pos + buf.position()) < 0) {
+                        throw new IOException("Unexpected end of LAS file.");
+                    }
+                }
+                pos += numRecords * recLength;
+                int offset = 0;
+                for (int i = 0; i < numRecords; i++) {
+                    double x = buf.getInt(offset) * xScale + xOffset;
+                    double y = buf.getInt(offset + 4) * yScale + yOffset;
+                    int cell = index.getRow(y) * index.cols + index.getColumn(x);
+                    if (cell != currentCell) {
+                        if (numRuns == runCells.length) {
+                            int newLength = runCells.length * 2;
+                            runCells = Arrays.copyOf(runCells, newLength);
+                            runStarts = Arrays.copyOf(runStarts, newLength);
+                        }
+                        runCells[numRuns] = cell;
+                        runStarts[numRuns] = blockStart + i;
+                        numRuns++;
+                        currentCell = cell;
+                    }
+                    offset += recLength;
+                }
+            }
+        }
+
+        // sort the runs by cell, keeping them in file order within each cell
+        index.cellOffsets = new int[numCells + 1];
+        for (int i = 0; i < numRuns; i++) {
+            index.cellOffsets[runCells[i] + 1]++;
+        }
+        for (int i = 0; i < numCells; i++) {
+            index.cellOffsets[i + 1] += index.cellOffsets[i];
+        }
+        int[] next = Arrays.copyOf(index.cellOffsets, numCells);
+        index.runStarts = new int[numRuns];
+        index.runLengths = new int[numRuns];
+        for (int i = 0; i < numRuns; i++) {
+            int end = (i < numRuns - 1) ? runStarts[i + 1] : numPoints;
+            int j = next[runCells[i]]++;
+            index.runStarts[j] = runStarts[i];
+            index.runLengths[j] = end - runStarts[i];
+        }
+        return index;
+    }
+
+    private static LASSpatialIndex read(String indexFile, File lasFile, long numPoints) {
+        File file = new File(indexFile);
+        if (!file.exists()) {
+            return null;
+        }
+        try (RandomAccessFile rIn = new RandomAccessFile(file, "r")) {
+            FileChannel inChannel = rIn.getChannel();
+            long fileSize = inChannel.size();
+            if (fileSize < HEADER_SIZE) {
+                return null;
+            }
+            ByteBuffer buf = inChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            if (buf.getInt(0) != MAGIC_NUMBER || buf.getInt(4) != VERSION) {
+                return null;
+            }
+            LASSpatialIndex index = new LASSpatialIndex();
+            index.lasFileLength = buf.getLong(8);
+            index.lasFileModified = buf.getLong(16);
+            index.numPoints = buf.getLong(24);
+            if (index.lasFileLength != lasFile.length()
+                    || index.lasFileModified != lasFile.lastModified()
+                    || index.numPoints != numPoints) {
+                return null; // the LAS file has changed.
+            }
+            index.minX = buf.getDouble(32);
+            index.minY = buf.getDouble(40);
+            index.cellSize = buf.getDouble(48);
+            index.rows = buf.getInt(56);
+            index.cols = buf.getInt(60);
+            long numCells = (long) index.rows * index.cols;
+            if (index.rows < 1 || index.cols < 1 || numCells > MAX_NUM_CELLS
+                    || fileSize < HEADER_SIZE + 4 * (numCells + 1)) {
+                return null;
+            }
+            index.cellOffsets = new int[(int) numCells + 1];
+            buf.position(HEADER_SIZE);
+            buf.asIntBuffer().get(index.cellOffsets);
+            int numRuns = index.cellOffsets[(int) numCells];
+            if (numRuns < 0 || fileSize != HEADER_SIZE + 4 * (numCells + 1) + 8L * numRuns) {
+                return null;
+            }
+            index.runStarts = new int[numRuns];
+            index.runLengths = new int[numRuns];
+            buf.position(HEADER_SIZE + 4 * ((int) numCells + 1));
+            buf.asIntBuffer().get(index.runStarts);
+            buf.position(buf.position() + 4 * numRuns);
+            buf.asIntBuffer().get(index.runLengths);
+            return index;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private void write(String indexFile) {
+        // The index is written to a temporary file that is then renamed, so
+        // that a partly written index is never read.
+        File tempFile = new File(indexFile + ".tmp");
+        try {
+            try (RandomAccessFile rOut = new RandomAccessFile(tempFile, "rw")) {
+                rOut.setLength(0);
+                FileChannel outChannel = rOut.getChannel();
+                ByteBuffer buf = ByteBuffer.allocate(1048576);
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+                buf.putInt(MAGIC_NUMBER);
+                buf.putInt(VERSION);
+                buf.putLong(lasFileLength);
+                buf.putLong(lasFileModified);
+                buf.putLong(numPoints);
+                buf.putDouble(minX);
+                buf.putDouble(minY);
+                buf.putDouble(cellSize);
+                buf.putInt(rows);
+                buf.putInt(cols);
+                writeInts(outChannel, buf, cellOffsets);
+                writeInts(outChannel, buf, runStarts);
+                writeInts(outChannel, buf, runLengths);
+                flush(outChannel, buf);
+            }
+            File file = new File(indexFile);
+            if (file.exists()) {
+                file.delete();
+            }
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+            }
+        } catch (IOException e) {
+            // the index will simply be rebuilt the next time that it is needed.
+            tempFile.delete();
+        }
+    }
+
+    private static void writeInts(FileChannel outChannel, ByteBuffer buf,
+            int[] values) throws IOException {
+        for (int value : values) {
+            if (buf.remaining() < 4) {
+                flush(outChannel, buf);
+            }
+            buf.putInt(value);
+        }
+    }
+
+    private static void flush(FileChannel outChannel, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            outChannel.write(buf);
+        }
+        buf.clear();
+    }
+}
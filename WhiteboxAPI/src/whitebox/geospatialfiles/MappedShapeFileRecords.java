@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import whitebox.geospatialfiles.shapefile.ShapeFileRecord;
+import whitebox.geospatialfiles.shapefile.ShapeType;
+
+/**
+ * Provides on-demand access to the records of a shapefile, for use by
+ * ShapeFile when it is opened lazily. The .shp file is memory-mapped in
+ * segments and the position of each record is taken from the .shx index
+ * file, so that a record can be decoded without reading any of the records
+ * that precede it. Recently decoded records are held in a cache of bounded
+ * size, which keeps the memory needed to work with very large files small.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+class MappedShapeFileRecords implements Iterable<ShapeFileRecord> {
+
+    // the .shp file is mapped in segments, since a single mapping cannot
+    // exceed 2 GB; neighbouring segments overlap so that few records span
+    // two segments.
+    private static final long SEGMENT_SIZE = 1L << 30;
+    private static final long SEGMENT_OVERLAP = 1L << 20;
+    static final int DEFAULT_CACHE_SIZE = 10000;
+    private final String fileName;
+    private final long fileLength;
+    private final int numRecords;
+    // record offsets and content lengths, in 16-bit words as in the .shx file
+    private final int[] offsets;
+    private final int[] contentLengths;
+    private final MappedByteBuffer[] segments;
+    private final LinkedHashMap<Integer, ShapeFileRecord> cache;
+    private int cacheSize = DEFAULT_CACHE_SIZE;
+
+    /**
+     * Constructor.
+     *
+     * @param fileName The name of the .shp file.
+     * @param indexFileName The name of the .shx file. If it does not exist,
+     * or does not match the .shp file, the record positions are found by
+     * reading the record headers of the .shp file.
+     * @throws IOException if the .shp file cannot be read.
+     */
+    MappedShapeFileRecords(String fileName, String indexFileName) throws IOException {
+        this.fileName = fileName;
+        File file = new File(fileName);
+        fileLength = file.length();
+        long numSegments = (fileLength + SEGMENT_SIZE - 1) / SEGMENT_SIZE;
+        segments = new MappedByteBuffer[(int) Math.max(numSegments, 1)];
+
+        int[][] index = readIndexFile(indexFileName);
+        if (index == null) {
+            index = scanRecordHeaders();
+        }
+        offsets = index[0];
+        contentLengths = index[1];
+        numRecords = offsets.length;
+
+        cache = new LinkedHashMap<Integer, ShapeFileRecord>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, ShapeFileRecord> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    int getNumberOfRecords() {
+        return numRecords;
+    }
+
+    /**
+     * Sets the maximum number of decoded records that are held in memory.
+     */
+    synchronized void setCacheSize(int value) {
+        cacheSize = Math.max(value, 0);
+        if (cache.size() > cacheSize) {
+            Iterator<Integer> it = cache.keySet().iterator();
+            while (cache.size() > cacheSize) {
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Returns a record, decoding it if it is not in the cache.
+     *
+     * @param recordNumber The zero-based record number.
+     * @return The record.
+     */
+    ShapeFileRecord getRecord(int recordNumber) {
+        if (recordNumber < 0 || recordNumber >= numRecords) {
+            throw new IndexOutOfBoundsException("Record " + recordNumber
+                    + " does not exist; the file contains " + numRecords + " records.");
+        }
+        synchronized (this) {
+            ShapeFileRecord sfr = cache.get(recordNumber);
+            if (sfr != null) {
+                return sfr;
+            }
+        }
+        ShapeFileRecord sfr = decodeRecord(recordNumber);
+        synchronized (this) {
+            if (cacheSize > 0) {
+                cache.put(recordNumber, sfr);
+            }
+        }
+        return sfr;
+    }
+
+    /**
+     * Reads the bounding box of a record without decoding its geometry.
+     *
+     * @param recordNumber The zero-based record number.
+     * @param box An array of length four that receives the minimum x, minimum
+     * y, maximum x and maximum y coordinates.
+     * @return false if the record is a null shape, which has no bounding box.
+     */
+    boolean getRecordBox(int recordNumber, double[] box) {
+        long pos = 2 * (offsets[recordNumber] & 0xFFFFFFFFL);
+        int contentBytes = 2 * contentLengths[recordNumber];
+        if (contentBytes < 20) {
+            return false;
+        }
+        byte[] bytes = new byte[Math.min(contentBytes, 36)];
+        readBytes(pos + 8, bytes);
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        ShapeType st = ShapeFile.getShapeTypeFromInt(buf.getInt(0));
+        switch (st) {
+            case NULLSHAPE:
+                return false;
+            case POINT:
+            case POINTZ:
+            case POINTM:
+                box[0] = buf.getDouble(4);
+                box[1] = buf.getDouble(12);
+                box[2] = box[0];
+                box[3] = box[1];
+                return true;
+            default:
+                if (bytes.length < 36) {
+                    return false;
+                }
+                box[0] = buf.getDouble(4);
+                box[1] = buf.getDouble(12);
+                box[2] = buf.getDouble(20);
+                box[3] = buf.getDouble(28);
+                return true;
+        }
+    }
+
+    /**
+     * Returns an iterator that decodes the records in order. The records are
+     * not added to the cache, so that iterating through a large file does not
+     * displace the records that are in use.
+     */
+    @Override
+    public Iterator<ShapeFileRecord> iterator() {
+        return new Iterator<ShapeFileRecord>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < numRecords;
+            }
+
+            @Override
+            public ShapeFileRecord next() {
+                if (next >= numRecords) {
+                    throw new NoSuchElementException();
+                }
+                ShapeFileRecord sfr;
+                synchronized (MappedShapeFileRecords.this) {
+                    sfr = cache.get(next);
+                }
+                if (sfr == null) {
+                    sfr = decodeRecord(next);
+                }
+                next++;
+                return sfr;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private ShapeFileRecord decodeRecord(int recordNumber) {
+        long pos = 2 * (offsets[recordNumber] & 0xFFFFFFFFL);
+        int contentLength = contentLengths[recordNumber];
+        byte[] header = new byte[12];
+        readBytes(pos, header);
+        ByteBuffer buf = ByteBuffer.wrap(header);
+        int recNum = buf.getInt(0); // big-endian
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        ShapeType recShapeType = ShapeFile.getShapeTypeFromInt(buf.getInt(8));
+        byte[] data = new byte[Math.max(contentLength * 2 - 4, 0)];
+        readBytes(pos + 12, data);
+        return new ShapeFileRecord(recNum, contentLength, recShapeType, data);
+    }
+
+    /**
+     * Copies bytes from the .shp file, starting at a position in the file.
+     */
+    private void readBytes(long pos, byte[] dst) {
+        int segment = (int) (pos / SEGMENT_SIZE);
+        long segmentStart = segment * SEGMENT_SIZE;
+        if (pos + dst.length <= Math.min(segmentStart + SEGMENT_SIZE + SEGMENT_OVERLAP, fileLength)) {
+            ByteBuffer buf = getSegment(segment).duplicate();
+            buf.position((int) (pos - segmentStart));
+            buf.get(dst);
+            return;
+        }
+        // the bytes span two segments; this only happens for records that
+        // are larger than the overlap between segments.
+        try (RandomAccessFile rIn = new RandomAccessFile(fileName, "r")) {
+            FileChannel inChannel = rIn.getChannel();
+            ByteBuffer buf = ByteBuffer.wrap(dst);
+            while (buf.hasRemaining()) {
+                if (inChannel.read(buf, pos + buf.position()) < 0) {
+                    throw new IOException("Unexpected end of file.");
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Error reading " + fileName + ": " + e.getMessage(), e);
+        }
+    }
+
+    private synchronized MappedByteBuffer getSegment(int segment) {
+        if (segments[segment] == null) {
+            long start = segment * SEGMENT_SIZE;
+            long size = Math.min(SEGMENT_SIZE + SEGMENT_OVERLAP, fileLength - start);
+            try (RandomAccessFile rIn = new RandomAccessFile(fileName, "r")) {
+                segments[segment] = rIn.getChannel().map(FileChannel.MapMode.READ_ONLY, start, size);
+            } catch (IOException e) {
+                throw new IllegalStateException("Error reading " + fileName + ": " + e.getMessage(), e);
+            }
+        }
+        return segments[segment];
+    }
+
+    /**
+     * Reads the record offsets and content lengths from the .shx file. Null
+     * is returned if the file does not exist or does not describe the .shp
+     * file.
+     */
+    private int[][] readIndexFile(String indexFileName) {
+        File file = new File(indexFileName);
+        if (!file.exists() || file.length() < 100 || (file.length() - 100) % 8 != 0) {
+            return null;
+        }
+        try (RandomAccessFile rIn = new RandomAccessFile(file, "r")) {
+            FileChannel inChannel = rIn.getChannel();
+            ByteBuffer buf = inChannel.map(FileChannel.MapMode.READ_ONLY, 0, inChannel.size());
+            buf.order(ByteOrder.BIG_ENDIAN);
+            int n = (int) ((file.length() - 100) / 8);
+            int[] recOffsets = new int[n];
+            int[] recLengths = new int[n];
+            buf.position(100);
+            long lastEnd = 100;
+            for (int i = 0; i < n; i++) {
+                recOffsets[i] = buf.getInt();
+                recLengths[i] = buf.getInt();
+                long start = 2 * (recOffsets[i] & 0xFFFFFFFFL);
+                long end = start + 8 + 2L * recLengths[i];
+                if (start < lastEnd || recLengths[i] < 2 || end > fileLength) {
+                    return null; // the index doesn't match the data file.
+                }
+                lastEnd = end;
+            }
+            return new int[][]{recOffsets, recLengths};
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Finds the record offsets and content lengths by stepping through the
+     * record headers of the .shp file.
+     */
+    private int[][] scanRecordHeaders() {
+        int[] recOffsets = new int[1024];
+        int[] recLengths = new int[1024];
+        int n = 0;
+        long pos = 100;
+        byte[] header = new byte[8];
+        while (pos + 8 <= fileLength) {
+            readBytes(pos, header);
+            int contentLength = ByteBuffer.wrap(header).getInt(4);
+            if (contentLength < 0 || pos + 8 + 2L * contentLength > fileLength) {
+                break;
+            }
+            if (n == recOffsets.length) {
+                recOffsets = Arrays.copyOf(recOffsets, n * 2);
+                recLengths = Arrays.copyOf(recLengths, n * 2);
+            }
+            recOffsets[n] = (int) (pos / 2);
+            recLengths[n] = contentLength;
+            n++;
+            pos += 8 + 2L * contentLength;
+        }
+        return new int[][]{Arrays.copyOf(recOffsets, n), Arrays.copyOf(recLengths, n)};
+    }
+}
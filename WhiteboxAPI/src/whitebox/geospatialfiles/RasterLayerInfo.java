@@ -37,7 +37,7 @@ public class RasterLayerInfo implements MapLayer {
     private int rows, cols;
     public boolean increasesEastward = false;
     public boolean increasesNorthward = false;
-    private boolean dirty = true;
+    private volatile boolean dirty = true;
     private String[] defaultPalettes;
     private double[] data = null;
     private boolean visibleInLegend = true;
@@ -262,6 +262,18 @@ public class RasterLayerInfo implements MapLayer {
         }
         return pixelData;
     }
+    private volatile PixelImage pixelImage = null;
+
+    /**
+     * Returns the image most recently created by createPixelData, together
+     * with the extent that it covers. Unlike getPixelData, this does not
+     * create the image if the layer is dirty.
+     *
+     * @return The image, or null if none has been created yet.
+     */
+    public PixelImage getPixelImage() {
+        return pixelImage;
+    }
     private int imageWidth = 0;
 
     public int getImageWidth() {
@@ -408,7 +420,7 @@ public class RasterLayerInfo implements MapLayer {
     }
 
     @Override
-    public void setCurrentExtent(BoundingBox bb) {
+    public synchronized void setCurrentExtent(BoundingBox bb) {
         if (!bb.equals(currentExtent) || generalizationLevelDirty) {
             currentExtent = bb.clone();
             dirty = true;
@@ -417,7 +429,7 @@ public class RasterLayerInfo implements MapLayer {
     }
     private int resolutionFactor = 1;
 
-    public void setResolutionFactor(int value) {
+    public synchronized void setResolutionFactor(int value) {
         if (value < 1) {
             value = 1;
         }
@@ -439,7 +451,10 @@ public class RasterLayerInfo implements MapLayer {
         generalizationLevelDirty = true;
     }
 
-    public double getDataValue(int row, int col) {
+    public synchronized double getDataValue(int row, int col) {
+        if (data == null) {
+            return Double.NaN;
+        }
         int r = (int) (((double) row - startRow) / (endRow - startRow) * (imageHeight - 1) + 0.5);
         int c = (int) (((double) col - startCol) / (endCol - startCol) * (imageWidth - 1) + 0.5);
         int cellNum = (int) (r * imageWidth + c);
@@ -510,26 +525,57 @@ public class RasterLayerInfo implements MapLayer {
     int endRow;
     int startCol;
     int endCol;
+    // serializes createPixelData, which may be called from several threads
+    private final Object renderLock = new Object();
 
+    /**
+     * Creates the image of the current extent at the current resolution
+     * factor. This may be called from a background thread; the image and its
+     * data values replace those of the previous call only once complete, and
+     * the layer is marked dirty again if the extent or resolution factor
+     * changes in the meantime.
+     *
+     * Large rasters that are displayed at a reduced resolution are read from
+     * their overviews (see RasterOverviews), which are built in the
+     * background the first time that they are needed.
+     */
     public void createPixelData() {
+        synchronized (renderLock) {
+            BoundingBox extent;
+            int resolutionFactor;
+            synchronized (this) {
+                extent = currentExtent.clone();
+                resolutionFactor = this.resolutionFactor;
+                dirty = false;
+            }
+            try {
+                createPixelData(extent, resolutionFactor);
+            } catch (Exception e) {
+                System.out.println("Error: " + e.getMessage());
+            }
+        }
+    }
+
+    private void createPixelData(BoundingBox extent, int resolutionFactor) throws Exception {
+        RasterOverviews overviews = null;
         try {
 
             if ((paletteData == null) && (dataScale != WhiteboxRaster.DataScale.RGB)) {
                 readPalette();
             }
 
-            startRow = (int) (Math.abs(fullExtent.getMaxY() - currentExtent.getMaxY()) / source.getCellSizeY());
-            endRow = (int) (rows - (Math.abs(fullExtent.getMinY() - currentExtent.getMinY()) / source.getCellSizeY())) - 1;
-            startCol = (int) (Math.abs(fullExtent.getMinX() - currentExtent.getMinX()) / source.getCellSizeX());
-            endCol = (int) (cols - (Math.abs(fullExtent.getMaxX() - currentExtent.getMaxX()) / source.getCellSizeX())) - 1;
+            int startRow = (int) (Math.abs(fullExtent.getMaxY() - extent.getMaxY()) / source.getCellSizeY());
+            int endRow = (int) (rows - (Math.abs(fullExtent.getMinY() - extent.getMinY()) / source.getCellSizeY())) - 1;
+            int startCol = (int) (Math.abs(fullExtent.getMinX() - extent.getMinX()) / source.getCellSizeX());
+            int endCol = (int) (cols - (Math.abs(fullExtent.getMaxX() - extent.getMaxX()) / source.getCellSizeX())) - 1;
             int row, col;
             double range = maxVal - minVal;
             double value = 0;
             int entryNum = 0;
 
             // check the numCells
-            imageHeight = 0;
-            imageWidth = 0;
+            int imageHeight = 0;
+            int imageWidth = 0;
             for (row = startRow; row <= endRow; row += resolutionFactor) {
                 imageHeight++;
             }
@@ -541,21 +587,35 @@ public class RasterLayerInfo implements MapLayer {
 
             WhiteboxRasterInfo sourceData = new WhiteboxRasterInfo(source.getHeaderFile());
 
+            // at reduced resolutions, read the rows from the coarsest
+            // overview that still has a cell for every pixel; column col of
+            // the raster is then column col / overviewFactor of the row.
+            int overviewFactor = 1;
+            if (resolutionFactor > 1 && RasterOverviews.isNeeded(sourceData)) {
+                overviews = RasterOverviews.open(sourceData);
+                if (overviews != null) {
+                    overviewFactor = overviews.getOverviewFactor(resolutionFactor);
+                } else {
+                    RasterOverviews.buildInBackground(source.getHeaderFile());
+                }
+            }
+
             int backgroundColour = 0; // transparent black
-            pixelData = new int[numCells];
-            data = new double[numCells];
+            int[] pixelData = new int[numCells];
+            double[] data = new double[numCells];
             //data = new double[1];
 
             int numPaletteEntriesLessOne = numPaletteEntries - 1;
 
             //long startTime = System.currentTimeMillis();
-            double[] rawData;
+            double[] rawData = new double[cols];
+            sourceData.setSequentialReadAhead(resolutionFactor == 1);
             int i = 0;
             if (dataScale == WhiteboxRaster.DataScale.CONTINUOUS) {
                 for (row = startRow; row <= endRow; row += resolutionFactor) {
-                    rawData = sourceData.getRowValues(row);
+                    readRow(sourceData, overviews, overviewFactor, row, rawData);
                     for (col = startCol; col <= endCol; col += resolutionFactor) {
-                        value = rawData[col]; //sourceData.getValue(row, col);
+                        value = rawData[col / overviewFactor]; //sourceData.getValue(row, col);
                         if (value != noDataValue) {
                             if (gamma == 1) {
                                 entryNum = (int)((value - minVal) / range * numPaletteEntriesLessOne);
@@ -579,9 +639,9 @@ public class RasterLayerInfo implements MapLayer {
 
             } else if (dataScale == WhiteboxRaster.DataScale.CATEGORICAL) {
                 for (row = startRow; row <= endRow; row += resolutionFactor) {
-                    rawData = sourceData.getRowValues(row);
+                    readRow(sourceData, overviews, overviewFactor, row, rawData);
                     for (col = startCol; col <= endCol; col += resolutionFactor) {
-                        value = rawData[col]; //sourceData.getValue(row, col);
+                        value = rawData[col / overviewFactor]; //sourceData.getValue(row, col);
                         if (value != noDataValue) {
                             entryNum = (int) (value - minVal) % numPaletteEntries;
                             if (entryNum < 0) {
@@ -600,9 +660,9 @@ public class RasterLayerInfo implements MapLayer {
                 }
             } else if (dataScale == WhiteboxRaster.DataScale.BOOLEAN) {
                 for (row = startRow; row <= endRow; row += resolutionFactor) {
-                    rawData = sourceData.getRowValues(row);
+                    readRow(sourceData, overviews, overviewFactor, row, rawData);
                     for (col = startCol; col <= endCol; col += resolutionFactor) {
-                        value = rawData[col]; //sourceData.getValue(row, col);
+                        value = rawData[col / overviewFactor]; //sourceData.getValue(row, col);
                         if (value != noDataValue) {
                             if (value > 0) {
                                 entryNum = numPaletteEntriesLessOne;
@@ -620,9 +680,9 @@ public class RasterLayerInfo implements MapLayer {
             } else if (dataScale == WhiteboxRaster.DataScale.RGB) {
                 int r, g, b, a, val;
                 for (row = startRow; row <= endRow; row += resolutionFactor) {
-                    rawData = sourceData.getRowValues(row);
+                    readRow(sourceData, overviews, overviewFactor, row, rawData);
                     for (col = startCol; col <= endCol; col += resolutionFactor) {
-                        value = rawData[col]; //sourceData.getValue(row, col);
+                        value = rawData[col / overviewFactor]; //sourceData.getValue(row, col);
                         if (value != noDataValue) {
                             val = (int) value;
                             a = (val >> 24) & 0xFF;
@@ -643,9 +703,64 @@ public class RasterLayerInfo implements MapLayer {
             sourceData.close();
             sourceData = null;
 
-            dirty = false;
-        } catch (Exception e) {
-            System.out.println("Error: " + e.getMessage());
+            synchronized (this) {
+                this.pixelData = pixelData;
+                this.data = data;
+                this.imageWidth = imageWidth;
+                this.imageHeight = imageHeight;
+                this.startRow = startRow;
+                this.endRow = endRow;
+                this.startCol = startCol;
+                this.endCol = endCol;
+                pixelImage = new PixelImage(pixelData, imageWidth, imageHeight, extent);
+            }
+        } finally {
+            if (overviews != null) {
+                overviews.close();
+            }
+        }
+    }
+
+    private void readRow(WhiteboxRasterInfo sourceData, RasterOverviews overviews,
+            int overviewFactor, int row, double[] rawData) throws IOException {
+        if (overviewFactor > 1) {
+            overviews.getRowValues(overviewFactor, row / overviewFactor, rawData);
+        } else {
+            sourceData.getRowValues(row, rawData);
+        }
+    }
+
+    /**
+     * An image of a raster layer and the extent that it covers.
+     */
+    public static class PixelImage {
+
+        private final int[] pixelData;
+        private final int width;
+        private final int height;
+        private final BoundingBox extent;
+
+        PixelImage(int[] pixelData, int width, int height, BoundingBox extent) {
+            this.pixelData = pixelData;
+            this.width = width;
+            this.height = height;
+            this.extent = extent;
+        }
+
+        public int[] getPixelData() {
+            return pixelData;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public BoundingBox getExtent() {
+            return extent.clone();
         }
     }
 
@@ -894,11 +1009,11 @@ public class RasterLayerInfo implements MapLayer {
 
                 // Create the whitebox raster object.
                 WhiteboxRaster wbr = new WhiteboxRaster(outputFileName, "rw");
-                double[] rowData = null;
+                double[] rowData = new double[cols];
                 int row, col;
                 for (row = fromRow; row <= toRow; row++) {
                     if (row >= 0 && row < rows) {
-                        rowData = source.getRowValues(row);
+                        source.getRowValues(row, rowData);
                         for (col = fromCol; col <= toCol; col++) {
                             wbr.setValue(row - fromRow, col - fromCol, rowData[col]);
                         }
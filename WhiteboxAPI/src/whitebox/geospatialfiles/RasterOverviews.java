@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Reduced-resolution copies (overviews) of a raster, used to display large
+ * rasters at small scales without reading the whole data file. Overview
+ * level k holds every 2^k-th cell of every 2^k-th row of the raster, stored
+ * in the raster's own data type and byte order, so that categorical and RGB
+ * values are preserved.
+ *
+ * The levels are stored together in an overview file (.ovr) beside the data
+ * file (.tas). The overview file records the size and modification time of
+ * the data file from which it was built and is ignored once the data file
+ * changes.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public class RasterOverviews {
+
+    /**
+     * The smallest raster, in cells, for which overviews are built; smaller
+     * rasters are quick enough to read in full.
+     */
+    public static final long MIN_CELLS = 1 << 22;
+    // levels are added until the coarsest has fewer rows and columns than this
+    private static final int MIN_LEVEL_SIZE = 512;
+    private static final int MAGIC = 0x57424f56;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 48;
+    private static final ExecutorService builder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Raster overview builder");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+    // the rasters whose overviews are being built, or could not be built and
+    // are not tried again
+    private static final Set<String> queued = Collections.synchronizedSet(new HashSet<String>());
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int rows;
+    private final int cols;
+    private final int numLevels;
+    private final WhiteboxRasterBase.DataType dataType;
+    private final int cellSizeInBytes;
+    private final ByteOrder byteOrder;
+    private ByteBuffer rowBuffer = ByteBuffer.allocate(0);
+
+    private RasterOverviews(RandomAccessFile file, int rows, int cols, int numLevels,
+            WhiteboxRasterBase.DataType dataType, ByteOrder byteOrder) {
+        this.file = file;
+        this.channel = file.getChannel();
+        this.rows = rows;
+        this.cols = cols;
+        this.numLevels = numLevels;
+        this.dataType = dataType;
+        this.cellSizeInBytes = getCellSize(dataType);
+        this.byteOrder = byteOrder;
+    }
+
+    /**
+     * Returns the name of the overview file of a raster.
+     */
+    public static String getOverviewFile(WhiteboxRasterBase raster) {
+        String dataFile = raster.getDataFile();
+        return dataFile.substring(0, dataFile.lastIndexOf('.')) + ".ovr";
+    }
+
+    /**
+     * Returns whether a raster is large enough to need overviews.
+     */
+    public static boolean isNeeded(WhiteboxRasterBase raster) {
+        return (long) raster.getNumberRows() * raster.getNumberColumns() >= MIN_CELLS
+                && getNumberOfLevels(raster.getNumberRows(), raster.getNumberColumns()) > 0;
+    }
+
+    /**
+     * Opens the overviews of a raster.
+     *
+     * @return The overviews, or null if they have not been built or are out
+     * of date.
+     */
+    public static RasterOverviews open(WhiteboxRasterBase raster) {
+        File ovrFile = new File(getOverviewFile(raster));
+        File dataFile = new File(raster.getDataFile());
+        if (!ovrFile.exists() || !dataFile.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(ovrFile, "r");
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            raf.getChannel().read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC
+                    || header.getInt() != VERSION
+                    || header.getLong() != dataFile.length()
+                    || header.getLong() != dataFile.lastModified()) {
+                raf.close();
+                return null;
+            }
+            int rows = header.getInt();
+            int cols = header.getInt();
+            int numLevels = header.getInt();
+            int dataTypeOrdinal = header.getInt();
+            ByteOrder order = (header.getInt() == 0) ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+            if (rows != raster.getNumberRows() || cols != raster.getNumberColumns()
+                    || dataTypeOrdinal != raster.getDataType().ordinal()) {
+                raf.close();
+                return null;
+            }
+            return new RasterOverviews(raf, rows, cols, numLevels, raster.getDataType(), order);
+        } catch (IOException e) {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e2) {
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Queues the overviews of a raster to be built on a background thread,
+     * unless they have already been queued.
+     *
+     * @param headerFile The header file (.dep) of the raster.
+     */
+    public static void buildInBackground(final String headerFile) {
+        if (!queued.add(headerFile)) {
+            return;
+        }
+        builder.submit(new Runnable() {
+            @Override
+            public void run() {
+                WhiteboxRasterInfo raster = new WhiteboxRasterInfo(headerFile);
+                try {
+                    build(raster);
+                    // the overviews are rebuilt if the raster later changes
+                    queued.remove(headerFile);
+                } catch (IOException e) {
+                    System.err.println("Unable to build the overviews of " + headerFile
+                            + ": " + e.getMessage());
+                } finally {
+                    raster.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Builds the overviews of a raster in a single pass over its data file.
+     * The overview file is written under a temporary name and then renamed.
+     *
+     * @param raster The raster.
+     * @throws IOException if the overview file cannot be written.
+     */
+    public static void build(WhiteboxRasterBase raster) throws IOException {
+        int rows = raster.getNumberRows();
+        int cols = raster.getNumberColumns();
+        int numLevels = getNumberOfLevels(rows, cols);
+        if (numLevels == 0) {
+            return;
+        }
+        File dataFile = new File(raster.getDataFile());
+        long dataLength = dataFile.length();
+        long dataLastModified = dataFile.lastModified();
+        WhiteboxRasterBase.DataType dataType = raster.getDataType();
+        int cellSize = getCellSize(dataType);
+        ByteOrder order = raster.getByteOrder().equals(ByteOrder.BIG_ENDIAN.toString())
+                ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+
+        File ovrFile = new File(getOverviewFile(raster));
+        File tempFile = new File(ovrFile.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+        try {
+            FileChannel out = raf.getChannel();
+            raf.setLength(0);
+            ByteBuffer[] levelRows = new ByteBuffer[numLevels];
+            for (int level = 1; level <= numLevels; level++) {
+                levelRows[level - 1] = ByteBuffer.allocate(getLevelColumns(cols, level) * cellSize);
+                levelRows[level - 1].order(order);
+            }
+
+            double[] values = new double[cols];
+            raster.setSequentialReadAhead(true);
+            for (int row = 0; row < rows; row += 2) {
+                raster.getRowValues(row, values);
+                for (int level = 1; level <= numLevels; level++) {
+                    int factor = 1 << level;
+                    if (row % factor != 0) {
+                        break;
+                    }
+                    ByteBuffer buf = levelRows[level - 1];
+                    buf.clear();
+                    for (int col = 0; col < cols; col += factor) {
+                        putValue(buf, dataType, values[col]);
+                    }
+                    buf.flip();
+                    long pos = getLevelOffset(rows, cols, cellSize, level)
+                            + (long) (row / factor) * buf.limit();
+                    while (buf.hasRemaining()) {
+                        out.write(buf, pos + buf.position());
+                    }
+                }
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putLong(dataLength);
+            header.putLong(dataLastModified);
+            header.putInt(rows);
+            header.putInt(cols);
+            header.putInt(numLevels);
+            header.putInt(dataType.ordinal());
+            header.putInt(order == ByteOrder.LITTLE_ENDIAN ? 0 : 1);
+            header.flip();
+            while (header.hasRemaining()) {
+                out.write(header, header.position());
+            }
+        } finally {
+            raf.close();
+        }
+        if (ovrFile.exists() && !ovrFile.delete()) {
+            tempFile.delete();
+            throw new IOException("The existing overview file could not be replaced.");
+        }
+        if (!tempFile.renameTo(ovrFile)) {
+            tempFile.delete();
+            throw new IOException("The overview file could not be renamed.");
+        }
+    }
+
+    /**
+     * Returns the largest overview factor, 2^k, that is no greater than the
+     * given resolution factor, or 1 if no overview is coarse enough.
+     */
+    public int getOverviewFactor(int resolutionFactor) {
+        int level = 0;
+        while (level < numLevels && (2 << level) <= resolutionFactor) {
+            level++;
+        }
+        return 1 << level;
+    }
+
+    /**
+     * Returns the number of rows of the overview with a given factor.
+     */
+    public int getNumberRows(int factor) {
+        return getLevelRows(rows, Integer.numberOfTrailingZeros(factor));
+    }
+
+    /**
+     * Returns the number of columns of the overview with a given factor.
+     */
+    public int getNumberColumns(int factor) {
+        return getLevelColumns(cols, Integer.numberOfTrailingZeros(factor));
+    }
+
+    /**
+     * Reads a row of an overview.
+     *
+     * @param factor The factor of the overview, as returned by
+     * getOverviewFactor; it must be greater than 1.
+     * @param row The row within the overview, which holds row row * factor
+     * of the raster.
+     * @param values Receives the values of the row; column c holds column c *
+     * factor of the raster.
+     * @throws IOException if the overview file cannot be read.
+     */
+    public void getRowValues(int factor, int row, double[] values) throws IOException {
+        int level = Integer.numberOfTrailingZeros(factor);
+        int levelCols = getLevelColumns(cols, level);
+        int length = levelCols * cellSizeInBytes;
+        if (rowBuffer.capacity() < length) {
+            rowBuffer = ByteBuffer.allocate(length);
+        }
+        rowBuffer.clear();
+        rowBuffer.limit(length);
+        rowBuffer.order(byteOrder);
+        long pos = getLevelOffset(rows, cols, cellSizeInBytes, level) + (long) row * length;
+        while (rowBuffer.hasRemaining()) {
+            if (channel.read(rowBuffer, pos + rowBuffer.position()) < 0) {
+                throw new IOException("The overview file is truncated.");
+            }
+        }
+        switch (dataType) {
+            case DOUBLE:
+                for (int j = 0; j < levelCols; j++) {
+                    values[j] = rowBuffer.getDouble(j << 3);
+                }
+                break;
+            case FLOAT:
+                for (int j = 0; j < levelCols; j++) {
+                    values[j] = rowBuffer.getFloat(j << 2);
+                }
+                break;
+            case INTEGER:
+                for (int j = 0; j < levelCols; j++) {
+                    values[j] = rowBuffer.getShort(j << 1);
+                }
+                break;
+            case BYTE:
+                for (int j = 0; j < levelCols; j++) {
+                    values[j] = rowBuffer.get(j) & 0xFF;
+                }
+                break;
+        }
+    }
+
+    public void close() {
+        try {
+            file.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private static int getNumberOfLevels(int rows, int cols) {
+        int numLevels = 0;
+        while (Math.max(rows, cols) >> numLevels >= 2 * MIN_LEVEL_SIZE) {
+            numLevels++;
+        }
+        return numLevels;
+    }
+
+    private static int getLevelRows(int rows, int level) {
+        return ((rows - 1) >> level) + 1;
+    }
+
+    private static int getLevelColumns(int cols, int level) {
+        return ((cols - 1) >> level) + 1;
+    }
+
+    private static long getLevelOffset(int rows, int cols, int cellSize, int level) {
+        long offset = HEADER_SIZE;
+        for (int k = 1; k < level; k++) {
+            offset += (long) getLevelRows(rows, k) * getLevelColumns(cols, k) * cellSize;
+        }
+        return offset;
+    }
+
+    private static int getCellSize(WhiteboxRasterBase.DataType dataType) {
+        switch (dataType) {
+            case DOUBLE:
+                return 8;
+            case FLOAT:
+                return 4;
+            case INTEGER:
+                return 2;
+            default:
+                return 1;
+        }
+    }
+
+    private static void putValue(ByteBuffer buf, WhiteboxRasterBase.DataType dataType, double value) {
+        switch (dataType) {
+            case DOUBLE:
+                buf.putDouble(value);
+                break;
+            case FLOAT:
+                buf.putFloat((float) value);
+                break;
+            case INTEGER:
+                buf.putShort((short) value);
+                break;
+            default:
+                buf.put((byte) value);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+/**
+ * A square block of grid cells held in memory by the tile cache of a
+ * WhiteboxRaster. Cells are stored in row-major order using the tile size of
+ * the owning raster as the row stride, so tiles along the right and bottom
+ * edges of a raster may be only partly used. Resident tiles are linked
+ * together in order from the most to the least recently used.
+ *
+ * The cell values are held in an array of the same primitive type as the data
+ * file, i.e. one byte per cell for a byte raster. Assigned values are narrowed
+ * to that type exactly as they are when the tile is written to the data file,
+ * e.g. a float raster holds (float) value, so that a value reads the same
+ * before and after the tile is written.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+final class RasterTile {
+
+    static final int DOUBLE = 0;
+    static final int FLOAT = 1;
+    static final int SHORT = 2;
+    static final int BYTE = 3;
+    int tileNum;
+    int startingRow;
+    int startingColumn;
+    int numRows;
+    int numColumns;
+    int storage;
+    double[] doubleData;
+    float[] floatData;
+    short[] shortData;
+    byte[] byteData;
+    boolean isDirty = false;
+    RasterTile previous = null;
+    RasterTile next = null;
+
+    /**
+     * Allocates the cell array, reusing the array of a tile that has been
+     * evicted from memory if it is of the right type and large enough.
+     */
+    void allocate(int storage, int length, RasterTile recycled) {
+        this.storage = storage;
+        switch (storage) {
+            case DOUBLE:
+                if (recycled != null && recycled.doubleData != null
+                        && recycled.doubleData.length >= length) {
+                    doubleData = recycled.doubleData;
+                } else {
+                    doubleData = new double[length];
+                }
+                break;
+            case FLOAT:
+                if (recycled != null && recycled.floatData != null
+                        && recycled.floatData.length >= length) {
+                    floatData = recycled.floatData;
+                } else {
+                    floatData = new float[length];
+                }
+                break;
+            case SHORT:
+                if (recycled != null && recycled.shortData != null
+                        && recycled.shortData.length >= length) {
+                    shortData = recycled.shortData;
+                } else {
+                    shortData = new short[length];
+                }
+                break;
+            default:
+                if (recycled != null && recycled.byteData != null
+                        && recycled.byteData.length >= length) {
+                    byteData = recycled.byteData;
+                } else {
+                    byteData = new byte[length];
+                }
+                break;
+        }
+    }
+
+    /**
+     * Returns the number of bytes of memory used by the cell array.
+     */
+    long getSizeInBytes() {
+        switch (storage) {
+            case DOUBLE:
+                return doubleData.length * 8L;
+            case FLOAT:
+                return floatData.length * 4L;
+            case SHORT:
+                return shortData.length * 2L;
+            default:
+                return byteData.length;
+        }
+    }
+
+    double get(int i) {
+        switch (storage) {
+            case DOUBLE:
+                return doubleData[i];
+            case FLOAT:
+                return floatData[i];
+            case SHORT:
+                return shortData[i];
+            default:
+                return byteData[i] & 0xff;
+        }
+    }
+
+    /**
+     * Assigns a value to a cell, narrowing it to the type of the tile in the
+     * same way that it is narrowed when written to the data file.
+     */
+    void set(int i, double value) {
+        switch (storage) {
+            case DOUBLE:
+                doubleData[i] = value;
+                break;
+            case FLOAT:
+                floatData[i] = (float) value;
+                break;
+            case SHORT:
+                shortData[i] = (short) value;
+                break;
+            default:
+                byteData[i] = (byte) value;
+                break;
+        }
+    }
+
+    /**
+     * Converts the cells to a wider type, e.g. a short tile to float storage
+     * after the data type of the raster has been changed from integer to
+     * float. The types are ordered from DOUBLE, the widest, to BYTE.
+     */
+    void promote(int wider) {
+        if (wider >= storage) {
+            return;
+        }
+        int length;
+        switch (storage) {
+            case FLOAT:
+                length = floatData.length;
+                break;
+            case SHORT:
+                length = shortData.length;
+                break;
+            default:
+                length = byteData.length;
+                break;
+        }
+        double[] values = new double[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = get(i);
+        }
+        floatData = null;
+        shortData = null;
+        byteData = null;
+        allocate(wider, length, null);
+        for (int i = 0; i < length; i++) {
+            set(i, values[i]);
+        }
+    }
+}
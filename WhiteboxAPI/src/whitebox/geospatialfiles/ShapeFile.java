@@ -25,6 +25,8 @@ import static java.nio.file.StandardCopyOption.*;
 import java.nio.file.Path;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import whitebox.geospatialfiles.shapefile.attributes.DBFField;
 import whitebox.geospatialfiles.shapefile.*;
 import static whitebox.geospatialfiles.shapefile.ShapeType.*;
@@ -34,13 +36,14 @@ import whitebox.geospatialfiles.shapefile.attributes.AttributeTable;
 import whitebox.utilities.StringUtilities;
 import whitebox.structures.KdTree;
 import whitebox.structures.KdTree.Entry;
+import whitebox.structures.RTree;
 import whitebox.utilities.FileUtilities;
 
 /**
  *
  * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
  */
-public class ShapeFile {
+public class ShapeFile implements Iterable<ShapeFileRecord> {
 
     private String fileName;
     private String shortFileName;
@@ -71,12 +74,46 @@ public class ShapeFile {
     public ArrayList<ShapeFileRecord> records = new ArrayList<>();
     private boolean pointType;
     private AttributeTable attributeTable = null;
+    private boolean lazyLoading = false;
+    private MappedShapeFileRecords mappedRecords = null;
+    private RTree spatialIndex = null;
+    private int spatialIndexNumRecs = -1;
+    private int[] spatialIndexRecords = null;
+    private boolean spatialIndexPersisted = true;
+    private static final int SPATIAL_INDEX_MAGIC_NUMBER = 0x58545257; // "WRTX"
+    private static final int SPATIAL_INDEX_VERSION = 1;
+    private static final int SPATIAL_INDEX_HEADER_SIZE = 32;
+    private static final int MIN_PERSISTED_SPATIAL_INDEX_SIZE = 10000;
 
     // Constructors
     public ShapeFile() {
     }
 
     public ShapeFile(String fileName) throws IOException {
+        this(fileName, false);
+    }
+
+    /**
+     * Opens an existing shapefile. When lazyLoading is true, the records are
+     * not read into memory when the file is opened. Instead, the .shp file is
+     * memory-mapped and the .shx index file is read, and each record is
+     * decoded when it is first requested by getRecord, with the most recently
+     * used records held in a cache of bounded size (see setRecordCacheSize).
+     * This allows very large files to be opened quickly and with little
+     * memory, and is appropriate for tools that only need some of the records,
+     * e.g. those within a bounding box.
+     *
+     * In lazy mode the public records list is empty. Records must be accessed
+     * with getRecord, by iterating over the ShapeFile, or with the bounding
+     * box queries. The records are read into memory if records are added to,
+     * deleted from, or written to the file.
+     *
+     * @param fileName The name of the .shp file.
+     * @param lazyLoading Whether the records are decoded on demand.
+     * @throws IOException
+     */
+    public ShapeFile(String fileName, boolean lazyLoading) throws IOException {
+        this.lazyLoading = lazyLoading;
         setFileName(fileName);
         this.indexFile = StringUtilities.replaceLast(fileName, ".shp", ".shx");
         setProjectionFile(StringUtilities.replaceLast(fileName, ".shp", ".prj"));
@@ -221,7 +258,7 @@ public class ShapeFile {
         ShapeType.UNUSED14, ShapeType.POLYGONM, ShapeType.UNUSED15, ShapeType.UNUSED16,
         ShapeType.MULTIPOINTM, ShapeType.UNUSED17, ShapeType.UNUSED18, ShapeType.MULTIPATCH};
 
-    private ShapeType getShapeTypeFromInt(int i) {
+    static ShapeType getShapeTypeFromInt(int i) {
         return st[i];
     }
 
@@ -359,6 +396,50 @@ public class ShapeFile {
         return numRecs;
     }
 
+    /**
+     * Indicates whether the records are decoded on demand rather than held in
+     * the records list.
+     *
+     * @return true if the file was opened lazily and its records have not
+     * since been read into memory.
+     */
+    public boolean isLoadedLazily() {
+        return mappedRecords != null;
+    }
+
+    /**
+     * Sets the maximum number of decoded records that are held in memory when
+     * the file is opened lazily. This has no effect otherwise.
+     *
+     * @param numRecords The number of records to cache.
+     */
+    public void setRecordCacheSize(int numRecords) {
+        if (mappedRecords != null) {
+            mappedRecords.setCacheSize(numRecords);
+        }
+    }
+
+    /**
+     * Reads all of the records of a lazily opened file into the records
+     * list. Afterwards, the file behaves as if it had not been opened lazily.
+     */
+    public synchronized void loadAllRecords() {
+        if (mappedRecords == null) {
+            return;
+        }
+        records.clear();
+        records.ensureCapacity(mappedRecords.getNumberOfRecords());
+        for (ShapeFileRecord sfr : mappedRecords) {
+            records.add(sfr);
+        }
+        mappedRecords = null;
+        lazyLoading = false;
+    }
+
+    private int getRecordCount() {
+        return mappedRecords != null ? mappedRecords.getNumberOfRecords() : records.size();
+    }
+
     public String getXYUnits() {
         return xyUnits;
     }
@@ -380,6 +461,8 @@ public class ShapeFile {
             file.delete();
             file = new File(indexFile);
             file.delete();
+            file = new File(getSpatialIndexFileName(fileName));
+            file.delete();
             return true;
         } catch (Exception e) {
             return false;
@@ -457,6 +540,11 @@ public class ShapeFile {
         try {
             OutputStream output = null;
             try {
+                loadAllRecords();
+
+                // any saved spatial index will be out of date.
+                new File(getSpatialIndexFileName(fileName)).delete();
+
                 // what is the size of the file?
                 int size = 100; // initialized to the size of the file header
                 for (ShapeFileRecord sfr : records) {
@@ -549,6 +637,7 @@ public class ShapeFile {
     }
 
     public boolean addRecord(Geometry recordGeometry) {
+        loadAllRecords();
         if (recordGeometry.getShapeType() == shapeType) {
             numRecs++;
             int contentLength = (4 + recordGeometry.getLength()) / 2;
@@ -714,6 +803,7 @@ public class ShapeFile {
     }
 
     public boolean addRecord(Geometry recordGeometry, Object[] rowData) {
+        loadAllRecords();
         if (recordGeometry.getShapeType() == shapeType) {
             numRecs++;
             int contentLength = (4 + recordGeometry.getLength()) / 2;
@@ -884,6 +974,7 @@ public class ShapeFile {
     }
 
     public boolean addRecords(ArrayList<Geometry> recordsGeometry) {
+        loadAllRecords();
         boolean allRightShapeType = true;
         for (Geometry rec : recordsGeometry) {
             if (rec.getShapeType() != shapeType) {
@@ -1057,6 +1148,7 @@ public class ShapeFile {
     }
 
     public boolean addRecords(ArrayList<Geometry> recordsGeometry, ArrayList<Object[]> attributeData) {
+        loadAllRecords();
         boolean allRightShapeType = true;
         for (Geometry rec : recordsGeometry) {
             if (rec.getShapeType() != shapeType) {
@@ -1249,16 +1341,37 @@ public class ShapeFile {
      * @return A ShapeFileRecord corresponding with the record number.
      */
     public ShapeFileRecord getRecord(int recordNumber) {
+        MappedShapeFileRecords mapped = mappedRecords;
+        if (mapped != null) {
+            return mapped.getRecord(recordNumber);
+        }
         return records.get(recordNumber);
     }
 
+    /**
+     * Returns an iterator over the records, in order. For a lazily opened
+     * file, the records are decoded as the iteration proceeds and are not
+     * retained, so that the whole file can be streamed through with little
+     * memory.
+     *
+     * @return An iterator of ShapeFileRecords.
+     */
+    @Override
+    public Iterator<ShapeFileRecord> iterator() {
+        MappedShapeFileRecords mapped = mappedRecords;
+        if (mapped != null) {
+            return mapped.iterator();
+        }
+        return records.iterator();
+    }
+
     public void deleteRecord(int recordNumber) {
         try {
             String tempFile = StringUtilities.replaceLast(fileName, ".shp", "_temp.shp");
             DBFField fields[] = this.attributeTable.getAllFields();
             ShapeFile tempShape = new ShapeFile(tempFile, this.shapeType, fields);
             int i = 0;
-            for (ShapeFileRecord record : this.records) {
+            for (ShapeFileRecord record : this) {
                 if (record.getRecordNumber() != recordNumber) {
                     tempShape.addRecord(record.getGeometry(), attributeTable.getRecord(i));
                 }
@@ -1306,6 +1419,8 @@ public class ShapeFile {
         try {
 
             records.clear();
+            mappedRecords = null;
+            spatialIndex = null;
 
             // See if the data file exists.
             File file = new File(fileName);
@@ -1313,6 +1428,13 @@ public class ShapeFile {
                 return false;
             }
 
+            if (lazyLoading) {
+                mappedRecords = new MappedShapeFileRecords(fileName,
+                        StringUtilities.replaceLast(fileName, ".shp", ".shx"));
+                numRecs = mappedRecords.getNumberOfRecords();
+                return true;
+            }
+
             buf = ByteBuffer.allocate(fileLength * 2);
 
             rIn = new RandomAccessFile(fileName, "r");
@@ -1384,18 +1506,17 @@ public class ShapeFile {
         BoundingBox myBox = new BoundingBox(xMin, yMin, xMax, yMax);
         if (box.contains(myBox)) {
             // just return all of the records
-            for (ShapeFileRecord sfr : records) {
+            for (ShapeFileRecord sfr : this) {
                 recs.add(sfr);
             }
             return recs;
         }
         if (myBox.overlaps(box)) {
-            for (ShapeFileRecord sfr : records) {
-                Geometry sfrGeom = sfr.getGeometry();
-                if (sfrGeom != null) {
-                    if (sfrGeom.isMappable(box, minSize)) {
-                        recs.add(sfr);
-                    }
+            // only the records whose boxes intersect box can be mappable
+            for (int i : getRecordIndicesInBoundingBox(box)) {
+                ShapeFileRecord sfr = getRecord(i);
+                if (sfr.getGeometry().isMappable(box, minSize)) {
+                    recs.add(sfr);
                 }
             }
             return recs;
@@ -1411,13 +1532,14 @@ public class ShapeFile {
         BoundingBox myBox = new BoundingBox(xMin, yMin, xMax, yMax);
         if (box.contains(myBox)) {
             // just return all of the records
-            for (ShapeFileRecord sfr : records) {
+            for (ShapeFileRecord sfr : this) {
                 recs.add(sfr);
             }
             return recs;
         }
         if (myBox.overlaps(box)) {
-            for (ShapeFileRecord sfr : records) {
+            for (int i : getRecordIndicesInBoundingBox(box)) {
+                ShapeFileRecord sfr = getRecord(i);
                 Geometry sfrGeometry = sfr.getGeometry();
                 if (sfrGeometry.isMappable(box, minSize)) {
                     // does it need to be clipped?
@@ -1434,6 +1556,231 @@ public class ShapeFile {
         }
     }
 
+    /**
+     * Returns the indices of the records whose bounding boxes intersect a
+     * query box. The records are found using the spatial index, so only the
+     * candidate records are examined. Records without a geometry (null
+     * shapes) are never returned.
+     *
+     * @param box The query box.
+     * @return An array of zero-based record indices, in increasing order.
+     */
+    public int[] getRecordIndicesInBoundingBox(BoundingBox box) {
+        return getRecordIndicesInBoundingBox(box.getMinX(), box.getMinY(),
+                box.getMaxX(), box.getMaxY());
+    }
+
+    /**
+     * Returns the indices of the records whose bounding boxes intersect a
+     * query box.
+     *
+     * @param minX The minimum x coordinate of the query box.
+     * @param minY The minimum y coordinate of the query box.
+     * @param maxX The maximum x coordinate of the query box.
+     * @param maxY The maximum y coordinate of the query box.
+     * @return An array of zero-based record indices, in increasing order.
+     */
+    public int[] getRecordIndicesInBoundingBox(double minX, double minY,
+            double maxX, double maxY) {
+        RTree tree;
+        int[] entryRecords;
+        synchronized (this) {
+            tree = getSpatialIndex();
+            entryRecords = spatialIndexRecords;
+        }
+        int[] result = tree.search(minX, minY, maxX, maxY);
+        if (entryRecords != null) {
+            // the entries are numbered in record order, so the result remains sorted
+            for (int i = 0; i < result.length; i++) {
+                result[i] = entryRecords[result[i]];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns an R-tree of the bounding boxes of the records. The tree is
+     * built the first time that it is needed and is rebuilt if records are
+     * added. The entries of the tree are numbered in record order, although
+     * records without a geometry are left out, in which case the entry
+     * numbers are not the record indices; use getRecordIndicesInBoundingBox
+     * to query the records.
+     *
+     * For files with many records, the tree is saved in a sidecar file with
+     * the same name and a .rtx extension, which is read in place of building
+     * the tree the next time that the file is opened, provided that the
+     * shapefile has not been modified since.
+     *
+     * @return The spatial index.
+     */
+    public synchronized RTree getSpatialIndex() {
+        int n = getRecordCount();
+        if (spatialIndex != null && spatialIndexNumRecs == n) {
+            return spatialIndex;
+        }
+        spatialIndex = null;
+        spatialIndexRecords = null;
+        spatialIndexNumRecs = n;
+        File shpFile = fileName == null ? null : new File(fileName);
+        boolean persist = spatialIndexPersisted && shpFile != null && shpFile.exists()
+                && n >= MIN_PERSISTED_SPATIAL_INDEX_SIZE && n == numRecs;
+        if (persist && readSpatialIndex(shpFile)) {
+            return spatialIndex;
+        }
+
+        double[] minX = new double[n];
+        double[] minY = new double[n];
+        double[] maxX = new double[n];
+        double[] maxY = new double[n];
+        int[] entryRecords = new int[n];
+        int numEntries = 0;
+        MappedShapeFileRecords mapped = mappedRecords;
+        double[] box = new double[4];
+        for (int i = 0; i < n; i++) {
+            if (mapped != null) {
+                // the box is read from the record header, without decoding
+                // the geometry.
+                if (!mapped.getRecordBox(i, box)) {
+                    continue;
+                }
+            } else {
+                Geometry geom = records.get(i).getGeometry();
+                if (geom == null) {
+                    continue;
+                }
+                BoundingBox bb = geom.getBox();
+                box[0] = bb.getMinX();
+                box[1] = bb.getMinY();
+                box[2] = bb.getMaxX();
+                box[3] = bb.getMaxY();
+            }
+            minX[numEntries] = box[0];
+            minY[numEntries] = box[1];
+            maxX[numEntries] = box[2];
+            maxY[numEntries] = box[3];
+            entryRecords[numEntries] = i;
+            numEntries++;
+        }
+        spatialIndex = new RTree(minX, minY, maxX, maxY, numEntries);
+        if (numEntries < n) {
+            spatialIndexRecords = Arrays.copyOf(entryRecords, numEntries);
+        }
+        if (persist) {
+            writeSpatialIndex(shpFile);
+        }
+        return spatialIndex;
+    }
+
+    /**
+     * Sets whether the spatial index of a large shapefile is saved to, and
+     * read from, a sidecar file. This is true by default.
+     *
+     * @param value Whether the sidecar file is used.
+     */
+    public void setSpatialIndexPersisted(boolean value) {
+        spatialIndexPersisted = value;
+    }
+
+    /**
+     * Returns the name of the sidecar spatial index file of a shapefile.
+     *
+     * @param shpFileName The name of the .shp file.
+     * @return The name of the index file.
+     */
+    public static String getSpatialIndexFileName(String shpFileName) {
+        int dot = shpFileName.lastIndexOf('.');
+        if (dot > shpFileName.lastIndexOf(File.separatorChar)) {
+            return shpFileName.substring(0, dot) + ".rtx";
+        }
+        return shpFileName + ".rtx";
+    }
+
+    private boolean readSpatialIndex(File shpFile) {
+        File file = new File(getSpatialIndexFileName(fileName));
+        if (!file.exists()) {
+            return false;
+        }
+        try (RandomAccessFile rIn = new RandomAccessFile(file, "r")) {
+            FileChannel inChannel = rIn.getChannel();
+            long fileSize = inChannel.size();
+            if (fileSize < SPATIAL_INDEX_HEADER_SIZE) {
+                return false;
+            }
+            ByteBuffer buf = inChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            if (buf.getInt() != SPATIAL_INDEX_MAGIC_NUMBER
+                    || buf.getInt() != SPATIAL_INDEX_VERSION
+                    || buf.getLong() != shpFile.length()
+                    || buf.getLong() != shpFile.lastModified()
+                    || buf.getInt() != getRecordCount()) {
+                return false; // the shapefile has changed.
+            }
+            int numEntries = buf.getInt();
+            if (numEntries < 0 || numEntries > getRecordCount()) {
+                return false;
+            }
+            int[] entryRecords = null;
+            if (numEntries < getRecordCount()) {
+                entryRecords = new int[numEntries];
+                buf.asIntBuffer().get(entryRecords);
+                buf.position(buf.position() + 4 * numEntries);
+            }
+            RTree tree = RTree.read(buf);
+            if (tree == null || tree.getNumberOfEntries() != numEntries) {
+                return false;
+            }
+            spatialIndex = tree;
+            spatialIndexRecords = entryRecords;
+            return true;
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    private void writeSpatialIndex(File shpFile) {
+        // The index is written to a temporary file that is then renamed, so
+        // that a partly written index is never read.
+        String indexFileName = getSpatialIndexFileName(fileName);
+        File tempFile = new File(indexFileName + ".tmp");
+        try {
+            try (RandomAccessFile rOut = new RandomAccessFile(tempFile, "rw")) {
+                rOut.setLength(0);
+                FileChannel outChannel = rOut.getChannel();
+                int numEntries = spatialIndex.getNumberOfEntries();
+                int size = SPATIAL_INDEX_HEADER_SIZE
+                        + (spatialIndexRecords == null ? 0 : 4 * numEntries);
+                ByteBuffer buf = ByteBuffer.allocate(size);
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+                buf.putInt(SPATIAL_INDEX_MAGIC_NUMBER);
+                buf.putInt(SPATIAL_INDEX_VERSION);
+                buf.putLong(shpFile.length());
+                buf.putLong(shpFile.lastModified());
+                buf.putInt(getRecordCount());
+                buf.putInt(numEntries);
+                if (spatialIndexRecords != null) {
+                    for (int i : spatialIndexRecords) {
+                        buf.putInt(i);
+                    }
+                }
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    outChannel.write(buf);
+                }
+                spatialIndex.write(outChannel);
+            }
+            File file = new File(indexFileName);
+            if (file.exists()) {
+                file.delete();
+            }
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+            }
+        } catch (IOException e) {
+            // the index will simply be rebuilt the next time that it is needed.
+            tempFile.delete();
+        }
+    }
+
     /**
      * Gets the AttributeTable object associated with this ShapeFile. If no
      * database exists for this ShapeFile null will be returned.
@@ -1652,13 +1999,13 @@ public class ShapeFile {
     public KdTree<Integer> getKdTree() {
         // figure out how many nodes there are
         int nodes = 0;
-        for (ShapeFileRecord rec : records) {
+        for (ShapeFileRecord rec : this) {
             double[][] points = rec.getGeometry().getPoints();
             nodes += points.length;
         }
         KdTree<Integer> kdTree = new KdTree.SqrEuclid<>(2, new Integer(nodes));
 
-        for (ShapeFileRecord rec : records) {
+        for (ShapeFileRecord rec : this) {
             double[][] points = rec.getGeometry().getPoints();
             for (int p = 0; p < points.length; p++) {
                 double[] entry = {points[p][0], points[p][1]};
@@ -64,11 +64,13 @@ class Tag implements Comparable {
     static public final Tag ResolutionUnit = new Tag("ResolutionUnit", 296);
     static public final Tag PageNumber = new Tag("PageNumber", 297);
     static public final Tag Software = new Tag("Software", 305);
+    static public final Tag Predictor = new Tag("Predictor", 317);
     static public final Tag ColorMap = new Tag("ColorMap", 320);
     static public final Tag TileWidth = new Tag("TileWidth", 322);
     static public final Tag TileLength = new Tag("TileLength", 323);
     static public final Tag TileOffsets = new Tag("TileOffsets", 324);
     static public final Tag TileByteCounts = new Tag("TileByteCounts", 325);
+    static public final Tag ExtraSamples = new Tag("ExtraSamples", 338);
     static public final Tag SampleFormat = new Tag("SampleFormat", 339);
     static public final Tag SMinSampleValue = new Tag("SMinSampleValue", 340);
     static public final Tag SMaxSampleValue = new Tag("SMaxSampleValue", 341);
@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compression schemes and predictors of TIFF strips and tiles. Each
+ * method works on a whole strip or tile at a time and keeps no state, so that
+ * several strips or tiles can be encoded or decoded at once on different
+ * threads.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+final class TiffCompression {
+
+    static final int NONE = 1;
+    static final int LZW = 5;
+    static final int DEFLATE = 8;
+    static final int PACKBITS = 32773;
+    static final int DEFLATE_OLD = 32946;
+    static final int PREDICTOR_NONE = 1;
+    static final int PREDICTOR_HORIZONTAL = 2;
+    static final int PREDICTOR_FLOATING_POINT = 3;
+    private static final int LZW_CLEAR = 256;
+    private static final int LZW_END_OF_INFORMATION = 257;
+    private static final int LZW_FIRST_CODE = 258;
+    private static final int LZW_MAX_CODE_LENGTH = 12;
+
+    private TiffCompression() {
+    }
+
+    /**
+     * Returns whether a TIFF compression type can be decoded.
+     */
+    static boolean isSupported(int compressionType) {
+        switch (compressionType) {
+            case NONE:
+            case LZW:
+            case DEFLATE:
+            case PACKBITS:
+            case DEFLATE_OLD:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Decompresses a strip or tile.
+     *
+     * @param compressionType The TIFF compression type.
+     * @param encoded The compressed bytes.
+     * @param decoded Receives the decompressed bytes. Decoding stops once it
+     * is full; if the data end first, the remainder is left as zeros.
+     * @throws IOException if the compression type is not supported or the
+     * data are corrupt.
+     */
+    static void decode(int compressionType, byte[] encoded, byte[] decoded) throws IOException {
+        switch (compressionType) {
+            case NONE:
+                System.arraycopy(encoded, 0, decoded, 0, Math.min(encoded.length, decoded.length));
+                break;
+            case LZW:
+                decodeLZW(encoded, decoded);
+                break;
+            case DEFLATE:
+            case DEFLATE_OLD:
+                inflate(encoded, decoded);
+                break;
+            case PACKBITS:
+                decodePackBits(encoded, decoded);
+                break;
+            default:
+                throw new IOException("TIFF compression type " + compressionType + " is not supported.");
+        }
+    }
+
+    /**
+     * Decodes TIFF LZW data: variable-length codes of 9 to 12 bits, most
+     * significant bit first, with the code length increasing one code early.
+     * Each string in the table is a run of bytes that has already been
+     * written to the output, so it is recorded by its offset and length.
+     */
+    static void decodeLZW(byte[] encoded, byte[] decoded) throws IOException {
+        int[] offsets = new int[1 << LZW_MAX_CODE_LENGTH];
+        int[] lengths = new int[1 << LZW_MAX_CODE_LENGTH];
+        int codeLength = 9;
+        int nextCode = LZW_FIRST_CODE;
+        int inPos = 0;
+        int bitBuffer = 0;
+        int bitCount = 0;
+        int outPos = 0;
+        int previousOffset = 0;
+        int previousLength = 0;
+        boolean hasPrevious = false;
+        while (outPos < decoded.length) {
+            while (bitCount < codeLength) {
+                if (inPos >= encoded.length) {
+                    return;
+                }
+                bitBuffer = (bitBuffer << 8) | (encoded[inPos++] & 0xFF);
+                bitCount += 8;
+            }
+            bitCount -= codeLength;
+            int code = (bitBuffer >>> bitCount) & ((1 << codeLength) - 1);
+            if (code == LZW_CLEAR) {
+                codeLength = 9;
+                nextCode = LZW_FIRST_CODE;
+                hasPrevious = false;
+                continue;
+            }
+            if (code == LZW_END_OF_INFORMATION) {
+                return;
+            }
+
+            int offset = outPos;
+            int length;
+            if (code < LZW_CLEAR) {
+                decoded[outPos++] = (byte) code;
+                length = 1;
+            } else if (code < nextCode) {
+                length = lengths[code];
+                outPos = copy(decoded, offsets[code], outPos, length);
+            } else if (code == nextCode && hasPrevious) {
+                // the string is the previous string followed by its own first
+                // byte, which the forward copy picks up as it goes.
+                length = previousLength + 1;
+                outPos = copy(decoded, previousOffset, outPos, length);
+            } else {
+                throw new IOException("The LZW data are corrupt.");
+            }
+
+            if (hasPrevious && nextCode < offsets.length) {
+                offsets[nextCode] = previousOffset;
+                lengths[nextCode] = previousLength + 1;
+                nextCode++;
+                if (nextCode + 1 >= (1 << codeLength) && codeLength < LZW_MAX_CODE_LENGTH) {
+                    codeLength++;
+                }
+            }
+            previousOffset = offset;
+            previousLength = length;
+            hasPrevious = true;
+        }
+    }
+
+    private static int copy(byte[] buffer, int from, int to, int length) {
+        int end = Math.min(buffer.length, to + length);
+        while (to < end) {
+            buffer[to++] = buffer[from++];
+        }
+        return to;
+    }
+
+    static void inflate(byte[] encoded, byte[] decoded) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(encoded);
+            int outPos = 0;
+            while (outPos < decoded.length && !inflater.finished()) {
+                int n = inflater.inflate(decoded, outPos, decoded.length - outPos);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                outPos += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("The Deflate data are corrupt: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Compresses a strip or tile with Deflate (compression type 8).
+     *
+     * @return The compressed bytes.
+     */
+    static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] out = new byte[Math.max(64, data.length / 2)];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            return Arrays.copyOf(out, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static void decodePackBits(byte[] encoded, byte[] decoded) {
+        int inPos = 0;
+        int outPos = 0;
+        while (outPos < decoded.length && inPos < encoded.length) {
+            int n = encoded[inPos++];
+            if (n >= 0) {
+                int count = Math.min(Math.min(n + 1, encoded.length - inPos), decoded.length - outPos);
+                System.arraycopy(encoded, inPos, decoded, outPos, count);
+                inPos += n + 1;
+                outPos += count;
+            } else if (n != -128 && inPos < encoded.length) {
+                byte b = encoded[inPos++];
+                int end = Math.min(decoded.length, outPos + 1 - n);
+                while (outPos < end) {
+                    decoded[outPos++] = b;
+                }
+            }
+        }
+    }
+
+    /**
+     * Undoes the horizontal differencing predictor, under which each sample
+     * is stored as its difference from the same sample of the pixel to its
+     * left.
+     *
+     * @param data The decompressed strip or tile.
+     * @param width The number of pixels in each row of the strip or tile.
+     * @param samplesPerPixel The number of samples in each pixel.
+     * @param bytesPerSample The size of each sample: 1, 2, 4 or 8 bytes.
+     * @param byteOrder The byte order of the samples.
+     */
+    static void undoHorizontalPredictor(byte[] data, int width, int samplesPerPixel,
+            int bytesPerSample, ByteOrder byteOrder) throws IOException {
+        int rowSamples = width * samplesPerPixel;
+        int rowBytes = rowSamples * bytesPerSample;
+        int numRows = data.length / rowBytes;
+        boolean bigEndian = (byteOrder == ByteOrder.BIG_ENDIAN);
+        for (int r = 0; r < numRows; r++) {
+            int start = r * rowBytes;
+            switch (bytesPerSample) {
+                case 1:
+                    for (int i = start + samplesPerPixel; i < start + rowBytes; i++) {
+                        data[i] += data[i - samplesPerPixel];
+                    }
+                    break;
+                case 2:
+                case 4:
+                case 8:
+                    for (int s = samplesPerPixel; s < rowSamples; s++) {
+                        int pos = start + s * bytesPerSample;
+                        int leftPos = pos - samplesPerPixel * bytesPerSample;
+                        long sum = getSample(data, pos, bytesPerSample, bigEndian)
+                                + getSample(data, leftPos, bytesPerSample, bigEndian);
+                        putSample(data, pos, bytesPerSample, bigEndian, sum);
+                    }
+                    break;
+                default:
+                    throw new IOException("The horizontal predictor is not supported for "
+                            + (bytesPerSample * 8) + "-bit samples.");
+            }
+        }
+    }
+
+    /**
+     * Applies the horizontal differencing predictor; the inverse of
+     * undoHorizontalPredictor.
+     */
+    static void applyHorizontalPredictor(byte[] data, int width, int samplesPerPixel,
+            int bytesPerSample, ByteOrder byteOrder) throws IOException {
+        int rowSamples = width * samplesPerPixel;
+        int rowBytes = rowSamples * bytesPerSample;
+        int numRows = data.length / rowBytes;
+        boolean bigEndian = (byteOrder == ByteOrder.BIG_ENDIAN);
+        for (int r = 0; r < numRows; r++) {
+            int start = r * rowBytes;
+            switch (bytesPerSample) {
+                case 1:
+                    for (int i = start + rowBytes - 1; i >= start + samplesPerPixel; i--) {
+                        data[i] -= data[i - samplesPerPixel];
+                    }
+                    break;
+                case 2:
+                case 4:
+                case 8:
+                    for (int s = rowSamples - 1; s >= samplesPerPixel; s--) {
+                        int pos = start + s * bytesPerSample;
+                        int leftPos = pos - samplesPerPixel * bytesPerSample;
+                        long difference = getSample(data, pos, bytesPerSample, bigEndian)
+                                - getSample(data, leftPos, bytesPerSample, bigEndian);
+                        putSample(data, pos, bytesPerSample, bigEndian, difference);
+                    }
+                    break;
+                default:
+                    throw new IOException("The horizontal predictor is not supported for "
+                            + (bytesPerSample * 8) + "-bit samples.");
+            }
+        }
+    }
+
+    /**
+     * Applies the floating point predictor; the inverse of
+     * undoFloatingPointPredictor.
+     */
+    static void applyFloatingPointPredictor(byte[] data, int width, int samplesPerPixel,
+            int bytesPerSample, ByteOrder byteOrder) {
+        int rowSamples = width * samplesPerPixel;
+        int rowBytes = rowSamples * bytesPerSample;
+        int numRows = data.length / rowBytes;
+        boolean bigEndian = (byteOrder == ByteOrder.BIG_ENDIAN);
+        byte[] row = new byte[rowBytes];
+        for (int r = 0; r < numRows; r++) {
+            int start = r * rowBytes;
+            for (int s = 0; s < rowSamples; s++) {
+                for (int b = 0; b < bytesPerSample; b++) {
+                    int pos = bigEndian ? b : bytesPerSample - 1 - b;
+                    row[b * rowSamples + s] = data[start + s * bytesPerSample + pos];
+                }
+            }
+            for (int i = rowBytes - 1; i >= samplesPerPixel; i--) {
+                row[i] -= row[i - samplesPerPixel];
+            }
+            System.arraycopy(row, 0, data, start, rowBytes);
+        }
+    }
+
+    /**
+     * Undoes the floating point predictor of Adobe Photoshop TIFF Technical
+     * Note 3, under which the bytes of each row are reordered so that the
+     * most significant bytes of all of the samples come first, and the
+     * reordered bytes are then differenced.
+     */
+    static void undoFloatingPointPredictor(byte[] data, int width, int samplesPerPixel,
+            int bytesPerSample, ByteOrder byteOrder) {
+        int rowSamples = width * samplesPerPixel;
+        int rowBytes = rowSamples * bytesPerSample;
+        int numRows = data.length / rowBytes;
+        boolean bigEndian = (byteOrder == ByteOrder.BIG_ENDIAN);
+        byte[] row = new byte[rowBytes];
+        for (int r = 0; r < numRows; r++) {
+            int start = r * rowBytes;
+            for (int i = start + samplesPerPixel; i < start + rowBytes; i++) {
+                data[i] += data[i - samplesPerPixel];
+            }
+            System.arraycopy(data, start, row, 0, rowBytes);
+            for (int s = 0; s < rowSamples; s++) {
+                for (int b = 0; b < bytesPerSample; b++) {
+                    // b counts from the most significant byte
+                    int pos = bigEndian ? b : bytesPerSample - 1 - b;
+                    data[start + s * bytesPerSample + pos] = row[b * rowSamples + s];
+                }
+            }
+        }
+    }
+
+    private static long getSample(byte[] data, int pos, int size, boolean bigEndian) {
+        long value = 0;
+        for (int b = 0; b < size; b++) {
+            int shift = bigEndian ? (size - 1 - b) * 8 : b * 8;
+            value |= (data[pos + b] & 0xFFL) << shift;
+        }
+        return value;
+    }
+
+    private static void putSample(byte[] data, int pos, int size, boolean bigEndian, long value) {
+        for (int b = 0; b < size; b++) {
+            int shift = bigEndian ? (size - 1 - b) * 8 : b * 8;
+            data[pos + b] = (byte) (value >>> shift);
+        }
+    }
+}
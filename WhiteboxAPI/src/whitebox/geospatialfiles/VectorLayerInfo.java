@@ -47,6 +47,9 @@ public class VectorLayerInfo implements MapLayer {
     public final PropertyChangeSupport pcs = new PropertyChangeSupport(this);
     private String fileName;
     private ShapeFile shapefile;
+    // shapefiles at least this large (in bytes) are opened lazily, so that
+    // only the records within the map extent are decoded.
+    private static final long LAZY_LOADING_FILE_SIZE = 256L * 1048576;
     private int overlayNumber;
     private String paletteFile = "";
     private String layerTitle = "";
@@ -102,7 +105,7 @@ public class VectorLayerInfo implements MapLayer {
         this.overlayNumber = overlayNumber;
 
         try {
-            shapefile = new ShapeFile(fileName);
+            shapefile = new ShapeFile(fileName, file.length() >= LAZY_LOADING_FILE_SIZE);
         } catch (IOException e) {
             // The files doesn't exist
             throw new IllegalArgumentException();
@@ -867,7 +870,7 @@ public class VectorLayerInfo implements MapLayer {
 //            if (colouringAttribute.toLowerCase().contains("feature z") ||
 //                    colouringAttribute.toLowerCase().contains("feature measure")) {
             numRecords = 0;
-            for (ShapeFileRecord rec : shapefile.records) {
+            for (ShapeFileRecord rec : shapefile) {
                 numRecords += rec.getGeometry().getPoints().length;
             }
 //            }
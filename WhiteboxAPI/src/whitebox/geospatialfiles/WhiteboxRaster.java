@@ -17,13 +17,16 @@
 package whitebox.geospatialfiles;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.DoubleBuffer;
 import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.ShortBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.BitSet;
 
 /**
  * The whiteboxRaster is used to manipulate Whitebox GAT raster files (.dep and
@@ -36,10 +39,7 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
     // ************************
     // Fields
     // ************************
-    private double[] grid;
     private int blockSize = 0;
-    private long blockStartingCell = 0;
-    private long blockEndingCell = -1;
     private double initialValue;
     private boolean isDirty = false;
     /**
@@ -212,7 +212,7 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
     }
 
     /**
-     * Retrieves the block size contained in memory.
+     * Retrieves the number of grid cells that can be contained in memory.
      *
      * @return Long containing block size
      */
@@ -223,7 +223,8 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
 
     /**
      * The number of times that the data file (.tas) has been read by this
-     * object.
+     * object. When memory-mapped storage is used, this is the number of
+     * distinct pages of the data file that have been read.
      *
      * @return long stating the number of reads.
      */
@@ -234,7 +235,8 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
 
     /**
      * The number of times that the data file (.tas) has been written by this
-     * object.
+     * object. When memory-mapped storage is used, this is the number of
+     * distinct pages of the data file that have been written.
      *
      * @return long stating the number of reads.
      */
@@ -347,6 +349,18 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
 //        
 //        
 //    }
+    /**
+     * Writes any modified tiles containing a row to the data file before the
+     * row is read, so that the getRowValues methods reflect earlier calls to
+     * setValue.
+     *
+     * @param row An int stating the zero-based row about to be read.
+     */
+    @Override
+    protected void prepareRowRead(int row) {
+        flushTileRow(row);
+    }
+
     /**
      * This method should be used when you need to set an entire row of data at
      * a time. It has less overhead that the setValue method (which works on a
@@ -361,7 +375,7 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
         if (!saveChanges) {
             return;
         }
-        if (vals.length != numberColumns) {
+        if (vals.length != numberColumns || row < 0 || row >= numberRows) {
             return;
         }
 
@@ -383,94 +397,58 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
             minimumValue = min;
         }
 
-        RandomAccessFile rOut = null;
-        FileChannel outChannel = null;
-        ByteBuffer buf = null;
-        try {
-            // See if the data file exists.
-            File file = new File(dataFile);
-            if (!file.exists()) {
-                createNewDataFile();
+        if (memoryMapped) {
+            for (int i = 0; i < numberColumns; i++) {
+                setMappedValue(row, i, vals[i]);
             }
-            long startingCell = row * numberColumns;
-            long endingCell = startingCell + numberColumns - 1;
-
-            rOut = new RandomAccessFile(dataFile, "rw");
-            outChannel = rOut.getChannel();
-            outChannel.position(startingCell * cellSizeInBytes);
-            int writeLengthInCells = (int) (endingCell - startingCell + 1);
+            return;
+        }
+        updateResidentTiles(row, vals);
 
-            if (dataType == DataType.DOUBLE) { //.equals("double")) {
-                buf = ByteBuffer.allocateDirect(cellSizeInBytes * writeLengthInCells);
-                buf.order(byteOrder);
-                DoubleBuffer db = buf.asDoubleBuffer();
-                db.put(vals);
-                db = null;
-                outChannel.write(buf);
-            } else if (dataType == DataType.FLOAT) { //.equals("float")) {
-                float[] fa = new float[writeLengthInCells];
-                for (int j = 0; j < writeLengthInCells; j++) {
-                    fa[j] = (float) vals[j];
-                }
-                buf = ByteBuffer.allocateDirect(cellSizeInBytes * writeLengthInCells);
-                buf.order(byteOrder);
-                FloatBuffer fb = buf.asFloatBuffer();
-                fb.put(fa);
-                fb = null;
-                fa = null;
-                outChannel.write(buf);
-            } else if (dataType == DataType.INTEGER) { //.equals("integer")) {
-                short[] ia = new short[writeLengthInCells];
-                for (int j = 0; j < writeLengthInCells; j++) {
-                    ia[j] = (short) vals[j];
-                }
-                buf = ByteBuffer.allocateDirect(cellSizeInBytes * writeLengthInCells);
-                buf.order(byteOrder);
-                ShortBuffer ib = buf.asShortBuffer();
-                ib.put(ia);
-                ib = null;
-                ia = null;
-                outChannel.write(buf);
-            } else if (dataType == DataType.BYTE) { //.equals("byte")) {
-                byte[] ba = new byte[writeLengthInCells];
-                for (int j = 0; j < writeLengthInCells; j++) {
-                    ba[j] = (byte) vals[j];
-                }
-                buf = ByteBuffer.wrap(ba);
-                ba = null;
-                outChannel.write(buf);
+        try {
+            FileChannel outChannel = getTileChannel();
+            int writeLengthInBytes = numberColumns * cellSizeInBytes;
+            if (rowWriteBuffer == null) {
+                rowWriteBuffer = ByteBuffer.allocateDirect(writeLengthInBytes);
+                rowWriteBuffer.order(byteOrder);
+            }
+            ByteBuffer buf = rowWriteBuffer;
+            buf.clear();
+            switch (dataType) {
+                case DOUBLE:
+                    for (int j = 0; j < numberColumns; j++) {
+                        buf.putDouble(j << 3, vals[j]);
+                    }
+                    break;
+                case FLOAT:
+                    for (int j = 0; j < numberColumns; j++) {
+                        buf.putFloat(j << 2, (float) vals[j]);
+                    }
+                    break;
+                case INTEGER:
+                    for (int j = 0; j < numberColumns; j++) {
+                        buf.putShort(j << 1, (short) vals[j]);
+                    }
+                    break;
+                case BYTE:
+                    for (int j = 0; j < numberColumns; j++) {
+                        buf.put(j, (byte) vals[j]);
+                    }
+                    break;
+            }
+            long pos = (long) row * writeLengthInBytes;
+            while (buf.hasRemaining()) {
+                outChannel.write(buf, pos + buf.position());
             }
-            //outChannel.close();
 
         } catch (Exception e) {
             System.err.println("Caught exception: " + e.toString());
             System.err.println(e.getStackTrace());
         } finally {
-            buf = null;
-            if (rOut != null) {
-                try {
-                    rOut.close();
-                } catch (Exception e) {
-                }
-            }
-            if (outChannel != null) {
-                try {
-                    outChannel.force(false);
-                    outChannel.close();
-                } catch (Exception e) {
-                }
-            }
+            invalidateRowBuffer();
             numberOfDataFileWrites++;
         }
     }
-    
-    private int previousRow = 0;
-    private int currentReadDirection = -1;
-    private int numSwitchReadDirections = 0;
-    private int numReads = 0;
-    private double switchRatio = 0;
-    private int halfBlockSize = 0;
-    //private int readDirectionTendency = 0;
 
     /**
      * Retrieves the value contained at a specified cell in the raster grid.
@@ -481,56 +459,13 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
      * cell.
      */
     public double getValue(int row, int column) {
-        //try {
         if (column >= 0 && column < numberColumns && row >= 0 && row < numberRows) {
 
-            if (blockEndingCell < 0) {
-                readDataBlock();
-            }
-            if (grid == null) {
-                readDataBlock();
-            }
-
-            // what is the cell number?
-            long cellNum = (long) (row) * numberColumns + column;
-
-            // check to see if it is within the current block
-            if ((cellNum > blockEndingCell) || (cellNum < blockStartingCell)) {
-                if (saveChanges && isDirty) {
-                    writeDataBlock();
-                }
-                numReads++;
-                // Figure out a new blockstartingcell
-                if (previousRow < row) { // reading downward
-                    if (currentReadDirection == -1) {
-                        currentReadDirection = 0;
-                    }
-                    if (currentReadDirection != 0) {
-                        currentReadDirection = 0;
-                        numSwitchReadDirections++;
-                        switchRatio = (double) numSwitchReadDirections / numReads;
-                    }
-                    blockStartingCell = (long) (cellNum - halfBlockSize * switchRatio); //10 * numberColumns);
-                } else { // reading upward
-                    if (currentReadDirection == -1) {
-                        currentReadDirection = 1;
-                    }
-                    if (currentReadDirection != 1) {
-                        currentReadDirection = 1;
-                        numSwitchReadDirections++;
-                        switchRatio = (double) numSwitchReadDirections / numReads;
-                    }
-                    blockStartingCell = (long) (cellNum - (blockSize - (switchRatio * halfBlockSize))); //+ (blockSize / 2) * ((double)upReadDirection / downReadDirection)); // + 10 * numberColumns - blockSize);
-                }
-                previousRow = row;
-                //blockStartingCell = (int)(cellNum - blockSize / 2);
-                if (blockStartingCell < 0) {
-                    blockStartingCell = 0;
-                }
-
-                readDataBlock();
+            if (memoryMapped) {
+                return getMappedValue(row, column);
             }
-            return grid[(int) (cellNum - blockStartingCell)];
+            RasterTile tile = getTile(row, column);
+            return tile.get(((row & tileMask) << tileShift) + (column & tileMask));
         } else {
             if (!isReflectedAtEdges) {
                 return noDataValue;
@@ -556,12 +491,58 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
                 return noDataValue;
             }
         }
-//        } catch (Exception e) {
-//            if (communicator != null) {
-//                communicator.logException("WhiteboxRaster error", e);
-//            }
-//            return noDataValue;
-//        }
+    }
+
+    /**
+     * Retrieves the value contained at a specified cell as a float. For a
+     * float raster the value is taken directly from the tile cache without
+     * being widened to a double.
+     *
+     * @param row The zero-based row number.
+     * @param column The zero-based column number.
+     * @return The value contained in the raster grid at the specified grid
+     * cell.
+     */
+    public float getFloatValue(int row, int column) {
+        if (!memoryMapped && column >= 0 && column < numberColumns
+                && row >= 0 && row < numberRows) {
+            RasterTile tile = getTile(row, column);
+            int i = ((row & tileMask) << tileShift) + (column & tileMask);
+            if (tile.storage == RasterTile.FLOAT) {
+                return tile.floatData[i];
+            }
+            return (float) tile.get(i);
+        }
+        return (float) getValue(row, column);
+    }
+
+    /**
+     * Retrieves the value contained at a specified cell as an int. For integer
+     * and byte rasters, e.g. D8 pointer grids and class maps, the value is
+     * taken directly from the tile cache without being widened to a double;
+     * byte values are returned unsigned. Values of other data types are
+     * truncated, so compare the result with (int) getNoDataValue().
+     *
+     * @param row The zero-based row number.
+     * @param column The zero-based column number.
+     * @return The value contained in the raster grid at the specified grid
+     * cell.
+     */
+    public int getIntValue(int row, int column) {
+        if (!memoryMapped && column >= 0 && column < numberColumns
+                && row >= 0 && row < numberRows) {
+            RasterTile tile = getTile(row, column);
+            int i = ((row & tileMask) << tileShift) + (column & tileMask);
+            switch (tile.storage) {
+                case RasterTile.BYTE:
+                    return tile.byteData[i] & 0xff;
+                case RasterTile.SHORT:
+                    return tile.shortData[i];
+                default:
+                    return (int) tile.get(i);
+            }
+        }
+        return (int) getValue(row, column);
     }
 
     /**
@@ -572,59 +553,19 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
      * @param value The value to place in the grid cell.
      */
     public void setValue(int row, int column, double value) {
-//        try {
         if (saveChanges && column >= 0 && column < this.numberColumns
                 && row >= 0 && row < this.numberRows) {
             if (Double.isNaN(value)) {
                 value = noDataValue;
             }
-            // what is the cell number?
-            long cellNum = (long) (row) * numberColumns + column;
-
-            if ((cellNum > blockEndingCell) || (cellNum < blockStartingCell)) {
-                if (isDirty) {
-                    writeDataBlock();
-                }
-                numReads++;
-                // Figure out a new blockstartingcell
-                if (previousRow < row) {
-                    if (currentReadDirection == -1) {
-                        currentReadDirection = 0;
-                    }
-                    if (currentReadDirection != 0) {
-                        currentReadDirection = 0;
-                        numSwitchReadDirections++;
-                        switchRatio = (double) numSwitchReadDirections / numReads;
-                    }
-                    blockStartingCell = (long) (cellNum - halfBlockSize * switchRatio);
-                } else {
-                    if (currentReadDirection == -1) {
-                        currentReadDirection = 1;
-                    }
-                    if (currentReadDirection != 1) {
-                        currentReadDirection = 1;
-                        numSwitchReadDirections++;
-                        switchRatio = (double) numSwitchReadDirections / numReads;
-                    }
-                    blockStartingCell = (long) (cellNum - (blockSize - (switchRatio * halfBlockSize)));
-                }
-                previousRow = row;
-                if (blockStartingCell < 0) {
-                    blockStartingCell = 0;
-                }
-                readDataBlock();
-            }
-            if (grid == null) {
-                setBlockData();
+            if (memoryMapped) {
+                setMappedValue(row, column, value);
+                return;
             }
-            grid[(int) (cellNum - blockStartingCell)] = value;
-            isDirty = true;
+            RasterTile tile = getTile(row, column);
+            int i = ((row & tileMask) << tileShift) + (column & tileMask);
+            setTileValue(tile, i, value);
         }
-//        } catch (Exception e) {
-//            if (communicator != null) {
-//                communicator.logException("WhiteboxRaster error", e);
-//            }
-//        }
     }
 
     /**
@@ -637,45 +578,13 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
     public void incrementValue(int row, int column, double value) {
         if (saveChanges && column >= 0 && column < this.numberColumns
                 && row >= 0 && row < this.numberRows) {
-            // what is the cell number?
-            long cellNum = (long) (row) * numberColumns + column;
-
-            if ((cellNum > blockEndingCell) || (cellNum < blockStartingCell)) {
-                if (isDirty) {
-                    writeDataBlock();
-                }
-                numReads++;
-                // Figure out a new blockstartingcell
-                if (previousRow < row) {
-                    if (currentReadDirection == -1) {
-                        currentReadDirection = 0;
-                    }
-                    if (currentReadDirection != 0) {
-                        currentReadDirection = 0;
-                        numSwitchReadDirections++;
-                        switchRatio = (double) numSwitchReadDirections / numReads;
-                    }
-                    blockStartingCell = (long) (cellNum - halfBlockSize * switchRatio);
-                } else {
-                    if (currentReadDirection == -1) {
-                        currentReadDirection = 1;
-                    }
-                    if (currentReadDirection != 1) {
-                        currentReadDirection = 1;
-                        numSwitchReadDirections++;
-                        switchRatio = (double) numSwitchReadDirections / numReads;
-                    }
-                    blockStartingCell = (long) (cellNum - (blockSize - (switchRatio * halfBlockSize)));
-                }
-                previousRow = row;
-                if (blockStartingCell < 0) {
-                    blockStartingCell = 0;
-                }
-                readDataBlock();
+            if (memoryMapped) {
+                setMappedValue(row, column, getMappedValue(row, column) + value);
+                return;
             }
-
-            grid[(int) (cellNum - blockStartingCell)] += value;
-            isDirty = true;
+            RasterTile tile = getTile(row, column);
+            int i = ((row & tileMask) << tileShift) + (column & tileMask);
+            setTileValue(tile, i, tile.get(i) + value);
         }
     }
 
@@ -688,48 +597,16 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
     public void incrementValue(int row, int column) {
         if (saveChanges && column >= 0 && column < this.numberColumns
                 && row >= 0 && row < this.numberRows) {
-            // what is the cell number?
-            long cellNum = (long) (row) * numberColumns + column;
-
-            if ((cellNum > blockEndingCell) || (cellNum < blockStartingCell)) {
-                if (isDirty) {
-                    writeDataBlock();
-                }
-                numReads++;
-                // Figure out a new blockstartingcell
-                if (previousRow < row) {
-                    if (currentReadDirection == -1) {
-                        currentReadDirection = 0;
-                    }
-                    if (currentReadDirection != 0) {
-                        currentReadDirection = 0;
-                        numSwitchReadDirections++;
-                        switchRatio = (double) numSwitchReadDirections / numReads;
-                    }
-                    blockStartingCell = (long) (cellNum - halfBlockSize * switchRatio);
-                } else {
-                    if (currentReadDirection == -1) {
-                        currentReadDirection = 1;
-                    }
-                    if (currentReadDirection != 1) {
-                        currentReadDirection = 1;
-                        numSwitchReadDirections++;
-                        switchRatio = (double) numSwitchReadDirections / numReads;
-                    }
-                    blockStartingCell = (long) (cellNum - (blockSize - (switchRatio * halfBlockSize)));
-                }
-                previousRow = row;
-                if (blockStartingCell < 0) {
-                    blockStartingCell = 0;
-                }
-                readDataBlock();
+            if (memoryMapped) {
+                setMappedValue(row, column, getMappedValue(row, column) + 1);
+                return;
             }
-
-            grid[(int) (cellNum - blockStartingCell)]++;
-            isDirty = true;
+            RasterTile tile = getTile(row, column);
+            int i = ((row & tileMask) << tileShift) + (column & tileMask);
+            setTileValue(tile, i, tile.get(i) + 1);
         }
     }
-    
+
     /**
      * Decrements the value of a specified cell in the raster grid.
      *
@@ -740,48 +617,16 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
     public void decrementValue(int row, int column, double value) {
         if (saveChanges && column >= 0 && column < this.numberColumns
                 && row >= 0 && row < this.numberRows) {
-            // what is the cell number?
-            long cellNum = (long) (row) * numberColumns + column;
-
-            if ((cellNum > blockEndingCell) || (cellNum < blockStartingCell)) {
-                if (isDirty) {
-                    writeDataBlock();
-                }
-                numReads++;
-                // Figure out a new blockstartingcell
-                if (previousRow < row) {
-                    if (currentReadDirection == -1) {
-                        currentReadDirection = 0;
-                    }
-                    if (currentReadDirection != 0) {
-                        currentReadDirection = 0;
-                        numSwitchReadDirections++;
-                        switchRatio = (double) numSwitchReadDirections / numReads;
-                    }
-                    blockStartingCell = (long) (cellNum - halfBlockSize * switchRatio);
-                } else {
-                    if (currentReadDirection == -1) {
-                        currentReadDirection = 1;
-                    }
-                    if (currentReadDirection != 1) {
-                        currentReadDirection = 1;
-                        numSwitchReadDirections++;
-                        switchRatio = (double) numSwitchReadDirections / numReads;
-                    }
-                    blockStartingCell = (long) (cellNum - (blockSize - (switchRatio * halfBlockSize)));
-                }
-                previousRow = row;
-                if (blockStartingCell < 0) {
-                    blockStartingCell = 0;
-                }
-                readDataBlock();
+            if (memoryMapped) {
+                setMappedValue(row, column, getMappedValue(row, column) - value);
+                return;
             }
-
-            grid[(int) (cellNum - blockStartingCell)] -= value;
-            isDirty = true;
+            RasterTile tile = getTile(row, column);
+            int i = ((row & tileMask) << tileShift) + (column & tileMask);
+            setTileValue(tile, i, tile.get(i) - value);
         }
     }
-    
+
     /**
      * Decrements the value of a specified cell in the raster grid by one.
      *
@@ -791,81 +636,350 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
     public void decrementValue(int row, int column) {
         if (saveChanges && column >= 0 && column < this.numberColumns
                 && row >= 0 && row < this.numberRows) {
-            // what is the cell number?
-            long cellNum = (long) (row) * numberColumns + column;
+            if (memoryMapped) {
+                setMappedValue(row, column, getMappedValue(row, column) - 1);
+                return;
+            }
+            RasterTile tile = getTile(row, column);
+            int i = ((row & tileMask) << tileShift) + (column & tileMask);
+            setTileValue(tile, i, tile.get(i) - 1);
+        }
+    }
 
-            if ((cellNum > blockEndingCell) || (cellNum < blockStartingCell)) {
-                if (isDirty) {
-                    writeDataBlock();
-                }
-                numReads++;
-                // Figure out a new blockstartingcell
-                if (previousRow < row) {
-                    if (currentReadDirection == -1) {
-                        currentReadDirection = 0;
-                    }
-                    if (currentReadDirection != 0) {
-                        currentReadDirection = 0;
-                        numSwitchReadDirections++;
-                        switchRatio = (double) numSwitchReadDirections / numReads;
-                    }
-                    blockStartingCell = (long) (cellNum - halfBlockSize * switchRatio);
-                } else {
-                    if (currentReadDirection == -1) {
-                        currentReadDirection = 1;
-                    }
-                    if (currentReadDirection != 1) {
-                        currentReadDirection = 1;
-                        numSwitchReadDirections++;
-                        switchRatio = (double) numSwitchReadDirections / numReads;
-                    }
-                    blockStartingCell = (long) (cellNum - (blockSize - (switchRatio * halfBlockSize)));
-                }
-                previousRow = row;
-                if (blockStartingCell < 0) {
-                    blockStartingCell = 0;
-                }
-                readDataBlock();
+    // ***********************************
+    // Memory-mapped storage
+    // ***********************************
+    private static final long MAX_MAPPED_WINDOW_SIZE = 256L * 1048576; // in bytes
+    private static final int PAGE_SHIFT = 12; // 4 KB pages
+    private boolean memoryMapped = false;
+    private RandomAccessFile mappedFile = null;
+    private FileChannel mappedChannel = null;
+    private MappedByteBuffer[] mappedWindows = null;
+    private int rowsPerWindow = 0;
+    private long bytesPerRow = 0;
+    private BitSet pagesRead = null;
+    private BitSet pagesWritten = null;
+    private long lastReadPage = -1;
+    private long lastWrittenPage = -1;
+
+    /**
+     * Switches between the default block-buffered storage and memory-mapped
+     * storage. When memory mapping is used, the data file (.tas) is mapped
+     * into a series of windows, each covering a band of rows, and cell values
+     * are read and written in place. Tools that access the grid in a
+     * non-sequential order, e.g. flowpath tracing, then pay for a page fault
+     * rather than a block reload when they jump between distant rows. In this
+     * mode getNumberOfDataFileReads and getNumberOfDataFileWrites report the
+     * number of distinct pages of the data file that have been touched.
+     *
+     * @param value Set to true to use memory-mapped storage.
+     */
+    public void setMemoryMapped(boolean value) {
+        if (value == memoryMapped) {
+            return;
+        }
+        if (value) {
+            if (saveChanges && isDirty) {
+                writeDirtyTiles();
             }
+            discardTiles();
+            closeDataChannel();
+            memoryMapped = openMappedWindows();
+        } else {
+            closeMappedWindows();
+            memoryMapped = false;
+            setBlockData();
+        }
+    }
 
-            grid[(int) (cellNum - blockStartingCell)]--;
-            isDirty = true;
+    /**
+     * Indicates whether the data file is memory-mapped.
+     *
+     * @return true if memory-mapped storage is in use.
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    private boolean openMappedWindows() {
+        try {
+            // See if the data file exists.
+            File file = new File(dataFile);
+            if (!file.exists()) {
+                createNewDataFile();
+            }
+
+            bytesPerRow = (long) numberColumns * cellSizeInBytes;
+            if (bytesPerRow > Integer.MAX_VALUE) {
+                // a single row won't fit in a mapped window.
+                return false;
+            }
+            rowsPerWindow = (int) Math.max(1, MAX_MAPPED_WINDOW_SIZE / bytesPerRow);
+            if (rowsPerWindow > numberRows) {
+                rowsPerWindow = numberRows;
+            }
+            int numWindows = (numberRows + rowsPerWindow - 1) / rowsPerWindow;
+            mappedWindows = new MappedByteBuffer[numWindows];
+
+            mappedFile = new RandomAccessFile(dataFile, saveChanges ? "rw" : "r");
+            mappedChannel = mappedFile.getChannel();
+
+            int numPages = (int) ((numberRows * bytesPerRow) >>> PAGE_SHIFT) + 1;
+            pagesRead = new BitSet(numPages);
+            pagesWritten = new BitSet(numPages);
+            lastReadPage = -1;
+            lastWrittenPage = -1;
+            return true;
+        } catch (Exception e) {
+            if (communicator != null) {
+                communicator.logException("WhiteboxRaster error", e);
+            } else {
+                System.out.println(e.toString());
+            }
+            closeMappedWindows();
+            return false;
+        }
+    }
+
+    private MappedByteBuffer mapWindow(int window) {
+        try {
+            long startingByte = (long) window * rowsPerWindow * bytesPerRow;
+            int numRowsInWindow = Math.min(rowsPerWindow, numberRows - window * rowsPerWindow);
+            FileChannel.MapMode mode = saveChanges ? FileChannel.MapMode.READ_WRITE
+                    : FileChannel.MapMode.READ_ONLY;
+            MappedByteBuffer mbb = mappedChannel.map(mode, startingByte,
+                    numRowsInWindow * bytesPerRow);
+            mbb.order(byteOrder);
+            mappedWindows[window] = mbb;
+            return mbb;
+        } catch (IOException e) {
+            if (communicator != null) {
+                communicator.logException("WhiteboxRaster error", e);
+            } else {
+                System.out.println(e.toString());
+            }
+            return null;
         }
     }
-    
+
+    private double getMappedValue(int row, int column) {
+        int window = row / rowsPerWindow;
+        MappedByteBuffer mbb = mappedWindows[window];
+        if (mbb == null) {
+            mbb = mapWindow(window);
+            if (mbb == null) {
+                return noDataValue;
+            }
+        }
+        long offset = (long) row * bytesPerRow + (long) column * cellSizeInBytes;
+        long page = offset >>> PAGE_SHIFT;
+        if (page != lastReadPage) {
+            lastReadPage = page;
+            if (!pagesRead.get((int) page)) {
+                pagesRead.set((int) page);
+                numberOfDataFileReads++;
+            }
+        }
+        int pos = (int) (offset - (long) window * rowsPerWindow * bytesPerRow);
+        switch (dataType) {
+            case DOUBLE:
+                return mbb.getDouble(pos);
+            case FLOAT:
+                return mbb.getFloat(pos);
+            case INTEGER:
+                return mbb.getShort(pos);
+            default:
+                return whitebox.utilities.Unsigned.getUnsignedByte(mbb, pos);
+        }
+    }
+
+    private void setMappedValue(int row, int column, double value) {
+        int window = row / rowsPerWindow;
+        MappedByteBuffer mbb = mappedWindows[window];
+        if (mbb == null) {
+            mbb = mapWindow(window);
+            if (mbb == null) {
+                return;
+            }
+        }
+        long offset = (long) row * bytesPerRow + (long) column * cellSizeInBytes;
+        long page = offset >>> PAGE_SHIFT;
+        if (page != lastWrittenPage) {
+            lastWrittenPage = page;
+            if (!pagesWritten.get((int) page)) {
+                pagesWritten.set((int) page);
+                numberOfDataFileWrites++;
+            }
+        }
+        int pos = (int) (offset - (long) window * rowsPerWindow * bytesPerRow);
+        switch (dataType) {
+            case DOUBLE:
+                mbb.putDouble(pos, value);
+                break;
+            case FLOAT:
+                mbb.putFloat(pos, (float) value);
+                break;
+            case INTEGER:
+                mbb.putShort(pos, (short) value);
+                break;
+            default:
+                mbb.put(pos, (byte) value);
+                break;
+        }
+    }
+
+    private void forceMappedWindows() {
+        if (!saveChanges || mappedWindows == null) {
+            return;
+        }
+        for (MappedByteBuffer mbb : mappedWindows) {
+            if (mbb != null) {
+                mbb.force();
+            }
+        }
+    }
+
+    private void closeMappedWindows() {
+        forceMappedWindows();
+        mappedWindows = null;
+        if (mappedChannel != null) {
+            try {
+                mappedChannel.close();
+            } catch (Exception e) {
+            }
+            mappedChannel = null;
+        }
+        if (mappedFile != null) {
+            try {
+                mappedFile.close();
+            } catch (Exception e) {
+            }
+            mappedFile = null;
+        }
+    }
+
     private boolean forceAllDataInMemory = false;
     public void setForceAllDataInMemory(boolean value) {
         forceAllDataInMemory = value;
         setBlockData();
     }
-    
+
     public boolean isForceAllDataInMemory() {
         return forceAllDataInMemory;
     }
 
+    // ***********************************
+    // Tile cache
+    // ***********************************
+    private static final int DEFAULT_TILE_SIZE = 256;
+    private static final int MIN_TILE_SIZE = 16;
+    private static final int MIN_RESIDENT_TILES = 9;
+    private int tileSize = DEFAULT_TILE_SIZE;
+    private int tileShift = 8;
+    private int tileMask = DEFAULT_TILE_SIZE - 1;
+    private int numTileRows = 0;
+    private int numTileColumns = 0;
+    private RasterTile[] tiles = null;
+    private int tileStorage = RasterTile.DOUBLE;
+    private long maxResidentBytes = 0;
+    private long residentBytes = 0;
+    private int numResidentTiles = 0;
+    private RasterTile mostRecentlyUsed = null;
+    private RasterTile leastRecentlyUsed = null;
+    private RasterTile lastTile = null;
+    private ByteBuffer tileBuffer = null;
+    private ByteBuffer rowWriteBuffer = null;
+    private long tileCacheHits = 0;
+    private long tileCacheMisses = 0;
+    private long tileCacheEvictions = 0;
+
+    /**
+     * The number of cell accesses that were satisfied by a tile that was
+     * already held in memory.
+     *
+     * @return long stating the number of tile cache hits.
+     */
+    public long getTileCacheHits() {
+        return tileCacheHits;
+    }
+
+    /**
+     * The number of cell accesses that required a tile to be read from the
+     * data file (.tas).
+     *
+     * @return long stating the number of tile cache misses.
+     */
+    public long getTileCacheMisses() {
+        return tileCacheMisses;
+    }
+
+    /**
+     * The number of tiles that have been removed from memory to make room for
+     * other tiles. Dirty tiles are written to the data file when evicted.
+     *
+     * @return long stating the number of tile cache evictions.
+     */
+    public long getTileCacheEvictions() {
+        return tileCacheEvictions;
+    }
+
+    /**
+     * The number of bytes of memory used by the cells of the tiles that are
+     * currently held in memory.
+     *
+     * @return long stating the size of the tile cache in bytes.
+     */
+    public long getTileCacheSizeInBytes() {
+        return residentBytes;
+    }
+
+    /**
+     * Retrieves the length, in grid cells, of the sides of the square tiles
+     * used to hold the grid in memory.
+     *
+     * @return int containing the tile size.
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
     private void setBlockData() {
         try {
-            // see if the data can be comfortably contained in memory, keeping in
-            // mind that it is always stored as doubles.
-            //System.gc();
-            long availableMemory = Runtime.getRuntime().freeMemory();
-            long gridMemoryRequirements = (long) numberRows * (long) numberColumns * 8L;
-            if ((availableMemory / 3) > gridMemoryRequirements || forceAllDataInMemory) {
+            // tiles are square, with sides that are a power of two so that
+            // the tile containing a cell can be found using bit shifts.
+            if (tiles == null) {
+                int largestDimension = Math.max(numberRows, numberColumns);
+                tileSize = DEFAULT_TILE_SIZE;
+                tileShift = 8;
+                while (tileSize > MIN_TILE_SIZE && tileSize / 2 >= largestDimension) {
+                    tileSize /= 2;
+                    tileShift--;
+                }
+                tileMask = tileSize - 1;
+                numTileRows = (numberRows + tileSize - 1) / tileSize;
+                numTileColumns = (numberColumns + tileSize - 1) / tileSize;
+                tiles = new RasterTile[numTileRows * numTileColumns];
+            }
+
+            // tiles hold their cells in the same primitive type as the data
+            // file, so see how many bytes of tiles can be comfortably
+            // contained in the buffer.
+            tileStorage = getTileStorage();
+            long tileMemoryRequirements = (long) tileSize * tileSize * cellSizeInBytes;
+            long gridMemoryRequirements = (long) numberRows * (long) numberColumns * cellSizeInBytes;
+            if (gridMemoryRequirements <= bufferSize || forceAllDataInMemory) {
                 // store the entire grid in memory.
-                blockSize = numberRows * numberColumns;
-                bufferSize = gridMemoryRequirements;
-            } else if (((double) gridMemoryRequirements / (availableMemory / 3)) > 2) {
-                // the data doesn't come close to fitting in the available memory.
-                bufferSize = 100 * 1048576;
-                blockSize = (int) (Math.round(Math.floor(bufferSize / 8))) / 3;
+                maxResidentBytes = Long.MAX_VALUE;
             } else {
-                blockSize = (numberRows * numberColumns) / 2;
-                bufferSize = ((numberRows * numberColumns) / 2) * 8;
+                maxResidentBytes = Math.max(MIN_RESIDENT_TILES * tileMemoryRequirements,
+                        bufferSize);
             }
+            blockSize = (int) Math.min(maxResidentBytes / cellSizeInBytes,
+                    (long) numberRows * numberColumns);
 
-            halfBlockSize = blockSize / 2;
-            blockStartingCell = 0;
-            //readDataBlock();
+            while (numResidentTiles > MIN_RESIDENT_TILES && residentBytes > maxResidentBytes) {
+                evictTile();
+            }
         } catch (Exception e) {
             if (communicator != null) {
                 communicator.logException("WhiteboxRaster error", e);
@@ -875,8 +989,390 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
         }
     }
 
+    /**
+     * Returns the tile containing a cell, reading it from the data file if it
+     * is not already in memory. The row and column must be within the grid.
+     */
+    private RasterTile getTile(int row, int column) {
+        int tileNum = (row >> tileShift) * numTileColumns + (column >> tileShift);
+        RasterTile tile = lastTile;
+        if (tile != null && tile.tileNum == tileNum) {
+            tileCacheHits++;
+            return tile;
+        }
+        tile = tiles[tileNum];
+        if (tile != null) {
+            tileCacheHits++;
+            if (tile != mostRecentlyUsed) {
+                unlinkTile(tile);
+                linkTile(tile);
+            }
+        } else {
+            tileCacheMisses++;
+            tile = loadTile(tileNum);
+        }
+        lastTile = tile;
+        return tile;
+    }
+
+    private void setTileValue(RasterTile tile, int i, double value) {
+        storeTileValue(tile, i, value);
+        tile.isDirty = true;
+        isDirty = true;
+    }
+
+    private void storeTileValue(RasterTile tile, int i, double value) {
+        if (tile.storage > tileStorage) {
+            // the tile is narrower than the data file, the data type of which
+            // has been changed since the tile was read.
+            long bytes = tile.getSizeInBytes();
+            tile.promote(tileStorage);
+            residentBytes += tile.getSizeInBytes() - bytes;
+        }
+        tile.set(i, value);
+    }
+
+    /**
+     * Sets the data type. Tiles that are already in memory keep their type
+     * until they are assigned a value, when a tile that is narrower than the
+     * new data type is promoted to it.
+     *
+     * @param dataType The data type.
+     */
+    @Override
+    public void setDataType(DataType dataType) {
+        super.setDataType(dataType);
+        tileStorage = getTileStorage();
+        // the buffers are sized for the previous cell size
+        tileBuffer = null;
+        rowWriteBuffer = null;
+    }
+
+    private int getTileStorage() {
+        switch (dataType) {
+            case FLOAT:
+                return RasterTile.FLOAT;
+            case INTEGER:
+                return RasterTile.SHORT;
+            case BYTE:
+                return RasterTile.BYTE;
+            default:
+                return RasterTile.DOUBLE;
+        }
+    }
+
+    private RasterTile loadTile(int tileNum) {
+        RasterTile recycled = null;
+        long tileBytes = (long) tileSize * tileSize * cellSizeInBytes;
+        while (numResidentTiles >= MIN_RESIDENT_TILES
+                && residentBytes + tileBytes > maxResidentBytes) {
+            recycled = evictTile();
+        }
+        RasterTile tile = new RasterTile();
+        tile.tileNum = tileNum;
+        tile.startingRow = (tileNum / numTileColumns) * tileSize;
+        tile.startingColumn = (tileNum % numTileColumns) * tileSize;
+        tile.numRows = Math.min(tileSize, numberRows - tile.startingRow);
+        tile.numColumns = Math.min(tileSize, numberColumns - tile.startingColumn);
+        tile.allocate(tileStorage, tile.numRows * tileSize, recycled);
+        readTile(tile);
+        tiles[tileNum] = tile;
+        linkTile(tile);
+        numResidentTiles++;
+        residentBytes += tile.getSizeInBytes();
+        return tile;
+    }
+
+    /**
+     * Removes the least recently used tile from memory, writing it to the data
+     * file first if it has been modified.
+     *
+     * @return The evicted tile, the cell array of which can be reused.
+     */
+    private RasterTile evictTile() {
+        RasterTile tile = leastRecentlyUsed;
+        if (tile == null) {
+            return null;
+        }
+        if (tile.isDirty && saveChanges) {
+            writeTile(tile);
+        }
+        unlinkTile(tile);
+        tiles[tile.tileNum] = null;
+        if (lastTile == tile) {
+            lastTile = null;
+        }
+        numResidentTiles--;
+        residentBytes -= tile.getSizeInBytes();
+        tileCacheEvictions++;
+        return tile;
+    }
+
+    private void linkTile(RasterTile tile) {
+        tile.previous = null;
+        tile.next = mostRecentlyUsed;
+        if (mostRecentlyUsed != null) {
+            mostRecentlyUsed.previous = tile;
+        }
+        mostRecentlyUsed = tile;
+        if (leastRecentlyUsed == null) {
+            leastRecentlyUsed = tile;
+        }
+    }
+
+    private void unlinkTile(RasterTile tile) {
+        if (tile.previous != null) {
+            tile.previous.next = tile.next;
+        } else {
+            mostRecentlyUsed = tile.next;
+        }
+        if (tile.next != null) {
+            tile.next.previous = tile.previous;
+        } else {
+            leastRecentlyUsed = tile.previous;
+        }
+        tile.previous = null;
+        tile.next = null;
+    }
+
+    /**
+     * Removes all tiles from memory without writing them to the data file.
+     */
+    private void discardTiles() {
+        if (tiles != null) {
+            Arrays.fill(tiles, null);
+        }
+        mostRecentlyUsed = null;
+        leastRecentlyUsed = null;
+        lastTile = null;
+        numResidentTiles = 0;
+        residentBytes = 0;
+        isDirty = false;
+    }
+
+    private FileChannel getTileChannel() throws IOException {
+        FileChannel channel = getDataChannel();
+        if (channel == null) {
+            // the data file doesn't exist yet.
+            createNewDataFile();
+            channel = getDataChannel();
+        }
+        if (tileBuffer == null) {
+            tileBuffer = ByteBuffer.allocateDirect(tileSize * cellSizeInBytes);
+            tileBuffer.order(byteOrder);
+        }
+        return channel;
+    }
+
+    private void readTile(RasterTile tile) {
+        try {
+            FileChannel inChannel = getTileChannel();
+            int readLengthInBytes = tile.numColumns * cellSizeInBytes;
+            for (int r = 0; r < tile.numRows; r++) {
+                long pos = ((long) (tile.startingRow + r) * numberColumns
+                        + tile.startingColumn) * cellSizeInBytes;
+                tileBuffer.clear();
+                tileBuffer.limit(readLengthInBytes);
+                while (tileBuffer.hasRemaining()) {
+                    if (inChannel.read(tileBuffer, pos + tileBuffer.position()) < 0) {
+                        // beyond the end of the data file; treat as zeros.
+                        while (tileBuffer.hasRemaining()) {
+                            tileBuffer.put((byte) 0);
+                        }
+                    }
+                }
+                int offset = r * tileSize;
+                int n = tile.numColumns;
+                switch (tile.storage) {
+                    case RasterTile.DOUBLE:
+                        double[] doubleData = tile.doubleData;
+                        for (int j = 0; j < n; j++) {
+                            doubleData[offset + j] = tileBuffer.getDouble(j << 3);
+                        }
+                        break;
+                    case RasterTile.FLOAT:
+                        float[] floatData = tile.floatData;
+                        for (int j = 0; j < n; j++) {
+                            floatData[offset + j] = tileBuffer.getFloat(j << 2);
+                        }
+                        break;
+                    case RasterTile.SHORT:
+                        short[] shortData = tile.shortData;
+                        for (int j = 0; j < n; j++) {
+                            shortData[offset + j] = tileBuffer.getShort(j << 1);
+                        }
+                        break;
+                    case RasterTile.BYTE:
+                        tileBuffer.rewind();
+                        tileBuffer.get(tile.byteData, offset, n);
+                        break;
+                }
+            }
+        } catch (Exception e) {
+            if (communicator != null) {
+                communicator.logException("WhiteboxRaster error", e);
+            } else {
+                System.out.println(e.toString());
+            }
+        } catch (Throwable t) {
+            if (communicator != null) {
+                communicator.logThrowable("WhiteboxRaster error", t);
+            } else {
+                System.err.println(t.getMessage());
+            }
+        } finally {
+            numberOfDataFileReads++;
+        }
+    }
+
+    /**
+     * Dumps a tile to the data file.
+     */
+    private void writeTile(RasterTile tile) {
+        if (!saveChanges) {
+            return;
+        }
+        try {
+            int n = tile.numColumns;
+
+            // update the minimum and maximum values
+            double min = Double.MAX_VALUE;
+            double max = -Double.MAX_VALUE;
+            double z;
+            for (int r = 0; r < tile.numRows; r++) {
+                int offset = r * tileSize;
+                for (int j = offset; j < offset + n; j++) {
+                    z = tile.get(j);
+                    if (z != noDataValue) {
+                        if (z < min) {
+                            min = z;
+                        }
+                        if (z > max) {
+                            max = z;
+                        }
+                    }
+                }
+            }
+            if (max > maximumValue) {
+                maximumValue = max;
+            }
+            if (min < minimumValue) {
+                minimumValue = min;
+            }
+
+            FileChannel outChannel = getTileChannel();
+            int writeLengthInBytes = n * cellSizeInBytes;
+            for (int r = 0; r < tile.numRows; r++) {
+                int offset = r * tileSize;
+                tileBuffer.clear();
+                if (tile.storage == tileStorage) {
+                    switch (tile.storage) {
+                        case RasterTile.DOUBLE:
+                            for (int j = 0; j < n; j++) {
+                                tileBuffer.putDouble(j << 3, tile.doubleData[offset + j]);
+                            }
+                            break;
+                        case RasterTile.FLOAT:
+                            for (int j = 0; j < n; j++) {
+                                tileBuffer.putFloat(j << 2, tile.floatData[offset + j]);
+                            }
+                            break;
+                        case RasterTile.SHORT:
+                            for (int j = 0; j < n; j++) {
+                                tileBuffer.putShort(j << 1, tile.shortData[offset + j]);
+                            }
+                            break;
+                        case RasterTile.BYTE:
+                            tileBuffer.put(tile.byteData, offset, n);
+                            tileBuffer.clear();
+                            break;
+                    }
+                } else {
+                    // the data type of the file has been changed since the
+                    // tile was read.
+                    switch (dataType) {
+                        case DOUBLE:
+                            for (int j = 0; j < n; j++) {
+                                tileBuffer.putDouble(j << 3, tile.get(offset + j));
+                            }
+                            break;
+                        case FLOAT:
+                            for (int j = 0; j < n; j++) {
+                                tileBuffer.putFloat(j << 2, (float) tile.get(offset + j));
+                            }
+                            break;
+                        case INTEGER:
+                            for (int j = 0; j < n; j++) {
+                                tileBuffer.putShort(j << 1, (short) tile.get(offset + j));
+                            }
+                            break;
+                        case BYTE:
+                            for (int j = 0; j < n; j++) {
+                                tileBuffer.put(j, (byte) tile.get(offset + j));
+                            }
+                            break;
+                    }
+                }
+                tileBuffer.limit(writeLengthInBytes);
+                long pos = ((long) (tile.startingRow + r) * numberColumns
+                        + tile.startingColumn) * cellSizeInBytes;
+                while (tileBuffer.hasRemaining()) {
+                    outChannel.write(tileBuffer, pos + tileBuffer.position());
+                }
+            }
+            tile.isDirty = false;
+            invalidateRowBuffer();
+        } catch (Exception e) {
+            if (communicator != null) {
+                communicator.logException("WhiteboxRaster error", e);
+            } else {
+                System.err.println("Caught exception: " + e.toString());
+            }
+        } finally {
+            numberOfDataFileWrites++;
+        }
+    }
+
+    /**
+     * Writes any modified tiles in the band of tiles containing a row to the
+     * data file, so that the row can be read directly from disk.
+     */
+    private void flushTileRow(int row) {
+        if (!isDirty || memoryMapped || tiles == null) {
+            return;
+        }
+        int firstTile = (row >> tileShift) * numTileColumns;
+        for (int tc = 0; tc < numTileColumns; tc++) {
+            RasterTile tile = tiles[firstTile + tc];
+            if (tile != null && tile.isDirty) {
+                writeTile(tile);
+            }
+        }
+    }
+
+    /**
+     * Copies a row of values into any resident tiles that contain the row.
+     */
+    private void updateResidentTiles(int row, double[] vals) {
+        if (tiles == null) {
+            return;
+        }
+        int firstTile = (row >> tileShift) * numTileColumns;
+        int offset = (row & tileMask) << tileShift;
+        for (int tc = 0; tc < numTileColumns; tc++) {
+            RasterTile tile = tiles[firstTile + tc];
+            if (tile != null) {
+                for (int j = 0; j < tile.numColumns; j++) {
+                    storeTileValue(tile, offset + j, vals[tile.startingColumn + j]);
+                }
+            }
+        }
+    }
+
     public void reinitialize(double initialValue) {
         this.initialValue = initialValue;
+        discardTiles();
+        closeDataChannel();
 
         // See if the data file exists.
         File file = new File(dataFile);
@@ -995,7 +1491,6 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
                         Arrays.fill(ba, (byte) initialValue);
                     }
                     buf = ByteBuffer.wrap(ba);
-                    buf.flip();
                     outChannel.write(buf);
                     numCellsWritten += writeLength;
                 } while (numCellsWritten < numberCells);
@@ -1024,224 +1519,30 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
 
     }
 
-    private void readDataBlock() {
-        RandomAccessFile rIn = null;
-        FileChannel inChannel = null;
-        ByteBuffer buf = null;
-        try {
-
-            // See if the data file exists.
-            File file = new File(dataFile);
-            if (!file.exists()) {
-                createNewDataFile();
-            }
-
-            // What is the ending cell?
-            long endCell = (long) (blockStartingCell) + blockSize;
-            if (endCell > ((long) (numberRows) * numberColumns - 1)) {
-                endCell = (long) (numberRows) * numberColumns - 1;
-            }
-
-            blockEndingCell = endCell;
-
-            int readLengthInCells = (int) (blockEndingCell - blockStartingCell + 1);
-            buf = ByteBuffer.allocate((int) (readLengthInCells * cellSizeInBytes));
-
-            rIn = new RandomAccessFile(dataFile, "r");
-
-            inChannel = rIn.getChannel();
-
-            inChannel.position(blockStartingCell * cellSizeInBytes);
-            inChannel.read(buf);
-
-            // Check the byte order.
-            buf.order(byteOrder);
-
-            grid = new double[readLengthInCells];
-
-            if (dataType == DataType.DOUBLE) {
-                buf.rewind();
-                DoubleBuffer db = buf.asDoubleBuffer();
-                db.get(grid);
-            } else if (dataType == DataType.FLOAT) {
-                buf.rewind();
-                FloatBuffer fb = buf.asFloatBuffer();
-                float[] fa = new float[readLengthInCells];
-                fb.get(fa);
-                for (int j = 0; j < readLengthInCells; j++) {
-                    grid[j] = fa[j];
-                }
-            } else if (dataType == DataType.INTEGER) {
-                buf.rewind();
-                ShortBuffer ib = buf.asShortBuffer();
-                short[] ia = new short[readLengthInCells];
-                ib.get(ia);
-                for (int j = 0; j < readLengthInCells; j++) {
-                    grid[j] = ia[j];
-                }
-            } else if (dataType == DataType.BYTE) {
-                buf.rewind();
-                for (int j = 0; j < readLengthInCells; j++) {
-                    grid[j] = whitebox.utilities.Unsigned.getUnsignedByte(buf, j);
-                }
-            }
-
-        } catch (Exception e) {
-            if (communicator != null) {
-                communicator.logException("WhiteboxRaster error", e);
-            } else {
-                System.out.println(e.toString());
-            }
-        } catch (Throwable t) {
-            if (communicator != null) {
-                communicator.logThrowable("WhiteboxRaster error", t);
-            } else {
-                System.err.println(t.getMessage());
-            }
-        } finally {
-            if (rIn != null) {
-                try {
-                    rIn.close();
-                } catch (Exception e) {
-                }
-            }
-            if (inChannel != null) {
-                try {
-                    inChannel.close();
-                } catch (Exception e) {
-                }
-            }
-            numberOfDataFileReads++;
-        }
-
-    }
-
     /**
      * Used to dump any data contained in memory to disk.
      */
     public void flush() {
-        writeDataBlock();
+        if (memoryMapped) {
+            forceMappedWindows();
+            return;
+        }
+        writeDirtyTiles();
     }
 
     /**
-     * Dumps the data block currently in memory to the data file.
+     * Dumps all modified tiles currently in memory to the data file.
      */
-    private void writeDataBlock() {
-        try {
-            if (!saveChanges) {
-                return;
-            }
-            // update the minimum and maximum values
-            double min = Double.MAX_VALUE;
-            double max = Double.MIN_VALUE;
-            for (int i = 0; i < grid.length; i++) {
-                if (grid[i] < min && grid[i] != noDataValue) {
-                    min = grid[i];
-                }
-                if (grid[i] > max && grid[i] != noDataValue) {
-                    max = grid[i];
-                }
-            }
-            if (max > maximumValue) {
-                maximumValue = max;
-            }
-            if (min < minimumValue) {
-                minimumValue = min;
-            }
-
-            RandomAccessFile rOut = null;
-            ByteBuffer buf = null;
-            FileChannel outChannel = null;
-            try {
-
-                // See if the data file exists.
-                File file = new File(dataFile);
-                if (!file.exists()) {
-                    createNewDataFile();
-                }
-
-                rOut = new RandomAccessFile(dataFile, "rw");
-                outChannel = rOut.getChannel();
-                outChannel.position(blockStartingCell * cellSizeInBytes);
-                int writeLengthInCells = (int) (blockEndingCell - blockStartingCell + 1);
-
-                /*long startPos = blockStartingCell * cellSizeInBytes;
-                 FileChannel fc = new RandomAccessFile(dataFile, "rw").getChannel();
-                 FloatBuffer fb = fc.map(FileChannel.MapMode.READ_WRITE, startPos, 
-                 writeLengthInCells).asFloatBuffer();
-                 for(int j = 0; j < writeLengthInCells; j++) {
-                 fb.put((float)grid[j]);
-                 }
-                 fc.force(true);
-                 fc.close();*/
-
-                if (dataType == DataType.DOUBLE) { //.equals("double")) {
-                    buf = ByteBuffer.allocate(cellSizeInBytes * writeLengthInCells);
-                    buf.order(byteOrder);
-                    DoubleBuffer db = buf.asDoubleBuffer();
-                    db.put(grid);
-                    db = null;
-                    outChannel.write(buf);
-                } else if (dataType == DataType.FLOAT) { //.equals("float")) {
-                    float[] fa = new float[writeLengthInCells];
-                    for (int j = 0; j < writeLengthInCells; j++) {
-                        fa[j] = (float) grid[j];
-                    }
-                    buf = ByteBuffer.allocateDirect(cellSizeInBytes * writeLengthInCells);
-                    buf.order(byteOrder);
-                    FloatBuffer fb = buf.asFloatBuffer();
-                    fb.put(fa);
-                    fb = null;
-                    fa = null;
-                    outChannel.write(buf);
-                } else if (dataType == DataType.INTEGER) { //.equals("integer")) {
-                    short[] ia = new short[writeLengthInCells];
-                    for (int j = 0; j < writeLengthInCells; j++) {
-                        ia[j] = (short) grid[j];
-                    }
-                    buf = ByteBuffer.allocate(cellSizeInBytes * writeLengthInCells);
-                    buf.order(byteOrder);
-                    ShortBuffer ib = buf.asShortBuffer();
-                    ib.put(ia);
-                    ib = null;
-                    ia = null;
-                    outChannel.write(buf);
-                } else if (dataType == DataType.BYTE) { //.equals("byte")) {
-                    byte[] ba = new byte[writeLengthInCells];
-                    for (int j = 0; j < writeLengthInCells; j++) {
-                        ba[j] = (byte) grid[j];
-                    }
-                    buf = ByteBuffer.wrap(ba);
-                    ba = null;
-                    outChannel.write(buf);
-                }
-
-            } catch (Exception e) {
-                System.err.println("Caught exception: " + e.toString());
-                System.err.println(e.getStackTrace());
-            } finally {
-                buf = null;
-                if (rOut != null) {
-                    try {
-                        rOut.close();
-                    } catch (Exception e) {
-                    }
-                }
-                if (outChannel != null) {
-                    try {
-                        outChannel.force(false);
-                        outChannel.close();
-                    } catch (Exception e) {
-                    }
-                }
-                isDirty = false;
-                numberOfDataFileWrites++;
-            }
-        } catch (Exception e) {
-            if (communicator != null) {
-                communicator.logException("WhiteboxRaster error", e);
+    private void writeDirtyTiles() {
+        if (!saveChanges || tiles == null) {
+            return;
+        }
+        for (RasterTile tile : tiles) {
+            if (tile != null && tile.isDirty) {
+                writeTile(tile);
             }
         }
+        isDirty = false;
     }
 
     /**
@@ -1250,7 +1551,13 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
      */
     @Override
     public void close() {
+        if (memoryMapped) {
+            closeMappedWindows();
+            memoryMapped = false;
+        }
         if (this.isTemporaryFile) {
+            discardTiles();
+            closeDataChannel();
             File f1 = new File(this.headerFile);
             f1.delete();
             f1 = new File(this.dataFile);
@@ -1258,12 +1565,13 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
         } else {
             if (saveChanges) {
                 if (isDirty) {
-                    writeDataBlock();
+                    writeDirtyTiles();
                 }
                 findMinAndMaxVals();
                 writeHeaderFile();
             }
         }
-        grid = null;
+        discardTiles();
+        closeDataChannel();
     }
 }
@@ -20,6 +20,7 @@ import java.io.*;
 import java.nio.*;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import whitebox.interfaces.Communicator;
 
 /**
@@ -736,24 +737,28 @@ public class WhiteboxRasterBase {
             containsFractionalData = false;
             return;
         }
-        double[] data = null;
+        double[] data = new double[numberColumns];
         double z;
         containsFractionalDataChecked = true;
         containsFractionalData = false;
+        boolean readAhead = sequentialReadAhead;
+        setSequentialReadAhead(true);
         for (int stack = 0; stack < numberStacks; stack++) {
             for (int row = 0; row < numberRows; row++) {
-                data = getRowValues(row, stack);
+                getRowValues(row, stack, data);
                 for (int col = 0; col < numberColumns; col++) {
                     if (data[col] != noDataValue) {
                         z = Math.floor(data[col]);
                         if ((data[col] - z) > 0.001) { // you have to deal with rounding issues
                             containsFractionalData = true;
+                            setSequentialReadAhead(readAhead);
                             return;
                         }
                     }
                 }
             }
         }
+        setSequentialReadAhead(readAhead);
     }
 
     /**
@@ -1112,94 +1117,379 @@ public class WhiteboxRasterBase {
      * row.
      */
     public double[] getRowValues(int row, int stack) {
+        // See if the data file exists.
+        if (dataChannel == null && row >= 0 && row < numberRows
+                && !new File(dataFile).exists()) {
+            return null;
+        }
         double[] retVals = new double[numberColumns];
+        getRowValues(row, stack, retVals);
+        return retVals;
+    }
 
-        if (row < 0 || row >= numberRows) {
-            for (int i = 0; i < numberColumns; i++) {
-                retVals[i] = noDataValue;
-            }
-            return retVals;
+    /**
+     * Reads an entire row of data into a caller-supplied array. Unlike
+     * getRowValues(int row), this method does not allocate a new array on each
+     * call and is therefore better suited to scanning through large rasters.
+     * Rows that lie outside of the grid are filled with the NoData value.
+     *
+     * @param row An int stating the zero-based row to be read.
+     * @param values An array of at least numberColumns doubles that will
+     * receive the row values.
+     */
+    public void getRowValues(int row, double[] values) {
+        getRowValues(row, 0, values);
+    }
+
+    /**
+     * Reads an entire row of data into a caller-supplied array.
+     *
+     * @param row An int stating the zero-based row to be read.
+     * @param stack An int stating the zero-based stack in which the row is
+     * located.
+     * @param values An array of at least numberColumns doubles that will
+     * receive the row values.
+     */
+    public synchronized void getRowValues(int row, int stack, double[] values) {
+        int offset = readRow(row, stack);
+        if (offset < 0) {
+            Arrays.fill(values, 0, numberColumns, noDataValue);
+            return;
         }
+        ByteBuffer buf = rowBuffer;
+        switch (dataType) {
+            case DOUBLE:
+                for (int j = 0; j < numberColumns; j++) {
+                    values[j] = buf.getDouble(offset + (j << 3));
+                }
+                break;
+            case FLOAT:
+                for (int j = 0; j < numberColumns; j++) {
+                    values[j] = buf.getFloat(offset + (j << 2));
+                }
+                break;
+            case INTEGER:
+                for (int j = 0; j < numberColumns; j++) {
+                    values[j] = buf.getShort(offset + (j << 1));
+                }
+                break;
+            case BYTE:
+                for (int j = 0; j < numberColumns; j++) {
+                    values[j] = whitebox.utilities.Unsigned.getUnsignedByte(buf, offset + j);
+                }
+                break;
+        }
+    }
 
-        RandomAccessFile rIn = null;
-        ByteBuffer buf = null;
+    /**
+     * Reads an entire row of data into a caller-supplied array of floats.
+     *
+     * @param row An int stating the zero-based row to be read.
+     * @param values An array of at least numberColumns floats that will
+     * receive the row values.
+     */
+    public void getRowValues(int row, float[] values) {
+        getRowValues(row, 0, values);
+    }
 
-        try {
+    /**
+     * Reads an entire row of data into a caller-supplied array of floats.
+     *
+     * @param row An int stating the zero-based row to be read.
+     * @param stack An int stating the zero-based stack in which the row is
+     * located.
+     * @param values An array of at least numberColumns floats that will
+     * receive the row values.
+     */
+    public synchronized void getRowValues(int row, int stack, float[] values) {
+        int offset = readRow(row, stack);
+        if (offset < 0) {
+            Arrays.fill(values, 0, numberColumns, (float) noDataValue);
+            return;
+        }
+        ByteBuffer buf = rowBuffer;
+        switch (dataType) {
+            case DOUBLE:
+                for (int j = 0; j < numberColumns; j++) {
+                    values[j] = (float) buf.getDouble(offset + (j << 3));
+                }
+                break;
+            case FLOAT:
+                for (int j = 0; j < numberColumns; j++) {
+                    values[j] = buf.getFloat(offset + (j << 2));
+                }
+                break;
+            case INTEGER:
+                for (int j = 0; j < numberColumns; j++) {
+                    values[j] = buf.getShort(offset + (j << 1));
+                }
+                break;
+            case BYTE:
+                for (int j = 0; j < numberColumns; j++) {
+                    values[j] = whitebox.utilities.Unsigned.getUnsignedByte(buf, offset + j);
+                }
+                break;
+        }
+    }
 
-            // See if the data file exists.
+    /**
+     * Reads an entire row of data into a caller-supplied array of shorts. This
+     * avoids widening the values of an integer raster to doubles. Values of
+     * other data types are truncated.
+     *
+     * @param row An int stating the zero-based row to be read.
+     * @param values An array of at least numberColumns shorts that will
+     * receive the row values.
+     */
+    public void getRowValues(int row, short[] values) {
+        getRowValues(row, 0, values);
+    }
+
+    /**
+     * Reads an entire row of data into a caller-supplied array of shorts.
+     *
+     * @param row An int stating the zero-based row to be read.
+     * @param stack An int stating the zero-based stack in which the row is
+     * located.
+     * @param values An array of at least numberColumns shorts that will
+     * receive the row values.
+     */
+    public synchronized void getRowValues(int row, int stack, short[] values) {
+        int offset = readRow(row, stack);
+        if (offset < 0) {
+            Arrays.fill(values, 0, numberColumns, (short) noDataValue);
+            return;
+        }
+        ByteBuffer buf = rowBuffer;
+        switch (dataType) {
+            case DOUBLE:
+                for (int j = 0; j < numberColumns; j++) {
+                    values[j] = (short) buf.getDouble(offset + (j << 3));
+                }
+                break;
+            case FLOAT:
+                for (int j = 0; j < numberColumns; j++) {
+                    values[j] = (short) buf.getFloat(offset + (j << 2));
+                }
+                break;
+            case INTEGER:
+                for (int j = 0; j < numberColumns; j++) {
+                    values[j] = buf.getShort(offset + (j << 1));
+                }
+                break;
+            case BYTE:
+                for (int j = 0; j < numberColumns; j++) {
+                    values[j] = (short) (buf.get(offset + j) & 0xff);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Reads an entire row of data into a caller-supplied array of bytes. The
+     * values of a byte raster are copied without conversion and, since they
+     * are unsigned, should be read as (values[j] & 0xff). Values of other
+     * data types are truncated to their lowest eight bits.
+     *
+     * @param row An int stating the zero-based row to be read.
+     * @param values An array of at least numberColumns bytes that will
+     * receive the row values.
+     */
+    public void getRowValues(int row, byte[] values) {
+        getRowValues(row, 0, values);
+    }
+
+    /**
+     * Reads an entire row of data into a caller-supplied array of bytes.
+     *
+     * @param row An int stating the zero-based row to be read.
+     * @param stack An int stating the zero-based stack in which the row is
+     * located.
+     * @param values An array of at least numberColumns bytes that will
+     * receive the row values.
+     */
+    public synchronized void getRowValues(int row, int stack, byte[] values) {
+        int offset = readRow(row, stack);
+        if (offset < 0) {
+            Arrays.fill(values, 0, numberColumns, (byte) noDataValue);
+            return;
+        }
+        ByteBuffer buf = rowBuffer;
+        switch (dataType) {
+            case DOUBLE:
+                for (int j = 0; j < numberColumns; j++) {
+                    values[j] = (byte) buf.getDouble(offset + (j << 3));
+                }
+                break;
+            case FLOAT:
+                for (int j = 0; j < numberColumns; j++) {
+                    values[j] = (byte) buf.getFloat(offset + (j << 2));
+                }
+                break;
+            case INTEGER:
+                for (int j = 0; j < numberColumns; j++) {
+                    values[j] = (byte) buf.getShort(offset + (j << 1));
+                }
+                break;
+            case BYTE:
+                ByteBuffer dup = buf.duplicate();
+                dup.position(offset);
+                dup.get(values, 0, numberColumns);
+                break;
+        }
+    }
+
+    // ***********************************
+    // Data file access
+    // ***********************************
+    private static final int READ_AHEAD_SIZE = 4 * 1048576; // in bytes
+    private RandomAccessFile dataFileAccess = null;
+    private FileChannel dataChannel = null;
+    private ByteBuffer rowBuffer = null;
+    private long rowBufferStartingCell = -1;
+    private long rowBufferEndingCell = -1;
+    private boolean sequentialReadAhead = false;
+
+    /**
+     * Sets whether rows should be read from the data file in large blocks.
+     * This is worthwhile when a raster is scanned from top to bottom using the
+     * getRowValues methods, since each disk read then serves many consecutive
+     * rows.
+     *
+     * @param value Set to true to read ahead when rows are requested.
+     */
+    public synchronized void setSequentialReadAhead(boolean value) {
+        sequentialReadAhead = value;
+        invalidateRowBuffer();
+    }
+
+    public boolean isSequentialReadAhead() {
+        return sequentialReadAhead;
+    }
+
+    /**
+     * Returns a channel to the data file (.tas). The channel is opened the
+     * first time that it is needed and remains open until the raster is
+     * closed.
+     *
+     * @return The data file channel, or null if the data file does not exist.
+     * @throws IOException
+     */
+    protected FileChannel getDataChannel() throws IOException {
+        if (dataChannel == null) {
             File file = new File(dataFile);
             if (!file.exists()) {
                 return null;
             }
+            if (saveChanges && file.canWrite()) {
+                dataFileAccess = new RandomAccessFile(dataFile, "rw");
+            } else {
+                dataFileAccess = new RandomAccessFile(dataFile, "r");
+            }
+            dataChannel = dataFileAccess.getChannel();
+        }
+        return dataChannel;
+    }
 
-            // what is the starting and ending cell?
-            long startingCell = (long) (row) * numberColumns;
-            long endingCell = (long) (startingCell) + numberColumns - 1;
-            
-            int readLengthInCells = (int) (endingCell - startingCell + 1);
-            buf = ByteBuffer.allocate((int) (readLengthInCells * cellSizeInBytes));
-
-            rIn = new RandomAccessFile(dataFile, "r");
+    /**
+     * Closes the data file channel, if it is open.
+     */
+    protected void closeDataChannel() {
+        if (dataChannel != null) {
+            try {
+                dataChannel.close();
+            } catch (IOException e) {
+            }
+            dataChannel = null;
+        }
+        if (dataFileAccess != null) {
+            try {
+                dataFileAccess.close();
+            } catch (IOException e) {
+            }
+            dataFileAccess = null;
+        }
+        invalidateRowBuffer();
+    }
 
-            FileChannel inChannel = rIn.getChannel();
+    /**
+     * Discards any rows held in the read buffer. This must be called whenever
+     * the data file is modified.
+     */
+    protected void invalidateRowBuffer() {
+        rowBufferStartingCell = -1;
+        rowBufferEndingCell = -1;
+    }
 
-            long numCellsPerStack = numberColumns * numberRows;
-            inChannel.position(startingCell * cellSizeInBytes + (numCellsPerStack * stack));
-            inChannel.read(buf);
+    /**
+     * Called before a row is read from the data file. Subclasses that hold
+     * modified data in memory can override this to write the row out first.
+     *
+     * @param row An int stating the zero-based row about to be read.
+     */
+    protected void prepareRowRead(int row) {
+    }
 
-            // Check the byte order.
-            buf.order(byteOrder);
+    /**
+     * Makes sure that a row is held in the read buffer.
+     *
+     * @return The position of the start of the row within the buffer, or -1 if
+     * the row could not be read.
+     */
+    private int readRow(int row, int stack) {
+        if (row < 0 || row >= numberRows) {
+            return -1;
+        }
+        prepareRowRead(row);
+        long numCellsPerStack = (long) numberColumns * numberRows;
+        long startingCell = numCellsPerStack * stack + (long) row * numberColumns;
+        long endingCell = startingCell + numberColumns - 1;
+        if (sequentialReadAhead && startingCell >= rowBufferStartingCell
+                && endingCell <= rowBufferEndingCell) {
+            return (int) ((startingCell - rowBufferStartingCell) * cellSizeInBytes);
+        }
 
-            if (dataType == DataType.DOUBLE) { //.equals("double")) {
-                buf.rewind();
-                DoubleBuffer db = buf.asDoubleBuffer();
-                retVals = new double[readLengthInCells];
-                db.get(retVals);
-                db = null;
-                buf = null;
-            } else if (dataType == DataType.FLOAT) { //.equals("float")) {
-                buf.rewind();
-                FloatBuffer fb = buf.asFloatBuffer();
-                float[] fa = new float[readLengthInCells];
-                fb.get(fa);
-                fb = null;
-                buf = null;
-                retVals = new double[readLengthInCells];
-                for (int j = 0; j < readLengthInCells; j++) {
-                    retVals[j] = fa[j];
-                }
-                fa = null;
-            } else if (dataType == DataType.INTEGER) { //.equals("integer")) {
-                buf.rewind();
-                ShortBuffer ib = buf.asShortBuffer();
-                short[] ia = new short[readLengthInCells];
-                ib.get(ia);
-                ib = null;
-                buf = null;
-                retVals = new double[readLengthInCells];
-                for (int j = 0; j < readLengthInCells; j++) {
-                    retVals[j] = ia[j];
-                }
-                ia = null;
-            } else if (dataType == DataType.BYTE) { //.equals("byte")) {
-                buf.rewind();
-                retVals = new double[readLengthInCells];
-                for (int j = 0; j < readLengthInCells; j++) {
-                    retVals[j] = whitebox.utilities.Unsigned.getUnsignedByte(buf, j); //ba[j]);
+        try {
+            FileChannel inChannel = getDataChannel();
+            if (inChannel == null) {
+                return -1;
+            }
+            int bytesPerRow = numberColumns * cellSizeInBytes;
+            int numRowsToRead = 1;
+            if (sequentialReadAhead) {
+                numRowsToRead = Math.max(1, READ_AHEAD_SIZE / bytesPerRow);
+                numRowsToRead = Math.min(numRowsToRead, numberRows - row);
+            }
+            int readLengthInBytes = numRowsToRead * bytesPerRow;
+            if (rowBuffer == null || rowBuffer.capacity() < readLengthInBytes) {
+                int capacity = sequentialReadAhead
+                        ? Math.max(1, READ_AHEAD_SIZE / bytesPerRow) * bytesPerRow
+                        : bytesPerRow;
+                rowBuffer = ByteBuffer.allocateDirect(Math.max(capacity, readLengthInBytes));
+            }
+            rowBuffer.clear();
+            rowBuffer.limit(readLengthInBytes);
+            rowBuffer.order(byteOrder);
+            long pos = startingCell * cellSizeInBytes;
+            while (rowBuffer.hasRemaining()) {
+                if (inChannel.read(rowBuffer, pos + rowBuffer.position()) < 0) {
+                    // beyond the end of the data file; treat as zeros.
+                    while (rowBuffer.hasRemaining()) {
+                        rowBuffer.put((byte) 0);
+                    }
                 }
             }
-
+            rowBufferStartingCell = startingCell;
+            rowBufferEndingCell = startingCell + (long) numRowsToRead * numberColumns - 1;
+            return 0;
         } catch (IOException e) {
-            System.err.println("Caught exception: " + e.toString());
-            System.err.println(e.getStackTrace());
-        } finally {
-            if (rIn != null) {
-                try {
-                    rIn.close();
-                } catch (IOException e) {
-                }
+            invalidateRowBuffer();
+            if (communicator != null) {
+                communicator.logException("WhiteboxRaster error", e);
+            } else {
+                System.err.println("Caught exception: " + e.toString());
             }
-            return retVals.clone();
+            return -1;
         }
     }
 
@@ -1212,91 +1502,53 @@ public class WhiteboxRasterBase {
      * @return An array of doubles containing the values store in the specified
      * row.
      */
-    public double[] getColumnValues(int col) {
+    public synchronized double[] getColumnValues(int col) {
         double[] retVals = new double[numberRows];
 
         // fill the return with nodata values
         if (col < 0 || col >= numberColumns) {
-            for (int i = 0; i < numberRows; i++) {
-                retVals[i] = noDataValue;
-            }
+            Arrays.fill(retVals, noDataValue);
             return retVals;
         }
 
-        RandomAccessFile rIn = null;
-        ByteBuffer buf = null;
-
         try {
-
-            // See if the data file exists.
-            File file = new File(dataFile);
-            if (!file.exists()) {
+            FileChannel inChannel = getDataChannel();
+            if (inChannel == null) {
                 return null;
             }
 
-            rIn = new RandomAccessFile(dataFile, "r");
-
-            buf = ByteBuffer.allocate((int) (cellSizeInBytes));
-            FileChannel inChannel = rIn.getChannel();
-
-            long pos;
-
-            // Check the byte order.
+            ByteBuffer buf = ByteBuffer.allocate(cellSizeInBytes);
             buf.order(byteOrder);
 
-            switch (dataType) {
-                case DOUBLE:
-                    for (int i = 0; i < numberRows; i++) {
-                        pos = i * cellSizeInBytes * numberColumns + cellSizeInBytes * col;
-                        inChannel.read(buf, pos);
-                        buf.rewind();
-                        DoubleBuffer db = buf.asDoubleBuffer();
-                        retVals[i] = db.get(0);
-                    }
-                    break;
-                case FLOAT:
-                    for (int i = 0; i < numberRows; i++) {
-                        pos = i * cellSizeInBytes * numberColumns + cellSizeInBytes * col;
-                        inChannel.read(buf, pos);
-                        buf.rewind();
-                        FloatBuffer fb = buf.asFloatBuffer();
-                        retVals[i] = (double) fb.get(0);
-                    }
-                    break;
-                case INTEGER:
-                    for (int i = 0; i < numberRows; i++) {
-                        pos = i * cellSizeInBytes * numberColumns + cellSizeInBytes * col;
-                        inChannel.read(buf, pos);
-                        buf.rewind();
-                        ShortBuffer sb = buf.asShortBuffer();
-                        retVals[i] = (double) sb.get(0);
-                    }
-                    break;
-                case BYTE:
-                    for (int i = 0; i < numberRows; i++) {
-                        pos = i * cellSizeInBytes * numberColumns + cellSizeInBytes * col;
-                        inChannel.position(pos);
-                        inChannel.read(buf);
-                        buf.rewind();
+            long pos;
+            long bytesPerRow = (long) cellSizeInBytes * numberColumns;
+            for (int i = 0; i < numberRows; i++) {
+                pos = i * bytesPerRow + (long) cellSizeInBytes * col;
+                buf.clear();
+                inChannel.read(buf, pos);
+                switch (dataType) {
+                    case DOUBLE:
+                        retVals[i] = buf.getDouble(0);
+                        break;
+                    case FLOAT:
+                        retVals[i] = buf.getFloat(0);
+                        break;
+                    case INTEGER:
+                        retVals[i] = buf.getShort(0);
+                        break;
+                    case BYTE:
                         retVals[i] = whitebox.utilities.Unsigned.getUnsignedByte(buf, 0);
-                    }
-                    break;
+                        break;
+                }
             }
 
         } catch (Exception e) {
             System.err.println("Caught exception: " + e.toString());
             System.err.println(e.getStackTrace());
-        } finally {
-            if (rIn != null) {
-                try {
-                    rIn.close();
-                } catch (Exception e) {
-                }
-            }
-            return retVals.clone();
         }
+        return retVals;
     }
-    
+
     /**
      * This method returns all of the pixel data contained in a raster as a double array.
      * @return An array of doubles containing the values store in the specified.
@@ -1421,65 +1673,31 @@ public class WhiteboxRasterBase {
             writeHeaderFile();
         }
 
-        RandomAccessFile rOut = null;
-        ByteBuffer buf = null;
-        FileChannel outChannel = null;
         try {
-
-            rOut = new RandomAccessFile(dataFile, "rw");
-            outChannel = rOut.getChannel();
+            FileChannel outChannel = getDataChannel();
+            if (outChannel == null) {
+                return;
+            }
             long cellNum = (long) (row) * numberColumns + column;
-            outChannel.position(cellNum * cellSizeInBytes);
-            int writeLengthInCells = 1;
+            ByteBuffer buf = ByteBuffer.allocate(cellSizeInBytes);
+            buf.order(byteOrder);
 
             if (dataType == DataType.DOUBLE) {
-                buf = ByteBuffer.allocate(cellSizeInBytes);
-                buf.order(byteOrder);
-                DoubleBuffer db = buf.asDoubleBuffer();
-                db.put(value);
-                db = null;
-                outChannel.write(buf);
+                buf.putDouble(0, value);
             } else if (dataType == DataType.FLOAT) {
-                float fa = (float) value;
-                buf = ByteBuffer.allocateDirect(cellSizeInBytes);
-                buf.order(byteOrder);
-                FloatBuffer fb = buf.asFloatBuffer();
-                fb.put(fa);
-                fb = null;
-                outChannel.write(buf);
+                buf.putFloat(0, (float) value);
             } else if (dataType == DataType.INTEGER) {
-                short ia = (short) value;
-                buf = ByteBuffer.allocate(cellSizeInBytes);
-                buf.order(byteOrder);
-                ShortBuffer ib = buf.asShortBuffer();
-                ib.put(ia);
-                ib = null;
-                outChannel.write(buf);
+                buf.putShort(0, (short) value);
             } else if (dataType == DataType.BYTE) {
-                byte[] ba = {(byte) value};
-                buf = ByteBuffer.wrap(ba);
-                ba = null;
-                outChannel.write(buf);
+                buf.put(0, (byte) value);
             }
+            outChannel.write(buf, cellNum * cellSizeInBytes);
 
         } catch (Exception e) {
             System.err.println("Caught exception: " + e.toString());
             System.err.println(e.getStackTrace());
         } finally {
-            buf = null;
-            if (rOut != null) {
-                try {
-                    rOut.close();
-                } catch (Exception e) {
-                }
-            }
-            if (outChannel != null) {
-                try {
-                    outChannel.force(false);
-                    outChannel.close();
-                } catch (Exception e) {
-                }
-            }
+            invalidateRowBuffer();
         }
     }
 
@@ -1489,13 +1707,15 @@ public class WhiteboxRasterBase {
      * and maximumValue fields.
      */
     public void findMinAndMaxVals() {
-        double[] data;
+        double[] data = new double[numberColumns];
         double min = Double.MAX_VALUE;
         double max = -Double.MAX_VALUE;
         double z;
+        boolean readAhead = sequentialReadAhead;
+        setSequentialReadAhead(true);
         for (int stack = 0; stack < numberStacks; stack++) {
             for (int row = 0; row < numberRows; row++) {
-                data = getRowValues(row, stack);
+                getRowValues(row, stack, data);
                 for (int col = 0; col < numberColumns; col++) {
                     z = data[col];
                     if (z != noDataValue) {
@@ -1509,6 +1729,7 @@ public class WhiteboxRasterBase {
                 }
             }
         }
+        setSequentialReadAhead(readAhead);
         maximumValue = max;
         minimumValue = min;
     }
@@ -1671,7 +1892,7 @@ public class WhiteboxRasterBase {
         mean = 0;
         mode = 0;
         long n = 0;
-        double[] data;
+        double[] data = new double[numberColumns];
         double imageTotalDeviation = 0;
         double min = Double.MAX_VALUE;
         double max = -Double.MAX_VALUE;
@@ -1683,11 +1904,13 @@ public class WhiteboxRasterBase {
         int numberOfBins = 0;
 
         if (dataScale != DataScale.RGB) { //DATA_SCALE_RGB) {
+            boolean readAhead = sequentialReadAhead;
+            setSequentialReadAhead(true);
 
             // calculate the mean, min and max.
             for (int stack = 0; stack < numberStacks; stack++) {
                 for (int row = 0; row < numberRows; row++) {
-                    data = getRowValues(row, stack);
+                    getRowValues(row, stack, data);
                     for (int col = 0; col < numberColumns; col++) {
                         z = data[col];
                         if (z != noDataValue) {
@@ -1732,7 +1955,7 @@ public class WhiteboxRasterBase {
             // figure out how many bins should be in the histogram
             for (int stack = 0; stack < numberStacks; stack++) {
                 for (int row = 0; row < numberRows; row++) {
-                    data = getRowValues(row, stack);
+                    getRowValues(row, stack, data);
                     for (int col = 0; col < numberColumns; col++) {
                         z = data[col];
                         if (z != noDataValue) {
@@ -1744,6 +1967,7 @@ public class WhiteboxRasterBase {
                 }
             }
 
+            setSequentialReadAhead(readAhead);
             stdDeviation = Math.sqrt(imageTotalDeviation / (n - 1));
 
             long highestVal = 0;
@@ -1883,6 +2107,7 @@ public class WhiteboxRasterBase {
     }
 
     public void close() {
+        closeDataChannel();
         if (saveChanges) {
             if (isDirty) {
                 writeHeaderFile();
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.parallel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Accumulates values over a network of grid cells in which each cell passes
+ * its accumulated value on to the cells that receive flow from it, e.g. the
+ * flow accumulation of a D8 or D-infinity flow pointer. Subclasses define the
+ * initial value of each cell and the cells that receive its flow.
+ *
+ * The values and the number of cells that flow into each cell (its
+ * in-degree) are held in memory, using 12 bytes per cell. The in-degrees are
+ * counted in parallel. The cells are then visited in dependency order: each
+ * thread takes blocks of rows from a shared queue and follows the flowpaths
+ * downslope from the cells in the block that have no inflowing cells. A cell
+ * is passed on by the thread whose contribution reduces its in-degree to
+ * zero, so that each cell is visited exactly once and only after all of the
+ * cells that flow into it. The contributions from different threads are
+ * added atomically.
+ *
+ * Cells in a loop of the flow network are never visited and keep the
+ * contributions that they have received from outside of the loop.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public abstract class FlowAccumulator {
+
+    /**
+     * The largest number of cells that can receive flow from a cell.
+     */
+    public static final int MAX_RECEIVERS = 8;
+    // the number of rows in each block of the work queue.
+    private static final int BLOCK_ROWS = 16;
+    protected final int rows;
+    protected final int cols;
+    private AtomicLongArray values;
+    // the number of inflowing cells that have not yet been visited, or -1
+    // for cells that are not part of the network.
+    private AtomicIntegerArray inDegrees;
+
+    /**
+     * Constructor.
+     *
+     * @param rows The number of rows in the grid.
+     * @param cols The number of columns in the grid.
+     */
+    protected FlowAccumulator(int rows, int cols) {
+        if ((long) rows * cols > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The grid has too many cells.");
+        }
+        this.rows = rows;
+        this.cols = cols;
+    }
+
+    /**
+     * Returns the value of a cell before any flow is accumulated.
+     *
+     * @return The value, or NaN if the cell is not part of the flow network.
+     * Cells that are not part of the network neither send nor receive flow.
+     */
+    protected abstract double getInitialValue(int row, int col);
+
+    /**
+     * Finds the cells that receive flow from a cell. This is called by
+     * several threads at once. The receiving cells must not depend on the
+     * accumulated value, although the proportions may; it is called with the
+     * initial value of the cell when the in-degrees are counted.
+     *
+     * @param row The row of the cell.
+     * @param col The column of the cell.
+     * @param accumulation The value accumulated at the cell.
+     * @param receivers Receives the index, row * cols + col, of each
+     * receiving cell. Receivers must be within the grid.
+     * @param proportions Receives the proportion of the outflow of the cell
+     * that goes to each receiving cell.
+     * @return The number of receiving cells.
+     */
+    protected abstract int getReceivers(int row, int col, double accumulation,
+            int[] receivers, double[] proportions);
+
+    /**
+     * Returns the value that a cell passes on to the cells that receive its
+     * flow. By default this is the value accumulated at the cell.
+     */
+    protected double getOutflow(int row, int col, double accumulation) {
+        return accumulation;
+    }
+
+    /**
+     * Accumulates the flow.
+     *
+     * @param monitor Receives progress updates; may be null.
+     * @return false if the operation was cancelled.
+     * @throws Exception if a subclass throws an exception.
+     */
+    public boolean run(LocalOperation.ProgressMonitor monitor) throws Exception {
+        values = new AtomicLongArray(rows * cols);
+        inDegrees = new AtomicIntegerArray(rows * cols);
+        int numBlocks = (rows + BLOCK_ROWS - 1) / BLOCK_ROWS;
+        int numThreads = Math.max(1, Math.min(Parallel.getPluginProcessors(), numBlocks));
+        ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int b = 0; b < numBlocks; b++) {
+                tasks.add(new InitialValues(b * BLOCK_ROWS, Math.min(rows, (b + 1) * BLOCK_ROWS)));
+            }
+            if (!runTasks(workers, tasks, monitor, 0)) {
+                return false;
+            }
+            tasks.clear();
+            for (int b = 0; b < numBlocks; b++) {
+                tasks.add(new InDegrees(b * BLOCK_ROWS, Math.min(rows, (b + 1) * BLOCK_ROWS)));
+            }
+            if (!runTasks(workers, tasks, monitor, 1)) {
+                return false;
+            }
+            tasks.clear();
+            for (int b = 0; b < numBlocks; b++) {
+                tasks.add(new Accumulation(b * BLOCK_ROWS, Math.min(rows, (b + 1) * BLOCK_ROWS)));
+            }
+            return runTasks(workers, tasks, monitor, 2);
+        } finally {
+            workers.shutdownNow();
+            inDegrees = null;
+        }
+    }
+
+    /**
+     * Reads a row of accumulated values. Cells that are not part of the flow
+     * network are NaN.
+     */
+    public void getRowValues(int row, double[] rowValues) {
+        int i = row * cols;
+        for (int col = 0; col < cols; col++, i++) {
+            rowValues[col] = Double.longBitsToDouble(values.get(i));
+        }
+    }
+
+    /**
+     * Runs the tasks of one of the three stages, reporting progress as each
+     * completes in order.
+     */
+    private boolean runTasks(ExecutorService workers, List<Callable<Void>> tasks,
+            LocalOperation.ProgressMonitor monitor, int stage) throws Exception {
+        List<Future<Void>> futures = new ArrayList<>();
+        for (Callable<Void> task : tasks) {
+            futures.add(workers.submit(task));
+        }
+        int oldProgress = -1;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw e;
+            }
+            int progress = (int) ((100L * stage * futures.size() + 100L * (i + 1)) / (3L * futures.size()));
+            if (progress > oldProgress) {
+                oldProgress = progress;
+                if (monitor != null && !monitor.updateProgress(progress)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private class InitialValues implements Callable<Void> {
+
+        private final int startRow;
+        private final int endRow;
+
+        InitialValues(int startRow, int endRow) {
+            this.startRow = startRow;
+            this.endRow = endRow;
+        }
+
+        @Override
+        public Void call() {
+            for (int row = startRow; row < endRow && !Thread.currentThread().isInterrupted(); row++) {
+                int i = row * cols;
+                for (int col = 0; col < cols; col++, i++) {
+                    double z = getInitialValue(row, col);
+                    values.set(i, Double.doubleToRawLongBits(z));
+                    if (Double.isNaN(z)) {
+                        inDegrees.set(i, -1);
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    private class InDegrees implements Callable<Void> {
+
+        private final int startRow;
+        private final int endRow;
+
+        InDegrees(int startRow, int endRow) {
+            this.startRow = startRow;
+            this.endRow = endRow;
+        }
+
+        @Override
+        public Void call() {
+            int[] receivers = new int[MAX_RECEIVERS];
+            double[] proportions = new double[MAX_RECEIVERS];
+            for (int row = startRow; row < endRow && !Thread.currentThread().isInterrupted(); row++) {
+                int i = row * cols;
+                for (int col = 0; col < cols; col++, i++) {
+                    if (inDegrees.get(i) < 0) {
+                        continue;
+                    }
+                    double z = Double.longBitsToDouble(values.get(i));
+                    int n = getReceivers(row, col, z, receivers, proportions);
+                    for (int k = 0; k < n; k++) {
+                        // the cells that are not part of the network are
+                        // marked before any in-degrees are counted.
+                        if (inDegrees.get(receivers[k]) >= 0) {
+                            inDegrees.incrementAndGet(receivers[k]);
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    private class Accumulation implements Callable<Void> {
+
+        private final int startRow;
+        private final int endRow;
+
+        Accumulation(int startRow, int endRow) {
+            this.startRow = startRow;
+            this.endRow = endRow;
+        }
+
+        @Override
+        public Void call() {
+            int[] receivers = new int[MAX_RECEIVERS];
+            double[] proportions = new double[MAX_RECEIVERS];
+            int[] stack = new int[64];
+            for (int row = startRow; row < endRow && !Thread.currentThread().isInterrupted(); row++) {
+                int start = row * cols;
+                for (int col = 0; col < cols; col++) {
+                    // a cell is visited by the thread that claims it by
+                    // marking it once its in-degree is zero, either here or
+                    // when the last of its inflowing cells is visited.
+                    if (!inDegrees.compareAndSet(start + col, 0, -1)) {
+                        continue;
+                    }
+                    int stackSize = 0;
+                    stack[stackSize++] = start + col;
+                    while (stackSize > 0) {
+                        int cell = stack[--stackSize];
+                        int r = cell / cols;
+                        int c = cell - r * cols;
+                        double z = Double.longBitsToDouble(values.get(cell));
+                        double outflow = getOutflow(r, c, z);
+                        int n = getReceivers(r, c, z, receivers, proportions);
+                        for (int k = 0; k < n; k++) {
+                            int receiver = receivers[k];
+                            if (inDegrees.get(receiver) < 0) {
+                                continue;
+                            }
+                            add(receiver, outflow * proportions[k]);
+                            if (inDegrees.decrementAndGet(receiver) == 0
+                                    && inDegrees.compareAndSet(receiver, 0, -1)) {
+                                if (stackSize == stack.length) {
+                                    stack = Arrays.copyOf(stack, stackSize * 2);
+                                }
+                                stack[stackSize++] = receiver;
+                            }
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    private void add(int cell, double value) {
+        long current;
+        long updated;
+        do {
+            current = values.get(cell);
+            updated = Double.doubleToRawLongBits(Double.longBitsToDouble(current) + value);
+        } while (!values.compareAndSet(cell, current, updated));
+    }
+}
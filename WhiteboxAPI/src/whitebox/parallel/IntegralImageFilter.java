@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.parallel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Computes the mean, total or standard deviation of the values within a
+ * rectangular or elliptical moving window, using integral images (summed-area
+ * tables) of the number of valid cells, their values and their squared
+ * values. A rectangular window is summed in constant time from the four
+ * corners of the window; an elliptical window is divided into rectangles of
+ * rows with the same width.
+ *
+ * The integral images are built separately for each band of rows, from the
+ * values less the first valid value of the band, which keeps the sums small
+ * enough that little precision is lost in the differences between them.
+ * Integer data are summed exactly.
+ *
+ * NoData cells, and cells beyond the edges of the raster that are not
+ * reflected, are excluded from the window. Cells with a NoData value in the
+ * input are NoData in the output.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public class IntegralImageFilter extends NeighbourhoodFilter {
+
+    public enum Statistic {
+
+        /**
+         * The mean of the values in the window.
+         */
+        MEAN,
+        /**
+         * The sum of the values in the window.
+         */
+        TOTAL,
+        /**
+         * The population standard deviation of the values in the window.
+         * Cells with fewer than three values in the window are NoData.
+         */
+        STANDARD_DEVIATION
+    }
+
+    private final Statistic statistic;
+    // the window as rectangles, each given by its first and last row offsets
+    // and its first and last column offsets
+    private final int[][] rectangles;
+
+    /**
+     * Constructor.
+     *
+     * @param filterSizeX The width of the filter, which must be odd.
+     * @param filterSizeY The height of the filter, which must be odd.
+     * @param filterRounded If true, the filter contains only the cells that
+     * lie within the largest ellipse that fits in the filter box.
+     * @param statistic The statistic to compute.
+     */
+    public IntegralImageFilter(int filterSizeX, int filterSizeY, boolean filterRounded,
+            Statistic statistic) {
+        super(filterSizeX / 2, filterSizeY / 2);
+        this.statistic = statistic;
+        int[][] offsets = getWindowOffsets(filterSizeX, filterSizeY, filterRounded);
+        int[] firstOffset = offsets[0];
+        int[] lastOffset = offsets[1];
+        List<int[]> list = new ArrayList<>();
+        int start = 0;
+        for (int row = 1; row <= filterSizeY; row++) {
+            if (row == filterSizeY || firstOffset[row] != firstOffset[start]
+                    || lastOffset[row] != lastOffset[start]) {
+                if (firstOffset[start] <= lastOffset[start]) {
+                    list.add(new int[]{start - midPointY, row - 1 - midPointY,
+                        firstOffset[start], lastOffset[start]});
+                }
+                start = row;
+            }
+        }
+        rectangles = list.toArray(new int[list.size()][]);
+    }
+
+    @Override
+    protected Band createBand(int cols, double noData, double outputNoData) {
+        return new IntegralImageBand(cols, noData, outputNoData);
+    }
+
+    private class IntegralImageBand extends Band {
+
+        private final int cols;
+        private final double noData;
+        private final double outputNoData;
+        // the integral images have one more row and column than the band, so
+        // that entry (r, c) is the sum over the rows before r and the columns
+        // before c.
+        private int[] counts = new int[0];
+        private double[] sums = new double[0];
+        private double[] sumsOfSquares = new double[0];
+
+        IntegralImageBand(int cols, double noData, double outputNoData) {
+            this.cols = cols;
+            this.noData = noData;
+            this.outputNoData = outputNoData;
+        }
+
+        @Override
+        protected void filter(double[][] extendedRows, int from, int to, double[][] outputRows) {
+            int extendedCols = extendedRows[0].length;
+            int numExtendedRows = to - from + 2 * midPointY;
+            int width = extendedCols + 1;
+            int size = (numExtendedRows + 1) * width;
+            if (counts.length < size) {
+                counts = new int[size];
+                sums = new double[size];
+                sumsOfSquares = new double[size];
+            }
+            boolean needSquares = (statistic == Statistic.STANDARD_DEVIATION);
+
+            double offset = 0;
+            findOffset:
+            for (int r = 0; r < numExtendedRows; r++) {
+                for (double z : extendedRows[from + r]) {
+                    if (z != noData) {
+                        offset = z;
+                        break findOffset;
+                    }
+                }
+            }
+
+            for (int c = 0; c < width; c++) {
+                counts[c] = 0;
+                sums[c] = 0;
+                sumsOfSquares[c] = 0;
+            }
+            for (int r = 0; r < numExtendedRows; r++) {
+                double[] extended = extendedRows[from + r];
+                int i = (r + 1) * width;
+                counts[i] = 0;
+                sums[i] = 0;
+                sumsOfSquares[i] = 0;
+                int rowCount = 0;
+                double rowSum = 0;
+                double rowSumOfSquares = 0;
+                for (int c = 0; c < extendedCols; c++) {
+                    i++;
+                    double z = extended[c];
+                    if (z != noData) {
+                        z -= offset;
+                        rowCount++;
+                        rowSum += z;
+                        if (needSquares) {
+                            rowSumOfSquares += z * z;
+                        }
+                    }
+                    counts[i] = counts[i - width] + rowCount;
+                    sums[i] = sums[i - width] + rowSum;
+                    if (needSquares) {
+                        sumsOfSquares[i] = sumsOfSquares[i - width] + rowSumOfSquares;
+                    }
+                }
+            }
+
+            for (int r = from; r < to; r++) {
+                double[] centreRow = extendedRows[r + midPointY];
+                double[] outputRow = outputRows[r];
+                for (int col = 0; col < cols; col++) {
+                    if (centreRow[col + midPointX] == noData) {
+                        outputRow[col] = outputNoData;
+                        continue;
+                    }
+                    int n = 0;
+                    double sum = 0;
+                    double sumOfSquares = 0;
+                    for (int[] rect : rectangles) {
+                        // the corners of the rectangle in the integral images
+                        int top = (r - from + midPointY + rect[0]) * width;
+                        int bottom = (r - from + midPointY + rect[1] + 1) * width;
+                        int left = col + midPointX + rect[2];
+                        int right = col + midPointX + rect[3] + 1;
+                        n += counts[bottom + right] - counts[bottom + left]
+                                - counts[top + right] + counts[top + left];
+                        sum += sums[bottom + right] - sums[bottom + left]
+                                - sums[top + right] + sums[top + left];
+                        if (needSquares) {
+                            sumOfSquares += sumsOfSquares[bottom + right] - sumsOfSquares[bottom + left]
+                                    - sumsOfSquares[top + right] + sumsOfSquares[top + left];
+                        }
+                    }
+
+                    switch (statistic) {
+                        case MEAN:
+                            outputRow[col] = (n > 0) ? offset + sum / n : outputNoData;
+                            break;
+                        case TOTAL:
+                            outputRow[col] = sum + n * offset;
+                            break;
+                        default:
+                            if (n > 2) {
+                                double variance = (sumOfSquares - (sum * sum) / n) / n;
+                                outputRow[col] = (variance > 0) ? Math.sqrt(variance) : variance;
+                            } else {
+                                outputRow[col] = outputNoData;
+                            }
+                    }
+                }
+            }
+        }
+    }
+}
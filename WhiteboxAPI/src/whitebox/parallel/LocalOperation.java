@@ -0,0 +1,416 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.parallel;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import whitebox.geospatialfiles.WhiteboxRaster;
+
+/**
+ * Applies a local, i.e. cell-by-cell, operation to one or more input rasters
+ * and writes the result to an output raster. Each input is either a raster or
+ * a constant value, following the convention of the MathTools plugins: an
+ * argument that names an existing header file is a raster and any other
+ * argument is parsed as a number.
+ *
+ * The rasters are processed in blocks of rows. The rows of a block are read
+ * on the calling thread, the kernel is applied to them by
+ * Parallel.getPluginProcessors() worker threads, and the block is written by
+ * a separate thread while the next block is read and processed. Unary and
+ * binary kernels are only called for cells that are not NoData in any of the
+ * inputs; all other output cells are set to NoData. As with
+ * WhiteboxRaster.setValue, NaN results are stored as NoData.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public class LocalOperation {
+
+    /**
+     * Receives progress updates and may cancel the operation.
+     */
+    public interface ProgressMonitor {
+
+        /**
+         * @param progress The percentage of the rows that have been processed.
+         * @return false if the operation should be cancelled.
+         */
+        boolean updateProgress(int progress);
+    }
+
+    /**
+     * The base class of the kernels. A kernel is shared by all of the worker
+     * threads and must therefore not modify any state while it is applied.
+     */
+    public static abstract class Kernel {
+
+        /**
+         * The NoData value of the output. A kernel returns this value for
+         * cells where its operation is undefined, e.g. division by zero.
+         */
+        protected double noData;
+        /**
+         * The NoData values of the inputs. Constant inputs have a NoData value
+         * of NaN, which does not equal any value.
+         */
+        protected double[] inputNoData;
+    }
+
+    /**
+     * A kernel that computes an output cell from one input cell.
+     */
+    public static abstract class UnaryKernel extends Kernel {
+
+        public abstract double apply(double z);
+    }
+
+    /**
+     * A kernel that computes an output cell from the corresponding cells of
+     * two inputs.
+     */
+    public static abstract class BinaryKernel extends Kernel {
+
+        public abstract double apply(double z1, double z2);
+    }
+
+    /**
+     * A kernel that computes a row of the output from the corresponding rows
+     * of the inputs. Row kernels are responsible for their own treatment of
+     * NoData. Constant inputs are supplied as rows filled with the constant.
+     */
+    public static abstract class RowKernel extends Kernel {
+
+        /**
+         * @param inputRows The rows of the inputs, each with one entry per
+         * column.
+         * @param outputRow The output row, which has one entry per column.
+         */
+        public abstract void apply(double[][] inputRows, double[] outputRow);
+    }
+
+    // the approximate number of cells in each block of rows.
+    private static final int BLOCK_SIZE = 1 << 18;
+    private final WhiteboxRaster[] images;
+    private final double[] constants;
+    private int firstImage = -1;
+    private WhiteboxRaster output = null;
+
+    /**
+     * Constructor. The input rasters are opened for reading.
+     *
+     * @param inputs The names of the input header files or the constant
+     * values.
+     */
+    public LocalOperation(String... inputs) {
+        images = new WhiteboxRaster[inputs.length];
+        constants = new double[inputs.length];
+        for (int i = 0; i < inputs.length; i++) {
+            File file = new File(inputs[i]);
+            if (file.exists()) {
+                images[i] = new WhiteboxRaster(inputs[i], "r");
+                if (firstImage < 0) {
+                    firstImage = i;
+                }
+            } else {
+                constants[i] = Double.parseDouble(file.getName().replace(".dep", ""));
+            }
+        }
+    }
+
+    /**
+     * Returns the number of inputs that are rasters rather than constants.
+     */
+    public int getNumberOfImages() {
+        int n = 0;
+        for (WhiteboxRaster image : images) {
+            if (image != null) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Returns an input raster.
+     *
+     * @param i The zero-based input number.
+     * @return The raster, or null if the input is a constant.
+     */
+    public WhiteboxRaster getImage(int i) {
+        return images[i];
+    }
+
+    /**
+     * Returns true if all of the input rasters have the same number of rows
+     * and columns.
+     */
+    public boolean haveSameDimensions() {
+        if (firstImage < 0) {
+            return true;
+        }
+        int rows = images[firstImage].getNumberRows();
+        int cols = images[firstImage].getNumberColumns();
+        for (WhiteboxRaster image : images) {
+            if (image != null && (image.getNumberRows() != rows
+                    || image.getNumberColumns() != cols)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates the output raster. It is based on the first input raster, with
+     * the same NoData value and preferred palette.
+     *
+     * @param outputHeader The name of the output header file.
+     * @param dataType The data type of the output.
+     * @return The output raster, which the caller must close after the
+     * operation is run.
+     */
+    public WhiteboxRaster createOutput(String outputHeader, WhiteboxRaster.DataType dataType) {
+        if (firstImage < 0) {
+            throw new IllegalStateException("At least one of the inputs must be a raster image.");
+        }
+        WhiteboxRaster base = images[firstImage];
+        output = new WhiteboxRaster(outputHeader, "rw", base.getHeaderFile(),
+                dataType, base.getNoDataValue());
+        output.setPreferredPalette(base.getPreferredPalette());
+        return output;
+    }
+
+    /**
+     * Runs a kernel over one input.
+     *
+     * @return false if the operation was cancelled.
+     * @throws Exception if a raster cannot be read or written or the kernel
+     * fails.
+     */
+    public boolean run(final UnaryKernel kernel, ProgressMonitor monitor) throws Exception {
+        if (images.length != 1) {
+            throw new IllegalArgumentException("A unary kernel requires one input.");
+        }
+        return run(kernel, new RowKernel() {
+            @Override
+            public void apply(double[][] inputRows, double[] outputRow) {
+                double[] z = inputRows[0];
+                double nd = inputNoData[0];
+                double outputNoData = noData;
+                for (int col = 0; col < outputRow.length; col++) {
+                    outputRow[col] = (z[col] != nd) ? kernel.apply(z[col]) : outputNoData;
+                }
+            }
+        }, monitor);
+    }
+
+    /**
+     * Runs a kernel over two inputs, either of which may be a constant.
+     *
+     * @return false if the operation was cancelled.
+     * @throws Exception if a raster cannot be read or written or the kernel
+     * fails.
+     */
+    public boolean run(final BinaryKernel kernel, ProgressMonitor monitor) throws Exception {
+        if (images.length != 2) {
+            throw new IllegalArgumentException("A binary kernel requires two inputs.");
+        }
+        return run(kernel, new RowKernel() {
+            @Override
+            public void apply(double[][] inputRows, double[] outputRow) {
+                double[] z1 = inputRows[0];
+                double[] z2 = inputRows[1];
+                double nd1 = inputNoData[0];
+                double nd2 = inputNoData[1];
+                double outputNoData = noData;
+                for (int col = 0; col < outputRow.length; col++) {
+                    if (z1[col] != nd1 && z2[col] != nd2) {
+                        outputRow[col] = kernel.apply(z1[col], z2[col]);
+                    } else {
+                        outputRow[col] = outputNoData;
+                    }
+                }
+            }
+        }, monitor);
+    }
+
+    /**
+     * Runs a row kernel over the inputs.
+     *
+     * @return false if the operation was cancelled.
+     * @throws Exception if a raster cannot be read or written or the kernel
+     * fails.
+     */
+    public boolean run(RowKernel kernel, ProgressMonitor monitor) throws Exception {
+        return run(kernel, kernel, monitor);
+    }
+
+    private boolean run(Kernel kernel, final RowKernel rowKernel, ProgressMonitor monitor)
+            throws Exception {
+        if (output == null) {
+            throw new IllegalStateException("The output raster has not been created.");
+        }
+        if (!haveSameDimensions()) {
+            throw new IllegalStateException("The input images must have the same dimensions.");
+        }
+        final int numInputs = images.length;
+        final int rows = output.getNumberRows();
+        final int cols = output.getNumberColumns();
+
+        double[] inputNoData = new double[numInputs];
+        for (int i = 0; i < numInputs; i++) {
+            inputNoData[i] = (images[i] != null) ? images[i].getNoDataValue() : Double.NaN;
+        }
+        final double outputNoData = output.getNoDataValue();
+        kernel.noData = outputNoData;
+        kernel.inputNoData = inputNoData;
+        if (rowKernel != kernel) {
+            rowKernel.noData = kernel.noData;
+            rowKernel.inputNoData = inputNoData;
+        }
+
+        final int blockRows = Math.max(1, Math.min(rows, BLOCK_SIZE / Math.max(cols, 1)));
+        int numThreads = Math.max(1, Math.min(Parallel.getPluginProcessors(), blockRows));
+
+        // two sets of buffers, so that one block can be written while the
+        // next is read and processed. Constant inputs share a single row.
+        final double[][][][] inputBlocks = new double[2][numInputs][][];
+        final double[][][] outputBlocks = new double[2][blockRows][cols];
+        for (int i = 0; i < numInputs; i++) {
+            double[] constantRow = null;
+            if (images[i] == null) {
+                constantRow = new double[cols];
+                Arrays.fill(constantRow, constants[i]);
+            }
+            for (int b = 0; b < 2; b++) {
+                inputBlocks[b][i] = new double[blockRows][];
+                for (int r = 0; r < blockRows; r++) {
+                    inputBlocks[b][i][r] = (constantRow != null) ? constantRow : new double[cols];
+                }
+            }
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        Future<?>[] pendingWrites = new Future<?>[2];
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            int block = 0;
+            for (int startRow = 0; startRow < rows; startRow += blockRows, block++) {
+                final int b = block % 2;
+                final int firstRow = startRow;
+                final int numRows = Math.min(blockRows, rows - startRow);
+                if (pendingWrites[b] != null) {
+                    getResult(pendingWrites[b]);
+                }
+
+                for (int i = 0; i < numInputs; i++) {
+                    if (images[i] != null) {
+                        for (int r = 0; r < numRows; r++) {
+                            images[i].getRowValues(firstRow + r, inputBlocks[b][i][r]);
+                        }
+                    }
+                }
+
+                futures.clear();
+                int rowsPerThread = (numRows + numThreads - 1) / numThreads;
+                for (int r0 = 0; r0 < numRows; r0 += rowsPerThread) {
+                    final int from = r0;
+                    final int to = Math.min(r0 + rowsPerThread, numRows);
+                    futures.add(workers.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            double[][] inputRows = new double[numInputs][];
+                            for (int r = from; r < to; r++) {
+                                for (int i = 0; i < numInputs; i++) {
+                                    inputRows[i] = inputBlocks[b][i][r];
+                                }
+                                double[] outputRow = outputBlocks[b][r];
+                                rowKernel.apply(inputRows, outputRow);
+                                for (int col = 0; col < cols; col++) {
+                                    if (Double.isNaN(outputRow[col])) {
+                                        outputRow[col] = outputNoData;
+                                    }
+                                }
+                            }
+                        }
+                    }));
+                }
+                for (Future<?> f : futures) {
+                    getResult(f);
+                }
+
+                pendingWrites[b] = writer.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int r = 0; r < numRows; r++) {
+                            output.setRowValues(firstRow + r, outputBlocks[b][r]);
+                        }
+                    }
+                });
+
+                int progress = (int) (100L * (startRow + numRows) / rows);
+                if (monitor != null && !monitor.updateProgress(progress)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            // let any outstanding writes finish before the output is closed.
+            for (Future<?> f : pendingWrites) {
+                if (f != null) {
+                    try {
+                        f.get();
+                    } catch (ExecutionException e) {
+                        // already reported, or superseded by another error
+                    }
+                }
+            }
+            workers.shutdown();
+            writer.shutdown();
+        }
+    }
+
+    private static void getResult(Future<?> f) throws Exception {
+        try {
+            f.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the input rasters.
+     */
+    public void close() {
+        for (WhiteboxRaster image : images) {
+            if (image != null) {
+                image.close();
+            }
+        }
+    }
+}
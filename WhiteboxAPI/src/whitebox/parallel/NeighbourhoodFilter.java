@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.parallel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import whitebox.geospatialfiles.WhiteboxRaster;
+
+/**
+ * The base class of filters that compute each output cell from a moving
+ * window of input cells.
+ *
+ * The raster is divided into bands of rows that are filtered by
+ * Parallel.getPluginProcessors() threads. The rows of a group of bands, along
+ * with the rows and columns beyond them that are covered by the window, are
+ * read on the calling thread, following the reflection rules of
+ * WhiteboxRaster.getValue for cells beyond the edges of the raster; cells
+ * that are not reflected are given the NoData value. Each band is filtered by
+ * one thread and the group is then written before the next group is read.
+ * NaN results are stored as NoData, as WhiteboxRaster.setValue does. A
+ * filter may compute several outputs in the same pass.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public abstract class NeighbourhoodFilter {
+
+    /**
+     * The working storage of one thread, which filters one band of rows at a
+     * time.
+     */
+    protected static abstract class Band {
+
+        /**
+         * Filters a band of rows.
+         *
+         * @param extendedRows The rows of the current group. Row r of the
+         * group, and its column c, are at extendedRows[r + midPointY][c +
+         * midPointX].
+         * @param from The first row of the band within the group.
+         * @param to The row after the last row of the band.
+         * @param outputRows The output rows of the group, which are indexed
+         * by the row within the group.
+         */
+        protected abstract void filter(double[][] extendedRows, int from, int to,
+                double[][] outputRows);
+
+        /**
+         * Filters a band of rows into several outputs. By default only the
+         * first output is filtered.
+         *
+         * @param extendedRows The rows of the current group.
+         * @param from The first row of the band within the group.
+         * @param to The row after the last row of the band.
+         * @param outputRows The output rows of the group for each output.
+         */
+        protected void filter(double[][] extendedRows, int from, int to,
+                double[][][] outputRows) {
+            filter(extendedRows, from, to, outputRows[0]);
+        }
+    }
+
+    // the approximate number of cells in each band of rows.
+    private static final int BLOCK_SIZE = 1 << 20;
+    /**
+     * The number of columns on either side of the centre of the window.
+     */
+    protected final int midPointX;
+    /**
+     * The number of rows on either side of the centre of the window.
+     */
+    protected final int midPointY;
+
+    protected NeighbourhoodFilter(int midPointX, int midPointY) {
+        this.midPointX = midPointX;
+        this.midPointY = midPointY;
+    }
+
+    /**
+     * Creates the working storage of one thread.
+     *
+     * @param cols The number of columns in the raster.
+     * @param noData The NoData value of the input.
+     * @param outputNoData The NoData value of the output.
+     */
+    protected abstract Band createBand(int cols, double noData, double outputNoData);
+
+    /**
+     * Filters a raster. The input's isReflectedAtEdges setting determines
+     * whether the window is reflected at the edges of the raster.
+     *
+     * @param input The input raster.
+     * @param output The output raster, which must have the same dimensions as
+     * the input.
+     * @param monitor Receives progress updates; may be null.
+     * @return false if the operation was cancelled.
+     * @throws Exception if a raster cannot be read or written.
+     */
+    public boolean run(WhiteboxRaster input, WhiteboxRaster output,
+            LocalOperation.ProgressMonitor monitor) throws Exception {
+        return run(input, new WhiteboxRaster[]{output}, monitor);
+    }
+
+    /**
+     * Filters a raster into several outputs in one pass, for filters that
+     * compute more than one output.
+     *
+     * @param input The input raster.
+     * @param outputs The output rasters, which must have the same dimensions
+     * as the input.
+     * @param monitor Receives progress updates; may be null.
+     * @return false if the operation was cancelled.
+     * @throws Exception if a raster cannot be read or written.
+     */
+    public boolean run(WhiteboxRaster input, WhiteboxRaster[] outputs,
+            LocalOperation.ProgressMonitor monitor) throws Exception {
+        final int rows = input.getNumberRows();
+        final int cols = input.getNumberColumns();
+        final int numOutputs = outputs.length;
+        final double[] outputNoData = new double[numOutputs];
+        for (int k = 0; k < numOutputs; k++) {
+            if (outputs[k].getNumberRows() != rows || outputs[k].getNumberColumns() != cols) {
+                throw new IllegalArgumentException("The input and output images must have the same dimensions.");
+            }
+            outputNoData[k] = outputs[k].getNoDataValue();
+        }
+        double noData = input.getNoDataValue();
+        boolean reflect = input.isReflectedAtEdges;
+        int extendedCols = cols + 2 * midPointX;
+
+        int bandRows = Math.max(1, Math.min(rows,
+                Math.max(2 * midPointY + 1, BLOCK_SIZE / extendedCols)));
+        int numBands = (rows + bandRows - 1) / bandRows;
+        int numThreads = Math.max(1, Math.min(Parallel.getPluginProcessors(), numBands));
+        int groupRows = Math.min(bandRows * numThreads, rows);
+
+        final double[][] extendedRows = new double[groupRows + 2 * midPointY][extendedCols];
+        final double[][][] outputRows = new double[numOutputs][groupRows][cols];
+        double[] rowValues = new double[cols];
+        int[] sourceCol = new int[extendedCols];
+        for (int c = 0; c < extendedCols; c++) {
+            sourceCol[c] = getSourceIndex(c - midPointX, cols, reflect);
+        }
+
+        Band[] bands = new Band[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            bands[i] = createBand(cols, noData, outputNoData[0]);
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int groupStart = 0; groupStart < rows; groupStart += groupRows) {
+                int numRows = Math.min(groupRows, rows - groupStart);
+                for (int r = 0; r < numRows + 2 * midPointY; r++) {
+                    int row = getSourceIndex(groupStart - midPointY + r, rows, reflect);
+                    double[] extended = extendedRows[r];
+                    if (row < 0) {
+                        Arrays.fill(extended, noData);
+                        continue;
+                    }
+                    input.getRowValues(row, rowValues);
+                    for (int c = 0; c < extendedCols; c++) {
+                        extended[c] = (sourceCol[c] >= 0) ? rowValues[sourceCol[c]] : noData;
+                    }
+                }
+
+                futures.clear();
+                for (int i = 0; i < numThreads && i * bandRows < numRows; i++) {
+                    final Band band = bands[i];
+                    final int from = i * bandRows;
+                    final int to = Math.min(from + bandRows, numRows);
+                    futures.add(workers.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            band.filter(extendedRows, from, to, outputRows);
+                            for (int k = 0; k < numOutputs; k++) {
+                                for (int r = from; r < to; r++) {
+                                    double[] outputRow = outputRows[k][r];
+                                    for (int col = 0; col < cols; col++) {
+                                        if (Double.isNaN(outputRow[col])) {
+                                            outputRow[col] = outputNoData[k];
+                                        }
+                                    }
+                                }
+                            }
+                        }
+                    }));
+                }
+                for (Future<?> f : futures) {
+                    try {
+                        f.get();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof Exception) {
+                            throw (Exception) cause;
+                        } else if (cause instanceof Error) {
+                            throw (Error) cause;
+                        }
+                        throw e;
+                    }
+                }
+
+                for (int k = 0; k < numOutputs; k++) {
+                    for (int r = 0; r < numRows; r++) {
+                        outputs[k].setRowValues(groupStart + r, outputRows[k][r]);
+                    }
+                }
+
+                int progress = (int) (100L * (groupStart + numRows) / rows);
+                if (monitor != null && !monitor.updateProgress(progress)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    /**
+     * Finds the cells in each row of a rectangular or elliptical window.
+     *
+     * @param filterSizeX The width of the window, which must be odd.
+     * @param filterSizeY The height of the window, which must be odd.
+     * @param filterRounded If true, the window contains only the cells that
+     * lie within the largest ellipse that fits in the filter box.
+     * @return The first and last column offsets of the cells in each row of
+     * the window, from top to bottom. A row that contains no cells has a
+     * first offset greater than its last.
+     */
+    protected static int[][] getWindowOffsets(int filterSizeX, int filterSizeY,
+            boolean filterRounded) {
+        if (filterSizeX < 1 || filterSizeY < 1 || filterSizeX % 2 == 0 || filterSizeY % 2 == 0) {
+            throw new IllegalArgumentException("Filter dimensions must be odd numbers.");
+        }
+        int midPointX = filterSizeX / 2;
+        int midPointY = filterSizeY / 2;
+        int[] firstOffset = new int[filterSizeY];
+        int[] lastOffset = new int[filterSizeY];
+        double aSqr = midPointX * midPointX;
+        double bSqr = midPointY * midPointY;
+        for (int row = 0; row < filterSizeY; row++) {
+            firstOffset[row] = midPointX + 1;
+            lastOffset[row] = -midPointX - 1;
+            for (int col = 0; col < filterSizeX; col++) {
+                int dX = col - midPointX;
+                int dY = row - midPointY;
+                if (filterRounded) {
+                    // an ellipse is convex, so the cells of each row that
+                    // are within it are contiguous.
+                    double z = (dX * dX) / aSqr + (dY * dY) / bSqr;
+                    if (z > 1) {
+                        continue;
+                    }
+                }
+                firstOffset[row] = Math.min(firstOffset[row], dX);
+                lastOffset[row] = Math.max(lastOffset[row], dX);
+            }
+        }
+        return new int[][]{firstOffset, lastOffset};
+    }
+
+    /**
+     * Returns the row or column of the raster that supplies the value of a
+     * cell, following the reflection rules of WhiteboxRaster.getValue, or -1
+     * if the cell has no value.
+     */
+    private static int getSourceIndex(int i, int n, boolean reflect) {
+        if (i >= 0 && i < n) {
+            return i;
+        }
+        if (!reflect) {
+            return -1;
+        }
+        if (i < 0) {
+            i = -i - 1;
+        }
+        if (i >= n) {
+            i = n - (i - n) - 1;
+        }
+        return (i >= 0 && i < n) ? i : -1;
+    }
+}
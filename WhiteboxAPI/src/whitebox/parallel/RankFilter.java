@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.parallel;
+
+import java.util.Arrays;
+
+/**
+ * Computes rank statistics, i.e. the median or the percentile of the centre
+ * cell, within a rectangular or elliptical moving window.
+ *
+ * Within each band of rows, each value is replaced by its rank among the
+ * distinct values of the band, and the window is held as a histogram of
+ * ranks in a Fenwick (binary indexed) tree. Moving the window one column to
+ * the right removes the cell that leaves and adds the cell that enters each
+ * row of the window (Huang's algorithm), so that the cost of each cell grows
+ * with the height of the filter rather than its area, and the median or
+ * percentile is read from the tree rather than by sorting the window.
+ * Because the ranks are exact, the results are the same as those of sorting
+ * the values in the window.
+ *
+ * NoData cells, and cells beyond the edges of the raster that are not
+ * reflected, are excluded from the window. Cells with a NoData value in the
+ * input are NoData in the output.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public class RankFilter extends NeighbourhoodFilter {
+
+    public enum Statistic {
+
+        /**
+         * The median of the values in the window. If there is an even number
+         * of values, the mean of the two middle values is used.
+         */
+        MEDIAN,
+        /**
+         * The percentage of the values in the window that are less than the
+         * value of the centre cell.
+         */
+        PERCENTILE
+    }
+
+    private final int filterSizeY;
+    private final Statistic statistic;
+    private final int[] firstOffset;
+    private final int[] lastOffset;
+
+    /**
+     * Constructor.
+     *
+     * @param filterSizeX The width of the filter, which must be odd.
+     * @param filterSizeY The height of the filter, which must be odd.
+     * @param filterRounded If true, the filter contains only the cells that
+     * lie within the largest ellipse that fits in the filter box.
+     * @param statistic The statistic to compute.
+     */
+    public RankFilter(int filterSizeX, int filterSizeY, boolean filterRounded,
+            Statistic statistic) {
+        super(filterSizeX / 2, filterSizeY / 2);
+        int[][] offsets = getWindowOffsets(filterSizeX, filterSizeY, filterRounded);
+        this.filterSizeY = filterSizeY;
+        this.statistic = statistic;
+        firstOffset = offsets[0];
+        lastOffset = offsets[1];
+    }
+
+    @Override
+    protected Band createBand(int cols, double noData, double outputNoData) {
+        return new RankBand(cols, noData, outputNoData);
+    }
+
+    private class RankBand extends Band {
+
+        private final int cols;
+        private final double noData;
+        private final double outputNoData;
+        private double[] values = new double[0];
+        private int[] ranks = new int[0];
+        private int[] tree = new int[1];
+        private int numValues;
+        private int count;
+
+        RankBand(int cols, double noData, double outputNoData) {
+            this.cols = cols;
+            this.noData = noData;
+            this.outputNoData = outputNoData;
+        }
+
+        @Override
+        protected void filter(double[][] extendedRows, int from, int to, double[][] outputRows) {
+            int extendedCols = extendedRows[0].length;
+            int numExtendedRows = to - from + 2 * midPointY;
+            rankValues(extendedRows, from, numExtendedRows, extendedCols);
+
+            for (int r = from; r < to; r++) {
+                // the row of the ranks array that holds the top of the window
+                int top = (r - from) * extendedCols;
+                double[] outputRow = outputRows[r];
+                for (int col = 0; col < cols; col++) {
+                    if (col == 0) {
+                        for (int m = 0; m < filterSizeY; m++) {
+                            int i = top + m * extendedCols + midPointX;
+                            for (int dX = firstOffset[m]; dX <= lastOffset[m]; dX++) {
+                                add(ranks[i + dX], 1);
+                            }
+                        }
+                    } else {
+                        for (int m = 0; m < filterSizeY; m++) {
+                            if (firstOffset[m] <= lastOffset[m]) {
+                                int i = top + m * extendedCols + midPointX + col;
+                                add(ranks[i + firstOffset[m] - 1], -1);
+                                add(ranks[i + lastOffset[m]], 1);
+                            }
+                        }
+                    }
+
+                    double z = extendedRows[r + midPointY][col + midPointX];
+                    if (z == noData || count == 0) {
+                        outputRow[col] = outputNoData;
+                        continue;
+                    }
+                    if (statistic == Statistic.MEDIAN) {
+                        if (count % 2 == 1) {
+                            z = values[select((count + 1) / 2)];
+                        } else {
+                            double lower = values[select(count / 2)];
+                            double upper = values[select(count / 2 + 1)];
+                            z = (lower + upper) / 2.0;
+                        }
+                    } else if (!Double.isNaN(z)) {
+                        int rank = ranks[top + midPointY * extendedCols + midPointX + col];
+                        z = (double) countBelow(rank) / count * 100;
+                    }
+                    outputRow[col] = z;
+                }
+
+                // empty the window before the next row
+                for (int m = 0; m < filterSizeY; m++) {
+                    int i = top + m * extendedCols + midPointX + cols - 1;
+                    for (int dX = firstOffset[m]; dX <= lastOffset[m]; dX++) {
+                        add(ranks[i + dX], -1);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Sorts the distinct values of the band and replaces each cell by the
+         * position of its value in the sorted list, or -1 for NoData.
+         */
+        private void rankValues(double[][] extendedRows, int from, int numExtendedRows,
+                int extendedCols) {
+            int n = 0;
+            if (values.length < numExtendedRows * extendedCols) {
+                values = new double[numExtendedRows * extendedCols];
+                ranks = new int[numExtendedRows * extendedCols];
+            }
+            for (int r = 0; r < numExtendedRows; r++) {
+                double[] extended = extendedRows[from + r];
+                for (int c = 0; c < extendedCols; c++) {
+                    if (extended[c] != noData) {
+                        // -0.0 and 0.0 are the same value
+                        values[n++] = extended[c] + 0.0;
+                    }
+                }
+            }
+            Arrays.sort(values, 0, n);
+            numValues = 0;
+            for (int i = 0; i < n; i++) {
+                if (numValues == 0 || Double.compare(values[i], values[numValues - 1]) != 0) {
+                    values[numValues++] = values[i];
+                }
+            }
+            int i = 0;
+            for (int r = 0; r < numExtendedRows; r++) {
+                double[] extended = extendedRows[from + r];
+                for (int c = 0; c < extendedCols; c++, i++) {
+                    if (extended[c] != noData) {
+                        ranks[i] = Arrays.binarySearch(values, 0, numValues, extended[c] + 0.0);
+                    } else {
+                        ranks[i] = -1;
+                    }
+                }
+            }
+            if (tree.length < numValues + 1) {
+                tree = new int[numValues + 1];
+            } else {
+                Arrays.fill(tree, 0);
+            }
+            count = 0;
+        }
+
+        private void add(int rank, int delta) {
+            if (rank < 0) {
+                return;
+            }
+            count += delta;
+            for (int i = rank + 1; i <= numValues; i += i & -i) {
+                tree[i] += delta;
+            }
+        }
+
+        /**
+         * Returns the number of values in the window with a rank lower than
+         * the specified rank.
+         */
+        private int countBelow(int rank) {
+            int n = 0;
+            for (int i = rank; i > 0; i -= i & -i) {
+                n += tree[i];
+            }
+            return n;
+        }
+
+        /**
+         * Returns the rank of the k-th smallest value in the window, where k
+         * is one-based.
+         */
+        private int select(int k) {
+            int pos = 0;
+            for (int step = Integer.highestOneBit(numValues); step > 0; step >>= 1) {
+                if (pos + step <= numValues && tree[pos + step] < k) {
+                    pos += step;
+                    k -= tree[pos];
+                }
+            }
+            return pos;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.parallel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Convolves a raster with a kernel that is a sum of separable terms, i.e.
+ * products of a horizontal and a vertical one-dimensional kernel. Each term
+ * is applied as a horizontal pass over the rows followed by a vertical pass
+ * over the columns, so that the cost of each cell grows with the width plus
+ * the height of the kernel rather than with its area.
+ *
+ * NoData cells are excluded: each output cell is the sum of the weighted
+ * values of the valid cells in the window divided by the sum of their
+ * weights. Both sums are themselves separable convolutions, of the values
+ * and of the mask of valid cells. Cells with a NoData value in the input are
+ * NoData in the output.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public class SeparableFilter extends NeighbourhoodFilter {
+
+    /**
+     * A two-dimensional kernel that is the sum of one or more separable
+     * terms.
+     */
+    public static class Kernel {
+
+        private final int radius;
+        private final List<double[]> horizontalWeights = new ArrayList<>();
+        private final List<double[]> verticalWeights = new ArrayList<>();
+
+        /**
+         * Constructor.
+         *
+         * @param radius The number of cells on either side of the centre of
+         * the kernel.
+         */
+        public Kernel(int radius) {
+            this.radius = radius;
+        }
+
+        public int getRadius() {
+            return radius;
+        }
+
+        /**
+         * Adds a term, whose weight at column offset x and row offset y is
+         * horizontalWeights[x + radius] * verticalWeights[y + radius].
+         */
+        public void addTerm(double[] horizontalWeights, double[] verticalWeights) {
+            if (horizontalWeights.length != 2 * radius + 1
+                    || verticalWeights.length != 2 * radius + 1) {
+                throw new IllegalArgumentException("The weights must have 2 * radius + 1 entries.");
+            }
+            this.horizontalWeights.add(horizontalWeights.clone());
+            this.verticalWeights.add(verticalWeights.clone());
+        }
+
+        /**
+         * Creates a Gaussian kernel. The kernel extends to the distance at
+         * which the weight of the normal distribution falls to 0.001, and
+         * is at least 3 x 3.
+         *
+         * @param sigma The standard deviation of the distribution, in cells.
+         */
+        public static Kernel gaussian(double sigma) {
+            double recipRoot2PiTimesSigma = 1 / (Math.sqrt(2 * Math.PI) * sigma);
+            double twoSigmaSqr = 2 * sigma * sigma;
+            Kernel kernel = new Kernel(getRadius(recipRoot2PiTimesSigma, twoSigmaSqr));
+            int n = 2 * kernel.radius + 1;
+            double[] horizontal = new double[n];
+            double[] vertical = new double[n];
+            for (int i = 0; i < n; i++) {
+                int x = i - kernel.radius;
+                vertical[i] = Math.exp(-1 * (x * x) / twoSigmaSqr);
+                horizontal[i] = recipRoot2PiTimesSigma * vertical[i];
+            }
+            kernel.addTerm(horizontal, vertical);
+            return kernel;
+        }
+
+        /**
+         * Creates a Laplacian-of-Gaussian kernel, with the same extent as
+         * the Gaussian kernel with the same standard deviation.
+         *
+         * @param sigma The standard deviation of the distribution, in cells.
+         */
+        public static Kernel laplacianOfGaussian(double sigma) {
+            double recipRoot2PiTimesSigma = 1 / (Math.sqrt(2 * Math.PI) * sigma);
+            double twoSigmaSqr = 2 * sigma * sigma;
+            double term1 = -1 / (Math.PI * sigma * sigma * sigma * sigma);
+            Kernel kernel = new Kernel(getRadius(recipRoot2PiTimesSigma, twoSigmaSqr));
+
+            // (1 - (x^2 + y^2) / 2s^2) exp(-(x^2 + y^2) / 2s^2)
+            //     = g(x) g(y) - h(x) g(y) - g(x) h(y),
+            // where g(t) = exp(-t^2 / 2s^2) and h(t) = (t^2 / 2s^2) g(t)
+            int n = 2 * kernel.radius + 1;
+            double[] g = new double[n];
+            double[] h = new double[n];
+            double[] term1G = new double[n];
+            double[] minusTerm1G = new double[n];
+            double[] minusTerm1H = new double[n];
+            for (int i = 0; i < n; i++) {
+                int x = i - kernel.radius;
+                g[i] = Math.exp(-(x * x) / twoSigmaSqr);
+                h[i] = (x * x) / twoSigmaSqr * g[i];
+                term1G[i] = term1 * g[i];
+                minusTerm1G[i] = -term1 * g[i];
+                minusTerm1H[i] = -term1 * h[i];
+            }
+            kernel.addTerm(term1G, g);
+            kernel.addTerm(minusTerm1H, g);
+            kernel.addTerm(minusTerm1G, h);
+            return kernel;
+        }
+
+        private static int getRadius(double recipRoot2PiTimesSigma, double twoSigmaSqr) {
+            int filterSize = 3;
+            for (int i = 0; i <= 250; i++) {
+                double weight = recipRoot2PiTimesSigma * Math.exp(-1 * (i * i) / twoSigmaSqr);
+                if (weight <= 0.001) {
+                    filterSize = i * 2 + 1;
+                    break;
+                }
+            }
+            return Math.max(filterSize, 3) / 2;
+        }
+    }
+
+    private final Kernel[] kernels;
+
+    /**
+     * Constructor.
+     *
+     * @param kernel The kernel to apply.
+     */
+    public SeparableFilter(Kernel kernel) {
+        this(new Kernel[]{kernel});
+    }
+
+    /**
+     * Constructor for a filter whose output is the difference between the
+     * results of two kernels, e.g. a difference-of-Gaussians filter.
+     *
+     * @param kernel The kernel whose result is the minuend.
+     * @param subtractedKernel The kernel whose result is subtracted.
+     */
+    public SeparableFilter(Kernel kernel, Kernel subtractedKernel) {
+        this(new Kernel[]{kernel, subtractedKernel});
+    }
+
+    private SeparableFilter(Kernel[] kernels) {
+        super(getMaximumRadius(kernels), getMaximumRadius(kernels));
+        this.kernels = kernels;
+    }
+
+    private static int getMaximumRadius(Kernel[] kernels) {
+        int radius = 0;
+        for (Kernel kernel : kernels) {
+            radius = Math.max(radius, kernel.radius);
+        }
+        return radius;
+    }
+
+    @Override
+    protected Band createBand(int cols, double noData, double outputNoData) {
+        return new SeparableBand(cols, noData, outputNoData);
+    }
+
+    private class SeparableBand extends Band {
+
+        private final int cols;
+        private final double noData;
+        private final double outputNoData;
+        // the results of the horizontal pass of a term, for the values and
+        // for the mask of valid cells
+        private double[][] weightedValues = new double[0][];
+        private double[][] weights = new double[0][];
+        // the sums of the terms of a kernel for each output row
+        private double[][] numerators = new double[0][];
+        private double[][] denominators = new double[0][];
+
+        SeparableBand(int cols, double noData, double outputNoData) {
+            this.cols = cols;
+            this.noData = noData;
+            this.outputNoData = outputNoData;
+        }
+
+        @Override
+        protected void filter(double[][] extendedRows, int from, int to, double[][] outputRows) {
+            int numRows = to - from;
+            int numExtendedRows = numRows + 2 * midPointY;
+            if (weightedValues.length < numExtendedRows) {
+                weightedValues = new double[numExtendedRows][cols];
+                weights = new double[numExtendedRows][cols];
+            }
+            if (numerators.length < numRows) {
+                numerators = new double[numRows][cols];
+                denominators = new double[numRows][cols];
+            }
+
+            for (int k = 0; k < kernels.length; k++) {
+                Kernel kernel = kernels[k];
+                int radius = kernel.radius;
+                for (int r = 0; r < numRows; r++) {
+                    Arrays.fill(numerators[r], 0);
+                    Arrays.fill(denominators[r], 0);
+                }
+
+                for (int t = 0; t < kernel.horizontalWeights.size(); t++) {
+                    // horizontal pass, over the rows that this kernel reaches
+                    double[] horizontal = kernel.horizontalWeights.get(t);
+                    for (int e = midPointY - radius; e < numExtendedRows - midPointY + radius; e++) {
+                        double[] extended = extendedRows[from + e];
+                        double[] weightedValue = weightedValues[e];
+                        double[] weight = weights[e];
+                        for (int col = 0; col < cols; col++) {
+                            double sumValues = 0;
+                            double sumWeights = 0;
+                            int c = col + midPointX - radius;
+                            for (int i = 0; i < horizontal.length; i++, c++) {
+                                double z = extended[c];
+                                if (z != noData) {
+                                    sumValues += horizontal[i] * z;
+                                    sumWeights += horizontal[i];
+                                }
+                            }
+                            weightedValue[col] = sumValues;
+                            weight[col] = sumWeights;
+                        }
+                    }
+
+                    // vertical pass
+                    double[] vertical = kernel.verticalWeights.get(t);
+                    for (int r = 0; r < numRows; r++) {
+                        double[] numerator = numerators[r];
+                        double[] denominator = denominators[r];
+                        for (int i = 0; i < vertical.length; i++) {
+                            int e = r + midPointY - radius + i;
+                            double v = vertical[i];
+                            double[] weightedValue = weightedValues[e];
+                            double[] weight = weights[e];
+                            for (int col = 0; col < cols; col++) {
+                                numerator[col] += v * weightedValue[col];
+                                denominator[col] += v * weight[col];
+                            }
+                        }
+                    }
+                }
+
+                for (int r = 0; r < numRows; r++) {
+                    double[] outputRow = outputRows[from + r];
+                    double[] numerator = numerators[r];
+                    double[] denominator = denominators[r];
+                    if (k == 0) {
+                        for (int col = 0; col < cols; col++) {
+                            outputRow[col] = numerator[col] / denominator[col];
+                        }
+                    } else {
+                        for (int col = 0; col < cols; col++) {
+                            outputRow[col] -= numerator[col] / denominator[col];
+                        }
+                    }
+                }
+            }
+
+            for (int r = from; r < to; r++) {
+                double[] centreRow = extendedRows[r + midPointY];
+                double[] outputRow = outputRows[r];
+                for (int col = 0; col < cols; col++) {
+                    if (centreRow[col + midPointX] == noData) {
+                        outputRow[col] = outputNoData;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.parallel;
+
+/**
+ * Computes terrain derivatives of a DEM from the 3 x 3 window around each
+ * cell. Any set of derivatives is computed in a single pass over the DEM,
+ * each into its own output raster.
+ *
+ * The elevations are multiplied by the z conversion factor. NoData
+ * neighbours, and neighbours beyond the edges of the DEM that are not
+ * reflected, take the elevation of the centre cell. The first derivatives
+ * used for slope, aspect and hillshade are those of Horn (1981), and the
+ * second derivatives used for the curvatures are those of Zevenbergen and
+ * Thorne (1987). Cells with a NoData elevation are NoData in every output.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public class TerrainDerivatives extends NeighbourhoodFilter {
+
+    public enum Derivative {
+
+        /**
+         * The slope gradient, in degrees.
+         */
+        SLOPE,
+        /**
+         * The aspect, in degrees clockwise from north, or -1 where the
+         * east-west gradient is zero.
+         */
+        ASPECT,
+        /**
+         * The hillshade brightness, from 0 to 255.
+         */
+        HILLSHADE,
+        /**
+         * The plan curvature, in degrees per 100 units. Flat cells are
+         * NoData.
+         */
+        PLAN_CURVATURE,
+        /**
+         * The profile curvature, in degrees per 100 units. Flat cells are
+         * NoData.
+         */
+        PROFILE_CURVATURE,
+        /**
+         * The tangential curvature, in degrees per 100 units. Flat cells are
+         * NoData.
+         */
+        TANGENTIAL_CURVATURE,
+        /**
+         * The total curvature, in degrees per 100 units.
+         */
+        TOTAL_CURVATURE,
+        /**
+         * The angular difference, from 0 to 180 degrees, between the aspect
+         * and an azimuth, or -1 where the east-west gradient is zero.
+         */
+        RELATIVE_ASPECT
+    }
+
+    private static final int[] DY = {-1, 0, 1, 1, 1, 0, -1, -1};
+    private static final int[] DX = {1, 1, 1, 0, -1, -1, -1, 0};
+    private static final double RAD_TO_DEG = 180 / Math.PI;
+    private static final double DEG_TO_RAD = Math.PI / 180;
+    private final Derivative[] derivatives;
+    private final double gridRes;
+    private final double zFactor;
+    private double hillshadeAzimuth = (315 - 90) * DEG_TO_RAD;
+    private double hillshadeAltitude = 45 * DEG_TO_RAD;
+    private double relativeAspectAzimuth = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param derivatives The derivatives to compute, in the order of the
+     * output rasters.
+     * @param gridRes The size of the grid cells.
+     * @param zFactor The factor that converts the elevations into the units
+     * of the grid cell size.
+     */
+    public TerrainDerivatives(Derivative[] derivatives, double gridRes, double zFactor) {
+        super(1, 1);
+        if (derivatives.length == 0) {
+            throw new IllegalArgumentException("At least one derivative must be specified.");
+        }
+        this.derivatives = derivatives.clone();
+        this.gridRes = gridRes;
+        this.zFactor = zFactor;
+    }
+
+    /**
+     * Sets the direction of the illumination source of the hillshade.
+     *
+     * @param azimuth The azimuth of the source, in degrees clockwise from
+     * north.
+     * @param altitude The altitude of the source, in degrees.
+     */
+    public void setHillshadeIllumination(double azimuth, double altitude) {
+        this.hillshadeAzimuth = (azimuth - 90) * DEG_TO_RAD;
+        this.hillshadeAltitude = altitude * DEG_TO_RAD;
+    }
+
+    /**
+     * Sets the azimuth, in degrees, to which the relative aspect is measured.
+     */
+    public void setRelativeAspectAzimuth(double azimuth) {
+        this.relativeAspectAzimuth = azimuth;
+    }
+
+    @Override
+    protected Band createBand(int cols, double noData, double outputNoData) {
+        return new DerivativeBand(cols, noData);
+    }
+
+    private class DerivativeBand extends Band {
+
+        private final int cols;
+        private final double noData;
+        private final double[] n = new double[8];
+
+        DerivativeBand(int cols, double noData) {
+            this.cols = cols;
+            this.noData = noData;
+        }
+
+        @Override
+        protected void filter(double[][] extendedRows, int from, int to, double[][] outputRows) {
+            filter(extendedRows, from, to, new double[][][]{outputRows});
+        }
+
+        @Override
+        protected void filter(double[][] extendedRows, int from, int to,
+                double[][][] outputRows) {
+            int numOutputs = Math.min(derivatives.length, outputRows.length);
+            double eightGridRes = 8 * gridRes;
+            double gridResTimes2 = gridRes * 2;
+            double gridResSquared = gridRes * gridRes;
+            double fourTimesGridResSquared = gridResSquared * 4;
+            double sinTheta = Math.sin(hillshadeAltitude);
+            double cosTheta = Math.cos(hillshadeAltitude);
+
+            for (int r = from; r < to; r++) {
+                double[] centreRow = extendedRows[r + 1];
+                for (int col = 0; col < cols; col++) {
+                    double z = centreRow[col + 1];
+                    if (z == noData) {
+                        for (int k = 0; k < numOutputs; k++) {
+                            outputRows[k][r][col] = Double.NaN;
+                        }
+                        continue;
+                    }
+                    z = z * zFactor;
+                    for (int i = 0; i < 8; i++) {
+                        double zN = extendedRows[r + 1 + DY[i]][col + 1 + DX[i]];
+                        n[i] = (zN != noData) ? zN * zFactor : z;
+                    }
+
+                    double fy = (n[6] - n[4] + 2 * (n[7] - n[3]) + n[0] - n[2]) / eightGridRes;
+                    double fx = (n[2] - n[4] + 2 * (n[1] - n[5]) + n[0] - n[6]) / eightGridRes;
+                    double zx = (n[1] - n[5]) / gridResTimes2;
+                    double zy = (n[7] - n[3]) / gridResTimes2;
+                    double zxx = (n[1] - 2 * z + n[5]) / gridResSquared;
+                    double zyy = (n[7] - 2 * z + n[3]) / gridResSquared;
+                    double zxy = (-n[6] + n[0] + n[4] - n[2]) / fourTimesGridResSquared;
+                    double zx2 = zx * zx;
+                    double zy2 = zy * zy;
+                    double p = zx2 + zy2;
+
+                    for (int k = 0; k < numOutputs; k++) {
+                        double value;
+                        switch (derivatives[k]) {
+                            case SLOPE:
+                                value = Math.atan(Math.sqrt(fx * fx + fy * fy)) * RAD_TO_DEG;
+                                break;
+                            case ASPECT:
+                                value = (fx != 0) ? getAspect(fx, fy) : -1;
+                                break;
+                            case HILLSHADE:
+                                if (fx != 0) {
+                                    double tanSlope = Math.sqrt(fx * fx + fy * fy);
+                                    double aspect = getAspect(fx, fy) * DEG_TO_RAD;
+                                    double term1 = tanSlope / Math.sqrt(1 + tanSlope * tanSlope);
+                                    double term2 = sinTheta / tanSlope;
+                                    double term3 = cosTheta * Math.sin(hillshadeAzimuth - aspect);
+                                    value = term1 * (term2 - term3);
+                                } else {
+                                    value = 0.5;
+                                }
+                                value = (int) (value * 255);
+                                if (value < 0) {
+                                    value = 0;
+                                }
+                                break;
+                            case PLAN_CURVATURE:
+                                if (p > 0) {
+                                    value = (zxx * zy2 - 2 * zxy * zx * zy + zyy * zx2) / Math.pow(p, 1.5);
+                                    value = value * RAD_TO_DEG * 100;
+                                } else {
+                                    value = Double.NaN;
+                                }
+                                break;
+                            case PROFILE_CURVATURE:
+                                if (p > 0) {
+                                    value = (zxx * zx2 + 2 * zxy * zx * zy + zyy * zy2) / (p * Math.pow(p + 1, 1.5));
+                                    value = value * RAD_TO_DEG * 100;
+                                } else {
+                                    value = Double.NaN;
+                                }
+                                break;
+                            case TANGENTIAL_CURVATURE:
+                                if (p > 0) {
+                                    value = (zxx * zy2 - 2 * zxy * zx * zy + zyy * zx2) / (p * Math.pow(p + 1, 1.5));
+                                    value = value * RAD_TO_DEG * 100;
+                                } else {
+                                    value = Double.NaN;
+                                }
+                                break;
+                            case TOTAL_CURVATURE:
+                                value = zxx * zxx + 2 * zxy * zxy + zyy * zyy;
+                                value = value * RAD_TO_DEG * 100;
+                                break;
+                            default:
+                                if (fx != 0) {
+                                    value = Math.abs(getAspect(fx, fy) - relativeAspectAzimuth);
+                                    if (value > 180) {
+                                        value = 360 - value;
+                                    }
+                                } else {
+                                    value = -1;
+                                }
+                        }
+                        outputRows[k][r][col] = value;
+                    }
+                }
+            }
+        }
+
+        private double getAspect(double fx, double fy) {
+            return 180 - Math.atan(fy / fx) * RAD_TO_DEG + 90 * (fx / Math.abs(fx));
+        }
+    }
+}
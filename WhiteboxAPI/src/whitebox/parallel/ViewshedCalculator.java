@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.parallel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Counts the number of viewing stations from which each cell of a DEM is
+ * visible.
+ *
+ * The view angle of a cell is its height above the station divided by its
+ * distance from the station. Around each station the grid is divided into
+ * eight triangular octants, which are swept outward one line at a time; the
+ * maximum view angle of each cell is interpolated from the two cells of the
+ * previous line that lie between it and the station, so that each sweep
+ * holds only two lines of maximum view angles. A cell is visible if no cell
+ * between it and the station has a greater view angle. The view angles are
+ * calculated as they are needed from the elevations, which are held in
+ * memory and shared, read-only, by all of the threads.
+ *
+ * When there are at least as many stations as threads, each thread sweeps
+ * whole stations and counts them in its own grid, and the grids are summed
+ * at the end. Otherwise the stations are swept one at a time, with the eight
+ * octants of each swept in parallel; the octants cover separate cells.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public class ViewshedCalculator {
+
+    // the directions in which the lines of each octant advance from the
+    // station (major) and in which each line extends from the axis of the
+    // octant (minor)
+    private static final int[] MAJOR_ROW = new int[]{-1, -1, 1, 1, 0, 0, 0, 0};
+    private static final int[] MAJOR_COL = new int[]{0, 0, 0, 0, 1, 1, -1, -1};
+    private static final int[] MINOR_ROW = new int[]{0, 0, 0, 0, -1, 1, 1, -1};
+    private static final int[] MINOR_COL = new int[]{1, -1, -1, 1, 0, 0, 0, 0};
+    // each axis and diagonal borders two octants but is counted by one
+    private static final boolean[] COUNTS_AXIS = new boolean[]{true, false, true, false, false, true, false, true};
+    private static final boolean[] COUNTS_DIAGONAL = new boolean[]{true, true, true, true, false, false, false, false};
+    private final double[][] elevations;
+    private final int rows;
+    private final int cols;
+    private final double noData;
+    private final double[] xCoords;
+    private final double[] yCoords;
+
+    /**
+     * Constructor.
+     *
+     * @param elevations The elevations of the DEM, by row and column. They
+     * are not copied and must not be changed while the calculator is in use.
+     * @param noData The NoData value of the DEM.
+     * @param xCoords The x coordinate of the centre of each column.
+     * @param yCoords The y coordinate of the centre of each row.
+     */
+    public ViewshedCalculator(double[][] elevations, double noData, double[] xCoords,
+            double[] yCoords) {
+        this.elevations = elevations;
+        this.rows = elevations.length;
+        this.cols = (rows > 0) ? elevations[0].length : 0;
+        this.noData = noData;
+        this.xCoords = xCoords;
+        this.yCoords = yCoords;
+    }
+
+    /**
+     * Counts the stations from which each cell is visible, for stations at
+     * the centres of cells. Stations that lie outside of the grid are
+     * ignored.
+     *
+     * @param stationRows The row of each station.
+     * @param stationCols The column of each station.
+     * @param stationHeight The height of the stations above the ground.
+     * @param numThreads The number of threads to use.
+     * @param monitor Receives progress updates; may be null.
+     * @return The number of stations from which each cell is visible, by row
+     * and column, or null if the operation was cancelled. Cells with a NoData
+     * elevation are never visible.
+     * @throws Exception if a thread is interrupted.
+     */
+    public int[][] countVisibleStations(int[] stationRows, int[] stationCols,
+            double stationHeight, int numThreads, LocalOperation.ProgressMonitor monitor)
+            throws Exception {
+        int numStations = stationRows.length;
+        double[] stationXs = new double[numStations];
+        double[] stationYs = new double[numStations];
+        for (int a = 0; a < numStations; a++) {
+            if (isInGrid(stationRows[a], stationCols[a])) {
+                stationXs[a] = xCoords[stationCols[a]];
+                stationYs[a] = yCoords[stationRows[a]];
+            }
+        }
+        return countVisibleStations(stationRows, stationCols, stationXs, stationYs,
+                stationHeight, numThreads, monitor);
+    }
+
+    /**
+     * Counts the stations from which each cell is visible. The distances to
+     * the cells are measured from the coordinates of the stations, which
+     * need not be at the centres of their cells. Stations that lie outside of
+     * the grid are ignored.
+     *
+     * @param stationRows The row of each station.
+     * @param stationCols The column of each station.
+     * @param stationXs The x coordinate of each station.
+     * @param stationYs The y coordinate of each station.
+     * @param stationHeight The height of the stations above the ground.
+     * @param numThreads The number of threads to use.
+     * @param monitor Receives progress updates; may be null.
+     * @return The number of stations from which each cell is visible, by row
+     * and column, or null if the operation was cancelled. Cells with a NoData
+     * elevation are never visible.
+     * @throws Exception if a thread is interrupted.
+     */
+    public int[][] countVisibleStations(final int[] stationRows, final int[] stationCols,
+            final double[] stationXs, final double[] stationYs, final double stationHeight,
+            int numThreads, LocalOperation.ProgressMonitor monitor) throws Exception {
+        final int numStations = stationRows.length;
+        numThreads = Math.max(1, numThreads);
+        ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+        try {
+            if (numStations >= numThreads && numThreads > 1) {
+                return countByStation(workers, numThreads, stationRows, stationCols,
+                        stationXs, stationYs, stationHeight, monitor);
+            }
+            final int[][] counts = new int[rows][cols];
+            final Sweep[] sweeps = new Sweep[8];
+            for (int o = 0; o < 8; o++) {
+                sweeps[o] = new Sweep();
+            }
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int a = 0; a < numStations; a++) {
+                final int stationRow = stationRows[a];
+                final int stationCol = stationCols[a];
+                final double stationX = stationXs[a];
+                final double stationY = stationYs[a];
+                if (isInGrid(stationRow, stationCol)) {
+                    futures.clear();
+                    for (int o = 0; o < 8; o++) {
+                        final int octant = o;
+                        futures.add(workers.submit(new Callable<Void>() {
+                            @Override
+                            public Void call() {
+                                sweeps[octant].sweep(stationRow, stationCol, stationX,
+                                        stationY, stationHeight, octant, counts);
+                                return null;
+                            }
+                        }));
+                    }
+                    for (Future<Void> f : futures) {
+                        getResult(f);
+                    }
+                }
+                int progress = (int) (100L * (a + 1) / numStations);
+                if (monitor != null && !monitor.updateProgress(progress)) {
+                    return null;
+                }
+            }
+            return counts;
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Sweeps whole stations on each thread, with a grid of counts for each
+     * thread.
+     */
+    private int[][] countByStation(ExecutorService workers, int numThreads,
+            int[] stationRows, int[] stationCols, double[] stationXs, double[] stationYs,
+            final double stationHeight, LocalOperation.ProgressMonitor monitor)
+            throws Exception {
+        final BlockingQueue<Sweep> pool = new ArrayBlockingQueue<>(numThreads);
+        final List<int[][]> allCounts = new ArrayList<>();
+        for (int i = 0; i < numThreads; i++) {
+            Sweep sweep = new Sweep();
+            sweep.counts = new int[rows][cols];
+            allCounts.add(sweep.counts);
+            pool.add(sweep);
+        }
+        int numStations = stationRows.length;
+        CompletionService<Void> completion = new ExecutorCompletionService<>(workers);
+        for (int a = 0; a < numStations; a++) {
+            final int stationRow = stationRows[a];
+            final int stationCol = stationCols[a];
+            final double stationX = stationXs[a];
+            final double stationY = stationYs[a];
+            completion.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws InterruptedException {
+                    if (!isInGrid(stationRow, stationCol)) {
+                        return null;
+                    }
+                    Sweep sweep = pool.take();
+                    try {
+                        for (int octant = 0; octant < 8; octant++) {
+                            sweep.sweep(stationRow, stationCol, stationX, stationY,
+                                    stationHeight, octant, sweep.counts);
+                        }
+                    } finally {
+                        pool.add(sweep);
+                    }
+                    return null;
+                }
+            });
+        }
+        int oldProgress = -1;
+        for (int a = 0; a < numStations; a++) {
+            getResult(completion.take());
+            int progress = (int) (100L * (a + 1) / numStations);
+            if (progress > oldProgress) {
+                oldProgress = progress;
+                if (monitor != null && !monitor.updateProgress(progress)) {
+                    return null;
+                }
+            }
+        }
+
+        int[][] counts = allCounts.get(0);
+        for (int i = 1; i < allCounts.size(); i++) {
+            int[][] other = allCounts.get(i);
+            for (int row = 0; row < rows; row++) {
+                int[] countRow = counts[row];
+                int[] otherRow = other[row];
+                for (int col = 0; col < cols; col++) {
+                    countRow[col] += otherRow[col];
+                }
+            }
+        }
+        return counts;
+    }
+
+    private boolean isInGrid(int row, int col) {
+        return row >= 0 && row < rows && col >= 0 && col < cols;
+    }
+
+    private static void getResult(Future<Void> f) throws Exception {
+        try {
+            f.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * The working storage of one sweep.
+     */
+    private class Sweep {
+
+        // the maximum view angles of the current and previous lines, by
+        // distance from the axis of the octant; entry 0 is on the axis.
+        private double[] line = new double[Math.max(rows, cols) + 1];
+        private double[] previous = new double[Math.max(rows, cols) + 1];
+        private int[][] counts;
+
+        /**
+         * Sweeps one octant around a station and adds one to the count of
+         * each visible cell of the octant.
+         */
+        void sweep(int stationRow, int stationCol, double stationX, double stationY,
+                double stationHeight, int octant, int[][] counts) {
+            int majorRow = MAJOR_ROW[octant];
+            int majorCol = MAJOR_COL[octant];
+            int minorRow = MINOR_ROW[octant];
+            int minorCol = MINOR_COL[octant];
+            boolean countsAxis = COUNTS_AXIS[octant];
+            boolean countsDiagonal = COUNTS_DIAGONAL[octant];
+            double stationZ = elevations[stationRow][stationCol] + stationHeight;
+            int numLines = getDistanceToEdge(stationRow, stationCol, majorRow, majorCol);
+            int maxOffset = getDistanceToEdge(stationRow, stationCol, minorRow, minorCol);
+
+            if (octant == 0 && elevations[stationRow][stationCol] != noData) {
+                counts[stationRow][stationCol]++;
+            }
+
+            double axisMax = 0;
+            for (int v = 1; v <= numLines; v++) {
+                int axisRow = stationRow + v * majorRow;
+                int axisCol = stationCol + v * majorCol;
+                double va = getViewAngle(axisRow, axisCol, stationX, stationY, stationZ);
+                if (v == 1 || va > axisMax) {
+                    axisMax = va;
+                }
+                line[0] = axisMax;
+                if (countsAxis && va != noData && axisMax <= va) {
+                    counts[axisRow][axisCol]++;
+                }
+
+                int length = Math.min(v, maxOffset);
+                for (int h = 1; h <= length; h++) {
+                    int row = axisRow + h * minorRow;
+                    int col = axisCol + h * minorCol;
+                    va = getViewAngle(row, col, stationX, stationY, stationZ);
+                    double tva;
+                    if (v == 1) {
+                        tva = va;
+                    } else if (h != v) {
+                        double t1 = previous[h - 1];
+                        double t2 = previous[h];
+                        tva = t2 + (double) h / v * (t1 - t2);
+                    } else {
+                        tva = previous[h - 1];
+                    }
+                    double max = (tva > va) ? tva : va;
+                    line[h] = max;
+                    if (va != noData && max <= va && (h != v || countsDiagonal)) {
+                        counts[row][col]++;
+                    }
+                }
+
+                double[] tmp = previous;
+                previous = line;
+                line = tmp;
+            }
+        }
+
+        private int getDistanceToEdge(int row, int col, int dRow, int dCol) {
+            if (dRow < 0) {
+                return row;
+            } else if (dRow > 0) {
+                return rows - 1 - row;
+            } else if (dCol < 0) {
+                return col;
+            } else {
+                return cols - 1 - col;
+            }
+        }
+
+        private double getViewAngle(int row, int col, double stationX, double stationY,
+                double stationZ) {
+            double z = elevations[row][col];
+            if (z == noData) {
+                return noData;
+            }
+            double x = xCoords[col];
+            double y = yCoords[row];
+            double dZ = z - stationZ;
+            double dist = Math.sqrt((x - stationX) * (x - stationX) + (y - stationY) * (y - stationY));
+            return dZ / dist * 1000.0;
+        }
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.parallel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import whitebox.geospatialfiles.WhiteboxRaster;
+
+/**
+ * Labels each cell of a D8 flow pointer with the label of the first labelled
+ * cell on its downslope flowpath, e.g. the watershed of a set of outlets or
+ * the sub-basins of a stream network. Flowpaths that end, leave the grid or
+ * form a loop without reaching a labelled cell are given the NoData value.
+ *
+ * The grid is labelled in square tiles so that memory use is bounded by the
+ * tile size rather than the grid size. In the first pass each tile is
+ * labelled on its own, in parallel, and the outcome of each cell on the edge
+ * of the tile is recorded: either a label or the edge cell of a neighbouring
+ * tile at which its flowpath leaves the tile. The edge cells form a graph
+ * that is small compared with the grid, and which is resolved in memory. In
+ * the second pass each tile is labelled again, with the labels of the edge
+ * cells of its neighbours now known, and is written to the output.
+ *
+ * The rasters are only read and written on the calling thread, one group of
+ * tiles at a time, so that they are accessed in tile order.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public class WatershedLabeller {
+
+    /**
+     * The default width and height of a tile, in cells.
+     */
+    public static final int DEFAULT_TILE_SIZE = 512;
+    private static final double LnOf2 = 0.693147180559945;
+    private static final int[] dX = new int[]{1, 1, 1, 0, -1, -1, -1, 0};
+    private static final int[] dY = new int[]{-1, 0, 1, 1, 1, 0, -1, -1};
+    // the states of a cell during the labelling of a tile; a cell that
+    // leaves the tile holds the node of the edge cell that it flows to.
+    private static final int RESOLVED = -1;
+    private static final int UNVISITED = -2;
+    private static final int ON_PATH = -3;
+    private final int tileSize;
+    private int rows;
+    private int cols;
+    private int numTileRows;
+    private int numTileCols;
+    private double noData;
+    private double unlabelledValue;
+    // the edge cells of each tile, numbered tile * 4 * tileSize + the
+    // position of the cell on the edge of its tile. A node either holds a
+    // label, with a next node of RESOLVED, or the next node on its flowpath.
+    private int[] nextNodes;
+    private double[] nodeLabels;
+
+    /**
+     * Constructor, using the default tile size.
+     */
+    public WatershedLabeller() {
+        this(DEFAULT_TILE_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param tileSize The width and height of a tile, in cells.
+     */
+    public WatershedLabeller(int tileSize) {
+        if (tileSize < 2) {
+            throw new IllegalArgumentException("The tile size must be at least two cells.");
+        }
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * Labels the cells of a raster.
+     *
+     * @param pointer A D8 or Rho8 flow pointer. Cells with a value of zero
+     * or less, or the NoData value, have no downslope neighbour.
+     * @param labels The raster to label, with the same dimensions as the
+     * pointer. It is read for the initial labels, i.e. every cell that does
+     * not hold the unlabelled value, which are left as they are, and the
+     * remaining cells are overwritten.
+     * @param unlabelledValue The value of the cells that are to be labelled.
+     * @param noData The NoData value of the pointer, which is also given to
+     * the cells whose flowpaths reach no labelled cell.
+     * @param monitor Receives progress updates; may be null.
+     * @return false if the operation was cancelled.
+     * @throws Exception if a raster cannot be read or written.
+     */
+    public boolean run(WhiteboxRaster pointer, WhiteboxRaster labels, double unlabelledValue,
+            double noData, LocalOperation.ProgressMonitor monitor) throws Exception {
+        rows = pointer.getNumberRows();
+        cols = pointer.getNumberColumns();
+        if (labels.getNumberRows() != rows || labels.getNumberColumns() != cols) {
+            throw new IllegalArgumentException("The input images must have the same dimensions.");
+        }
+        this.noData = noData;
+        this.unlabelledValue = unlabelledValue;
+        numTileRows = (rows + tileSize - 1) / tileSize;
+        numTileCols = (cols + tileSize - 1) / tileSize;
+        int numTiles = numTileRows * numTileCols;
+        long numNodes = (long) numTiles * 4 * tileSize;
+        if (numNodes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The grid has too many tiles.");
+        }
+        nextNodes = new int[(int) numNodes];
+        nodeLabels = new double[(int) numNodes];
+        Arrays.fill(nextNodes, RESOLVED);
+
+        int numThreads = Math.max(1, Math.min(Parallel.getPluginProcessors(), numTiles));
+        TileLabeller[] labellers = new TileLabeller[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            labellers[i] = new TileLabeller();
+        }
+        ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+        try {
+            for (int pass = 0; pass < 2; pass++) {
+                final boolean finalPass = (pass == 1);
+                List<Future<Void>> futures = new ArrayList<>();
+                for (int groupStart = 0; groupStart < numTiles; groupStart += numThreads) {
+                    int groupEnd = Math.min(groupStart + numThreads, numTiles);
+                    futures.clear();
+                    for (int tile = groupStart; tile < groupEnd; tile++) {
+                        final TileLabeller labeller = labellers[tile - groupStart];
+                        labeller.read(tile, pointer, labels);
+                        futures.add(workers.submit(new Callable<Void>() {
+                            @Override
+                            public Void call() {
+                                labeller.label(finalPass);
+                                return null;
+                            }
+                        }));
+                    }
+                    for (Future<Void> f : futures) {
+                        try {
+                            f.get();
+                        } catch (ExecutionException e) {
+                            Throwable cause = e.getCause();
+                            if (cause instanceof Exception) {
+                                throw (Exception) cause;
+                            } else if (cause instanceof Error) {
+                                throw (Error) cause;
+                            }
+                            throw e;
+                        }
+                    }
+                    if (finalPass) {
+                        for (int tile = groupStart; tile < groupEnd; tile++) {
+                            labellers[tile - groupStart].write(labels);
+                        }
+                    }
+
+                    int progress = (int) ((50L * pass * numTiles + 50L * groupEnd) / numTiles);
+                    if (monitor != null && !monitor.updateProgress(progress)) {
+                        return false;
+                    }
+                }
+                if (!finalPass) {
+                    resolveNodes();
+                }
+            }
+            return true;
+        } finally {
+            workers.shutdown();
+            nextNodes = null;
+            nodeLabels = null;
+        }
+    }
+
+    /**
+     * Returns the node of a cell on the edge of its tile.
+     */
+    private int getNode(int row, int col) {
+        int tileRow = row / tileSize;
+        int tileCol = col / tileSize;
+        int r = row - tileRow * tileSize;
+        int c = col - tileCol * tileSize;
+        int height = Math.min(tileSize, rows - tileRow * tileSize);
+        int width = Math.min(tileSize, cols - tileCol * tileSize);
+        int position;
+        if (r == 0) {
+            position = c;
+        } else if (r == height - 1) {
+            position = tileSize + c;
+        } else if (c == 0) {
+            position = 2 * tileSize + r;
+        } else if (c == width - 1) {
+            position = 3 * tileSize + r;
+        } else {
+            throw new IllegalStateException("The cell is not on the edge of its tile.");
+        }
+        return (tileRow * numTileCols + tileCol) * 4 * tileSize + position;
+    }
+
+    /**
+     * Follows the flowpath of each node from tile to tile until it reaches a
+     * label. Flowpaths that loop back on themselves are given the NoData
+     * value.
+     */
+    private void resolveNodes() {
+        int[] path = new int[64];
+        for (int node = 0; node < nextNodes.length; node++) {
+            if (nextNodes[node] < 0) {
+                continue;
+            }
+            int pathLength = 0;
+            int current = node;
+            double label;
+            while (true) {
+                int next = nextNodes[current];
+                if (next == RESOLVED) {
+                    label = nodeLabels[current];
+                    break;
+                } else if (next == ON_PATH) {
+                    label = noData;
+                    break;
+                }
+                if (pathLength == path.length) {
+                    path = Arrays.copyOf(path, pathLength * 2);
+                }
+                path[pathLength++] = current;
+                nextNodes[current] = ON_PATH;
+                current = next;
+            }
+            for (int i = 0; i < pathLength; i++) {
+                nextNodes[path[i]] = RESOLVED;
+                nodeLabels[path[i]] = label;
+            }
+        }
+    }
+
+    /**
+     * The working storage of one thread, which labels one tile at a time.
+     */
+    private class TileLabeller {
+
+        private final byte[] flowDirs = new byte[tileSize * tileSize];
+        private final double[] values = new double[tileSize * tileSize];
+        private final int[] states = new int[tileSize * tileSize];
+        private final int[] path = new int[tileSize * tileSize];
+        private int tile;
+        private int startRow;
+        private int startCol;
+        private int height;
+        private int width;
+
+        /**
+         * Reads the pointer directions and initial labels of a tile.
+         */
+        void read(int tile, WhiteboxRaster pointer, WhiteboxRaster labels) {
+            this.tile = tile;
+            startRow = (tile / numTileCols) * tileSize;
+            startCol = (tile % numTileCols) * tileSize;
+            height = Math.min(tileSize, rows - startRow);
+            width = Math.min(tileSize, cols - startCol);
+            int i = 0;
+            for (int r = 0; r < height; r++) {
+                for (int c = 0; c < width; c++, i++) {
+                    double flowDir = pointer.getValue(startRow + r, startCol + c);
+                    byte dir = -1;
+                    if (flowDir >= 1 && flowDir < 256 && flowDir != noData) {
+                        // the base-2 logarithm, without calling Math.log
+                        dir = (byte) (31 - Integer.numberOfLeadingZeros((int) flowDir));
+                    } else if (flowDir > 0 && flowDir < 1 && flowDir != noData) {
+                        int k = (int) (Math.log(flowDir) / LnOf2);
+                        if (k >= 0) {
+                            dir = (byte) k;
+                        }
+                    }
+                    flowDirs[i] = dir;
+                    values[i] = labels.getValue(startRow + r, startCol + c);
+                }
+            }
+        }
+
+        /**
+         * Writes the labels of the tile.
+         */
+        void write(WhiteboxRaster labels) {
+            int i = 0;
+            for (int r = 0; r < height; r++) {
+                for (int c = 0; c < width; c++, i++) {
+                    labels.setValue(startRow + r, startCol + c, values[i]);
+                }
+            }
+        }
+
+        /**
+         * Labels the cells of the tile. In the first pass the outcomes of the
+         * edge cells are recorded in the graph of nodes; in the final pass
+         * the flowpaths that leave the tile take the labels of the nodes that
+         * they flow to.
+         */
+        void label(boolean finalPass) {
+            int n = height * width;
+            for (int i = 0; i < n; i++) {
+                states[i] = (values[i] != unlabelledValue) ? RESOLVED : UNVISITED;
+            }
+            for (int i = 0; i < n; i++) {
+                if (states[i] != UNVISITED) {
+                    continue;
+                }
+                // follow the flowpath until it reaches a cell whose outcome
+                // is known, then give that outcome to each cell on the path.
+                int pathLength = 0;
+                int current = i;
+                int outcome;
+                double label = noData;
+                while (true) {
+                    int state = states[current];
+                    if (state == RESOLVED) {
+                        outcome = RESOLVED;
+                        label = values[current];
+                        break;
+                    } else if (state == ON_PATH) {
+                        outcome = RESOLVED;
+                        label = noData;
+                        break;
+                    } else if (state >= 0) {
+                        outcome = state;
+                        break;
+                    }
+                    path[pathLength++] = current;
+                    states[current] = ON_PATH;
+                    int dir = flowDirs[current];
+                    if (dir < 0) {
+                        outcome = RESOLVED;
+                        label = noData;
+                        break;
+                    }
+                    int r = current / width + dY[dir];
+                    int c = current % width + dX[dir];
+                    int row = startRow + r;
+                    int col = startCol + c;
+                    if (row < 0 || row >= rows || col < 0 || col >= cols) {
+                        outcome = RESOLVED;
+                        label = noData;
+                        break;
+                    }
+                    if (r < 0 || r >= height || c < 0 || c >= width) {
+                        outcome = getNode(row, col);
+                        break;
+                    }
+                    current = r * width + c;
+                }
+                if (outcome >= 0 && finalPass) {
+                    label = nodeLabels[outcome];
+                    outcome = RESOLVED;
+                }
+                for (int k = 0; k < pathLength; k++) {
+                    states[path[k]] = outcome;
+                    values[path[k]] = label;
+                }
+            }
+
+            if (!finalPass) {
+                recordEdges();
+            }
+        }
+
+        /**
+         * Records the outcome of each cell on the edge of the tile.
+         */
+        private void recordEdges() {
+            int base = tile * 4 * tileSize;
+            for (int c = 0; c < width; c++) {
+                recordNode(base + c, c);
+                recordNode(base + tileSize + c, (height - 1) * width + c);
+            }
+            for (int r = 0; r < height; r++) {
+                recordNode(base + 2 * tileSize + r, r * width);
+                recordNode(base + 3 * tileSize + r, r * width + width - 1);
+            }
+        }
+
+        private void recordNode(int node, int i) {
+            nextNodes[node] = states[i];
+            nodeLabels[node] = values[i];
+        }
+    }
+}
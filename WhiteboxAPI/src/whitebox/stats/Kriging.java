@@ -25,8 +25,14 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.text.DecimalFormat;
@@ -66,6 +72,7 @@ import whitebox.geospatialfiles.shapefile.attributes.AttributeTable;
 import whitebox.geospatialfiles.shapefile.attributes.DBFException;
 import whitebox.geospatialfiles.shapefile.attributes.DBFField;
 import whitebox.structures.KdTree;
+import whitebox.parallel.Parallel;
 import java.util.Random;
 import jmetal.util.JMException;
 import whitebox.geospatialfiles.shapefile.attributes.DBFWriter;
@@ -81,6 +88,9 @@ import whitebox.interfaces.WhiteboxPluginHost;
  */
 public class Kriging {
 
+    // the number of rows that each thread interpolates at a time
+    private static final int ROWS_PER_TASK = 8;
+
     public boolean Anisotropic;
     public double BandWidth;
     public double Angle;
@@ -110,10 +120,10 @@ public class Kriging {
     public double LagSize;
     //public double 
     public KdTree<Double> pointsTree;      //This is the point tree which will be filled in the calcPair method
-    public Matrix DistanceMatrix;   //The matrix that contains the distance of each known point to all other known points
     public int nKown;               //Number of known points
     //public double[][] Points;       //Array of points location x=0, y = 1, z = 2
     public double MaximumDistance;
+    public double PairSamplingRate = 1;  //The probability that each pair of points is used in the bins
     public bin[][] BinSurface;       //n*3 matrix to store all the bins
 //    public class point
 //    {
@@ -130,17 +140,6 @@ public class Kriging {
 //    }
     public List<KrigingPoint> points = new ArrayList();
 
-    public class pair {
-
-        int FirstP;
-        int SecondP;
-        double Distance;
-        double Direction;
-        double MomentI;             //Moment of Inertia
-        double VerDistance;         //Vertical Distance (Y Axes)
-        double HorDistance;         //Horizontal Distance (X Axes)
-    }
-
     //List<bin> bins = new ArrayList();
     public bin[][] bins; // = new bin[]      
 
@@ -155,9 +154,7 @@ public class Kriging {
         double Weight;
         int Size;
     }
-    public List<pair> Pairs = new ArrayList();
 
-    private KdTree<Double> PairsTree;
 
     public SemivariogramType SemiVariogramModel;
 
@@ -238,36 +235,18 @@ public class Kriging {
      *
      * @param Range
      */
-    void calcBins4Sec(double Range) {
-        int ad = 0;
-        if (Range % this.LagSize == 0) {
-            ad = 0;
-        }
-
+    void calcBins4Sec(final double Range) {
         if (!this.Anisotropic) {
-            bins = new bin[(int) Math.ceil(Range / this.LagSize) + ad][1];
-            int r = 0;
-            for (int i = 0; i < Pairs.size(); i++) {
-                if (Pairs.get(i).Distance < Range && Pairs.get(i).HorDistance >= 0) {
-                    r = (int) Math.floor(Pairs.get(i).Distance / LagSize);
-                    if (bins[r][0] == null) {
-                        bin bb = new bin();
-                        bins[r][0] = bb;
+            createBins4Sec(Range);
+            visitPairs(Range, new PairVisitor() {
+                @Override
+                void visit(double dx, double dy, double distance, double momentI) {
+                    if (distance < Range && dx >= 0) {
+                        addToBin4Sec(distance, momentI);
                     }
-
-                    bins[r][0].Distance += Pairs.get(i).Distance;
-                    bins[r][0].Value += Pairs.get(i).MomentI;
-                    bins[r][0].Size++;
-                }
-            }
-            for (int i = 0; i < bins.length; i++) {
-                if (bins[i][0] == null) {
-                    bin bb = new bin();
-                    bins[i][0] = bb;
                 }
-                bins[i][0].Distance = bins[i][0].Distance / bins[i][0].Size;
-                bins[i][0].Value = bins[i][0].Value / bins[i][0].Size;
-            }
+            });
+            averageBins4Sec();
         }
     }
 
@@ -280,44 +259,45 @@ public class Kriging {
      * @param Tolerance
      * @param BandWidth
      */
-    void calcBins4Sec(double Range, double Angle, double Tolerance, double BandWidth) {
-        int ad = 0;
-        if (Range % this.LagSize == 0) {
-            ad = 0;
-        }
-        double width = 0;
-
+    void calcBins4Sec(final double Range, final double Angle, final double Tolerance,
+            final double BandWidth) {
         if (this.Anisotropic) {
-
-            bins = new bin[(int) Math.ceil(Range / this.LagSize) + ad][1];
-            int r = 0;
-            for (int i = 0; i < Pairs.size(); i++) {
-                boolean tt = Between(Angle, Tolerance, Pairs.get(i).Direction);
-                width = Pairs.get(i).Distance * Math.cos((Math.PI / 2) - Angle + Pairs.get(i).Direction);
-                if (tt && Pairs.get(i).Distance < Range && Math.abs(width) <= BandWidth) {
-
-                    r = (int) Math.floor(Pairs.get(i).Distance / LagSize);
-                    if (bins[r][0] == null) {
-                        bin bb = new bin();
-                        bins[r][0] = bb;
+            createBins4Sec(Range);
+            visitPairs(Range, new PairVisitor() {
+                @Override
+                void visit(double dx, double dy, double distance, double momentI) {
+                    if (distance < Range) {
+                        double direction = getDirection(dx, dy);
+                        double width = distance * Math.cos((Math.PI / 2) - Angle + direction);
+                        if (Between(Angle, Tolerance, direction) && Math.abs(width) <= BandWidth) {
+                            addToBin4Sec(distance, momentI);
+                        }
                     }
-
-                    bins[r][0].Distance += Pairs.get(i).Distance;
-                    bins[r][0].Value += Pairs.get(i).MomentI;
-                    bins[r][0].Size++;
-                }
-            }
-            for (int i = 0; i < bins.length; i++) {
-                if (bins[i][0] == null) {
-                    bin bb = new bin();
-                    bins[i][0] = bb;
                 }
-                bins[i][0].Distance = bins[i][0].Distance / bins[i][0].Size;
-                bins[i][0].Value = bins[i][0].Value / bins[i][0].Size;
-            }
+            });
+            averageBins4Sec();
         }
-        //==========================
+    }
 
+    private void createBins4Sec(double Range) {
+        bins = new bin[(int) Math.ceil(Range / this.LagSize)][1];
+        for (int i = 0; i < bins.length; i++) {
+            bins[i][0] = new bin();
+        }
+    }
+
+    private void addToBin4Sec(double distance, double momentI) {
+        bin b = bins[(int) Math.floor(distance / LagSize)][0];
+        b.Distance += distance;
+        b.Value += momentI;
+        b.Size++;
+    }
+
+    private void averageBins4Sec() {
+        for (int i = 0; i < bins.length; i++) {
+            bins[i][0].Distance = bins[i][0].Distance / bins[i][0].Size;
+            bins[i][0].Value = bins[i][0].Value / bins[i][0].Size;
+        }
     }
 
     /**
@@ -365,195 +345,118 @@ public class Kriging {
      */
     void CalcBins4Map(double Range) {
 
-        //bins = new bin[this.NumberOfLags][this.NumberOfLags];
         //bins Category on the axies 
         //2 . 1
         //3   4         //Only 1 and 4 are calculated the rest are mirror
-        int ad = 0;
-        if (Range % this.LagSize == 0) {
-            ad = 0;
-        }
-        bin[][] bins1 = new bin[(int) Math.ceil(Range / this.LagSize) + ad][(int) Math.ceil(Range / this.LagSize + ad)];
-        bin[][] bins4 = new bin[(int) Math.ceil(Range / this.LagSize) + ad][(int) Math.ceil(Range / this.LagSize + ad)];
-
-        bin[][] bins1c = new bin[(int) Math.ceil(Range / this.LagSize) + ad][(int) Math.ceil(Range / this.LagSize + ad)];
-        bin[][] bins4c = new bin[(int) Math.ceil(Range / this.LagSize) + ad][(int) Math.ceil(Range / this.LagSize + ad)];
+        final int numBins = (int) Math.ceil(Range / this.LagSize);
+        final bin[][] bins1 = new bin[numBins][numBins];
+        final bin[][] bins4 = new bin[numBins][numBins];
 
-        BinSurface = new bin[2 * ((int) Math.ceil(Range / this.LagSize) + ad)][2 * ((int) Math.ceil(Range / this.LagSize + ad))];
-        //double radious =Math.sqrt(2*this.LagSize*this.LagSize);
-        double radious = this.LagSize * 2 / Math.sqrt(2);
-        double halfLagSize = this.LagSize;
-        List<pair> prs = new ArrayList();
-        double w = 0;
-        for (int r = 0; r < bins1.length; r++) {
-            for (int c = 0; c < bins1[r].length; c++) {
-
-                if (bins1[r][c] == null) {
-                    bin bb = new bin();
-                    bin bbc = new bin();
-
-                    bins1[r][c] = bb;
-                    bins1c[r][c] = bbc;
-                }
+        bin[][] bins1c = new bin[numBins][numBins];
+        bin[][] bins4c = new bin[numBins][numBins];
 
+        BinSurface = new bin[2 * numBins][2 * numBins];
+        for (int r = 0; r < numBins; r++) {
+            for (int c = 0; c < numBins; c++) {
+                bins1[r][c] = new bin();
                 bins1[r][c].GridHorDistance = 0.5 * this.LagSize + c * this.LagSize;
                 bins1[r][c].GridVerDistance = 0.5 * this.LagSize + r * this.LagSize;
 
-                bins1c[r][c].GridHorDistance = -0.5 * this.LagSize - c * this.LagSize;
-                bins1c[r][c].GridVerDistance = -0.5 * this.LagSize - r * this.LagSize;
-
-                double[] center = new double[]{bins1[r][c].GridVerDistance, bins1[r][c].GridHorDistance};
-                prs = getBinNNPairs4Map(PairsTree, center, halfLagSize, radious);
-
-                for (int n = 0; n < prs.size(); n++) {
-                    bins1[r][c].HorDistance += prs.get(n).HorDistance;
-                    bins1[r][c].VerDistance += prs.get(n).VerDistance;
-                    w = (1 - (Math.abs(bins1[r][c].GridHorDistance - prs.get(n).HorDistance) / this.LagSize))
-                            * (1 - (Math.abs(bins1[r][c].GridVerDistance - prs.get(n).VerDistance) / this.LagSize));
-
-                    bins1[r][c].Weight += w;
-                    bins1[r][c].Value += prs.get(n).MomentI * w;
-                    bins1[r][c].Size += 1;
-
-                    bins1c[r][c].HorDistance += prs.get(n).HorDistance;
-                    bins1c[r][c].VerDistance += prs.get(n).VerDistance;
-                    bins1c[r][c].Weight += w;
-
-                    bins1c[r][c].Value += prs.get(n).MomentI * w;
-                    bins1c[r][c].Size += 1;
-
-                }
-            }
-        }
-
-        for (int i = 0; i < bins1.length; i++) {
-            for (int j = 0; j < bins1[i].length; j++) {
-                if (bins1[i][j] == null) {
-                    bin bb = new bin();
-                    bins1[i][j] = bb;
-                    bins1[i][j].HorDistance = i * this.LagSize;
-                    bins1[i][j].VerDistance = j * this.LagSize;
-                    bins1[i][j].Value = -1;
-
-                    bin bbc = new bin();
-                    bins1c[i][j] = bbc;
-                    bins1c[i][j].HorDistance = -i * this.LagSize;
-                    bins1c[i][j].VerDistance = -j * this.LagSize;
-                    bins1c[i][j].Value = -1;
-                } else {
-                    bins1[i][j].HorDistance = bins1[i][j].HorDistance / bins1[i][j].Size;
-                    bins1[i][j].VerDistance = bins1[i][j].VerDistance / bins1[i][j].Size;
-                    bins1[i][j].Value = bins1[i][j].Value / bins1[i][j].Weight;
-
-                    bins1c[i][j].HorDistance = bins1c[i][j].HorDistance / bins1c[i][j].Size;
-                    bins1c[i][j].VerDistance = bins1c[i][j].VerDistance / bins1c[i][j].Size;
-                    bins1c[i][j].Value = bins1c[i][j].Value / bins1c[i][j].Weight;
-                }
-
-                //System.out.println( (0.5*this.LagSize + j*this.LagSize) + " , " + (0.5*this.LagSize+i*this.LagSize) + " , " +
-                //        Bins1[i][j].HorDistance + " , " + Bins1[i][j].VerDistance + " , " + Bins1[i][j].Value);
-            }
-        }
-        //==========================
-
-        for (int r = 0; r < bins4.length; r++) {
-            for (int c = 0; c < bins4[r].length; c++) {
-
-                if (bins4[r][c] == null) {
-                    bin bb = new bin();
-                    bin bbc = new bin();
-
-                    bins4[r][c] = bb;
-                    bins4c[r][c] = bbc;
-                }
-
+                bins4[r][c] = new bin();
                 bins4[r][c].GridHorDistance = 0.5 * this.LagSize + c * this.LagSize;
                 bins4[r][c].GridVerDistance = -0.5 * this.LagSize - r * this.LagSize;
-
-                bins4c[r][c].GridHorDistance = -0.5 * this.LagSize - c * this.LagSize;
-                bins4c[r][c].GridVerDistance = 0.5 * this.LagSize + r * this.LagSize;
-
-                double[] center = new double[]{bins4[r][c].GridVerDistance, bins4[r][c].GridHorDistance};
-                prs = getBinNNPairs4Map(PairsTree, center, halfLagSize, radious);
-
-                for (int n = 0; n < prs.size(); n++) {
-                    bins4[r][c].HorDistance += prs.get(n).HorDistance;
-                    bins4[r][c].VerDistance += prs.get(n).VerDistance;
-                    w = (1 - (Math.abs(bins4[r][c].GridHorDistance - prs.get(n).HorDistance) / this.LagSize))
-                            * (1 - (Math.abs(bins4[r][c].GridVerDistance - prs.get(n).VerDistance) / this.LagSize));
-
-                    bins4[r][c].Weight += w;
-                    bins4[r][c].Value += prs.get(n).MomentI * w;
-                    bins4[r][c].Size += 1;
-
-                    bins4c[r][c].HorDistance += prs.get(n).HorDistance;
-                    bins4c[r][c].VerDistance += prs.get(n).VerDistance;
-                    bins4c[r][c].Weight += w;
-
-                    bins4c[r][c].Value += prs.get(n).MomentI * w;
-                    bins4c[r][c].Size += 1;
-
-                }
             }
         }
 
-        for (int i = 0; i < bins4.length; i++) {
-            for (int j = 0; j < bins4[i].length; j++) {
-                if (bins4[i][j] == null) {
-                    bin bb = new bin();
-                    bins4[i][j] = bb;
-                    bins4[i][j].HorDistance = i * this.LagSize;
-                    bins4[i][j].VerDistance = j * this.LagSize;
-                    bins4[i][j].Value = -1;
-
-                    bin bbc = new bin();
-                    bins4c[i][j] = bbc;
-                    bins4c[i][j].HorDistance = -i * this.LagSize;
-                    bins4c[i][j].VerDistance = -j * this.LagSize;
-                    bins4c[i][j].Value = -1;
-                } else {
-                    bins4[i][j].HorDistance = bins4[i][j].HorDistance / bins4[i][j].Size;
-                    bins4[i][j].VerDistance = bins4[i][j].VerDistance / bins4[i][j].Size;
-                    bins4[i][j].Value = bins4[i][j].Value / bins4[i][j].Weight;
-
-                    bins4c[i][j].HorDistance = bins4c[i][j].HorDistance / bins4c[i][j].Size;
-                    bins4c[i][j].VerDistance = bins4c[i][j].VerDistance / bins4c[i][j].Size;
-                    bins4c[i][j].Value = bins4c[i][j].Value / bins4c[i][j].Weight;
+        // each pair is added to the bins whose centres are within one lag of
+        // it on both axes
+        double radious = this.LagSize * 2 / Math.sqrt(2);
+        final double radiousSqr = radious * radious;
+        visitPairs((numBins + 1) * radious, new PairVisitor() {
+            @Override
+            void visit(double dx, double dy, double distance, double momentI) {
+                if (dx >= 0) {
+                    addToBins4Map(bins1, dx, dy, dy, momentI, radiousSqr);
+                    addToBins4Map(bins4, dx, dy, -dy, momentI, radiousSqr);
                 }
-
-                //System.out.println( (0.5*this.LagSize + j*this.LagSize) + " , " + (0.5*this.LagSize+i*this.LagSize) + " , " +
-                //        bins1[i][j].HorDistance + " , " + bins1[i][j].VerDistance + " , " + bins1[i][j].Value);
+            }
+        });
+
+        for (int i = 0; i < numBins; i++) {
+            for (int j = 0; j < numBins; j++) {
+                bins1[i][j].HorDistance = bins1[i][j].HorDistance / bins1[i][j].Size;
+                bins1[i][j].VerDistance = bins1[i][j].VerDistance / bins1[i][j].Size;
+                bins1[i][j].Value = bins1[i][j].Value / bins1[i][j].Weight;
+                bins1c[i][j] = getMirrorBin(bins1[i][j]);
+
+                bins4[i][j].HorDistance = bins4[i][j].HorDistance / bins4[i][j].Size;
+                bins4[i][j].VerDistance = bins4[i][j].VerDistance / bins4[i][j].Size;
+                bins4[i][j].Value = bins4[i][j].Value / bins4[i][j].Weight;
+                bins4c[i][j] = getMirrorBin(bins4[i][j]);
             }
         }
 
         int stI = BinSurface.length / 2;
         int stJ = BinSurface[0].length / 2;
-
-        //bins1c = bins1.clone();
-        for (int i = 0; i < bins1.length; i++) {
-            for (int j = 0; j < bins1[i].length; j++) {
+        for (int i = 0; i < numBins; i++) {
+            for (int j = 0; j < numBins; j++) {
                 BinSurface[stI + i][stJ + j] = bins1[i][j];
                 BinSurface[stI - 1 - i][stJ - 1 - j] = bins1c[i][j];
+                BinSurface[stI - 1 - i][stJ + j] = bins4[i][j];
+                BinSurface[stI + i][stJ - 1 - j] = bins4c[i][j];
             }
         }
+    }
 
-        stI = BinSurface.length / 2;
-        stJ = BinSurface[0].length / 2;
-        for (int i = 0; i < bins4.length; i++) {
-            for (int j = 0; j < bins4[i].length; j++) {
-                BinSurface[stI - 1 - i][stJ + j] = bins4[i][j];
-                BinSurface[stI + i][stJ - 1 - j] = bins4c[i][j];
+    /**
+     * Adds a pair to the bins of a quadrant of the SV map
+     *
+     * @param quadrant
+     * @param dx the horizontal distance of the pair
+     * @param dy the vertical distance of the pair
+     * @param rowDistance the distance of the pair along the rows of the
+     * quadrant, i.e. dy or -dy
+     * @param momentI
+     * @param radiousSqr
+     */
+    private void addToBins4Map(bin[][] quadrant, double dx, double dy, double rowDistance,
+            double momentI, double radiousSqr) {
+        int numBins = quadrant.length;
+        int firstRow = Math.max(0, (int) Math.floor(rowDistance / LagSize - 1.5));
+        int lastRow = Math.min(numBins - 1, (int) Math.ceil(rowDistance / LagSize + 0.5));
+        int firstCol = Math.max(0, (int) Math.floor(dx / LagSize - 1.5));
+        int lastCol = Math.min(numBins - 1, (int) Math.ceil(dx / LagSize + 0.5));
+        for (int r = firstRow; r <= lastRow; r++) {
+            for (int c = firstCol; c <= lastCol; c++) {
+                bin b = quadrant[r][c];
+                double xd = Math.abs(b.GridHorDistance - dx);
+                double yd = Math.abs(b.GridVerDistance - dy);
+                if (xd <= LagSize && yd <= LagSize && yd * yd + xd * xd <= radiousSqr) {
+                    double w = (1 - (xd / LagSize)) * (1 - (yd / LagSize));
+                    b.HorDistance += dx;
+                    b.VerDistance += dy;
+                    b.Weight += w;
+                    b.Value += momentI * w;
+                    b.Size += 1;
+                }
             }
         }
+    }
 
-//        for (int i = 0; i < BinSurface.length; i++) {
-//            for (int j = 0; j < BinSurface[i].length; j++) {
-//                System.out.println(BinSurface[i][j].GridHorDistance + " , " + BinSurface[i][j].GridVerDistance
-//                        + " , " + BinSurface[i][j].HorDistance+ " , " + BinSurface[i][j].VerDistance
-//                        + " , " + BinSurface[i][j].Value);
-//            }
-//        }
-        int resd = 0;
+    /**
+     * Returns the bin on the opposite side of the origin of the SV map, which
+     * has the same values
+     */
+    private bin getMirrorBin(bin b) {
+        bin bc = new bin();
+        bc.GridHorDistance = -b.GridHorDistance;
+        bc.GridVerDistance = -b.GridVerDistance;
+        bc.HorDistance = b.HorDistance;
+        bc.VerDistance = b.VerDistance;
+        bc.Weight = b.Weight;
+        bc.Value = b.Value;
+        bc.Size = b.Size;
+        return bc;
     }
 
     /**
@@ -1388,180 +1291,319 @@ public class Kriging {
         return outPnts;
     }
 
+    /**
+     * Interpolates the points onto the cells of a raster.
+     *
+     * @param variogram
+     * @param numberOfNearestPoints
+     * @param raster
+     * @param mapError if true, the Kriging variance is written to the raster
+     * rather than the interpolated value
+     */
     public void interpolateRaster(Variogram variogram, int numberOfNearestPoints, WhiteboxRaster raster, boolean mapError) {
-        int row, col;
-        int rows = raster.getNumberRows();
-        int cols = raster.getNumberColumns();
-        double easting, northing;
-        double e;
+        if (!mapError) {
+            interpolateRaster(variogram, numberOfNearestPoints, raster, raster, null);
+        } else {
+            interpolateRaster(variogram, numberOfNearestPoints, raster, null, raster);
+        }
+    }
 
-        double[][] D = new double[numberOfNearestPoints + 1][1];
+    /**
+     * Interpolates the points onto the cells of a raster and writes the
+     * Kriging variance to a second raster.
+     *
+     * @param variogram
+     * @param numberOfNearestPoints
+     * @param raster
+     * @param errorRaster
+     */
+    public void interpolateRaster(Variogram variogram, int numberOfNearestPoints, WhiteboxRaster raster, WhiteboxRaster errorRaster) {
+        interpolateRaster(variogram, numberOfNearestPoints, raster, raster, errorRaster);
+    }
+
+    /**
+     * Interpolates the cells of a raster. The rows are divided among
+     * Parallel.getPluginProcessors() threads, each of which solves the
+     * Kriging systems of its cells with its own KrigingSolver, and each group
+     * of rows is written before the next is interpolated.
+     *
+     * @param raster the raster that defines the cells
+     * @param valueRaster receives the interpolated values; may be null
+     * @param errorRaster receives the Kriging variance; may be null
+     */
+    private void interpolateRaster(Variogram variogram, int numberOfNearestPoints,
+            final WhiteboxRaster raster, WhiteboxRaster valueRaster, WhiteboxRaster errorRaster) {
+        int rows = raster.getNumberRows();
+        final int cols = raster.getNumberColumns();
+        int numThreads = Math.max(1, Math.min(Parallel.getPluginProcessors(), rows));
+        int groupRows = Math.min(rows, numThreads * ROWS_PER_TASK);
+        final double[][] values = new double[groupRows][cols];
+        final double[][] errors = new double[groupRows][cols];
+        KrigingSolver[] solvers = new KrigingSolver[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            solvers[i] = new KrigingSolver(variogram, numberOfNearestPoints);
+        }
 
-        List<KrigingPoint> nnPoints = new ArrayList();
         int progress;
         int oldProgress = -1;
-        for (row = 0; row < rows; row++) {
-            for (col = 0; col < cols; col++) {
-                easting = raster.getXCoordinateFromColumn(col);
-                northing = raster.getYCoordinateFromRow(row);
-                KrigingPoint pnt = new KrigingPoint(easting, northing, 0.0d);
-
-                nnPoints = getNNpoints(this.pointsTree, pnt, numberOfNearestPoints);
-
-                double[][] C = CalcConstantCoef(variogram, nnPoints);
-                double[] tm = CalcVariableCoef(variogram, pnt, nnPoints);
-                for (int i = 0; i < tm.length; i++) {
-                    D[i][0] = tm[i];
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int groupStart = 0; groupStart < rows; groupStart += groupRows) {
+                final int firstRow = groupStart;
+                int numRows = Math.min(groupRows, rows - groupStart);
+                int rowsPerTask = (numRows + numThreads - 1) / numThreads;
+                futures.clear();
+                for (int t = 0; t * rowsPerTask < numRows; t++) {
+                    final KrigingSolver solver = solvers[t];
+                    final int from = t * rowsPerTask;
+                    final int to = Math.min(from + rowsPerTask, numRows);
+                    futures.add(executor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            for (int r = from; r < to; r++) {
+                                double northing = raster.getYCoordinateFromRow(firstRow + r);
+                                for (int col = 0; col < cols; col++) {
+                                    double easting = raster.getXCoordinateFromColumn(col);
+                                    solver.solve(easting, northing);
+                                    values[r][col] = solver.value;
+                                    errors[r][col] = solver.variance;
+                                }
+                            }
+                        }
+                    }));
                 }
-                Matrix tmp = Matrix.constructWithCopy(C);
-                Matrix VariableCoef = Matrix.constructWithCopy(D);
-                Matrix w = null;
-                //boolean flag = false;
-                try {
-                    double vs = 0;
-                    w = tmp.solve(VariableCoef);
-                    double[][] Wi = w.getArray();
-                    double s = 0;
-                    for (int i = 0; i < Wi.length - 1; i++) {
-                        s = s + Wi[i][0] * nnPoints.get(i).z;
-                        vs = vs + Wi[i][0] * D[i][0];
-                    }
-                    e = vs + Wi[Wi.length - 1][0];
-                    if (!mapError) {
-                        raster.setValue(row, col, s);
-                    } else {
-                        raster.setValue(row, col, e);
+                for (Future<?> f : futures) {
+                    try {
+                        f.get();
+                    } catch (InterruptedException | ExecutionException e) {
+                        throw new IllegalStateException("Error interpolating the raster.", e);
                     }
+                }
 
-                } catch (Exception ex) {
-                    SingularValueDecomposition svd = tmp.svd();
-                    Matrix u = svd.getU();
-                    Matrix s = svd.getS();
-                    Matrix v = svd.getV();
-
-                    int rrr = svd.rank();
-                    double[][] stemp = s.getArray();
-                    for (int nn = 0; nn < stemp.length; nn++) {
-                        if (stemp[nn][nn] > 0.003) {
-                            stemp[nn][nn] = 1 / stemp[nn][nn];
-                        } else {
-                            stemp[nn][nn] = 0;
-                        }
+                for (int r = 0; r < numRows; r++) {
+                    if (valueRaster != null) {
+                        setRowValues(valueRaster, groupStart + r, values[r]);
                     }
-                    Matrix sp = new Matrix(stemp);
-                    w = v.times(sp).times(u.transpose()).times(VariableCoef);
-                    //Matrix test = tmp.times(w).minus(VariableCoef);
-                    double[][] Wi = w.getArray();
-                    double ss = 0;
-                    double vs = 0;
-                    for (int i = 0; i < Wi.length - 1; i++) {
-                        ss = ss + Wi[i][0] * nnPoints.get(i).z;
-                        vs = vs + Wi[i][0] * D[i][0];
+                    if (errorRaster != null) {
+                        setRowValues(errorRaster, groupStart + r, errors[r]);
                     }
-                    e = vs + Wi[Wi.length - 1][0];
-                    if (!mapError) {
-                        raster.setValue(row, col, ss);
-                    } else {
-                        raster.setValue(row, col, e);
+                }
+
+                progress = (int) (100f * (groupStart + numRows - 1) / (rows - 1.0));
+                if (progress > oldProgress) {
+                    changes.firePropertyChange("progress", oldProgress, progress);
+                    if (host != null) {
+                        host.updateProgress("Interpolating Data:", progress);
                     }
+                    oldProgress = progress;
                 }
             }
+        } finally {
+            executor.shutdown();
+        }
+    }
 
-            progress = (int) (100f * row / (rows - 1.0));
-            if (progress > oldProgress) {
-                changes.firePropertyChange("progress", oldProgress, progress);
-                if (host != null) {
-                    host.updateProgress("Interpolating Data:", progress);
-                }
-                oldProgress = progress;
+    /**
+     * Writes a row of a raster, storing NaN values as NoData, as
+     * WhiteboxRaster.setValue does.
+     */
+    private static void setRowValues(WhiteboxRaster raster, int row, double[] rowValues) {
+        double noData = raster.getNoDataValue();
+        for (int col = 0; col < rowValues.length; col++) {
+            if (Double.isNaN(rowValues[col])) {
+                rowValues[col] = noData;
             }
         }
+        raster.setRowValues(row, rowValues);
     }
-    
-    public void interpolateRaster(Variogram variogram, int numberOfNearestPoints, WhiteboxRaster raster, WhiteboxRaster errorRaster) {
-        int row, col;
-        int rows = raster.getNumberRows();
-        int cols = raster.getNumberColumns();
-        double easting, northing;
-        double e;
 
-        double[][] D = new double[numberOfNearestPoints + 1][1];
+    /**
+     * Solves the ordinary Kriging system of a location, using the working
+     * storage of one thread. The system of the neighbouring points is
+     * factorised with partial pivoting, or replaced by its pseudo-inverse if
+     * it is singular, and the factors are reused for as long as consecutive
+     * locations have the same neighbouring points.
+     */
+    private class KrigingSolver {
+
+        private final Variogram variogram;
+        private final int numberOfNearestPoints;
+        // the sorted indices of the neighbouring points of the current system
+        private final int[] neighbours;
+        private final int[] found;
+        private int numNeighbours = -1;
+        // the (n + 1) x (n + 1) system, stored by rows, and its factors
+        private final double[] system;
+        private final double[] factors;
+        private final int[] pivots;
+        private double[] pseudoInverse = null;
+        private final double[] variableCoef;
+        private final double[] weights;
+        double value;
+        double variance;
+
+        KrigingSolver(Variogram variogram, int numberOfNearestPoints) {
+            this.variogram = variogram;
+            this.numberOfNearestPoints = numberOfNearestPoints;
+            int n = numberOfNearestPoints + 1;
+            neighbours = new int[numberOfNearestPoints];
+            found = new int[numberOfNearestPoints];
+            system = new double[n * n];
+            factors = new double[n * n];
+            pivots = new int[n];
+            variableCoef = new double[n];
+            weights = new double[n];
+        }
 
-        List<KrigingPoint> nnPoints = new ArrayList();
-        int progress;
-        int oldProgress = -1;
-        for (row = 0; row < rows; row++) {
-            for (col = 0; col < cols; col++) {
-                easting = raster.getXCoordinateFromColumn(col);
-                northing = raster.getYCoordinateFromRow(row);
-                KrigingPoint pnt = new KrigingPoint(easting, northing, 0.0d);
-
-                nnPoints = getNNpoints(this.pointsTree, pnt, numberOfNearestPoints);
-
-                double[][] C = CalcConstantCoef(variogram, nnPoints);
-                double[] tm = CalcVariableCoef(variogram, pnt, nnPoints);
-                for (int i = 0; i < tm.length; i++) {
-                    D[i][0] = tm[i];
+        void solve(double x, double y) {
+            List<KdTree.Entry<Double>> results = pointsTree.nearestNeighbor(new double[]{y, x},
+                    numberOfNearestPoints, false);
+            int n = results.size();
+            for (int i = 0; i < n; i++) {
+                found[i] = results.get(i).value.intValue();
+            }
+            Arrays.sort(found, 0, n);
+            boolean sameNeighbours = (n == numNeighbours);
+            for (int i = 0; i < n && sameNeighbours; i++) {
+                sameNeighbours = (found[i] == neighbours[i]);
+            }
+            if (!sameNeighbours) {
+                System.arraycopy(found, 0, neighbours, 0, n);
+                numNeighbours = n;
+                factorise();
+            }
+
+            int size = n + 1;
+            for (int i = 0; i < n; i++) {
+                KrigingPoint p = points.get(neighbours[i]);
+                double dist = Math.sqrt((p.x - x) * (p.x - x) + (p.y - y) * (p.y - y));
+                variableCoef[i] = getTheoreticalSVValue(dist, variogram);
+            }
+            variableCoef[n] = 1;
+
+            if (pseudoInverse == null) {
+                // forward substitution with the unit lower triangle, then
+                // back substitution with the upper triangle
+                for (int i = 0; i < size; i++) {
+                    double sum = variableCoef[pivots[i]];
+                    for (int j = 0; j < i; j++) {
+                        sum -= factors[i * size + j] * weights[j];
+                    }
+                    weights[i] = sum;
                 }
-                Matrix tmp = Matrix.constructWithCopy(C);
-                Matrix VariableCoef = Matrix.constructWithCopy(D);
-                Matrix w = null;
-                //boolean flag = false;
-                try {
-                    double vs = 0;
-                    w = tmp.solve(VariableCoef);
-                    double[][] Wi = w.getArray();
-                    double s = 0;
-                    for (int i = 0; i < Wi.length - 1; i++) {
-                        s = s + Wi[i][0] * nnPoints.get(i).z;
-                        vs = vs + Wi[i][0] * D[i][0];
+                for (int i = size - 1; i >= 0; i--) {
+                    double sum = weights[i];
+                    for (int j = i + 1; j < size; j++) {
+                        sum -= factors[i * size + j] * weights[j];
                     }
-                    e = vs + Wi[Wi.length - 1][0];
-                    raster.setValue(row, col, s);
-                    errorRaster.setValue(row, col, e);
-
-                } catch (Exception ex) {
-                    SingularValueDecomposition svd = tmp.svd();
-                    Matrix u = svd.getU();
-                    Matrix s = svd.getS();
-                    Matrix v = svd.getV();
-
-                    int rrr = svd.rank();
-                    double[][] stemp = s.getArray();
-                    for (int nn = 0; nn < stemp.length; nn++) {
-                        if (stemp[nn][nn] > 0.003) {
-                            stemp[nn][nn] = 1 / stemp[nn][nn];
-                        } else {
-                            stemp[nn][nn] = 0;
-                        }
+                    weights[i] = sum / factors[i * size + i];
+                }
+            } else {
+                for (int i = 0; i < size; i++) {
+                    double sum = 0;
+                    for (int j = 0; j < size; j++) {
+                        sum += pseudoInverse[i * size + j] * variableCoef[j];
+                    }
+                    weights[i] = sum;
+                }
+            }
+
+            double s = 0;
+            double vs = 0;
+            for (int i = 0; i < n; i++) {
+                s += weights[i] * points.get(neighbours[i]).z;
+                vs += weights[i] * variableCoef[i];
+            }
+            value = s;
+            variance = vs + weights[n];
+        }
+
+        /**
+         * Builds the system of the current neighbouring points and factorises
+         * it.
+         */
+        private void factorise() {
+            int n = numNeighbours;
+            int size = n + 1;
+            for (int i = 0; i < n; i++) {
+                KrigingPoint pi = points.get(neighbours[i]);
+                for (int j = i; j < n; j++) {
+                    KrigingPoint pj = points.get(neighbours[j]);
+                    double dist = Math.sqrt((pi.x - pj.x) * (pi.x - pj.x) + (pi.y - pj.y) * (pi.y - pj.y));
+                    system[i * size + j] = getTheoreticalSVValue(dist, variogram);
+                    system[j * size + i] = system[i * size + j];
+                }
+                system[i * size + n] = 1;
+                system[n * size + i] = 1;
+            }
+            system[n * size + n] = 0;
+
+            System.arraycopy(system, 0, factors, 0, size * size);
+            for (int i = 0; i < size; i++) {
+                pivots[i] = i;
+            }
+            boolean singular = false;
+            for (int k = 0; k < size; k++) {
+                int p = k;
+                for (int i = k + 1; i < size; i++) {
+                    if (Math.abs(factors[i * size + k]) > Math.abs(factors[p * size + k])) {
+                        p = i;
                     }
-                    Matrix sp = new Matrix(stemp);
-                    w = v.times(sp).times(u.transpose()).times(VariableCoef);
-                    //Matrix test = tmp.times(w).minus(VariableCoef);
-                    double[][] Wi = w.getArray();
-                    double ss = 0;
-                    double vs = 0;
-                    for (int i = 0; i < Wi.length - 1; i++) {
-                        ss = ss + Wi[i][0] * nnPoints.get(i).z;
-                        vs = vs + Wi[i][0] * D[i][0];
+                }
+                if (p != k) {
+                    for (int j = 0; j < size; j++) {
+                        double tmp = factors[p * size + j];
+                        factors[p * size + j] = factors[k * size + j];
+                        factors[k * size + j] = tmp;
+                    }
+                    int tmp = pivots[p];
+                    pivots[p] = pivots[k];
+                    pivots[k] = tmp;
+                }
+                double pivot = factors[k * size + k];
+                if (pivot == 0) {
+                    singular = true;
+                    break;
+                }
+                for (int i = k + 1; i < size; i++) {
+                    double l = factors[i * size + k] / pivot;
+                    factors[i * size + k] = l;
+                    if (l != 0) {
+                        for (int j = k + 1; j < size; j++) {
+                            factors[i * size + j] -= l * factors[k * size + j];
+                        }
                     }
-                    e = vs + Wi[Wi.length - 1][0];
-                    raster.setValue(row, col, ss);
-                    errorRaster.setValue(row, col, e);
                 }
             }
 
-            progress = (int) (100f * row / (rows - 1.0));
-            if (progress > oldProgress) {
-                changes.firePropertyChange("progress", oldProgress, progress);
-                if (host != null) {
-                    host.updateProgress("Interpolating Data:", progress);
+            pseudoInverse = null;
+            if (singular) {
+                // use the pseudo-inverse, ignoring small singular values
+                Matrix a = new Matrix(size, size);
+                for (int i = 0; i < size; i++) {
+                    for (int j = 0; j < size; j++) {
+                        a.set(i, j, system[i * size + j]);
+                    }
+                }
+                SingularValueDecomposition svd = a.svd();
+                double[][] stemp = svd.getS().getArray();
+                for (int nn = 0; nn < stemp.length; nn++) {
+                    if (stemp[nn][nn] > 0.003) {
+                        stemp[nn][nn] = 1 / stemp[nn][nn];
+                    } else {
+                        stemp[nn][nn] = 0;
+                    }
+                }
+                double[][] inverse = svd.getV().times(new Matrix(stemp)).times(svd.getU().transpose()).getArray();
+                pseudoInverse = new double[size * size];
+                for (int i = 0; i < size; i++) {
+                    System.arraycopy(inverse[i], 0, pseudoInverse, i * size, size);
                 }
-                oldProgress = progress;
             }
         }
     }
-    
+
     /**
      * Gets the variogram and unknown point list and returns the interpolated
      * values for the unknown points It also calculates the Kriging Variance and
@@ -1671,33 +1713,6 @@ public class Kriging {
         return outPnts;
     }
 
-    /**
-     * Returns the list of Pairs which are in the Nearest Neighborhood of the
-     * bin center point
-     *
-     * @param Tree
-     * @param entry (y,x)
-     * @param HalfBinSize
-     * @param Range is the search radius
-     * @return
-     */
-    private List<pair> getBinNNPairs4Map(KdTree<Double> Tree, double[] entry, double BinSize, double Range) {
-
-        List<KdTree.Entry<Double>> results;
-        results = Tree.neighborsWithinRange(entry, Range);
-        List<pair> res = new ArrayList();
-        double xd = 0;
-        double yd = 0;
-        for (int i = 0; i < results.size(); i++) {
-            xd = Math.sqrt(Math.pow((Pairs.get(results.get(i).value.intValue()).HorDistance - entry[1]), 2));
-            yd = Math.sqrt(Math.pow((Pairs.get(results.get(i).value.intValue()).VerDistance - entry[0]), 2));
-            if (xd <= BinSize && yd <= BinSize) {
-                res.add(Pairs.get(results.get(i).value.intValue()));
-            }
-        }
-        return res;
-    }
-
     /**
      * Returns the list of nearest neighbor points
      *
@@ -1801,26 +1816,20 @@ public class Kriging {
     }
 
     /**
-     * Creates the pairs list based on sector classification. calcs the distance
-     * and moment of inertia for each pair It also calculates the min and max
-     * points and boundary It also build the KDTree object to be used with the
-     * Kriging
+     * Calculates the min and max points and boundary and the maximum distance
+     * between the points. It also builds the KDTree object to be used with the
+     * Kriging and to find the pairs of points that are close enough to be
+     * binned. The pairs themselves are not stored; they are visited by
+     * visitPairs as the bins are calculated, so that the memory that is used
+     * does not grow with the number of pairs.
      */
-    void calPairs4Sec() throws FileNotFoundException {
-        MaximumDistance = 0;
+    void calcPointTree() {
         MinX = Double.POSITIVE_INFINITY;
         MinY = Double.POSITIVE_INFINITY;
         MaxX = Double.NEGATIVE_INFINITY;
         MaxY = Double.NEGATIVE_INFINITY;
         pointsTree = new KdTree.SqrEuclid<>(2, new Integer(this.points.size()));
-        //PairsTree = new KdTree.SqrEuclid<Double>(2, new Integer(this.Points.size()*(this.Points.size()-1)/2));
-        PairsTree = new KdTree.SqrEuclid<>(2, new Integer(this.points.size() * (this.points.size())));
         double[] entry;
-        double[] pairentry;
-
-//        String s = new String();
-        double dx = 0;
-        double dy = 0;
         for (int i = 0; i < this.points.size(); i++) {
 
             if (this.points.get(i).x < MinX) {
@@ -1838,59 +1847,9 @@ public class Kriging {
 
             entry = new double[]{this.points.get(i).y, this.points.get(i).x};
             pointsTree.addPoint(entry, (double) i);
-
-            for (int j = 0; j < this.points.size(); j++) {
-                pair pr = new pair();
-
-                if (i != j) {
-
-                    pr.FirstP = i;
-                    pr.SecondP = j;
-                    pr.Distance = Math.sqrt(Math.pow((points.get(i).x - points.get(j).x), 2)
-                            + Math.pow((points.get(i).y - points.get(j).y), 2));
-
-                    pr.HorDistance = (points.get(j).x - points.get(i).x);
-                    pr.VerDistance = (points.get(j).y - points.get(i).y);
-
-                    if (MaximumDistance < pr.Distance) {
-                        MaximumDistance = pr.Distance;
-                    }
-
-                    dx = points.get(j).x - points.get(i).x;
-                    dy = points.get(j).y - points.get(i).y;
-
-                    if (dx != 0) {
-                        if ((dx > 0 && dy >= 0)) {
-                            pr.Direction = Math.atan(dy / dx);
-                        }
-                        if (dx < 0 && dy >= 0) {
-                            pr.Direction = Math.atan(dy / dx) + Math.PI;
-                        }
-                        if (dx > 0 && dy < 0) {
-                            pr.Direction = Math.atan(dy / dx) + 2 * Math.PI;
-                        }
-                        if (dx < 0 && dy < 0) {
-                            pr.Direction = Math.atan(dy / dx) + Math.PI;;
-                        }
-                    } else {
-                        if (dy >= 0) {
-                            pr.Direction = Math.PI / 2;
-                        } else {
-                            pr.Direction = 3 * Math.PI / 2;
-                        }
-                    }
-                    pr.MomentI = Math.pow((points.get(i).z - points.get(j).z), 2) / 2;
-                    Pairs.add(pr);
-
-                    pairentry = new double[]{pr.VerDistance, pr.HorDistance};
-                    PairsTree.addPoint(pairentry, (double) Pairs.size() - 1.0);
-
-                }
-            }
         }
+        MaximumDistance = getMaximumDistance();
 
-//        pw.close();
-        //LagSize  = MaximumDistance/NumberOfLags;
         bMaxX = MaxX;
         bMaxY = MaxY;
         bMinX = MinX;
@@ -1898,110 +1857,164 @@ public class Kriging {
     }
 
     /**
-     * Creates the pairs list based for Map classification
-     *
-     * @throws FileNotFoundException
+     * Returns the maximum distance between two points. The two points are
+     * vertices of the convex hull of the points, which is found with the
+     * monotone chain algorithm.
      */
-    void CalPairs4Map() throws FileNotFoundException {
-        MaximumDistance = 0;
-        MinX = Double.POSITIVE_INFINITY;
-        MinY = Double.POSITIVE_INFINITY;
-        MaxX = Double.NEGATIVE_INFINITY;
-        MaxY = Double.NEGATIVE_INFINITY;
-        pointsTree = new KdTree.SqrEuclid<Double>(2, new Integer(this.points.size()));
-        PairsTree = new KdTree.SqrEuclid<Double>(2, new Integer(this.points.size() * (this.points.size() - 1) / 2));
-        double[] entry;
-        double[] pairentry;
-
-//        String s= new String();
-//        PrintWriter pw ;
-//        pw = new PrintWriter("G:\\test.txt");
-        double dx = 0;
-        double dy = 0;
-        for (int i = 0; i < this.points.size(); i++) {
-
-            if (this.points.get(i).x < MinX) {
-                MinX = this.points.get(i).x;
-            }
-            if (this.points.get(i).y < MinY) {
-                MinY = this.points.get(i).y;
+    private double getMaximumDistance() {
+        int n = points.size();
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                KrigingPoint p = points.get(a);
+                KrigingPoint q = points.get(b);
+                return (p.x != q.x) ? Double.compare(p.x, q.x) : Double.compare(p.y, q.y);
             }
-            if (this.points.get(i).x > MaxX) {
-                MaxX = this.points.get(i).x;
+        });
+
+        int[] hull = new int[2 * n];
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            while (k >= 2 && cross(hull[k - 2], hull[k - 1], order[i]) <= 0) {
+                k--;
             }
-            if (this.points.get(i).y > MaxY) {
-                MaxY = this.points.get(i).y;
+            hull[k++] = order[i];
+        }
+        for (int i = n - 2, lowerSize = k + 1; i >= 0; i--) {
+            while (k >= lowerSize && cross(hull[k - 2], hull[k - 1], order[i]) <= 0) {
+                k--;
             }
+            hull[k++] = order[i];
+        }
 
-            entry = new double[]{this.points.get(i).y, this.points.get(i).x};
-            pointsTree.addPoint(entry, (double) i);
-
-            for (int j = 0; j < this.points.size(); j++) {
-                pair pr = new pair();
-
-                if (points.get(i).x <= points.get(j).x && i != j) {
+        double maxDistance = 0;
+        for (int i = 0; i < k; i++) {
+            KrigingPoint p = points.get(hull[i]);
+            for (int j = i + 1; j < k; j++) {
+                KrigingPoint q = points.get(hull[j]);
+                double dist = Math.sqrt(Math.pow((p.x - q.x), 2) + Math.pow((p.y - q.y), 2));
+                if (maxDistance < dist) {
+                    maxDistance = dist;
+                }
+            }
+        }
+        return maxDistance;
+    }
 
-                    pr.FirstP = i;
-                    pr.SecondP = j;
-                    pr.Distance = Math.sqrt(Math.pow((points.get(i).x - points.get(j).x), 2)
-                            + Math.pow((points.get(i).y - points.get(j).y), 2));
+    /**
+     * Returns the cross product of the vectors from point o to points a and
+     * b, which is positive if o, a and b turn counter-clockwise.
+     */
+    private double cross(int o, int a, int b) {
+        KrigingPoint po = points.get(o);
+        KrigingPoint pa = points.get(a);
+        KrigingPoint pb = points.get(b);
+        return (pa.x - po.x) * (pb.y - po.y) - (pa.y - po.y) * (pb.x - po.x);
+    }
 
-                    pr.HorDistance = (points.get(j).x - points.get(i).x);
-                    pr.VerDistance = (points.get(j).y - points.get(i).y);
+    /**
+     * Receives the pairs of points that are visited by visitPairs
+     */
+    private abstract class PairVisitor {
+
+        /**
+         * @param dx the horizontal distance from the first point to the second
+         * @param dy the vertical distance from the first point to the second
+         * @param distance the distance between the points
+         * @param momentI the moment of inertia of the pair
+         */
+        abstract void visit(double dx, double dy, double distance, double momentI);
+    }
 
-                    if (MaximumDistance < pr.Distance) {
-                        MaximumDistance = pr.Distance;
+    /**
+     * Visits each ordered pair of different points, i.e. both (i, j) and (j,
+     * i), that are no further apart than maxDistance. If maxDistance is less
+     * than the maximum distance between the points, the pairs of each point
+     * are found with the point tree. If PairSamplingRate is less than 1, each
+     * pair is visited with that probability.
+     *
+     * @param maxDistance
+     * @param visitor
+     */
+    private void visitPairs(double maxDistance, PairVisitor visitor) {
+        int n = points.size();
+        if (PairSamplingRate <= 0) {
+            return;
+        }
+        boolean sample = PairSamplingRate < 1;
+        // the generator is seeded so that the same points give the same bins
+        Random rnd = new Random(n);
+        double logSkipProbability = Math.log(1 - PairSamplingRate);
+        boolean useTree = maxDistance < MaximumDistance;
+        for (int i = 0; i < n; i++) {
+            KrigingPoint p = points.get(i);
+            if (useTree) {
+                List<KdTree.Entry<Double>> results = pointsTree.neighborsWithinRange(
+                        new double[]{p.y, p.x}, maxDistance);
+                for (KdTree.Entry<Double> result : results) {
+                    int j = result.value.intValue();
+                    if (j != i && (!sample || rnd.nextDouble() < PairSamplingRate)) {
+                        visitPair(p, points.get(j), visitor);
                     }
-                    dx = points.get(j).x - points.get(i).x;
-                    dy = points.get(j).y - points.get(i).y;
-
-                    if (dx != 0) {
-                        if ((dx > 0 && dy >= 0)) {
-                            pr.Direction = Math.atan(dy / dx);
-                        }
-                        if (dx < 0 && dy >= 0) {
-                            pr.Direction = Math.atan(dy / dx) + Math.PI;
-                        }
-                        if (dx > 0 && dy < 0) {
-                            pr.Direction = Math.atan(dy / dx) + 2 * Math.PI;
-                        }
-                        if (dx < 0 && dy < 0) {
-                            pr.Direction = Math.atan(dy / dx) + Math.PI;;
-                        }
-                    } else {
-                        if (dy >= 0) {
-                            pr.Direction = Math.PI / 2;
-                        } else {
-                            pr.Direction = 3 * Math.PI / 2;
-                        }
+                }
+            } else {
+                // when sampling, the number of pairs that are skipped before
+                // the next one that is visited has a geometric distribution
+                long j = sample ? getSkip(rnd, logSkipProbability) : 0;
+                while (j < n) {
+                    if (j != i) {
+                        visitPair(p, points.get((int) j), visitor);
                     }
-
-                    pr.MomentI = Math.pow((points.get(i).z - points.get(j).z), 2) / 2;
-                    Pairs.add(pr);
-
-                    pairentry = new double[]{pr.VerDistance, pr.HorDistance};
-                    PairsTree.addPoint(pairentry, (double) Pairs.size() - 1.0);
-
-//                    s =  Double.toString(pr.Distance) + "," + Double.toString(pr.Direction)+
-//                            "," + Double.toString(pr.MomentI)+
-//                            "," + Double.toString(pr.HorDistance)+
-//                            ","+Double.toString(pr.VerDistance)+
-//                            "," + Integer.toString(pr.FirstP)+
-//                            "," + Integer.toString(pr.SecondP);
-//
-//                    pw.println(s);
+                    j += 1 + (sample ? getSkip(rnd, logSkipProbability) : 0);
                 }
-
             }
         }
+    }
 
-//        pw.close();
-        //LagSize  = MaximumDistance/NumberOfLags;
-        bMaxX = MaxX;
-        bMaxY = MaxY;
-        bMinX = MinX;
-        bMinY = MinY;
+    private static long getSkip(Random rnd, double logSkipProbability) {
+        return (long) Math.min(Integer.MAX_VALUE,
+                Math.floor(Math.log(1 - rnd.nextDouble()) / logSkipProbability));
+    }
 
+    private void visitPair(KrigingPoint first, KrigingPoint second, PairVisitor visitor) {
+        double dx = second.x - first.x;
+        double dy = second.y - first.y;
+        double distance = Math.sqrt(Math.pow(dx, 2) + Math.pow(dy, 2));
+        double momentI = Math.pow((first.z - second.z), 2) / 2;
+        visitor.visit(dx, dy, distance, momentI);
+    }
+
+    /**
+     * Returns the direction from one point to another, in radians
+     * counter-clockwise from the x axis, between 0 and 2 pi.
+     */
+    private static double getDirection(double dx, double dy) {
+        double direction = 0;
+        if (dx != 0) {
+            if ((dx > 0 && dy >= 0)) {
+                direction = Math.atan(dy / dx);
+            }
+            if (dx < 0 && dy >= 0) {
+                direction = Math.atan(dy / dx) + Math.PI;
+            }
+            if (dx > 0 && dy < 0) {
+                direction = Math.atan(dy / dx) + 2 * Math.PI;
+            }
+            if (dx < 0 && dy < 0) {
+                direction = Math.atan(dy / dx) + Math.PI;
+            }
+        } else {
+            if (dy >= 0) {
+                direction = Math.PI / 2;
+            } else {
+                direction = 3 * Math.PI / 2;
+            }
+        }
+        return direction;
     }
 
     /**
@@ -2081,11 +2094,7 @@ public class Kriging {
     public void calcBinSurface(SemivariogramType Type, double DistanseRatio, int NumberOfLags,
             boolean Anisotropic) {
         this.NumberOfLags = NumberOfLags;
-        try {
-            CalPairs4Map();
-        } catch (FileNotFoundException ex) {
-            Logger.getLogger(Kriging.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        calcPointTree();
         if (this.LagSize == 0) {
             this.LagSize = (this.MaximumDistance * DistanseRatio) / this.NumberOfLags;
         }
@@ -2110,11 +2119,7 @@ public class Kriging {
     public Variogram getSemivariogram(SemivariogramType type, double distanceRatio, int numberOfLags,
             boolean anisotropic, boolean useNSGA) {
         this.NumberOfLags = numberOfLags;
-        try {
-            calPairs4Sec();
-        } catch (FileNotFoundException ex) {
-            Logger.getLogger(Kriging.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        calcPointTree();
         if (this.LagSize == 0) {
             this.LagSize = (this.MaximumDistance * distanceRatio) / this.NumberOfLags;
         }
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.structures;
+
+import java.util.Arrays;
+
+/**
+ * A bucketed priority queue of grid cells for use with integer or quantised
+ * elevations. The range of priorities is divided into buckets of equal width
+ * and cells are added to, and removed from, a bucket in first-in-first-out
+ * order, so that adding and removing a cell takes constant time rather than
+ * the logarithmic time needed by a heap. Like CellPriorityQueue, the cells
+ * are held in primitive arrays and no objects are created.
+ *
+ * Cells are only ordered to within the width of a bucket. With a bucket width
+ * of one and integer elevations, a priority-flood that raises flat cells by a
+ * small increment removes the cells of each bucket in very nearly increasing
+ * order and gives the same result as a heap to within floating-point
+ * rounding. Priorities above the specified maximum are placed in the highest
+ * bucket and those below the minimum in the lowest bucket.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public class BucketedCellPriorityQueue implements GridCellQueue {
+
+    private static final int MAX_NUM_BUCKETS = 1 << 24;
+    private final double minPriority;
+    private final double bucketWidth;
+    private final int numBuckets;
+    private final int[] bucketHeads;
+    private final int[] bucketTails;
+    private int currentBucket = 0;
+    private long[] nodeCells;
+    private double[] nodePriorities;
+    private int[] nodeNext;
+    private int numNodes = 0;
+    private int freeNodes = -1;
+    private int size = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param minPriority The lowest priority that will be added to the queue,
+     * e.g. the minimum elevation in a DEM.
+     * @param maxPriority The highest priority that will be added to the queue.
+     * @param bucketWidth The range of priorities covered by each bucket. Use
+     * 1.0 for integer elevations.
+     */
+    public BucketedCellPriorityQueue(double minPriority, double maxPriority,
+            double bucketWidth) {
+        if (bucketWidth <= 0 || maxPriority < minPriority) {
+            throw new IllegalArgumentException("Invalid bucketed priority queue range.");
+        }
+        double n = Math.floor((maxPriority - minPriority) / bucketWidth) + 2;
+        if (n > MAX_NUM_BUCKETS) {
+            throw new IllegalArgumentException("The range of priorities requires too many buckets.");
+        }
+        this.minPriority = minPriority;
+        this.bucketWidth = bucketWidth;
+        numBuckets = (int) n;
+        bucketHeads = new int[numBuckets];
+        bucketTails = new int[numBuckets];
+        Arrays.fill(bucketHeads, -1);
+        Arrays.fill(bucketTails, -1);
+        int initialCapacity = 1024;
+        nodeCells = new long[initialCapacity];
+        nodePriorities = new double[initialCapacity];
+        nodeNext = new int[initialCapacity];
+    }
+
+    /**
+     * Indicates whether a range of priorities can be covered by a bucketed
+     * queue.
+     *
+     * @param minPriority The lowest priority.
+     * @param maxPriority The highest priority.
+     * @param bucketWidth The range of priorities covered by each bucket.
+     * @return true if the number of buckets is acceptable.
+     */
+    public static boolean isRangeSupported(double minPriority, double maxPriority,
+            double bucketWidth) {
+        return bucketWidth > 0 && maxPriority >= minPriority
+                && Math.floor((maxPriority - minPriority) / bucketWidth) + 2 <= MAX_NUM_BUCKETS;
+    }
+
+    /**
+     * Adds a grid cell to the queue.
+     *
+     * @param row The zero-based row of the cell.
+     * @param column The zero-based column of the cell.
+     * @param priority The priority of the cell. Cells with lower values are
+     * removed first.
+     */
+    @Override
+    public void add(int row, int column, double priority) {
+        int node;
+        if (freeNodes >= 0) {
+            node = freeNodes;
+            freeNodes = nodeNext[node];
+        } else {
+            if (numNodes == nodeCells.length) {
+                grow();
+            }
+            node = numNodes;
+            numNodes++;
+        }
+        nodeCells[node] = CellPriorityQueue.packCell(row, column);
+        nodePriorities[node] = priority;
+        nodeNext[node] = -1;
+
+        int bucket = getBucket(priority);
+        if (bucketTails[bucket] >= 0) {
+            nodeNext[bucketTails[bucket]] = node;
+        } else {
+            bucketHeads[bucket] = node;
+        }
+        bucketTails[bucket] = node;
+        if (size == 0 || bucket < currentBucket) {
+            currentBucket = bucket;
+        }
+        size++;
+    }
+
+    private int getBucket(double priority) {
+        double b = (priority - minPriority) / bucketWidth;
+        if (b <= 0 || b != b) {
+            return 0;
+        }
+        if (b >= numBuckets - 1) {
+            return numBuckets - 1;
+        }
+        return (int) b;
+    }
+
+    private int head() {
+        while (bucketHeads[currentBucket] < 0) {
+            currentBucket++;
+        }
+        return bucketHeads[currentBucket];
+    }
+
+    /**
+     * Retrieves the row of the cell at the head of the queue. The queue must
+     * not be empty.
+     *
+     * @return The zero-based row.
+     */
+    @Override
+    public int peekRow() {
+        return (int) (nodeCells[head()] >>> 32);
+    }
+
+    /**
+     * Retrieves the column of the cell at the head of the queue. The queue
+     * must not be empty.
+     *
+     * @return The zero-based column.
+     */
+    @Override
+    public int peekColumn() {
+        return (int) nodeCells[head()];
+    }
+
+    /**
+     * Retrieves the priority of the cell at the head of the queue. The queue
+     * must not be empty.
+     *
+     * @return The priority.
+     */
+    @Override
+    public double peekPriority() {
+        return nodePriorities[head()];
+    }
+
+    /**
+     * Removes the cell at the head of the queue.
+     */
+    @Override
+    public void remove() {
+        if (size == 0) {
+            return;
+        }
+        int node = head();
+        int next = nodeNext[node];
+        bucketHeads[currentBucket] = next;
+        if (next < 0) {
+            bucketTails[currentBucket] = -1;
+        }
+        nodeNext[node] = freeNodes;
+        freeNodes = node;
+        size--;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all cells from the queue. The memory used by the queue is
+     * retained so that it can be reused.
+     */
+    @Override
+    public void clear() {
+        Arrays.fill(bucketHeads, -1);
+        Arrays.fill(bucketTails, -1);
+        currentBucket = 0;
+        numNodes = 0;
+        freeNodes = -1;
+        size = 0;
+    }
+
+    private void grow() {
+        int newCapacity = nodeCells.length + (nodeCells.length >> 1);
+        if (newCapacity < 0 || newCapacity > Integer.MAX_VALUE - 8) {
+            newCapacity = Integer.MAX_VALUE - 8;
+            if (newCapacity <= numNodes) {
+                throw new OutOfMemoryError("Priority queue capacity exceeded.");
+            }
+        }
+        nodeCells = Arrays.copyOf(nodeCells, newCapacity);
+        nodePriorities = Arrays.copyOf(nodePriorities, newCapacity);
+        nodeNext = Arrays.copyOf(nodeNext, newCapacity);
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.structures;
+
+import java.util.Arrays;
+
+/**
+ * A priority queue of grid cells, used by priority-flood operations such as
+ * depression filling and breaching. It is a binary min-heap that stores each
+ * cell's priority (usually its elevation) and its row and column in parallel
+ * primitive arrays, so that no object is created when a cell is added or
+ * removed. This is far less demanding on memory and the garbage collector
+ * than a java.util.PriorityQueue of GridCell objects when there are hundreds
+ * of millions of cells.
+ *
+ * Cells with equal priorities are removed in row-major order, i.e. by row and
+ * then by column, which is the same ordering used by GridCell.compareTo.
+ *
+ * Typical use:
+ * <pre>
+ * while (!queue.isEmpty()) {
+ *     row = queue.peekRow();
+ *     col = queue.peekColumn();
+ *     z = queue.peekPriority();
+ *     queue.remove();
+ *     ...
+ * }
+ * </pre>
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public class CellPriorityQueue implements GridCellQueue {
+
+    private double[] priorities;
+    private long[] cells;
+    private int size = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param initialCapacity The number of cells that the queue can hold before
+     * its arrays need to be enlarged.
+     */
+    public CellPriorityQueue(int initialCapacity) {
+        if (initialCapacity < 16) {
+            initialCapacity = 16;
+        }
+        priorities = new double[initialCapacity];
+        cells = new long[initialCapacity];
+    }
+
+    /**
+     * Adds a grid cell to the queue.
+     *
+     * @param row The zero-based row of the cell.
+     * @param column The zero-based column of the cell.
+     * @param priority The priority of the cell. Cells with lower values are
+     * removed first.
+     */
+    @Override
+    public void add(int row, int column, double priority) {
+        if (size == priorities.length) {
+            grow();
+        }
+        long cell = packCell(row, column);
+
+        // sift up
+        int i = size;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            double p = priorities[parent];
+            if (p < priority || (p == priority && cells[parent] <= cell)) {
+                break;
+            }
+            priorities[i] = p;
+            cells[i] = cells[parent];
+            i = parent;
+        }
+        priorities[i] = priority;
+        cells[i] = cell;
+        size++;
+    }
+
+    /**
+     * Retrieves the row of the cell at the head of the queue, i.e. the cell
+     * with the lowest priority. The queue must not be empty.
+     *
+     * @return The zero-based row.
+     */
+    @Override
+    public int peekRow() {
+        return (int) (cells[0] >>> 32);
+    }
+
+    /**
+     * Retrieves the column of the cell at the head of the queue. The queue
+     * must not be empty.
+     *
+     * @return The zero-based column.
+     */
+    @Override
+    public int peekColumn() {
+        return (int) cells[0];
+    }
+
+    /**
+     * Retrieves the priority of the cell at the head of the queue. The queue
+     * must not be empty.
+     *
+     * @return The priority.
+     */
+    @Override
+    public double peekPriority() {
+        return priorities[0];
+    }
+
+    /**
+     * Removes the cell at the head of the queue.
+     */
+    @Override
+    public void remove() {
+        if (size == 0) {
+            return;
+        }
+        size--;
+        if (size == 0) {
+            return;
+        }
+        double priority = priorities[size];
+        long cell = cells[size];
+
+        // sift down
+        int i = 0;
+        int half = size >>> 1;
+        while (i < half) {
+            int child = (i << 1) + 1;
+            int right = child + 1;
+            if (right < size && (priorities[right] < priorities[child]
+                    || (priorities[right] == priorities[child] && cells[right] < cells[child]))) {
+                child = right;
+            }
+            double p = priorities[child];
+            if (priority < p || (priority == p && cell <= cells[child])) {
+                break;
+            }
+            priorities[i] = p;
+            cells[i] = cells[child];
+            i = child;
+        }
+        priorities[i] = priority;
+        cells[i] = cell;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all cells from the queue. The memory used by the queue is
+     * retained so that it can be reused.
+     */
+    @Override
+    public void clear() {
+        size = 0;
+    }
+
+    private void grow() {
+        int newCapacity = priorities.length + (priorities.length >> 1);
+        if (newCapacity < 0 || newCapacity > Integer.MAX_VALUE - 8) {
+            newCapacity = Integer.MAX_VALUE - 8;
+            if (newCapacity <= size) {
+                throw new OutOfMemoryError("Priority queue capacity exceeded.");
+            }
+        }
+        priorities = Arrays.copyOf(priorities, newCapacity);
+        cells = Arrays.copyOf(cells, newCapacity);
+    }
+
+    static long packCell(int row, int column) {
+        return ((long) row << 32) | (column & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.structures;
+
+/**
+ * A priority queue of grid cells that are identified by their row and column
+ * and ordered by a priority, usually elevation. Implementations hold the cells
+ * in primitive arrays rather than as objects.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public interface GridCellQueue {
+
+    void add(int row, int column, double priority);
+
+    int peekRow();
+
+    int peekColumn();
+
+    double peekPriority();
+
+    void remove();
+
+    boolean isEmpty();
+
+    int size();
+
+    void clear();
+}
@@ -22,6 +22,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.PriorityQueue;
 
 /**
  * An efficient well-optimized kd-tree
@@ -453,96 +454,146 @@ public abstract class KdTree<T> {
      */
     @SuppressWarnings("unchecked")
     public List<Entry<T>> nearestNeighbor(double[] location, int count, boolean sequentialSorting) {
-        KdTree<T> cursor = this;
-        cursor.status = Status.NONE;
-        double range = Double.POSITIVE_INFINITY;
+        // the search does not modify the tree, so that several threads may
+        // search the same tree at once.
         ResultHeap resultHeap = new ResultHeap(count);
+        searchNearest(this, location, resultHeap);
 
-        do {
-            if (cursor.status == Status.ALLVISITED) {
-                // At a fully visited part. Move up the tree
-                cursor = cursor.parent;
-                continue;
+        ArrayList<Entry<T>> results = new ArrayList<>(resultHeap.values);
+        if (sequentialSorting) {
+            while (resultHeap.values > 0) {
+                resultHeap.removeLargest();
+                results.add(new Entry<>(resultHeap.removedDist, (T) resultHeap.removedData));
             }
+        } else {
+            for (int i = 0; i < resultHeap.values; i++) {
+                results.add(new Entry<>(resultHeap.distance[i], (T) resultHeap.data[i]));
+            }
+        }
 
-            if (cursor.status == Status.NONE && cursor.locations != null) {
-                // At a leaf. Use the data.
-                if (cursor.locationCount > 0) {
-                    if (cursor.singularity) {
-                        double dist = pointDist(cursor.locations[0], location);
-                        if (dist <= range) {
-                            for (int i = 0; i < cursor.locationCount; i++) {
-                                resultHeap.addValue(dist, cursor.data[i]);
-                            }
-                        }
-                    } else {
-                        for (int i = 0; i < cursor.locationCount; i++) {
-                            double dist = pointDist(cursor.locations[i], location);
-                            resultHeap.addValue(dist, cursor.data[i]);
-                        }
+        return results;
+    }
+
+    /**
+     * Adds the points of a node that may be among the nearest points to the
+     * heap, visiting the child that contains the location first and the
+     * other child only if it may contain a nearer point. Called on the root,
+     * which measures the distances.
+     */
+    private void searchNearest(KdTree<T> node, double[] location, ResultHeap resultHeap) {
+        if (node.locations != null) {
+            // At a leaf. Use the data.
+            searchLeaf(node, location, resultHeap);
+            return;
+        }
+
+        KdTree<T> near, far;
+        if (location[node.splitDimension] > node.splitValue) {
+            near = node.right;
+            far = node.left;
+        } else {
+            near = node.left;
+            far = node.right;
+        }
+        searchNearest(near, location, resultHeap);
+        if (far.locationCount == 0
+                || (!far.singularity && pointRegionDist(location, far.minLimit,
+                        far.maxLimit) > resultHeap.getMaxDist())) {
+            return;
+        }
+        searchNearest(far, location, resultHeap);
+    }
+
+    private void searchLeaf(KdTree<T> leaf, double[] location, ResultHeap resultHeap) {
+        if (leaf.locationCount > 0) {
+            if (leaf.singularity) {
+                double dist = pointDist(leaf.locations[0], location);
+                if (dist <= resultHeap.getMaxDist()) {
+                    for (int i = 0; i < leaf.locationCount; i++) {
+                        resultHeap.addValue(dist, leaf.data[i]);
                     }
-                    range = resultHeap.getMaxDist();
                 }
-
-                if (cursor.parent == null) {
-                    break;
+            } else {
+                for (int i = 0; i < leaf.locationCount; i++) {
+                    double dist = pointDist(leaf.locations[i], location);
+                    resultHeap.addValue(dist, leaf.data[i]);
                 }
-                cursor = cursor.parent;
-                continue;
             }
+        }
+    }
 
-            // Going to descend
-            KdTree<T> nextCursor = null;
-            if (cursor.status == Status.NONE) {
-                // At a fresh node, descend the most probably useful direction
-                if (location[cursor.splitDimension] > cursor.splitValue) {
-                    // Descend right
-                    nextCursor = cursor.right;
-                    cursor.status = Status.RIGHTVISITED;
+    /**
+     * Calculates approximately the nearest 'count' points to 'location' with
+     * a best-bin-first search (Beis and Lowe, 1997). The leaves are searched
+     * in order of their distance from the location and the search stops
+     * after 'maxLeaves' of them, so that it remains fast in many dimensions,
+     * where an exact search visits most of the tree. Like nearestNeighbor,
+     * the search does not modify the tree.
+     *
+     * @param location The location.
+     * @param count The number of points to find.
+     * @param maxLeaves The largest number of leaves to search.
+     * @return The points found, in no particular order.
+     */
+    @SuppressWarnings("unchecked")
+    public List<Entry<T>> nearestNeighborApproximate(double[] location, int count, int maxLeaves) {
+        ResultHeap resultHeap = new ResultHeap(count);
+        PriorityQueue<Branch<T>> branches = new PriorityQueue<>();
+        KdTree<T> node = this;
+        int leaves = 0;
+        while (node != null) {
+            // descend to the leaf containing the location, remembering the
+            // branches not taken
+            while (node.locations == null) {
+                KdTree<T> near, far;
+                if (location[node.splitDimension] > node.splitValue) {
+                    near = node.right;
+                    far = node.left;
                 } else {
-                    // Descend left;
-                    nextCursor = cursor.left;
-                    cursor.status = Status.LEFTVISITED;
+                    near = node.left;
+                    far = node.right;
                 }
-            } else if (cursor.status == Status.LEFTVISITED) {
-                // Left node visited, descend right.
-                nextCursor = cursor.right;
-                cursor.status = Status.ALLVISITED;
-            } else if (cursor.status == Status.RIGHTVISITED) {
-                // Right node visited, descend left.
-                nextCursor = cursor.left;
-                cursor.status = Status.ALLVISITED;
-            }
-
-            // Check if it's worth descending. Assume it is if it's sibling has
-            // not been visited yet.
-            if (cursor.status == Status.ALLVISITED) {
-                if (nextCursor.locationCount == 0
-                        || (!nextCursor.singularity && pointRegionDist(location, nextCursor.minLimit,
-                                nextCursor.maxLimit) > range)) {
-                    continue;
+                if (far.locationCount > 0) {
+                    branches.add(new Branch<>(pointRegionDist(location, far.minLimit, far.maxLimit), far));
                 }
+                node = near;
             }
+            searchLeaf(node, location, resultHeap);
+            leaves++;
 
-            // Descend down the tree
-            cursor = nextCursor;
-            cursor.status = Status.NONE;
-        } while (cursor.parent != null || cursor.status != Status.ALLVISITED);
-
-        ArrayList<Entry<T>> results = new ArrayList<>(resultHeap.values);
-        if (sequentialSorting) {
-            while (resultHeap.values > 0) {
-                resultHeap.removeLargest();
-                results.add(new Entry<>(resultHeap.removedDist, (T) resultHeap.removedData));
-            }
-        } else {
-            for (int i = 0; i < resultHeap.values; i++) {
-                results.add(new Entry<>(resultHeap.distance[i], (T) resultHeap.data[i]));
+            node = null;
+            Branch<T> branch = branches.poll();
+            if (leaves < maxLeaves && branch != null && branch.distance <= resultHeap.getMaxDist()) {
+                node = branch.node;
             }
         }
 
+        ArrayList<Entry<T>> results = new ArrayList<>(resultHeap.values);
+        for (int i = 0; i < resultHeap.values; i++) {
+            results.add(new Entry<>(resultHeap.distance[i], (T) resultHeap.data[i]));
+        }
         return results;
     }
+
+    /**
+     * A part of the tree that is still to be searched by
+     * nearestNeighborApproximate, with its distance from the location.
+     */
+    private static class Branch<T> implements Comparable<Branch<T>> {
+
+        final double distance;
+        final KdTree<T> node;
+
+        Branch(double distance, KdTree<T> node) {
+            this.distance = distance;
+            this.node = node;
+        }
+
+        @Override
+        public int compareTo(Branch<T> o) {
+            return Double.compare(distance, o.distance);
+        }
+    }
     
     @SuppressWarnings("unchecked")
     public List<Entry<T>> nearestNeighbor(double[] location, int count, boolean sequentialSorting, boolean useQuadBasedSearch) {
@@ -1,538 +1,484 @@
-//package whitebox.structures;
-//
-//import java.util.Arrays;
-//import java.util.HashSet;
-//import java.util.LinkedList;
-//import java.util.List;
-//import java.util.ListIterator;
-//import java.util.Set;
-//
-///**
-// * Implementation of an arbitrary-dimension RTree. Based on R-Trees: A Dynamic
-// * Index Structure for Spatial Searching (Antonn Guttmann, 1984)
-// *
-// * This class is not thread-safe.
-// *
-// * Copyright 2010 Russ Weeks rweeks@newbrightidea.com Licensed under the GNU
-// * LGPL License details here: http://www.gnu.org/licenses/lgpl-3.0.txt
-// *
-// * @param <T> the type of entry to store in this RTree.
-// */
-//public class RTree<T> {
-//
-//    private final int maxEntries;
-//    private final int minEntries;
-//    private final int numDims;
-//    private Node root;
-//    private volatile int size;
-//
-//    /**
-//     * Creates a new RTree.
-//     *
-//     * @param maxEntries maximum number of entries per node
-//     * @param minEntries minimum number of entries per node (except for the root
-//     * node)
-//     * @param numDims the number of dimensions of the RTree.
-//     */
-//    public RTree(int maxEntries, int minEntries, int numDims) {
-//        assert (minEntries <= (maxEntries / 2));
-//        this.numDims = numDims;
-//        this.maxEntries = maxEntries;
-//        this.minEntries = minEntries;
-//        root = buildRoot(true);
-//    }
-//
-//    private Node buildRoot(boolean asLeaf) {
-//        float[] initCoords = new float[numDims];
-//        float[] initDimensions = new float[numDims];
-//        for (int i = 0; i < this.numDims; i++) {
-//            initCoords[i] = (float) Math.sqrt(Float.MAX_VALUE);
-//            initDimensions[i] = -2.0f * (float) Math.sqrt(Float.MAX_VALUE);
-//        }
-//        return new Node(initCoords, initDimensions, asLeaf);
-//    }
-//
-//    /**
-//     * Builds a new RTree using default parameters: maximum 50 entries per node
-//     * minimum 2 entries per node 2 dimensions
-//     */
-//    public RTree() {
-//        this(50, 2, 2);
-//    }
-//
-//    /**
-//     * @return the maximum number of entries per node
-//     */
-//    public int getMaxEntries() {
-//        return maxEntries;
-//    }
-//
-//    /**
-//     * @return the minimum number of entries per node for all nodes except the
-//     * root.
-//     */
-//    public int getMinEntries() {
-//        return minEntries;
-//    }
-//
-//    /**
-//     * @return the number of dimensions of the tree
-//     */
-//    public int getNumDims() {
-//        return numDims;
-//    }
-//
-//    /**
-//     * @return the number of items in this tree.
-//     */
-//    public int size() {
-//        return size;
-//    }
-//
-//    /**
-//     * Searches the RTree for objects overlapping with the given rectangle.
-//     *
-//     * @param coords the corner of the rectangle that is the lower bound of
-//     * every dimension (eg. the top-left corner)
-//     * @param dimensions the dimensions of the rectangle.
-//     * @return a list of objects whose rectangles overlap with the given
-//     * rectangle.
-//     */
-//    public List<T> search(float[] coords, float[] dimensions) {
-//        assert (coords.length == numDims);
-//        assert (dimensions.length == numDims);
-//        LinkedList<T> results = new LinkedList<T>();
-//        search(coords, dimensions, root, results);
-//        return results;
-//    }
-//
-//    private void search(float[] coords, float[] dimensions, Node n,
-//            LinkedList<T> results) {
-//        if (n.leaf) {
-//            for (Node e : n.children) {
-//                if (isOverlap(coords, dimensions, e.coords, e.dimensions)) {
-//                    results.add(((Entry) e).entry);
-//                }
-//            }
-//        } else {
-//            for (Node c : n.children) {
-//                if (isOverlap(coords, dimensions, c.coords, c.dimensions)) {
-//                    search(coords, dimensions, c, results);
-//                }
-//            }
-//        }
-//    }
-//
-//    /**
-//     * Deletes the entry associated with the given rectangle from the RTree
-//     *
-//     * @param coords the corner of the rectangle that is the lower bound in
-//     * every dimension
-//     * @param dimensions the dimensions of the rectangle
-//     * @param entry the entry to delete
-//     * @return true iff the entry was deleted from the RTree.
-//     */
-//    public boolean delete(float[] coords, float[] dimensions, T entry) {
-//        assert (coords.length == numDims);
-//        assert (dimensions.length == numDims);
-//        Node l = findLeaf(root, coords, dimensions, entry);
-//        assert (l.leaf);
-//        ListIterator<Node> li = l.children.listIterator();
-//        T removed = null;
-//        while (li.hasNext()) {
-//            @SuppressWarnings("unchecked")
-//            Entry e = (Entry) li.next();
-//            if (e.entry.equals(entry)) {
-//                removed = e.entry;
-//                li.remove();
-//                break;
-//            }
-//        }
-//        if (removed != null) {
-//            condenseTree(l);
-//            size--;
-//        }
-//        if (size == 0) {
-//            root = buildRoot(true);
-//        }
-//        return (removed != null);
-//    }
-//
-//    private Node findLeaf(Node n, float[] coords, float[] dimensions, T entry) {
-//        if (n.leaf) {
-//            for (Node c : n.children) {
-//                if (((Entry) c).entry.equals(entry)) {
-//                    return n;
-//                }
-//            }
-//            return null;
-//        } else {
-//            for (Node c : n.children) {
-//                if (isOverlap(c.coords, c.dimensions, coords, dimensions)) {
-//                    Node result = findLeaf(c, coords, dimensions, entry);
-//                    if (result != null) {
-//                        return result;
-//                    }
-//                }
-//            }
-//            return null;
-//        }
-//    }
-//
-//    private void condenseTree(Node n) {
-//        Set<Node> q = new HashSet<Node>();
-//        while (n != root) {
-//            if (n.leaf && (n.children.size() < minEntries)) {
-//                q.addAll(n.children);
-//                n.parent.children.remove(n);
-//            } else if (!n.leaf && (n.children.size() < minEntries)) {
-//                // probably a more efficient way to do this...
-//                LinkedList<Node> toVisit = new LinkedList<Node>(n.children);
-//                while (!toVisit.isEmpty()) {
-//                    Node c = toVisit.pop();
-//                    if (c.leaf) {
-//                        q.addAll(c.children);
-//                    } else {
-//                        toVisit.addAll(c.children);
-//                    }
-//                }
-//                n.parent.children.remove(n);
-//            } else {
-//                tighten(n);
-//            }
-//            n = n.parent;
-//        }
-//        for (Node ne : q) {
-//            @SuppressWarnings("unchecked")
-//            Entry e = (Entry) ne;
-//            insert(e.coords, e.dimensions, e.entry);
-//        }
-//    }
-//
-//    /**
-//     * Inserts the given entry into the RTree, associated with the given
-//     * rectangle.
-//     *
-//     * @param coords the corner of the rectangle that is the lower bound in
-//     * every dimension
-//     * @param dimensions the dimensions of the rectangle
-//     * @param entry the entry to insert
-//     */
-//    public void insert(float[] coords, float[] dimensions, T entry) {
-//        assert (coords.length == numDims);
-//        assert (dimensions.length == numDims);
-//        Entry e = new Entry(coords, dimensions, entry);
-//        Node l = chooseLeaf(root, e);
-//        l.children.add(e);
-//        size++;
-//        e.parent = l;
-//        if (l.children.size() > maxEntries) {
-//            Node[] splits = splitNode(l);
-//            adjustTree(splits[0], splits[1]);
-//        } else {
-//            adjustTree(l, null);
-//        }
-//    }
-//
-//    /**
-//     * Empties the RTree
-//     */
-//    public void clear() {
-//        root = buildRoot(true);
-//        // let the GC take care of the rest.
-//    }
-//
-//    private void adjustTree(Node n, Node nn) {
-//        if (n == root) {
-//            if (nn != null) {
-//                // build new root and add children.
-//                root = buildRoot(false);
-//                root.children.add(n);
-//                n.parent = root;
-//                root.children.add(nn);
-//                nn.parent = root;
-//            }
-//            tighten(root);
-//            return;
-//        }
-//        tighten(n);
-//        if (nn != null) {
-//            tighten(nn);
-//            if (n.parent.children.size() > maxEntries) {
-//                Node[] splits = splitNode(n.parent);
-//                adjustTree(splits[0], splits[1]);
-//            }
-//        } else if (n.parent != null) {
-//            adjustTree(n.parent, null);
-//        }
-//    }
-//
-//    private Node[] splitNode(Node n) {
-//        @SuppressWarnings("unchecked")
-//        Node[] nn = new RTree.Node[]{n, new Node(n.coords, n.dimensions, n.leaf)};
-//        nn[1].parent = n.parent;
-//        if (nn[1].parent != null) {
-//            nn[1].parent.children.add(nn[1]);
-//        }
-//        LinkedList<Node> cc = new LinkedList<Node>(n.children);
-//        n.children.clear();
-//        Node[] ss = pickSeeds(cc);
-//        nn[0].children.add(ss[0]);
-//        nn[1].children.add(ss[1]);
-//        while (!cc.isEmpty()) {
-//            if ((nn[0].children.size() >= minEntries)
-//                    && (nn[1].children.size() + cc.size() == minEntries)) {
-//                nn[1].children.addAll(cc);
-//                cc.clear();
-//                return nn;
-//            } else if ((nn[1].children.size() >= minEntries)
-//                    && (nn[0].children.size() + cc.size() == minEntries)) {
-//                nn[0].children.addAll(cc);
-//                cc.clear();
-//                return nn;
-//            }
-//            Node c = cc.pop();
-//            Node preferred;
-//            // Implementation of linear PickNext
-//            float e0 = getRequiredExpansion(nn[0].coords, nn[0].dimensions, c);
-//            float e1 = getRequiredExpansion(nn[1].coords, nn[1].dimensions, c);
-//            if (e0 < e1) {
-//                preferred = nn[0];
-//            } else if (e0 > e1) {
-//                preferred = nn[1];
-//            } else {
-//                float a0 = getArea(nn[0].dimensions);
-//                float a1 = getArea(nn[1].dimensions);
-//                if (a0 < a1) {
-//                    preferred = nn[0];
-//                } else if (e0 > a1) {
-//                    preferred = nn[1];
-//                } else {
-//                    if (nn[0].children.size() < nn[1].children.size()) {
-//                        preferred = nn[0];
-//                    } else if (nn[0].children.size() > nn[1].children.size()) {
-//                        preferred = nn[1];
-//                    } else {
-//                        preferred = nn[(int) Math.round(Math.random())];
-//                    }
-//                }
-//            }
-//            preferred.children.add(c);
-//        }
-//        tighten(nn[0]);
-//        tighten(nn[1]);
-//        return nn;
-//    }
-//
-//    // Implementation of LinearPickSeeds
-//    private RTree<T>.Node[] pickSeeds(LinkedList<Node> nn) {
-//        RTree<T>.Node[] bestPair = null;
-//        float bestSep = 0.0f;
-//        for (int i = 0; i < numDims; i++) {
-//            float dimLb = Float.MAX_VALUE, dimMinUb = Float.MAX_VALUE;
-//            float dimUb = -1.0f * Float.MAX_VALUE, dimMaxLb = -1.0f * Float.MAX_VALUE;
-//            Node nMaxLb = null, nMinUb = null;
-//            for (Node n : nn) {
-//                if (n.coords[i] < dimLb) {
-//                    dimLb = n.coords[i];
-//                }
-//                if (n.dimensions[i] + n.coords[i] > dimUb) {
-//                    dimUb = n.dimensions[i] + n.coords[i];
-//                }
-//                if (n.coords[i] > dimMaxLb) {
-//                    dimMaxLb = n.coords[i];
-//                    nMaxLb = n;
-//                }
-//                if (n.dimensions[i] + n.coords[i] < dimMinUb) {
-//                    dimMinUb = n.dimensions[i] + n.coords[i];
-//                    nMinUb = n;
-//                }
-//            }
-//            float sep = (nMaxLb == nMinUb) ? -1.0f
-//                    : Math.abs((dimMinUb - dimMaxLb) / (dimUb - dimLb));
-//            if (sep >= bestSep) {
-//                bestPair = new RTree.Node[]{nMaxLb, nMinUb};
-//                bestSep = sep;
-//            }
-//        }
-//        // In the degenerate case where all points are the same, the above
-//        // algorithm does not find a best pair.  Just pick the first 2
-//        // children.
-//        if (bestPair == null) {
-//            bestPair = new RTree.Node[]{nn.get(0), nn.get(1)};
-//        }
-//        nn.remove(bestPair[0]);
-//        nn.remove(bestPair[1]);
-//        return bestPair;
-//    }
-//
-//    private void tighten(Node n) {
-//        float[] minCoords = new float[n.coords.length];
-//        float[] maxDimensions = new float[n.dimensions.length];
-//        for (int i = 0; i < minCoords.length; i++) {
-//            minCoords[i] = Float.MAX_VALUE;
-//            maxDimensions[i] = 0.0f;
-//
-//            for (Node c : n.children) {
-//                // we may have bulk-added a bunch of children to a node (eg. in
-//                // splitNode)
-//                // so here we just enforce the child->parent relationship.
-//                c.parent = n;
-//                if (c.coords[i] < minCoords[i]) {
-//                    minCoords[i] = c.coords[i];
-//                }
-//                if ((c.coords[i] + c.dimensions[i]) > maxDimensions[i]) {
-//                    maxDimensions[i] = (c.coords[i] + c.dimensions[i]);
-//                }
-//            }
-//        }
-//        System.arraycopy(minCoords, 0, n.coords, 0, minCoords.length);
-//        System.arraycopy(maxDimensions, 0, n.dimensions, 0, maxDimensions.length);
-//    }
-//
-//    private RTree<T>.Node chooseLeaf(RTree<T>.Node n, RTree<T>.Entry e) {
-//        if (n.leaf) {
-//            return n;
-//        }
-//        float minInc = Float.MAX_VALUE;
-//        Node next = null;
-//        for (RTree<T>.Node c : n.children) {
-//            float inc = getRequiredExpansion(c.coords, c.dimensions, e);
-//            if (inc < minInc) {
-//                minInc = inc;
-//                next = c;
-//            } else if (inc == minInc) {
-//                float curArea = 1.0f;
-//                float thisArea = 1.0f;
-//                for (int i = 0; i < c.dimensions.length; i++) {
-//                    curArea *= next.dimensions[i];
-//                    thisArea *= c.dimensions[i];
-//                }
-//                if (thisArea < curArea) {
-//                    next = c;
-//                }
-//            }
-//        }
-//        return chooseLeaf(next, e);
-//    }
-//
-//    /**
-//     * Returns the increase in area necessary for the given rectangle to cover
-//     * the given entry.
-//     */
-//    private float getRequiredExpansion(float[] coords, float[] dimensions, Node e) {
-//        float area = getArea(dimensions);
-//        float[] deltas = new float[dimensions.length];
-//        for (int i = 0; i < deltas.length; i++) {
-//            if (coords[i] + dimensions[i] < e.coords[i] + e.dimensions[i]) {
-//                deltas[i] = e.coords[i] + e.dimensions[i] - coords[i] - dimensions[i];
-//            } else if (coords[i] + dimensions[i] > e.coords[i] + e.dimensions[i]) {
-//                deltas[i] = coords[i] - e.coords[i];
-//            }
-//        }
-//        float expanded = 1.0f;
-//        for (int i = 0; i < dimensions.length; i++) {
-//            area *= dimensions[i] + deltas[i];
-//        }
-//        return (expanded - area);
-//    }
-//
-//    private float getArea(float[] dimensions) {
-//        float area = 1.0f;
-//        for (int i = 0; i < dimensions.length; i++) {
-//            area *= dimensions[i];
-//        }
-//        return area;
-//    }
-//
-//    private boolean isOverlap(float[] scoords, float[] sdimensions,
-//            float[] coords, float[] dimensions) {
-//        for (int i = 0; i < scoords.length; i++) {
-//            boolean overlapInThisDimension = false;
-//            if (scoords[i] == coords[i]) {
-//                overlapInThisDimension = true;
-//            } else if (scoords[i] < coords[i]) {
-//                if (scoords[i] + sdimensions[i] >= coords[i]) {
-//                    overlapInThisDimension = true;
-//                }
-//            } else if (scoords[i] > coords[i]) {
-//                if (coords[i] + dimensions[i] >= scoords[i]) {
-//                    overlapInThisDimension = true;
-//                }
-//            }
-//            if (!overlapInThisDimension) {
-//                return false;
-//            }
-//        }
-//        return true;
-//    }
-//
-//    private class Node {
-//
-//        final float[] coords;
-//        final float[] dimensions;
-//        final LinkedList<Node> children;
-//        final boolean leaf;
-//        Node parent;
-//
-//        private Node(float[] coords, float[] dimensions, boolean leaf) {
-//            this.coords = new float[coords.length];
-//            this.dimensions = new float[dimensions.length];
-//            System.arraycopy(coords, 0, this.coords, 0, coords.length);
-//            System.arraycopy(dimensions, 0, this.dimensions, 0, dimensions.length);
-//            this.leaf = leaf;
-//            children = new LinkedList<Node>();
-//        }
-//    }
-//
-//    private class Entry extends Node {
-//
-//        final T entry;
-//
-//        public Entry(float[] coords, float[] dimensions, T entry) {
-//            // an entry isn't actually a leaf (its parent is a leaf)
-//            // but all the algorithms should stop at the first leaf they encounter,
-//            // so this little hack shouldn't be a problem.
-//            super(coords, dimensions, true);
-//            this.entry = entry;
-//        }
-//
-//        public String toString() {
-//            return "Entry: " + entry;
-//        }
-//    }
-//    // The methods below this point can be used to create an HTML rendering
-//    // of the RTree.  Maybe useful for debugging?
-//    private static final int elemWidth = 150;
-//    private static final int elemHeight = 120;
-//
-//    public String visualize() {
-//        int ubDepth = (int) Math.ceil(Math.log(size) / Math.log(minEntries)) * elemHeight;
-//        int ubWidth = size * elemWidth;
-//        java.io.StringWriter sw = new java.io.StringWriter();
-//        java.io.PrintWriter pw = new java.io.PrintWriter(sw);
-//        pw.println("<html><head></head><body>");
-//        visualize(root, pw, 0, 0, ubWidth, ubDepth);
-//        pw.println("</body>");
-//        pw.flush();
-//        return sw.toString();
-//    }
-//
-//    private void visualize(Node n, java.io.PrintWriter pw, int x0, int y0, int w, int h) {
-//        pw.printf("<div style=\"position:absolute; left: %d; top: %d; width: %d; height: %d; border: 1px dashed\">\n",
-//                x0, y0, w, h);
-//        pw.println("<pre>");
-//        pw.println("Node: " + n.toString() + " (root==" + (n == root) + ") \n");
-//        pw.println("Coords: " + Arrays.toString(n.coords) + "\n");
-//        pw.println("Dimensions: " + Arrays.toString(n.dimensions) + "\n");
-//        pw.println("# Children: " + ((n.children == null) ? 0 : n.children.size()) + "\n");
-//        pw.println("isLeaf: " + n.leaf + "\n");
-//        pw.println("</pre>");
-//        int numChildren = (n.children == null) ? 0 : n.children.size();
-//        for (int i = 0; i < numChildren; i++) {
-//            visualize(n.children.get(i), pw, (int) (x0 + (i * w / (float) numChildren)),
-//                    y0 + elemHeight, (int) (w / (float) numChildren), h - elemHeight);
-//        }
-//        pw.println("</div>");
-//    }
-//}
\ No newline at end of file
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.structures;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A static R-tree of bounding boxes that is bulk-loaded using the
+ * Sort-Tile-Recursive (STR) algorithm of Leutenegger, Lopez and Edgington
+ * (1997). The entries are sorted by the x coordinate of their centres and
+ * divided into vertical slices, each slice is sorted by y and the entries are
+ * then packed into full nodes; the same is done for each level of nodes until
+ * a single root remains. Packed trees have nearly full nodes with little
+ * overlap and are considerably faster to query than trees built by repeated
+ * insertion, although entries cannot be added once the tree is built.
+ *
+ * The nodes are held in flat primitive arrays, with the entries (the leaves)
+ * first and the root last, so that the tree needs only a few objects however
+ * many entries it holds and can be written to, and read from, a file
+ * directly. Entries are identified by their zero-based position in the arrays
+ * from which the tree was built. Boxes are closed, i.e. boxes that share only
+ * an edge or a corner intersect, consistent with BoundingBox.overlaps.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public class RTree {
+
+    public static final int DEFAULT_NODE_SIZE = 16;
+    private final int nodeSize;
+    private final int numEntries;
+    // minX, minY, maxX and maxY of each node
+    private final double[] boxes;
+    // the entry number of a leaf, or the position of the first child of a node
+    private final int[] indices;
+    // the position after the last node of each level, starting with the leaves
+    private final int[] levelBounds;
+
+    /**
+     * Builds a tree with the default node size.
+     *
+     * @param minX The minimum x coordinates of the entries' bounding boxes.
+     * @param minY The minimum y coordinates.
+     * @param maxX The maximum x coordinates.
+     * @param maxY The maximum y coordinates.
+     * @param numEntries The number of entries, which may be less than the
+     * length of the arrays.
+     */
+    public RTree(double[] minX, double[] minY, double[] maxX, double[] maxY,
+            int numEntries) {
+        this(minX, minY, maxX, maxY, numEntries, DEFAULT_NODE_SIZE);
+    }
+
+    /**
+     * Builds a tree.
+     *
+     * @param minX The minimum x coordinates of the entries' bounding boxes.
+     * @param minY The minimum y coordinates.
+     * @param maxX The maximum x coordinates.
+     * @param maxY The maximum y coordinates.
+     * @param numEntries The number of entries, which may be less than the
+     * length of the arrays.
+     * @param nodeSize The maximum number of children of each node.
+     */
+    public RTree(double[] minX, double[] minY, double[] maxX, double[] maxY,
+            int numEntries, int nodeSize) {
+        if (nodeSize < 2) {
+            throw new IllegalArgumentException("The node size must be at least two.");
+        }
+        if (numEntries < 0 || numEntries > minX.length || numEntries > minY.length
+                || numEntries > maxX.length || numEntries > maxY.length) {
+            throw new IllegalArgumentException("Invalid number of R-tree entries.");
+        }
+        this.nodeSize = nodeSize;
+        this.numEntries = numEntries;
+
+        // count the nodes in each level
+        int numLevels = 1;
+        long numNodes = numEntries;
+        int n = numEntries;
+        while (n > 1) {
+            n = (n + nodeSize - 1) / nodeSize;
+            numNodes += n;
+            numLevels++;
+        }
+        if (numNodes > (Integer.MAX_VALUE - 8) / 4) {
+            throw new IllegalArgumentException("Too many R-tree entries.");
+        }
+        boxes = new double[4 * (int) numNodes];
+        indices = new int[(int) numNodes];
+        levelBounds = new int[numLevels];
+
+        for (int i = 0; i < numEntries; i++) {
+            boxes[4 * i] = minX[i];
+            boxes[4 * i + 1] = minY[i];
+            boxes[4 * i + 2] = maxX[i];
+            boxes[4 * i + 3] = maxY[i];
+            indices[i] = i;
+        }
+        levelBounds[0] = numEntries;
+
+        int start = 0;
+        int end = numEntries;
+        int level = 0;
+        while (end - start > 1) {
+            sortTileRecursive(start, end);
+
+            // pack the sorted nodes of this level into their parents
+            int pos = end;
+            for (int child = start; child < end; child += nodeSize) {
+                int lastChild = Math.min(child + nodeSize, end);
+                double nodeMinX = Double.POSITIVE_INFINITY;
+                double nodeMinY = Double.POSITIVE_INFINITY;
+                double nodeMaxX = Double.NEGATIVE_INFINITY;
+                double nodeMaxY = Double.NEGATIVE_INFINITY;
+                for (int j = child; j < lastChild; j++) {
+                    nodeMinX = Math.min(nodeMinX, boxes[4 * j]);
+                    nodeMinY = Math.min(nodeMinY, boxes[4 * j + 1]);
+                    nodeMaxX = Math.max(nodeMaxX, boxes[4 * j + 2]);
+                    nodeMaxY = Math.max(nodeMaxY, boxes[4 * j + 3]);
+                }
+                boxes[4 * pos] = nodeMinX;
+                boxes[4 * pos + 1] = nodeMinY;
+                boxes[4 * pos + 2] = nodeMaxX;
+                boxes[4 * pos + 3] = nodeMaxY;
+                indices[pos] = child;
+                pos++;
+            }
+            level++;
+            levelBounds[level] = pos;
+            start = end;
+            end = pos;
+        }
+    }
+
+    private RTree(int nodeSize, int numEntries, double[] boxes, int[] indices,
+            int[] levelBounds) {
+        this.nodeSize = nodeSize;
+        this.numEntries = numEntries;
+        this.boxes = boxes;
+        this.indices = indices;
+        this.levelBounds = levelBounds;
+    }
+
+    /**
+     * Returns the number of entries in the tree.
+     *
+     * @return The number of entries.
+     */
+    public int getNumberOfEntries() {
+        return numEntries;
+    }
+
+    public int getNodeSize() {
+        return nodeSize;
+    }
+
+    /**
+     * Finds the entries whose bounding boxes intersect a query box.
+     *
+     * @param minX The minimum x coordinate of the query box.
+     * @param minY The minimum y coordinate of the query box.
+     * @param maxX The maximum x coordinate of the query box.
+     * @param maxY The maximum y coordinate of the query box.
+     * @return The entry numbers, in increasing order.
+     */
+    public int[] search(double minX, double minY, double maxX, double maxY) {
+        int[] results = new int[64];
+        int numResults = 0;
+        if (numEntries == 0) {
+            return new int[0];
+        }
+        int numLevels = levelBounds.length;
+        int[] stack = new int[2 * (nodeSize * numLevels + 1)];
+        int stackSize = 0;
+        int root = indices.length - 1;
+        if (intersects(root, minX, minY, maxX, maxY)) {
+            if (numLevels == 1) {
+                return new int[]{indices[root]};
+            }
+            stack[stackSize++] = root;
+            stack[stackSize++] = numLevels - 1;
+        }
+        while (stackSize > 0) {
+            int level = stack[--stackSize];
+            int node = stack[--stackSize];
+            int firstChild = indices[node];
+            int lastChild = Math.min(firstChild + nodeSize, levelBounds[level - 1]);
+            for (int child = firstChild; child < lastChild; child++) {
+                if (intersects(child, minX, minY, maxX, maxY)) {
+                    if (level == 1) {
+                        if (numResults == results.length) {
+                            results = Arrays.copyOf(results, numResults * 2);
+                        }
+                        results[numResults++] = indices[child];
+                    } else {
+                        if (stackSize + 2 > stack.length) {
+                            stack = Arrays.copyOf(stack, stack.length * 2);
+                        }
+                        stack[stackSize++] = child;
+                        stack[stackSize++] = level - 1;
+                    }
+                }
+            }
+        }
+        results = Arrays.copyOf(results, numResults);
+        Arrays.sort(results);
+        return results;
+    }
+
+    /**
+     * Finds the entries whose bounding boxes intersect a query box.
+     *
+     * @param box The query box.
+     * @return The entry numbers, in increasing order.
+     */
+    public int[] search(BoundingBox box) {
+        return search(box.getMinX(), box.getMinY(), box.getMaxX(), box.getMaxY());
+    }
+
+    /**
+     * Indicates whether the bounding box of any entry intersects a query box.
+     * This stops at the first intersecting entry and is therefore quicker than
+     * search.
+     *
+     * @param minX The minimum x coordinate of the query box.
+     * @param minY The minimum y coordinate of the query box.
+     * @param maxX The maximum x coordinate of the query box.
+     * @param maxY The maximum y coordinate of the query box.
+     * @return true if at least one entry intersects the box.
+     */
+    public boolean intersectsAny(double minX, double minY, double maxX, double maxY) {
+        if (numEntries == 0) {
+            return false;
+        }
+        int numLevels = levelBounds.length;
+        int root = indices.length - 1;
+        if (!intersects(root, minX, minY, maxX, maxY)) {
+            return false;
+        }
+        if (numLevels == 1) {
+            return true;
+        }
+        int[] stack = new int[2 * (nodeSize * numLevels + 1)];
+        int stackSize = 0;
+        stack[stackSize++] = root;
+        stack[stackSize++] = numLevels - 1;
+        while (stackSize > 0) {
+            int level = stack[--stackSize];
+            int node = stack[--stackSize];
+            int firstChild = indices[node];
+            int lastChild = Math.min(firstChild + nodeSize, levelBounds[level - 1]);
+            for (int child = firstChild; child < lastChild; child++) {
+                if (intersects(child, minX, minY, maxX, maxY)) {
+                    if (level == 1) {
+                        return true;
+                    }
+                    if (stackSize + 2 > stack.length) {
+                        stack = Arrays.copyOf(stack, stack.length * 2);
+                    }
+                    stack[stackSize++] = child;
+                    stack[stackSize++] = level - 1;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean intersects(int node, double minX, double minY, double maxX,
+            double maxY) {
+        int i = 4 * node;
+        return !(boxes[i] > maxX || boxes[i + 1] > maxY
+                || boxes[i + 2] < minX || boxes[i + 3] < minY);
+    }
+
+    /**
+     * Orders the nodes of one level so that consecutive groups of nodeSize
+     * nodes are spatially compact: the nodes are sorted by the x coordinate of
+     * their centres, divided into vertical slices of about sqrt(P) * nodeSize
+     * nodes, where P is the number of parent nodes, and each slice is sorted
+     * by the y coordinate of the centres.
+     */
+    private void sortTileRecursive(int start, int end) {
+        int n = end - start;
+        int numParents = (n + nodeSize - 1) / nodeSize;
+        int numSlices = (int) Math.ceil(Math.sqrt(numParents));
+        int sliceSize = nodeSize * ((numParents + numSlices - 1) / numSlices);
+
+        int[] order = new int[n];
+        double[] keys = new double[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = start + i;
+            keys[i] = boxes[4 * (start + i)] + boxes[4 * (start + i) + 2];
+        }
+        sort(keys, order, 0, n - 1);
+
+        for (int sliceStart = 0; sliceStart < n; sliceStart += sliceSize) {
+            int sliceEnd = Math.min(sliceStart + sliceSize, n);
+            for (int i = sliceStart; i < sliceEnd; i++) {
+                keys[i] = boxes[4 * order[i] + 1] + boxes[4 * order[i] + 3];
+            }
+            sort(keys, order, sliceStart, sliceEnd - 1);
+        }
+
+        // rearrange the nodes into the sorted order
+        double[] sortedBoxes = new double[4 * n];
+        int[] sortedIndices = new int[n];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(boxes, 4 * order[i], sortedBoxes, 4 * i, 4);
+            sortedIndices[i] = indices[order[i]];
+        }
+        System.arraycopy(sortedBoxes, 0, boxes, 4 * start, 4 * n);
+        System.arraycopy(sortedIndices, 0, indices, start, n);
+    }
+
+    /**
+     * Sorts the keys between left and right, inclusive, into ascending order,
+     * moving the values with them.
+     */
+    private static void sort(double[] keys, int[] values, int left, int right) {
+        while (right - left > 16) {
+            int mid = (left + right) >>> 1;
+            // median of three
+            if (keys[mid] < keys[left]) {
+                swap(keys, values, mid, left);
+            }
+            if (keys[right] < keys[left]) {
+                swap(keys, values, right, left);
+            }
+            if (keys[right] < keys[mid]) {
+                swap(keys, values, right, mid);
+            }
+            double pivot = keys[mid];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (keys[i] < pivot) {
+                    i++;
+                }
+                while (keys[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(keys, values, i, j);
+                    i++;
+                    j--;
+                }
+            }
+            // recurse into the smaller part to bound the depth of the stack
+            if (j - left < right - i) {
+                sort(keys, values, left, j);
+                left = i;
+            } else {
+                sort(keys, values, i, right);
+                right = j;
+            }
+        }
+        for (int i = left + 1; i <= right; i++) {
+            double key = keys[i];
+            int value = values[i];
+            int j = i - 1;
+            while (j >= left && keys[j] > key) {
+                keys[j + 1] = keys[j];
+                values[j + 1] = values[j];
+                j--;
+            }
+            keys[j + 1] = key;
+            values[j + 1] = value;
+        }
+    }
+
+    private static void swap(double[] keys, int[] values, int i, int j) {
+        double k = keys[i];
+        keys[i] = keys[j];
+        keys[j] = k;
+        int v = values[i];
+        values[i] = values[j];
+        values[j] = v;
+    }
+
+    /**
+     * Returns the number of bytes needed to write the tree.
+     *
+     * @return The size in bytes.
+     */
+    public long getSizeInBytes() {
+        return 12 + 4L * levelBounds.length + 36L * indices.length;
+    }
+
+    /**
+     * Writes the tree, in little-endian byte order, at the current position of
+     * a file channel.
+     *
+     * @param outChannel The channel to which the tree is written.
+     * @throws IOException if the tree cannot be written.
+     */
+    public void write(FileChannel outChannel) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(1048576);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(nodeSize);
+        buf.putInt(numEntries);
+        buf.putInt(levelBounds.length);
+        for (int value : levelBounds) {
+            buf.putInt(value);
+        }
+        for (double value : boxes) {
+            if (buf.remaining() < 8) {
+                flush(outChannel, buf);
+            }
+            buf.putDouble(value);
+        }
+        for (int value : indices) {
+            if (buf.remaining() < 4) {
+                flush(outChannel, buf);
+            }
+            buf.putInt(value);
+        }
+        flush(outChannel, buf);
+    }
+
+    private static void flush(FileChannel outChannel, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            outChannel.write(buf);
+        }
+        buf.clear();
+    }
+
+    /**
+     * Reads a tree that was written by write, starting at the current position
+     * of a buffer. The buffer must be in little-endian byte order.
+     *
+     * @param buf The buffer from which the tree is read.
+     * @return The tree, or null if the data are not a valid tree.
+     */
+    public static RTree read(ByteBuffer buf) {
+        try {
+            int nodeSize = buf.getInt();
+            int numEntries = buf.getInt();
+            int numLevels = buf.getInt();
+            if (nodeSize < 2 || numEntries < 0 || numLevels < 1 || numLevels > 64) {
+                return null;
+            }
+            int[] levelBounds = new int[numLevels];
+            for (int i = 0; i < numLevels; i++) {
+                levelBounds[i] = buf.getInt();
+                if (i > 0 && levelBounds[i] <= levelBounds[i - 1]) {
+                    return null;
+                }
+            }
+            int numNodes = levelBounds[numLevels - 1];
+            if (levelBounds[0] != numEntries
+                    || (long) numNodes * 36 > buf.remaining()) {
+                return null;
+            }
+            double[] boxes = new double[4 * numNodes];
+            int[] indices = new int[numNodes];
+            buf.asDoubleBuffer().get(boxes);
+            buf.position(buf.position() + 32 * numNodes);
+            buf.asIntBuffer().get(indices);
+            buf.position(buf.position() + 4 * numNodes);
+            return new RTree(nodeSize, numEntries, boxes, indices, levelBounds);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+}
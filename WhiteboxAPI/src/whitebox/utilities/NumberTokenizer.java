@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.utilities;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the numbers of a text file, such as the data block of an ASCII grid.
+ * The numbers are parsed directly from a byte buffer, without creating a
+ * String for each of them, and are separated by any mix of spaces, tabs,
+ * commas and line breaks. Tokens that are not numbers, such as the '*' that
+ * marks NoData cells in GRASS ASCII grids, are read as NaN.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public class NumberTokenizer implements Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int MAX_TOKEN_LENGTH = 256;
+    // the number of rows that may be parsed ahead of the rows being handled
+    private static final int ROWS_AHEAD = 16;
+    private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+    // the powers of ten that are represented exactly as doubles
+    private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5,
+        1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17,
+        1e18, 1e19, 1e20, 1e21, 1e22};
+    private final InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int pos = 0;
+    private int limit = 0;
+    private boolean endOfStream = false;
+
+    /**
+     * Used by readRows to hand each row of numbers to the caller.
+     */
+    public interface RowHandler {
+
+        /**
+         * @param row The index of the row in the file, counting from zero.
+         * @param values The numbers of the row. The array is reused for later
+         * rows once this method returns.
+         * @return false if the reading should be cancelled.
+         */
+        boolean handleRow(int row, double[] values) throws Exception;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param in The stream to read, which is closed by close().
+     */
+    public NumberTokenizer(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads the rest of the current line, such as a header line.
+     *
+     * @return The line, without its line break, or null at the end of the
+     * file.
+     */
+    public String readLine() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            if (pos == limit && !fill()) {
+                return sb.length() > 0 ? sb.toString() : null;
+            }
+            int start = pos;
+            while (pos < limit && buffer[pos] != '\n') {
+                pos++;
+            }
+            int end = pos;
+            if (end > start && buffer[end - 1] == '\r') {
+                end--;
+            }
+            sb.append(new String(buffer, start, end - start, LATIN_1));
+            if (pos < limit) {
+                // skips the line break
+                pos++;
+                return sb.toString();
+            }
+        }
+    }
+
+    /**
+     * Skips any separators and returns the first character of the next token
+     * without reading it, e.g. to find whether a header line follows.
+     *
+     * @return The character, or -1 at the end of the file.
+     */
+    public int peek() throws IOException {
+        if (!skipSeparators()) {
+            return -1;
+        }
+        return buffer[pos] & 0xFF;
+    }
+
+    /**
+     * Returns whether another token follows.
+     */
+    public boolean hasNext() throws IOException {
+        return skipSeparators();
+    }
+
+    /**
+     * Reads the next number.
+     *
+     * @return The number, or NaN if the next token is not a number or the end
+     * of the file has been reached.
+     */
+    public double nextDouble() throws IOException {
+        if (!skipSeparators()) {
+            return Double.NaN;
+        }
+        if (limit - pos < MAX_TOKEN_LENGTH && !endOfStream) {
+            // keeps the whole token in the buffer
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+            fill();
+        }
+        int start = pos;
+        int p = pos;
+        boolean negative = false;
+        if (buffer[p] == '-') {
+            negative = true;
+            p++;
+        } else if (buffer[p] == '+') {
+            p++;
+        }
+        long mantissa = 0;
+        int exponent = 0;
+        boolean hasDigits = false;
+        boolean exact = true;
+        while (p < limit && isDigit(buffer[p])) {
+            if (mantissa < 100000000000000000L) {
+                mantissa = mantissa * 10 + (buffer[p] - '0');
+            } else {
+                exact = false;
+            }
+            hasDigits = true;
+            p++;
+        }
+        if (p < limit && buffer[p] == '.') {
+            p++;
+            while (p < limit && isDigit(buffer[p])) {
+                if (mantissa < 100000000000000000L) {
+                    mantissa = mantissa * 10 + (buffer[p] - '0');
+                    exponent--;
+                } else {
+                    exact = false;
+                }
+                hasDigits = true;
+                p++;
+            }
+        }
+        if (hasDigits && p < limit && (buffer[p] == 'e' || buffer[p] == 'E')) {
+            p++;
+            boolean negativeExponent = false;
+            if (p < limit && (buffer[p] == '-' || buffer[p] == '+')) {
+                negativeExponent = buffer[p] == '-';
+                p++;
+            }
+            int e = 0;
+            boolean hasExponentDigits = false;
+            while (p < limit && isDigit(buffer[p])) {
+                if (e < 10000) {
+                    e = e * 10 + (buffer[p] - '0');
+                }
+                hasExponentDigits = true;
+                p++;
+            }
+            if (!hasExponentDigits) {
+                exact = false;
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+
+        // the token must end at a separator
+        int end = p;
+        while (end < limit && !isSeparator(buffer[end])) {
+            end++;
+        }
+        if (end == limit && !endOfStream) {
+            throw new IOException("A token is longer than " + MAX_TOKEN_LENGTH + " characters.");
+        }
+        pos = end;
+
+        // A mantissa of at most 2^53 and a power of ten of at most 10^22 are
+        // both exact doubles, so that their product or quotient is correctly
+        // rounded (Clinger, 1990). Anything else is left to Double.parseDouble.
+        if (hasDigits && exact && end == p && mantissa <= (1L << 53)
+                && exponent >= -22 && exponent <= 22) {
+            double value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent]
+                    : mantissa / POWERS_OF_TEN[-exponent];
+            return negative ? -value : value;
+        }
+        try {
+            return Double.parseDouble(new String(buffer, start, end - start, LATIN_1));
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Reads rows of numbers, parsing them on a separate thread while the
+     * previous rows are handled on the calling thread. Any numbers missing
+     * at the end of the file are read as NaN.
+     *
+     * @param numRows The number of rows to read.
+     * @param numCols The number of numbers in each row.
+     * @param handler Receives the rows, in order, on the calling thread.
+     * @return false if the handler cancelled the reading.
+     */
+    public boolean readRows(final int numRows, final int numCols, RowHandler handler)
+            throws Exception {
+        final BlockingQueue<double[]> free = new ArrayBlockingQueue<>(ROWS_AHEAD);
+        final BlockingQueue<double[]> parsed = new ArrayBlockingQueue<>(ROWS_AHEAD);
+        for (int i = 0; i < ROWS_AHEAD; i++) {
+            free.add(new double[numCols]);
+        }
+        ExecutorService parser = Executors.newSingleThreadExecutor(new NamedThreadFactory("NumberTokenizer"));
+        Future<Void> parsing = parser.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                for (int row = 0; row < numRows; row++) {
+                    double[] values = free.take();
+                    for (int col = 0; col < numCols; col++) {
+                        values[col] = nextDouble();
+                    }
+                    parsed.put(values);
+                }
+                return null;
+            }
+        });
+        try {
+            for (int row = 0; row < numRows; row++) {
+                double[] values;
+                while ((values = parsed.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                    if (parsing.isDone()) {
+                        // throws the exception that stopped the parser
+                        parsing.get();
+                    }
+                }
+                if (!handler.handleRow(row, values)) {
+                    return false;
+                }
+                free.put(values);
+            }
+            return true;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw (Error) cause;
+        } finally {
+            parsing.cancel(true);
+            parser.shutdownNow();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private boolean fill() throws IOException {
+        if (pos == limit) {
+            pos = 0;
+            limit = 0;
+        }
+        while (!endOfStream && limit < buffer.length) {
+            int n = in.read(buffer, limit, buffer.length - limit);
+            if (n < 0) {
+                endOfStream = true;
+            } else if (n == 0) {
+                break;
+            } else {
+                limit += n;
+                if (limit - pos >= MAX_TOKEN_LENGTH) {
+                    break;
+                }
+            }
+        }
+        return pos < limit;
+    }
+
+    private boolean skipSeparators() throws IOException {
+        while (true) {
+            while (pos < limit && isSeparator(buffer[pos])) {
+                pos++;
+            }
+            if (pos < limit) {
+                return true;
+            }
+            if (!fill()) {
+                return false;
+            }
+        }
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static boolean isSeparator(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == ',';
+    }
+}
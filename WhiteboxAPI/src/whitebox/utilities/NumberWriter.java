@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.utilities;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes numbers as text, such as the data block of an ASCII grid. The
+ * numbers are formatted into a reusable byte buffer, without creating a
+ * String for each of them, and are written exactly as String.valueOf would
+ * write them.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public class NumberWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+    private final OutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int pos = 0;
+    // appending a float or double to a StringBuilder does not create a String
+    private final StringBuilder number = new StringBuilder(32);
+    private final byte[] digits = new byte[20];
+
+    /**
+     * Constructor.
+     *
+     * @param out The stream to write, which is closed by close().
+     */
+    public NumberWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Writes text, such as a header line or a separator.
+     */
+    public void write(String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            write(text.charAt(i));
+        }
+    }
+
+    /**
+     * Writes a single character.
+     */
+    public void write(char c) throws IOException {
+        if (pos == buffer.length) {
+            flushBuffer();
+        }
+        buffer[pos++] = (byte) c;
+    }
+
+    /**
+     * Writes the platform's line separator.
+     */
+    public void newLine() throws IOException {
+        write(LINE_SEPARATOR);
+    }
+
+    public void write(float value) throws IOException {
+        number.setLength(0);
+        number.append(value);
+        writeNumber();
+    }
+
+    public void write(double value) throws IOException {
+        number.setLength(0);
+        number.append(value);
+        writeNumber();
+    }
+
+    public void write(long value) throws IOException {
+        if (pos + digits.length + 1 > buffer.length) {
+            flushBuffer();
+        }
+        if (value == Long.MIN_VALUE) {
+            write(Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            buffer[pos++] = '-';
+            value = -value;
+        }
+        int n = digits.length;
+        do {
+            digits[--n] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        System.arraycopy(digits, n, buffer, pos, digits.length - n);
+        pos += digits.length - n;
+    }
+
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        out.close();
+    }
+
+    private void writeNumber() throws IOException {
+        if (pos + number.length() > buffer.length) {
+            flushBuffer();
+        }
+        for (int i = 0; i < number.length(); i++) {
+            buffer[pos++] = (byte) number.charAt(i);
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        out.write(buffer, 0, pos);
+        pos = 0;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Writes GeoTIFF files with GeoTiffWriter and reads them back with GeoTiff.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public class GeoTiffWriterTest {
+
+    private static final int ROWS = 45;
+    private static final int COLS = 71;
+    private static final double NODATA = -32768;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testBigTiffRoundTrip() throws Exception {
+        File tiff = writeTiff(true, true);
+        assertEquals(43, readVersion(tiff));
+        assertValues(tiff);
+    }
+
+    @Test
+    public void testUncompressedBigTiffRoundTrip() throws Exception {
+        File tiff = writeTiff(true, false);
+        assertEquals(43, readVersion(tiff));
+        assertValues(tiff);
+    }
+
+    @Test
+    public void testClassicTiffRoundTrip() throws Exception {
+        File tiff = writeTiff(false, true);
+        assertEquals(42, readVersion(tiff));
+        assertValues(tiff);
+    }
+
+    private static double expectedValue(int row, int col) {
+        if ((row + col) % 17 == 0) {
+            return NODATA;
+        }
+        return (float) (Math.sin(row * 0.1) * 100 + col * 0.37);
+    }
+
+    private File writeTiff(boolean bigTiff, boolean compressed) throws Exception {
+        String header = new File(folder.getRoot(), "raster.dep").getPath();
+        WhiteboxRaster raster = new WhiteboxRaster(header, 4500, 0, 7100, 0, ROWS, COLS,
+                WhiteboxRasterBase.DataScale.CONTINUOUS, WhiteboxRasterBase.DataType.FLOAT,
+                NODATA, NODATA);
+        for (int row = 0; row < ROWS; row++) {
+            for (int col = 0; col < COLS; col++) {
+                raster.setValue(row, col, expectedValue(row, col));
+            }
+        }
+        raster.close();
+
+        File tiff = new File(folder.getRoot(), "raster.tif");
+        raster = new WhiteboxRaster(header, "r");
+        try {
+            // small tiles give several tiles and overview levels
+            GeoTiffWriter writer = new GeoTiffWriter(tiff.getPath(), raster);
+            writer.setTileSize(16);
+            writer.setCompressed(compressed);
+            writer.setBigTiff(bigTiff);
+            assertTrue(writer.write(null));
+        } finally {
+            raster.close();
+        }
+        return tiff;
+    }
+
+    private static int readVersion(File tiff) throws Exception {
+        try (RandomAccessFile file = new RandomAccessFile(tiff, "r")) {
+            // the writer uses little-endian byte order
+            assertEquals('I', file.read());
+            assertEquals('I', file.read());
+            return file.read() | (file.read() << 8);
+        }
+    }
+
+    private static void assertValues(File tiff) throws Exception {
+        GeoTiff geoTiff = new GeoTiff(tiff.getPath());
+        geoTiff.read();
+        try {
+            assertEquals(ROWS, geoTiff.getNumberRows());
+            assertEquals(COLS, geoTiff.getNumberColumns());
+            assertEquals(NODATA, geoTiff.getNoData(), 0);
+            assertEquals(4500, geoTiff.getNorth(), 1e-9);
+            assertEquals(7100, geoTiff.getEast(), 1e-9);
+            for (int row = 0; row < ROWS; row++) {
+                for (int col = 0; col < COLS; col++) {
+                    assertEquals(expectedValue(row, col), geoTiff.getValue(row, col), 0);
+                }
+            }
+        } finally {
+            geoTiff.close();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.io.File;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import whitebox.geospatialfiles.WhiteboxRasterBase.DataScale;
+import whitebox.geospatialfiles.WhiteboxRasterBase.DataType;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the tile cache of WhiteboxRaster.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public class WhiteboxRasterTest {
+
+    private static final int ROWS = 300;
+    private static final int COLS = 300;
+    private static final double NODATA = -32768;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static double computedValue(int row, int col) {
+        // like the result of a terrain derivative, rarely a float exactly
+        return Math.atan(Math.hypot(row - 150.5, col - 99.25) / 37.0) * 180 / Math.PI;
+    }
+
+    private WhiteboxRaster createRaster(DataType dataType) {
+        String header = new File(folder.getRoot(), dataType + ".dep").getPath();
+        return new WhiteboxRaster(header, ROWS, 0, COLS, 0, ROWS, COLS,
+                DataScale.CONTINUOUS, dataType, NODATA, NODATA);
+    }
+
+    /**
+     * The number of bytes taken by the tiles of the whole raster when each
+     * cell takes cellSize bytes.
+     */
+    private static long tileBytes(WhiteboxRaster raster, int cellSize) {
+        int tileSize = raster.getTileSize();
+        int numTileColumns = (COLS + tileSize - 1) / tileSize;
+        return (long) numTileColumns * ROWS * tileSize * cellSize;
+    }
+
+    @Test
+    public void testFloatTilesKeepFloatStorage() {
+        WhiteboxRaster raster = createRaster(DataType.FLOAT);
+        for (int row = 0; row < ROWS; row++) {
+            for (int col = 0; col < COLS; col++) {
+                raster.setValue(row, col, computedValue(row, col));
+            }
+        }
+        assertEquals(tileBytes(raster, 4), raster.getTileCacheSizeInBytes());
+        for (int row = 0; row < ROWS; row++) {
+            for (int col = 0; col < COLS; col++) {
+                assertEquals((float) computedValue(row, col), raster.getValue(row, col), 0);
+            }
+        }
+        raster.close();
+    }
+
+    @Test
+    public void testValuesReadTheSameBeforeAndAfterWriting() {
+        DataType[] dataTypes = {DataType.FLOAT, DataType.INTEGER, DataType.BYTE};
+        int[] cellSizes = {4, 2, 1};
+        for (int t = 0; t < dataTypes.length; t++) {
+            DataType dataType = dataTypes[t];
+            WhiteboxRaster raster = createRaster(dataType);
+            double[][] before = new double[ROWS][COLS];
+            for (int row = 0; row < ROWS; row++) {
+                for (int col = 0; col < COLS; col++) {
+                    raster.setValue(row, col, computedValue(row, col));
+                    before[row][col] = raster.getValue(row, col);
+                }
+            }
+            assertEquals(tileBytes(raster, cellSizes[t]), raster.getTileCacheSizeInBytes());
+            String header = raster.getHeaderFile();
+            raster.close();
+
+            raster = new WhiteboxRaster(header, "r");
+            for (int row = 0; row < ROWS; row++) {
+                for (int col = 0; col < COLS; col++) {
+                    assertEquals(dataType.toString(), before[row][col], raster.getValue(row, col), 0);
+                }
+            }
+            raster.close();
+        }
+    }
+
+    @Test
+    public void testNarrowTilesArePromotedWhenTheDataTypeIsWidened() {
+        WhiteboxRaster raster = createRaster(DataType.INTEGER);
+        raster.setValue(0, 0, 12);
+        raster.setDataType(DataType.FLOAT);
+        raster.setValue(0, 1, 2.5);
+        assertEquals(12, raster.getValue(0, 0), 0);
+        assertEquals(2.5, raster.getValue(0, 1), 0);
+        raster.close();
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.structures;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Compares the time needed to fill the depressions in a synthetic DEM using
+ * a java.util.PriorityQueue of GridCell objects, a CellPriorityQueue, and a
+ * BucketedCellPriorityQueue. It is run by hand and is not part of the test
+ * suite.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public class CellPriorityQueueBenchmark {
+
+    /**
+     * @param args The number of rows and columns (optional).
+     */
+    public static void main(String[] args) {
+        int rows = 2000;
+        int cols = 2000;
+        if (args.length >= 2) {
+            rows = Integer.parseInt(args[0]);
+            cols = Integer.parseInt(args[1]);
+        }
+
+        // an integer-valued, noisy surface with plenty of depressions
+        Random random = new Random(1);
+        double[][] dem = new double[rows][cols];
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                dem[row][col] = Math.round(100 + 50 * Math.sin(row / 50.0)
+                        * Math.cos(col / 70.0) + random.nextInt(20));
+                min = Math.min(min, dem[row][col]);
+                max = Math.max(max, dem[row][col]);
+            }
+        }
+
+        for (int trial = 0; trial < 3; trial++) {
+            long startTime = System.nanoTime();
+            double[][] out1 = fillWithObjects(dem);
+            long objectTime = System.nanoTime() - startTime;
+
+            startTime = System.nanoTime();
+            double[][] out2 = fillWithQueue(dem,
+                    new CellPriorityQueue((2 * rows + 2 * cols) * 2));
+            long heapTime = System.nanoTime() - startTime;
+
+            startTime = System.nanoTime();
+            double[][] out3 = fillWithQueue(dem,
+                    new BucketedCellPriorityQueue(min, max, 1.0));
+            long bucketTime = System.nanoTime() - startTime;
+
+            double heapDiff = 0;
+            double bucketDiff = 0;
+            for (int row = 0; row < rows; row++) {
+                for (int col = 0; col < cols; col++) {
+                    heapDiff = Math.max(heapDiff, Math.abs(out1[row][col] - out2[row][col]));
+                    bucketDiff = Math.max(bucketDiff, Math.abs(out1[row][col] - out3[row][col]));
+                }
+            }
+            System.out.println(String.format("%d x %d cells: PriorityQueue<GridCell> %d ms, "
+                    + "CellPriorityQueue %d ms (max. difference %g), "
+                    + "BucketedCellPriorityQueue %d ms (max. difference %g)",
+                    rows, cols, objectTime / 1000000, heapTime / 1000000, heapDiff,
+                    bucketTime / 1000000, bucketDiff));
+        }
+    }
+
+    private static final int[] dX = {1, 1, 1, 0, -1, -1, -1, 0};
+    private static final int[] dY = {-1, 0, 1, 1, 1, 0, -1, -1};
+
+    private static double[][] fillWithObjects(double[][] dem) {
+        int rows = dem.length;
+        int cols = dem[0].length;
+        double[][] output = new double[rows][cols];
+        PriorityQueue<GridCell> queue = new PriorityQueue<>((2 * rows + 2 * cols) * 2);
+        for (int row = 0; row < rows; row++) {
+            Arrays.fill(output[row], -999);
+        }
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                if (row == 0 || col == 0 || row == rows - 1 || col == cols - 1) {
+                    queue.add(new GridCell(row, col, dem[row][col], -32768, -1));
+                    output[row][col] = dem[row][col];
+                }
+            }
+        }
+        while (!queue.isEmpty()) {
+            GridCell gc = queue.poll();
+            for (int i = 0; i < 8; i++) {
+                int rowN = gc.row + dY[i];
+                int colN = gc.col + dX[i];
+                if (rowN >= 0 && rowN < rows && colN >= 0 && colN < cols
+                        && output[rowN][colN] == -999) {
+                    double zN = dem[rowN][colN];
+                    if (zN <= gc.z) {
+                        zN = gc.z + 0.001;
+                    }
+                    output[rowN][colN] = zN;
+                    queue.add(new GridCell(rowN, colN, zN, -32768, -1));
+                }
+            }
+        }
+        return output;
+    }
+
+    private static double[][] fillWithQueue(double[][] dem, GridCellQueue queue) {
+        int rows = dem.length;
+        int cols = dem[0].length;
+        double[][] output = new double[rows][cols];
+        for (int row = 0; row < rows; row++) {
+            Arrays.fill(output[row], -999);
+        }
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                if (row == 0 || col == 0 || row == rows - 1 || col == cols - 1) {
+                    queue.add(row, col, dem[row][col]);
+                    output[row][col] = dem[row][col];
+                }
+            }
+        }
+        while (!queue.isEmpty()) {
+            int row = queue.peekRow();
+            int col = queue.peekColumn();
+            double z = queue.peekPriority();
+            queue.remove();
+            for (int i = 0; i < 8; i++) {
+                int rowN = row + dY[i];
+                int colN = col + dX[i];
+                if (rowN >= 0 && rowN < rows && colN >= 0 && colN < cols
+                        && output[rowN][colN] == -999) {
+                    double zN = dem[rowN][colN];
+                    if (zN <= z) {
+                        zN = z + 0.001;
+                    }
+                    output[rowN][colN] = zN;
+                    queue.add(rowN, colN, zN);
+                }
+            }
+        }
+        return output;
+    }
+}
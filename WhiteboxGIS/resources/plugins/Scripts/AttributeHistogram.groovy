@@ -125,7 +125,7 @@ public class AttributeHistogram implements ActionListener {
 	        					String inputFile = inputData[0].trim()
 	        					String fieldName = inputData[1].trim()
 	        					if ((new File(inputFile)).exists()) {
-	    							ShapeFile shape = new ShapeFile(inputFile)
+	    							ShapeFile shape = new ShapeFile(inputFile, true)
 	    							
 	    							AttributeTable table = shape.getAttributeTable()
 									
@@ -165,7 +165,7 @@ public class AttributeHistogram implements ActionListener {
 		            		String inputFile = inputData[0].trim()
 							String fieldName = inputData[1].trim()
 							if ((new File(inputFile)).exists()) {
-								ShapeFile shape = new ShapeFile(inputFile)
+								ShapeFile shape = new ShapeFile(inputFile, true)
 								
 								AttributeTable table = shape.getAttributeTable()
 								
@@ -222,7 +222,7 @@ public class AttributeHistogram implements ActionListener {
 				}
 			}
 			
-        	ShapeFile shape = new ShapeFile(inputFile)
+        	ShapeFile shape = new ShapeFile(inputFile, true)
 			
 			String fieldName = inputData[1]
 
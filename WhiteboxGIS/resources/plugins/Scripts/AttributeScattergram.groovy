@@ -127,7 +127,7 @@ public class AttributeScattergram implements ActionListener {
 			}
 			String inputFile = inputData[0].trim()
 			
-        	ShapeFile shape = new ShapeFile(inputFile)
+        	ShapeFile shape = new ShapeFile(inputFile, true)
 			
 			String fieldName1 = inputData[1].trim()
 			String fieldName2 = inputData[2].trim()
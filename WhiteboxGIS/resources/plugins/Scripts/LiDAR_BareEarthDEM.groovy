@@ -24,8 +24,7 @@ import java.util.Date
 import java.util.ArrayList
 import whitebox.interfaces.WhiteboxPluginHost
 import whitebox.geospatialfiles.LASReader
-import whitebox.geospatialfiles.LASReader.PointRecord
-import whitebox.geospatialfiles.LASReader.PointRecColours
+import whitebox.geospatialfiles.LASPointArrays
 import whitebox.geospatialfiles.WhiteboxRaster
 import whitebox.geospatialfiles.WhiteboxRasterBase
 import whitebox.geospatialfiles.WhiteboxRasterBase.DataType
@@ -283,36 +282,44 @@ public class LiDAR_BareEarthDEM implements ActionListener {
 			
 			// count how many valid points there are
 			int numPoints = 0;
-			ArrayList<PointRecord> recs = new ArrayList<>();
+			ArrayList<LASPointArrays> pointSets = new ArrayList<>();
 			for (int a = 0; a < numFiles; a++) {
 				if (bb[a].entirelyContainedWithin(expandedBB) || 
 				  bb[a].intersectsAnEdgeOf(expandedBB)) {
 				 	las = new LASReader(inputFiles[a])
-				 	ArrayList<PointRecord> points = las.getPointRecordsInBoundingBox(expandedBB)
-			 		for (PointRecord point : points) {
-				 		if (!point.isPointWithheld()) {
-                            recs.add(point);
+				 	LASPointArrays points = las.getPointsInBoundingBox(expandedBB)
+				 	boolean[] withheld = points.getPointWithheld()
+			 		for (int k = 0; k < points.getNumPoints(); k++) {
+				 		if (!withheld[k]) {
+                            numPoints++;
                         }
 			 		}
-				 	points.clear();
+				 	pointSets.add(points);
 				}
 			}
 			
-			numPoints = recs.size();
 			KdTree<InterpolationRecord> pointsTree = new KdTree.SqrEuclid<InterpolationRecord>(2, new Integer(numPoints))
 
 			BooleanBitArray1D nongroundBitArray = new BooleanBitArray1D(numPoints)
 			
 			double[] entry;
-			PointRecColours pointColours;
 			i = 0
-			for (PointRecord point : recs) {
-				entry = [point.getY(), point.getX()]
-				pointsTree.addPoint(entry, new InterpolationRecord(point.getX(), point.getY(), point.getZ(), point.getScanAngle(), i));
-				i++
+			for (LASPointArrays points : pointSets) {
+				double[] xs = points.getX()
+				double[] ys = points.getY()
+				double[] zs = points.getZ()
+				byte[] scanAngles = points.getScanAngle()
+				boolean[] withheld = points.getPointWithheld()
+				for (int k = 0; k < points.getNumPoints(); k++) {
+					if (!withheld[k]) {
+						entry = [ys[k], xs[k]]
+						pointsTree.addPoint(entry, new InterpolationRecord(xs[k], ys[k], zs[k], scanAngles[k], i));
+						i++
+					}
+				}
 			}
             
-			recs.clear();
+			pointSets.clear();
 			
             // create the output grid
             String inputFileExtension = FileUtilities.getFileExtension(inputFile)
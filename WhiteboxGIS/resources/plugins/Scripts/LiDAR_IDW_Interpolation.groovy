@@ -24,8 +24,7 @@ import java.util.Date
 import java.util.ArrayList
 import whitebox.interfaces.WhiteboxPluginHost
 import whitebox.geospatialfiles.LASReader
-import whitebox.geospatialfiles.LASReader.PointRecord
-import whitebox.geospatialfiles.LASReader.PointRecColours
+import whitebox.geospatialfiles.LASPointArrays
 import whitebox.geospatialfiles.WhiteboxRaster
 import whitebox.geospatialfiles.WhiteboxRasterBase.DataType
 import whitebox.structures.BoundingBox
@@ -336,67 +335,65 @@ public class LiDAR_IDW_Interpolation implements ActionListener {
 			
 			// count how many valid points there are
 			int numPoints = 0;
-			ArrayList<PointRecord> recs = new ArrayList<>();
+			ArrayList<LASPointArrays> pointSets = new ArrayList<>();
+			ArrayList<boolean[]> validFlags = new ArrayList<>();
 			for (int a = 0; a < numFiles; a++) {
 				if (bb[a].entirelyContainedWithin(expandedBB) || 
 				  bb[a].intersectsAnEdgeOf(expandedBB)) {
 				 	las = new LASReader(inputFiles[a])
-				 	ArrayList<PointRecord> points = las.getPointRecordsInBoundingBox(expandedBB)
-				 	if (returnNumberToInterpolate.equals("all points")) {
-				 		for (PointRecord point : points) {
-					 		if (!point.isPointWithheld() &&
-	                          !(classValuesToExclude[point.getClassification()])) {
-	                            recs.add(point);
-	                        }
-				 		}
-				 	} else if (returnNumberToInterpolate.equals("first return")) {
-				 		for (PointRecord point : points) {
-					 		if (!point.isPointWithheld() &&
-	                          !(classValuesToExclude[point.getClassification()])
-                              && point.getReturnNumber() == 1) {
-	                            recs.add(point);
-	                        }
-				 		}
-				 	} else { // if (returnNumberToInterpolate.equals("last return")) {
-				 		for (PointRecord point : points) {
-					 		if (!point.isPointWithheld() &&
-	                          !(classValuesToExclude[point.getClassification()])
-                              && point.getReturnNumber() == point.getNumberOfReturns()) {
-	                            recs.add(point);
-	                        }
+				 	LASPointArrays points = las.getPointsInBoundingBox(expandedBB)
+				 	boolean[] withheld = points.getPointWithheld()
+				 	byte[] classification = points.getClassification()
+				 	byte[] returnNumber = points.getReturnNumber()
+				 	byte[] numberOfReturns = points.getNumberOfReturns()
+				 	boolean[] isValid = new boolean[points.getNumPoints()]
+				 	for (int k = 0; k < points.getNumPoints(); k++) {
+				 		if (!withheld[k] && !(classValuesToExclude[classification[k]])) {
+				 			if (returnNumberToInterpolate.equals("all points")) {
+				 				isValid[k] = true
+				 			} else if (returnNumberToInterpolate.equals("first return")) {
+				 				isValid[k] = (returnNumber[k] == 1)
+				 			} else { // if (returnNumberToInterpolate.equals("last return")) {
+				 				isValid[k] = (returnNumber[k] == numberOfReturns[k])
+				 			}
+				 			if (isValid[k]) {
+				 				numPoints++
+				 			}
 				 		}
 				 	}
-				 	points.clear();
+				 	pointSets.add(points);
+				 	validFlags.add(isValid);
 				}
 			}
 			
-			numPoints = recs.size();
 			KdTree<InterpolationRecord> pointsTree = new KdTree.SqrEuclid<InterpolationRecord>(2, new Integer(numPoints))
 
 			double[] entry;
-			PointRecColours pointColours;
-			if (whatToInterpolate.equals("z (elevation)")) {
-				for (PointRecord point : recs) {
-					entry = [point.getY(), point.getX()]
-					pointsTree.addPoint(entry, new InterpolationRecord(point.getZ(), point.getScanAngle()));
-				}
-            } else if (whatToInterpolate.equals("intensity")) {
-                for (PointRecord point : recs) {
-					entry = [point.getY(), point.getX()]
-					pointsTree.addPoint(entry, new InterpolationRecord(point.getIntensity(), point.getScanAngle()));
-				}
-            } else if (whatToInterpolate.equals("classification")) {
-                for (PointRecord point : recs) {
-					entry = [point.getY(), point.getX()]
-					pointsTree.addPoint(entry, new InterpolationRecord(point.getClassification(), point.getScanAngle()));
-				}
-            } else if (whatToInterpolate.equals("scan angle")) {
-                for (PointRecord point : recs) {
-					entry = [point.getY(), point.getX()]
-					pointsTree.addPoint(entry, new InterpolationRecord(point.getScanAngle(), point.getScanAngle()));
+			for (int s = 0; s < pointSets.size(); s++) {
+				LASPointArrays points = pointSets.get(s)
+				boolean[] isValid = validFlags.get(s)
+				double[] xs = points.getX()
+				double[] ys = points.getY()
+				byte[] scanAngles = points.getScanAngle()
+				for (int k = 0; k < points.getNumPoints(); k++) {
+					if (isValid[k]) {
+						double value
+						if (whatToInterpolate.equals("z (elevation)")) {
+							value = points.getZ()[k]
+						} else if (whatToInterpolate.equals("intensity")) {
+							value = points.getIntensity()[k]
+						} else if (whatToInterpolate.equals("classification")) {
+							value = points.getClassification()[k]
+						} else { // if (whatToInterpolate.equals("scan angle")) {
+							value = scanAngles[k]
+						}
+						entry = [ys[k], xs[k]]
+						pointsTree.addPoint(entry, new InterpolationRecord(value, scanAngles[k]));
+					}
 				}
-            }
-			recs.clear();
+			}
+			pointSets.clear();
+			validFlags.clear();
 			
             // create the output grid
             String inputFileExtension = FileUtilities.getFileExtension(inputFile)
@@ -39,6 +39,13 @@ import java.text.AttributedCharacterIterator;
 import java.awt.font.FontRenderContext;
 import java.awt.font.TextLayout;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import javax.imageio.ImageIO;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
@@ -130,6 +137,25 @@ public class MapRenderer2 extends JPanel implements Printable, MouseMotionListen
     private Color selectedFeatureColour = Color.CYAN;
     private Color selectionBoxColour = Color.GRAY;
     private double ppm = java.awt.Toolkit.getDefaultToolkit().getScreenResolution() * 39.3701;
+    // raster layers that need fewer than this many cells to be read are
+    // rendered while painting; larger ones are rendered in the background.
+    private static final long MAX_SYNCHRONOUS_RENDER_CELLS = 1 << 20;
+    private static final int MAX_CACHED_LAYER_IMAGES = 8;
+    private final ExecutorService layerRenderer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Raster layer renderer");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private final Set<RasterLayerInfo> layersBeingRendered = Collections.synchronizedSet(new HashSet<RasterLayerInfo>());
+    private final Map<RasterLayerInfo.PixelImage, Image> layerImages = new LinkedHashMap<RasterLayerInfo.PixelImage, Image>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<RasterLayerInfo.PixelImage, Image> eldest) {
+            return size() > MAX_CACHED_LAYER_IMAGES;
+        }
+    };
 
     public MapRenderer2() {
         init();
@@ -1848,6 +1874,44 @@ public class MapRenderer2 extends JPanel implements Printable, MouseMotionListen
         }
     }
 
+    /**
+     * Creates the image of a raster layer on the renderer thread and repaints
+     * the map once it is ready. The layer is rendered again if its extent or
+     * resolution changes while it is being rendered.
+     */
+    private void renderInBackground(final RasterLayerInfo layer) {
+        if (!layersBeingRendered.add(layer)) {
+            return;
+        }
+        layerRenderer.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    do {
+                        layer.createPixelData();
+                        repaint();
+                    } while (layer.isDirty());
+                } finally {
+                    layersBeingRendered.remove(layer);
+                }
+                if (layer.isDirty()) {
+                    renderInBackground(layer);
+                }
+            }
+        });
+    }
+
+    private Image getLayerImage(RasterLayerInfo.PixelImage pixelImage) {
+        Image image = layerImages.get(pixelImage);
+        if (image == null) {
+            int width = pixelImage.getWidth();
+            image = createImage(new MemoryImageSource(width, pixelImage.getHeight(),
+                    pixelImage.getPixelData(), 0, width));
+            layerImages.put(pixelImage, image);
+        }
+        return image;
+    }
+
     private void drawMapArea(Graphics2D g2, MapArea mapArea, BasicStroke dashed) {
         if (mapArea.isVisible()) {
 //                            if (mapArea.getRotation() > 0) {
@@ -1940,8 +2004,6 @@ public class MapRenderer2 extends JPanel implements Printable, MouseMotionListen
                     scaleText.setText(df.format(mapArea.getScale()));
                 }
 
-                int width, height;
-
                 // what are the edge coordinates of the actual map area
                 mapExtent.setMinX(currentExtent.getMinX() - (viewAreaWidth / mapScale - xRange) / 2);
                 mapExtent.setMaxX(currentExtent.getMaxX() + (viewAreaWidth / mapScale - xRange) / 2);
@@ -1994,14 +2056,28 @@ public class MapRenderer2 extends JPanel implements Printable, MouseMotionListen
                                 //}
 
                                 if (layer.isDirty()) {
-                                    layer.createPixelData();
+                                    long cellsRead = ((long) numRows / Math.max(res, 1) + 1) * layer.getNumberColumns();
+                                    if (printingMap || cellsRead <= MAX_SYNCHRONOUS_RENDER_CELLS) {
+                                        layer.createPixelData();
+                                    } else {
+                                        renderInBackground(layer);
+                                    }
                                 }
 
-                                width = layer.getImageWidth();
-                                height = layer.getImageHeight();
-                                Image image = createImage(new MemoryImageSource(width, height, layer.getPixelData(), 0, width));
-                                if (!g2.drawImage(image, x, y, layerWidth, layerHeight, this)) {
-                                    g2.drawImage(image, x, y, layerWidth, layerHeight, this);
+                                // until a background render is complete, the
+                                // previous image is drawn over the extent that
+                                // it covers.
+                                RasterLayerInfo.PixelImage pixelImage = layer.getPixelImage();
+                                if (pixelImage != null) {
+                                    BoundingBox imageExtent = pixelImage.getExtent();
+                                    x = (int) (viewAreaULX + (imageExtent.getMinX() - mapExtent.getMinX()) * mapScale);
+                                    y = (int) (viewAreaULY + (mapExtent.getMaxY() - imageExtent.getMaxY()) * mapScale);
+                                    layerWidth = (int) ((Math.abs(imageExtent.getMaxX() - imageExtent.getMinX())) * mapScale);
+                                    layerHeight = (int) ((Math.abs(imageExtent.getMaxY() - imageExtent.getMinY())) * mapScale);
+                                    Image image = getLayerImage(pixelImage);
+                                    if (!g2.drawImage(image, x, y, layerWidth, layerHeight, this)) {
+                                        g2.drawImage(image, x, y, layerWidth, layerHeight, this);
+                                    }
                                 }
 
                             }